@@ -28,7 +28,6 @@ package org.carewebframework.vista.api.mbroker;
 import org.carewebframework.api.alias.AliasType;
 import org.carewebframework.api.alias.AliasTypeRegistry;
 import org.carewebframework.vista.mbroker.BrokerSession;
-import org.carewebframework.vista.mbroker.RPCParameters;
 
 /**
  * This subclass exists to allow transparent use of RPC aliases in broker calls.
@@ -38,9 +37,9 @@ public class BrokerSessionEx extends BrokerSession {
     private final AliasType rpcAliasType = AliasTypeRegistry.getType("RPC");
     
     @Override
-    public String callRPC(String name, boolean async, int timeout, RPCParameters params) {
+    protected String resolveAlias(String name) {
         String alias = rpcAliasType.get(name);
-        return super.callRPC(alias == null ? name : alias, async, timeout, params);
+        return alias == null ? name : alias;
     }
     
 }
@@ -0,0 +1,45 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.api.mbroker;
+
+import org.carewebframework.api.alias.AliasType;
+import org.carewebframework.api.alias.AliasTypeRegistry;
+import org.carewebframework.vista.mbroker.BrokerSessionPool;
+
+/**
+ * Pooled broker session that allows transparent use of RPC aliases in broker calls.
+ */
+public class BrokerSessionPoolEx extends BrokerSessionPool {
+    
+    private final AliasType rpcAliasType = AliasTypeRegistry.getType("RPC");
+    
+    @Override
+    protected String resolveAlias(String name) {
+        String alias = rpcAliasType.get(name);
+        return alias == null ? name : alias;
+    }
+    
+}
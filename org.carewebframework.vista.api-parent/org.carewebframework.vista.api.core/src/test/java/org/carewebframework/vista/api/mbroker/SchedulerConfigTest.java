@@ -0,0 +1,93 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.api.mbroker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.carewebframework.vista.mbroker.RPCScheduler;
+import org.carewebframework.vista.mbroker.RPCScheduler.RPCClass;
+
+import org.junit.Test;
+
+import org.springframework.beans.factory.config.RuntimeBeanReference;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.beans.factory.xml.XmlBeanDefinitionReader;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.core.io.ClassPathResource;
+
+/**
+ * Checks the RPC scheduler as configured by the shipped Spring configuration and default
+ * properties.
+ */
+public class SchedulerConfigTest {
+    
+    @Test
+    public void testScheduler() {
+        DefaultListableBeanFactory factory = loadConfig("classpath:/META-INF/VistAExtensions-api-spring.xml");
+        RPCScheduler scheduler = factory.getBean("brokerRPCScheduler", RPCScheduler.class);
+        assertSame(scheduler, factory.getBean("brokerRPCScheduler"));
+        assertEquals(32, scheduler.getMaxConcurrent());
+        assertEquals("interactive", scheduler.getDefaultClass());
+        assertEquals("polling", scheduler.getPollingClass());
+        
+        for (RPCClass rpcClass : scheduler.getClasses()) {
+            if (!rpcClass.getName().equals(scheduler.getDefaultClass())) {
+                assertTrue(rpcClass.getName(), rpcClass.getMaxConcurrent() > 0);
+                assertTrue(rpcClass.getName(), rpcClass.getMaxConcurrent() < scheduler.getMaxConcurrent());
+            }
+        }
+        
+        Object value = factory.getBeanDefinition("brokerSession").getPropertyValues().getPropertyValue("scheduler")
+                .getValue();
+        assertTrue(value instanceof RuntimeBeanReference);
+        assertEquals("brokerRPCScheduler", ((RuntimeBeanReference) value).getBeanName());
+    }
+    
+    /**
+     * Loads the bean definitions of the root profile, resolving placeholders from the default
+     * properties. Beans are created only on request.
+     *
+     * @param locations Locations of the Spring configuration files.
+     * @return The bean factory.
+     */
+    private DefaultListableBeanFactory loadConfig(String... locations) {
+        DefaultListableBeanFactory factory = new DefaultListableBeanFactory();
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.setActiveProfiles("root");
+        XmlBeanDefinitionReader reader = new XmlBeanDefinitionReader(factory);
+        reader.setEnvironment(environment);
+        reader.loadBeanDefinitions(locations);
+        PropertySourcesPlaceholderConfigurer placeholders = new PropertySourcesPlaceholderConfigurer();
+        placeholders.setLocation(new ClassPathResource("META-INF/VistAExtensions-default.properties"));
+        placeholders.setIgnoreUnresolvablePlaceholders(true);
+        placeholders.postProcessBeanFactory(factory);
+        return factory;
+    }
+    
+}
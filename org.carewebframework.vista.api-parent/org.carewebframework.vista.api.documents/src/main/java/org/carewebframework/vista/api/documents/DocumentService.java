@@ -34,6 +34,7 @@ import org.carewebframework.api.spring.SpringUtil;
 import org.carewebframework.common.StrUtil;
 import org.carewebframework.vista.mbroker.BrokerSession;
 import org.carewebframework.vista.mbroker.FMDate;
+import org.carewebframework.vista.mbroker.ILineConsumer;
 import org.hl7.fhir.dstu3.model.Patient;
 
 /**
@@ -153,22 +154,26 @@ public class DocumentService {
      */
     public List<Document> retrieveHeaders(Patient patient, Date startDate, Date endDate, DocumentCategory category) {
         List<DocumentCategory> categories = category == null ? getCategories() : Collections.singletonList(category);
-        List<Document> results = new ArrayList<>();
-
-        for (DocumentCategory cat : categories) {
-            for (String result : broker.callRPCList("TIU DOCUMENTS BY CONTEXT", null, cat.getId().getIdPart(), 1,
-                patient.getIdElement().getIdPart(), startDate, endDate)) {
-                String[] pcs = StrUtil.split(result, StrUtil.U, 14);
-                Document doc = new Document();
-                doc.setId(pcs[0]);
-                doc.setTitle(pcs[1]);
-                doc.setDateTime(new FMDate(pcs[2]));
-                doc.setAuthorName(StrUtil.piece(pcs[4], ";", 3));
-                doc.setLocationName(pcs[5]);
-                doc.setSubject(pcs[11]);
-                doc.setCategory(cat);
-                results.add(doc);
-            }
+        final List<Document> results = new ArrayList<>();
+
+        for (final DocumentCategory cat : categories) {
+            broker.callRPCStream("TIU DOCUMENTS BY CONTEXT", new ILineConsumer() {
+
+                @Override
+                public void onLine(String result) {
+                    String[] pcs = StrUtil.split(result, StrUtil.U, 14);
+                    Document doc = new Document();
+                    doc.setId(pcs[0]);
+                    doc.setTitle(pcs[1]);
+                    doc.setDateTime(new FMDate(pcs[2]));
+                    doc.setAuthorName(StrUtil.piece(pcs[4], ";", 3));
+                    doc.setLocationName(pcs[5]);
+                    doc.setSubject(pcs[11]);
+                    doc.setCategory(cat);
+                    results.add(doc);
+                }
+
+            }, cat.getId().getIdPart(), 1, patient.getIdElement().getIdPart(), startDate, endDate);
         }
 
         return results;
@@ -33,6 +33,7 @@ import java.util.List;
 import org.apache.commons.lang.StringUtils;
 import org.carewebframework.common.StrUtil;
 import org.carewebframework.vista.mbroker.BrokerSession;
+import org.carewebframework.vista.mbroker.ILineConsumer;
 import org.hl7.fhir.dstu3.model.Patient;
 
 /**
@@ -83,20 +84,21 @@ public class NotificationService {
      *            Otherwise, all notifications for the current user are returned.
      * @param result The list to receive the results.
      */
-    public void getNotifications(Patient patient, Collection<Notification> result) {
-        List<String> lst = null;
+    public void getNotifications(Patient patient, final Collection<Notification> result) {
         result.clear();
+        ILineConsumer consumer = new ILineConsumer() {
 
-        if (patient == null) {
-            lst = broker.callRPCList("RGCWXQ ALRLIST", null);
-        } else if (patient != null) {
-            lst = broker.callRPCList("RGCWXQ ALRLIST", null, patient.getIdElement().getIdPart());
-        }
-
-        if (lst != null) {
-            for (String item : lst) {
-                result.add(new Notification(item));
+            @Override
+            public void onLine(String line) {
+                result.add(new Notification(line));
             }
+
+        };
+
+        if (patient == null) {
+            broker.callRPCStream("RGCWXQ ALRLIST", consumer);
+        } else {
+            broker.callRPCStream("RGCWXQ ALRLIST", consumer, patient.getIdElement().getIdPart());
         }
     }
 
@@ -0,0 +1,121 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the broker benchmarks with the GC profiler and reports, for each benchmark, the average
+ * time per operation and the bytes allocated per operation. The full JMH results are written to
+ * jmh-result.json, so that runs on the same machine may be compared.
+ * <p>
+ * Usage: java [options] -jar benchmarks.jar [benchmark regex]
+ */
+public class BenchmarkRunner {
+    
+    private static final String ALLOC_LABEL = "gc.alloc.rate.norm";
+    
+    private static final String ALLOC_SUFFIX = ".alloc";
+    
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0]
+                : BenchmarkRunner.class.getPackage().getName() + "\\.\\w+Benchmark\\.";
+        Options options = new OptionsBuilder().include(include).addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON).result("jmh-result.json").build();
+        report(toMap(new Runner(options).run()));
+    }
+    
+    /**
+     * Extracts the time and allocation per operation from each run result. Keys take the form
+     * <code>Class.method[param=value,...]</code>, with allocations distinguished by a suffix.
+     *
+     * @param runResults The run results.
+     * @return Map of result key to value.
+     */
+    private static Map<String, Double> toMap(Collection<RunResult> runResults) {
+        Map<String, Double> results = new TreeMap<>();
+        
+        for (RunResult runResult : runResults) {
+            BenchmarkParams params = runResult.getParams();
+            String benchmark = params.getBenchmark();
+            int i = benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1);
+            StringBuilder key = new StringBuilder(benchmark.substring(i + 1));
+            
+            if (!params.getParamsKeys().isEmpty()) {
+                String delim = "[";
+                
+                for (String param : params.getParamsKeys()) {
+                    key.append(delim).append(param).append('=').append(params.getParam(param));
+                    delim = ",";
+                }
+                
+                key.append(']');
+            }
+            
+            results.put(key.toString(), runResult.getPrimaryResult().getScore());
+            Result<?> alloc = runResult.getSecondaryResults().get(ALLOC_LABEL);
+            
+            if (alloc != null) {
+                results.put(key + ALLOC_SUFFIX, alloc.getScore());
+            }
+        }
+        
+        return results;
+    }
+    
+    /**
+     * Reports the time and allocation per operation of each benchmark.
+     *
+     * @param results The results.
+     */
+    private static void report(Map<String, Double> results) {
+        System.out.printf("%n%-70s %16s %16s%n", "Benchmark", "ns/op", "B/op");
+        
+        for (Entry<String, Double> entry : results.entrySet()) {
+            String key = entry.getKey();
+            
+            if (!key.endsWith(ALLOC_SUFFIX)) {
+                Double alloc = results.get(key + ALLOC_SUFFIX);
+                System.out.printf("%-70s %16.1f %16s%n", key, entry.getValue(),
+                    alloc == null ? "-" : String.format(Locale.ROOT, "%.1f", alloc));
+            }
+        }
+    }
+}
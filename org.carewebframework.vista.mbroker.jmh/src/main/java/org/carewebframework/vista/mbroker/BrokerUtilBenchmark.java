@@ -0,0 +1,84 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the conversion of parameter values and subscripts to their M string forms.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BrokerUtilBenchmark {
+    
+    private final Double number = -0.25;
+    
+    private final FMDate fmDate = new FMDate("3170101.1230");
+    
+    private final Date date = new Date(1483291800000L);
+    
+    private final Object[] subscripts = { "ORDERS", 12345, "A\"B", 2.5, Boolean.TRUE };
+    
+    @Benchmark
+    public String toStringBoolean() {
+        return BrokerUtil.toString(Boolean.TRUE);
+    }
+    
+    @Benchmark
+    public String toStringDouble() {
+        return BrokerUtil.toString(number);
+    }
+    
+    @Benchmark
+    public String toStringFMDate() {
+        return BrokerUtil.toString(fmDate);
+    }
+    
+    @Benchmark
+    public String toStringDate() {
+        return BrokerUtil.toString(date);
+    }
+    
+    @Benchmark
+    public String buildSubscript() {
+        return BrokerUtil.buildSubscript(subscripts);
+    }
+}
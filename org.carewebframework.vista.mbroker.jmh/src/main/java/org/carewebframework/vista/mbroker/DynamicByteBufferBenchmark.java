@@ -0,0 +1,119 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures filling and draining the chunked buffer that holds request parameters. Buffers filled
+ * by a benchmark are released afterwards so that their chunks are recycled through the buffer pool
+ * as they are in normal use.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DynamicByteBufferBenchmark {
+    
+    @Param({ "10", "1000", "100000", "5000000" })
+    private int size;
+    
+    private byte[] data;
+    
+    private DynamicByteBuffer filled;
+    
+    @Setup
+    public void setup() {
+        data = Payloads.bytes(size);
+        filled = new DynamicByteBuffer();
+        filled.put(data, 0, data.length);
+    }
+    
+    @TearDown
+    public void tearDown() {
+        filled.release();
+    }
+    
+    /**
+     * Fills a buffer with a single bulk copy.
+     */
+    @Benchmark
+    public DynamicByteBuffer putBulk() {
+        DynamicByteBuffer buffer = new DynamicByteBuffer();
+        buffer.put(data, 0, data.length);
+        buffer.release();
+        return buffer;
+    }
+    
+    /**
+     * Fills a buffer one byte at a time, as length descriptors are written.
+     */
+    @Benchmark
+    public DynamicByteBuffer putSingle() {
+        DynamicByteBuffer buffer = new DynamicByteBuffer();
+        
+        for (byte b : data) {
+            buffer.put(b);
+        }
+        
+        buffer.release();
+        return buffer;
+    }
+    
+    /**
+     * Copies the buffer contents to a new array.
+     */
+    @Benchmark
+    public byte[] toArray() {
+        return filled.toArray();
+    }
+    
+    /**
+     * Writes the buffer contents to a stream.
+     */
+    @Benchmark
+    public DynamicByteBuffer writeTo() throws IOException {
+        filled.writeTo(NullOutputStream.NULL_OUTPUT_STREAM);
+        return filled;
+    }
+}
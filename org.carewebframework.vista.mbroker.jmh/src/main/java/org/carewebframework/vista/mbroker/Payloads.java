@@ -0,0 +1,88 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates the deterministic payloads used by the benchmarks. Payloads are printable ASCII text
+ * resembling the free text (e.g., progress notes) typically carried by remote procedure calls.
+ */
+final class Payloads {
+    
+    private static final String TEXT = "Patient seen in clinic today for follow-up of hypertension. BP 132/84. "
+            + "Continue current medications and return in 3 months.  ";
+    
+    /**
+     * Returns text of the specified length.
+     *
+     * @param size The length of the text.
+     * @return The text.
+     */
+    static String text(int size) {
+        StringBuilder sb = new StringBuilder(size);
+        
+        while (sb.length() < size) {
+            sb.append(TEXT, 0, Math.min(TEXT.length(), size - sb.length()));
+        }
+        
+        return sb.toString();
+    }
+    
+    /**
+     * Returns text of the specified total length, broken into lines of at most 80 characters.
+     *
+     * @param size The total length of the text.
+     * @return The lines of text.
+     */
+    static List<String> lines(int size) {
+        String text = text(size);
+        List<String> lines = new ArrayList<>();
+        
+        for (int i = 0; i < size; i += 80) {
+            lines.add(text.substring(i, Math.min(size, i + 80)));
+        }
+        
+        return lines;
+    }
+    
+    /**
+     * Returns text of the specified length as bytes.
+     *
+     * @param size The number of bytes.
+     * @return The bytes.
+     */
+    static byte[] bytes(int size) {
+        return text(size).getBytes(Constants.UTF8);
+    }
+    
+    /**
+     * Enforces static class.
+     */
+    private Payloads() {
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.carewebframework.vista.mbroker.Request.Action;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the encoding of requests: packing of parameter values with their length descriptors,
+ * and the writing of a complete request frame. Each request is released once encoded, returning
+ * its storage to the buffer pool as the transports do.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RequestBenchmark {
+    
+    @Param({ "10", "1000", "100000", "5000000" })
+    private int size;
+    
+    private String value;
+    
+    private RPCParameters parameters;
+    
+    private final DataOutputStream sink = new DataOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+    
+    @Setup
+    public void setup() {
+        value = Payloads.text(size);
+        parameters = new RPCParameters(Payloads.text(size), Payloads.lines(size));
+    }
+    
+    /**
+     * Packs a single literal value.
+     */
+    @Benchmark
+    public Request pack() {
+        Request request = new Request(Action.RPC);
+        request.addParameter("1", value);
+        request.release();
+        return request;
+    }
+    
+    /**
+     * Packs a literal parameter and a list parameter of 80 character lines, each of the given
+     * total size.
+     */
+    @Benchmark
+    public Request addParameters() {
+        Request request = new Request(Action.RPC);
+        request.addParameters(parameters);
+        request.release();
+        return request;
+    }
+    
+    /**
+     * Packs the parameters and writes the complete request frame with a wide sequence id.
+     */
+    @Benchmark
+    public Request write() throws IOException {
+        Request request = new Request(Action.RPC);
+        request.addParameters(parameters);
+        request.write(sink, 1, true);
+        request.release();
+        return request;
+    }
+}
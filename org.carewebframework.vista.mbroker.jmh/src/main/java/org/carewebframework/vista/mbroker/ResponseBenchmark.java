@@ -0,0 +1,135 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the parsing of response frames, both from a blocking stream (the single-request
+ * transport) and through the incremental decoder used by the pipelined and non-blocking
+ * transports, and of length-prefixed (protocol version 2) frames. The payload is converted to a
+ * string, as it is for every remote procedure call.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ResponseBenchmark {
+    
+    @Param({ "10", "1000", "100000", "5000000" })
+    private int size;
+    
+    private byte[] frame;
+    
+    private byte[] wideFrame;
+    
+    private byte[] lengthPrefixedFrame;
+    
+    @Setup
+    public void setup() {
+        frame = frame(false);
+        wideFrame = frame(true);
+        byte[] payload = Payloads.bytes(size);
+        ByteBuffer buffer = ByteBuffer.allocate(9 + payload.length);
+        buffer.putInt(5 + payload.length).putInt(1).put((byte) 0).put(payload);
+        lengthPrefixedFrame = buffer.array();
+    }
+    
+    /**
+     * Builds an acknowledgment frame carrying the payload.
+     *
+     * @param wideSequence If true, the frame has a 32-bit sequence id.
+     * @return The frame.
+     */
+    private byte[] frame(boolean wideSequence) {
+        byte[] payload = Payloads.bytes(size);
+        int header = wideSequence ? 5 : 2;
+        byte[] frame = new byte[header + payload.length + 1];
+        frame[header - 2] = 1;
+        System.arraycopy(payload, 0, frame, header, payload.length);
+        frame[frame.length - 1] = Constants.EOD;
+        return frame;
+    }
+    
+    /**
+     * Parses a response from a blocking stream.
+     */
+    @Benchmark
+    public String parse() throws IOException {
+        return new Response(new DataInputStream(new ByteArrayInputStream(frame)), false).getData();
+    }
+    
+    /**
+     * Parses a response with the incremental decoder, reading the stream as it becomes available.
+     */
+    @Benchmark
+    public String decode() throws IOException {
+        ResponseDecoder decoder = new ResponseDecoder();
+        ByteArrayInputStream stream = new ByteArrayInputStream(wideFrame);
+        Response response;
+        
+        while ((response = decoder.next(true)) == null) {
+            decoder.read(stream);
+        }
+        
+        return response.getData();
+    }
+    
+    /**
+     * Parses a length-prefixed response with the incremental decoder, reading the stream as it
+     * becomes available.
+     */
+    @Benchmark
+    public String decodeFramed() throws IOException {
+        ResponseDecoder decoder = new ResponseDecoder();
+        ByteArrayInputStream stream = new ByteArrayInputStream(lengthPrefixedFrame);
+        Response response;
+        
+        while ((response = decoder.nextFramed()) == null) {
+            decoder.read(stream);
+        }
+        
+        return response.getData();
+    }
+}
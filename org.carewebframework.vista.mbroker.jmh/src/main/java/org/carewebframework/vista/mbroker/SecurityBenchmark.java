@@ -0,0 +1,112 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the encryption and decryption of values with a substitution cipher. Rather than
+ * depending on a site's cipher, a cipher of the same shape (20 permutations of the printable
+ * characters) is generated from a fixed seed and registered once per JVM.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SecurityBenchmark {
+    
+    private static final String CIPHER_KEY = registerCipher();
+    
+    @Param({ "10", "1000", "100000", "5000000" })
+    private int size;
+    
+    private String value;
+    
+    private String encrypted;
+    
+    /**
+     * Generates and registers the cipher.
+     *
+     * @return The cipher key.
+     */
+    private static String registerCipher() {
+        Random random = new Random(0);
+        List<Character> chars = new ArrayList<>();
+        String[] cipher = new String[20];
+        
+        for (char c = ' '; c < 127; c++) {
+            chars.add(c);
+        }
+        
+        for (int i = 0; i < cipher.length; i++) {
+            Collections.shuffle(chars, random);
+            StringBuilder sb = new StringBuilder(chars.size());
+            
+            for (Character c : chars) {
+                sb.append(c);
+            }
+            
+            cipher[i] = sb.toString();
+        }
+        
+        CipherRegistry.registerCipher(cipher);
+        return cipher[0].substring(0, 4);
+    }
+    
+    @Setup
+    public void setup() {
+        value = Payloads.text(size);
+        encrypted = Security.encrypt(value, CIPHER_KEY);
+    }
+    
+    @Benchmark
+    public String encrypt() {
+        return Security.encrypt(value, CIPHER_KEY);
+    }
+    
+    @Benchmark
+    public String decrypt() {
+        return Security.decrypt(encrypted, CIPHER_KEY);
+    }
+}
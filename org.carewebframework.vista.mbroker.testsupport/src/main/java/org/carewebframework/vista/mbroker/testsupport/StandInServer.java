@@ -0,0 +1,1432 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker.testsupport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * An embeddable stand-in for the NETSERV RPC broker listener, for tests and benchmarks. It speaks
+ * the broker's wire protocol on the loopback interface and supports connecting, pinging, polling,
+ * synchronous, asynchronous, and batched remote procedure calls, and subscribing to and
+ * broadcasting host events. Remote procedure results are produced by registered handlers,
+ * returned from scripted fixtures, or served from traffic recorded from a live server. A
+ * configurable latency, with optional random jitter, is applied to every remote procedure call so
+ * that the effect of pooling, pipelining, and caching can be measured in isolation. Responses may
+ * also be sent in small pieces (see {@link #setChunkSize(int)}) to exercise a client's handling of
+ * partial reads.
+ * <p>
+ * If the FRAMED capability is enabled, requests and responses that follow the connect request are
+ * exchanged as length-prefixed (protocol version 2) frames. If the COMPRESS capability is also
+ * enabled, compressed requests are accepted and responses above the compression threshold are
+ * compressed.
+ * <p>
+ * If the CHANNEL capability is enabled, authentication returns a session token, and a client may
+ * open a second connection identifying its session by id and token, over which it queries for
+ * asynchronous results and host events. A connection that gives a session id without the
+ * session's token is refused. A query that
+ * specifies a wait period is held open until a result or event is waiting or the period elapses.
+ * <p>
+ * If the RESUME capability is enabled, authentication returns a resume token. A session whose
+ * connection is lost without disconnecting is retained, continuing to collect asynchronous
+ * results and host events, and may be resumed over a new connection by authenticating with the
+ * resume token as the pre-authentication token. {@link #dropConnections()} simulates the loss of
+ * every connection.
+ * <p>
+ * Authentication always succeeds, so that clients may connect with any credentials (or none).
+ * Clients that do supply credentials must have registered the cipher whose key is returned by
+ * {@link #getCipherKey()}. If {@link #setAuthenticationRequired(boolean)} is set, remote
+ * procedures may not be called without authenticating, and authentication with an application
+ * handle fails unless the handle was issued by the server and has not already been used. The
+ * following remote procedures are built in, although registering a handler of the same name
+ * overrides them:
+ * <ul>
+ * <li>RGNETBRP AUTH - Authenticates or resumes the session.</li>
+ * <li>XUS GET TOKEN - Issues a one-time application handle to an authenticated session.</li>
+ * <li>RGNETBAS STOP - Aborts an asynchronous call.</li>
+ * <li>RGNETBEV BCAST - Broadcasts a host event.</li>
+ * </ul>
+ */
+public class StandInServer implements Closeable {
+    
+    /**
+     * Handles a remote procedure call.
+     */
+    public interface IHandler {
+        
+        /**
+         * Returns the result of a remote procedure call.
+         *
+         * @param control Control parameters (RPC, UID, CTX, etc.).
+         * @param params Remote procedure parameters, keyed by position and then by subscript (an
+         *            unsubscripted value has an empty subscript), each in M collating sequence.
+         * @return The result.
+         * @throws Exception Returned to the client as an error response. A {@link HostError}
+         *             supplies its own error code. Any other exception has an error code of 99.
+         */
+        String handle(Map<String, String> control, Map<String, Map<String, String>> params) throws Exception;
+        
+    }
+    
+    /**
+     * An error raised by a handler, returned to the client with the specified error code.
+     */
+    public static class HostError extends Exception {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final int code;
+        
+        public HostError(int code, String text) {
+            super(text);
+            this.code = code;
+        }
+        
+        public int getCode() {
+            return code;
+        }
+    }
+    
+    /**
+     * Returns scripted results, selected by the values of the positional parameters.
+     */
+    private static class FixtureHandler implements IHandler {
+        
+        private final Map<List<String>, String> results = new ConcurrentHashMap<>();
+        
+        @Override
+        public String handle(Map<String, String> control, Map<String, Map<String, String>> params) throws Exception {
+            List<String> args = new ArrayList<>();
+            int count = 0;
+            
+            for (String position : params.keySet()) {
+                count = Math.max(count, Integer.parseInt(position));
+            }
+            
+            for (int i = 1; i <= count; i++) {
+                Map<String, String> param = params.get(Integer.toString(i));
+                args.add(param == null || !param.containsKey("") ? "" : param.get(""));
+            }
+            
+            String result = results.get(trim(args));
+            result = result == null ? results.get(Collections.<String> emptyList()) : result;
+            
+            if (result == null) {
+                throw new HostError(3, "No fixture for " + control.get("RPC") + " with arguments " + args);
+            }
+            
+            return result;
+        }
+        
+        /**
+         * Removes trailing empty values from an argument list.
+         *
+         * @param args The argument list.
+         * @return The same list, trimmed.
+         */
+        private static List<String> trim(List<String> args) {
+            while (!args.isEmpty() && args.get(args.size() - 1).isEmpty()) {
+                args.remove(args.size() - 1);
+            }
+            
+            return args;
+        }
+    }
+    
+    /**
+     * Returns results recorded from a live server, selected by the values of all parameters, after
+     * the time the call took when recorded. The most recently recorded result is returned whenever
+     * no recorded call matches the parameters of a call.
+     */
+    private static class RecordingHandler implements IHandler {
+        
+        private final Map<Map<String, Map<String, String>>, Recorded> results = new ConcurrentHashMap<>();
+        
+        private volatile Recorded last;
+        
+        @Override
+        public String handle(Map<String, String> control, Map<String, Map<String, String>> params) throws Exception {
+            Recorded recorded = results.get(params);
+            recorded = recorded == null ? last : recorded;
+            
+            if (recorded.delay > 0) {
+                Thread.sleep(recorded.delay);
+            }
+            
+            if (recorded.error) {
+                String[] pcs = recorded.data.split(LINE_SEPARATOR, 2);
+                int code = pcs[0].matches("\\d+") ? Integer.parseInt(pcs[0]) : 99;
+                throw new HostError(code, pcs.length > 1 ? pcs[1] : "");
+            }
+            
+            return recorded.data;
+        }
+    }
+    
+    /**
+     * A result recorded from a live server.
+     */
+    private static class Recorded {
+        
+        private final long delay;
+        
+        private final boolean error;
+        
+        private final String data;
+        
+        private Recorded(long delay, boolean error, String data) {
+            this.delay = delay;
+            this.error = error;
+            this.data = data;
+        }
+    }
+    
+    /**
+     * The parameters of a single call.
+     */
+    private static class Call {
+        
+        private final Map<String, String> control = new HashMap<>();
+        
+        private final Map<String, Map<String, String>> params = new TreeMap<>(COLLATION);
+        
+    }
+    
+    /**
+     * The server-side state of a client session.
+     */
+    private static class Session {
+        
+        private final int id;
+        
+        private final Set<String> subscriptions = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        
+        private final BlockingDeque<String[]> notifications = new LinkedBlockingDeque<>();
+        
+        private volatile boolean authenticated;
+        
+        private volatile boolean resumable;
+        
+        private volatile boolean channeled;
+        
+        private volatile String resumeToken;
+        
+        private Session(int id) {
+            this.id = id;
+        }
+        
+        /**
+         * Queues a host event for delivery to the session if it has subscribed to the event.
+         *
+         * @param eventName The event name.
+         * @param eventData The event data.
+         */
+        private void queueEvent(String eventName, String eventData) {
+            if (isSubscribed(eventName)) {
+                notifications.add(new String[] { "3", eventName + LINE_SEPARATOR + eventData });
+            }
+        }
+        
+        /**
+         * Returns true if the session is subscribed to an event or to an ancestor in its hierarchy.
+         *
+         * @param eventName The event name.
+         * @return True if subscribed.
+         */
+        private boolean isSubscribed(String eventName) {
+            for (String subscription : subscriptions) {
+                if (eventName.equals(subscription) || eventName.startsWith(subscription + ".")) {
+                    return true;
+                }
+            }
+            
+            return false;
+        }
+    }
+    
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    private static final int EOD = 0xFF;
+    
+    private static final int COMPRESSED = 0x80;
+    
+    private static final String LINE_SEPARATOR = "\r";
+    
+    private static final String HOST_TIME = "3170101.1200";
+    
+    private static final String DEFAULT_CIPHER_KEY = "wkEo";
+    
+    private static final int RECORDING_MAGIC = 0x4D42524C;
+    
+    private static final int RECORDING_VERSION = 1;
+    
+    /**
+     * Orders subscripts as M does: canonic numbers first, in numeric order, followed by all other
+     * values in string order.
+     */
+    private static final Comparator<String> COLLATION = new Comparator<String>() {
+        
+        @Override
+        public int compare(String s1, String s2) {
+            boolean n1 = isCanonic(s1);
+            boolean n2 = isCanonic(s2);
+            
+            if (n1 && n2) {
+                return new BigDecimal(s1).compareTo(new BigDecimal(s2));
+            }
+            
+            return n1 ? -1 : n2 ? 1 : s1.compareTo(s2);
+        }
+        
+        private boolean isCanonic(String value) {
+            return value.matches("0|-?[1-9]\\d*(\\.\\d*[1-9])?|-?\\.\\d*[1-9]");
+        }
+        
+    };
+    
+    private final ServerSocket serverSocket;
+    
+    private final ExecutorService workers = Executors.newCachedThreadPool(new ThreadFactory() {
+        
+        private final AtomicInteger count = new AtomicInteger();
+        
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "StandInServer-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+        
+    });
+    
+    private final Map<String, IHandler> handlers = new ConcurrentHashMap<>();
+    
+    private final Map<Integer, Session> sessions = new ConcurrentHashMap<>();
+    
+    private final Map<Integer, Session> asyncCalls = new ConcurrentHashMap<>();
+    
+    private final Map<String, Session> resumeTokens = new ConcurrentHashMap<>();
+    
+    private final Set<String> handles = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    
+    private final Set<Socket> connections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    
+    private final AtomicInteger sessionIds = new AtomicInteger(100);
+    
+    private final AtomicInteger asyncHandles = new AtomicInteger(1000);
+    
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    
+    private final AtomicInteger callCount = new AtomicInteger();
+    
+    private final AtomicInteger batchCount = new AtomicInteger();
+    
+    private final AtomicInteger pollCount = new AtomicInteger();
+    
+    private final AtomicInteger compressedCount = new AtomicInteger();
+    
+    private final AtomicInteger handleCount = new AtomicInteger();
+    
+    private volatile Set<String> capabilities = Collections.emptySet();
+    
+    private volatile String cipherKey = DEFAULT_CIPHER_KEY;
+    
+    private volatile int pollingInterval = 1;
+    
+    private volatile long latency;
+    
+    private volatile long jitter;
+    
+    private volatile int compressionThreshold = 1024;
+    
+    private volatile int chunkSize;
+    
+    private volatile boolean authenticationRequired;
+    
+    /**
+     * Creates and starts a server on an ephemeral port.
+     *
+     * @throws IOException An IO exception.
+     */
+    public StandInServer() throws IOException {
+        serverSocket = new ServerSocket(0, 1000, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(new Runnable() {
+            
+            @Override
+            public void run() {
+                accept();
+            }
+            
+        }, "StandInServer-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+    
+    /**
+     * Returns a connection string for connecting to this server.
+     *
+     * @return The connection string.
+     */
+    public String getConnectionString() {
+        return "localhost:" + getPort();
+    }
+    
+    /**
+     * Returns the port on which the server is listening.
+     *
+     * @return The port.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+    
+    /**
+     * Registers a handler for a remote procedure, replacing any existing handler or fixtures.
+     *
+     * @param name Name of the remote procedure.
+     * @param handler The handler.
+     */
+    public void register(String name, IHandler handler) {
+        handlers.put(name, handler);
+    }
+    
+    /**
+     * Adds a scripted result for a remote procedure. A fixture with no arguments is returned
+     * whenever no fixture matches the arguments of a call.
+     *
+     * @param name Name of the remote procedure.
+     * @param result The result to be returned.
+     * @param args The values of the positional parameters for which the result is returned.
+     */
+    public void addFixture(String name, String result, String... args) {
+        IHandler handler = handlers.get(name);
+        
+        if (!(handler instanceof FixtureHandler)) {
+            handlers.put(name, handler = new FixtureHandler());
+        }
+        
+        ((FixtureHandler) handler).results.put(FixtureHandler.trim(new ArrayList<>(Arrays.asList(args))), result);
+    }
+    
+    /**
+     * Loads scripted results from a UTF-8 encoded text source. Each fixture begins with a header
+     * line consisting of "@" followed by the name of the remote procedure and, optionally, the
+     * values of its positional parameters, all delimited by "^". The lines that follow, up to the
+     * next header, form the result. Lines beginning with "#" are ignored. For example:
+     *
+     * <pre>
+     * # Results for any patient
+     * &#64;ORWPT ID INFO
+     * 666-00-0001^2450101^M
+     * # Result for patient 2
+     * &#64;ORWPT ID INFO^2
+     * 666-00-0002^2450202^F
+     * </pre>
+     *
+     * @param source The fixture source. This is closed once read.
+     * @throws IOException An IO exception.
+     */
+    public void loadFixtures(InputStream source) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(source, UTF8))) {
+            String[] header = null;
+            StringBuilder result = new StringBuilder();
+            String line;
+            
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#")) {
+                    continue;
+                }
+                
+                if (line.startsWith("@")) {
+                    addFixture(header, result);
+                    header = line.substring(1).split("\\^", -1);
+                    result.setLength(0);
+                } else if (header != null) {
+                    result.append(result.length() == 0 ? "" : LINE_SEPARATOR).append(line);
+                }
+            }
+            
+            addFixture(header, result);
+        }
+    }
+    
+    /**
+     * Loads results recorded from a live server by the broker client's traffic recorder, so that
+     * recorded traffic may be served without a live server. Each recorded remote procedure is
+     * served by a handler that returns the result recorded for the same parameter values, after the
+     * time the call took when recorded divided by the replay speed. Calls that failed without a
+     * response and asynchronous calls are ignored. The log format is described by the broker
+     * client's TrafficRecorder class.
+     *
+     * @param source The traffic log. This is closed once read.
+     * @param speed The replay speed, as a multiple of the recorded rate (0 for no delay).
+     * @throws IOException An IO exception.
+     */
+    public void loadRecording(InputStream source, double speed) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(source))) {
+            if (in.readInt() != RECORDING_MAGIC || in.readShort() != RECORDING_VERSION) {
+                throw new IOException("Not a supported traffic log.");
+            }
+            
+            in.readLong(); // Start time
+            
+            while (true) {
+                try {
+                    in.readLong(); // Offset
+                } catch (EOFException e) {
+                    break;
+                }
+                
+                long duration = in.readLong();
+                String name = readRecordedString(in);
+                readRecordedString(in); // Version
+                readRecordedString(in); // Context
+                boolean async = in.readBoolean();
+                Map<String, Map<String, String>> params = new TreeMap<>(COLLATION);
+                
+                for (int i = in.readInt(); i > 0; i--) {
+                    String position = readRecordedString(in);
+                    Map<String, String> param = params.get(position);
+                    
+                    if (param == null) {
+                        params.put(position, param = new TreeMap<>(COLLATION));
+                    }
+                    
+                    param.put(readRecordedString(in), readRecordedString(in));
+                }
+                
+                int type = in.readByte();
+                String data = readRecordedString(in);
+                
+                if (async || type < 0) {
+                    continue;
+                }
+                
+                IHandler handler = handlers.get(name);
+                
+                if (!(handler instanceof RecordingHandler)) {
+                    handlers.put(name, handler = new RecordingHandler());
+                }
+                
+                long delay = speed > 0 ? (long) (duration / speed / 1000000) : 0;
+                Recorded recorded = new Recorded(delay, type == 1, data);
+                ((RecordingHandler) handler).results.put(params, recorded);
+                ((RecordingHandler) handler).last = recorded;
+            }
+        }
+    }
+    
+    /**
+     * Reads a string from a traffic log.
+     *
+     * @param in The input stream.
+     * @return The string.
+     * @throws IOException An IO exception.
+     */
+    private static String readRecordedString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+    
+    /**
+     * Adds a fixture read from a fixture source.
+     *
+     * @param header The fixture header (remote procedure name followed by arguments).
+     * @param result The fixture result.
+     */
+    private void addFixture(String[] header, StringBuilder result) {
+        if (header != null) {
+            addFixture(header[0], result.toString(), Arrays.copyOfRange(header, 1, header.length));
+        }
+    }
+    
+    /**
+     * Broadcasts a host event to all sessions that have subscribed to it.
+     *
+     * @param eventName The event name.
+     * @param eventData The event data. Serialized objects should include a serialization prefix.
+     */
+    public void fireEvent(String eventName, String eventData) {
+        for (Session session : sessions.values()) {
+            session.queueEvent(eventName, eventData);
+        }
+    }
+    
+    /**
+     * Sets the optional protocol features (e.g., PIPELINE, BATCH, CHANNEL) that the server agrees to when
+     * offered by a client.
+     *
+     * @param capabilities The capabilities.
+     */
+    public void setCapabilities(String... capabilities) {
+        this.capabilities = new LinkedHashSet<>(Arrays.asList(capabilities));
+    }
+    
+    /**
+     * Returns the key of the cipher that clients must use to encrypt credentials.
+     *
+     * @return The cipher key.
+     */
+    public String getCipherKey() {
+        return cipherKey;
+    }
+    
+    /**
+     * Sets the key of the cipher that clients must use to encrypt credentials. By default, this is
+     * the key of the cipher used by the broker client's unit tests.
+     *
+     * @param cipherKey The cipher key.
+     */
+    public void setCipherKey(String cipherKey) {
+        this.cipherKey = cipherKey;
+    }
+    
+    /**
+     * Sets the polling interval, in seconds, that the server requests of clients.
+     *
+     * @param pollingInterval The polling interval in seconds.
+     */
+    public void setPollingInterval(int pollingInterval) {
+        this.pollingInterval = pollingInterval;
+    }
+    
+    /**
+     * Sets a delay, in milliseconds, applied to every remote procedure call (and once to every
+     * batch of calls) to simulate network and server latency.
+     *
+     * @param latency The delay in milliseconds.
+     */
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+    
+    /**
+     * Sets the maximum random variation, in milliseconds, added to the latency of each call.
+     *
+     * @param jitter The maximum variation in milliseconds.
+     */
+    public void setJitter(long jitter) {
+        this.jitter = jitter;
+    }
+    
+    /**
+     * Sets the size, in bytes, of the pieces in which responses are sent. Each piece is flushed
+     * separately after a brief pause, so that clients receive every response in partial reads. The
+     * default, 0, sends each response whole.
+     *
+     * @param chunkSize The chunk size in bytes (0 to send responses whole).
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+    
+    /**
+     * Sets the size, in bytes, at or above which responses are compressed when the client has
+     * agreed to compression. The default is 1024.
+     *
+     * @param compressionThreshold The compression threshold.
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+    
+    /**
+     * Returns the number of connections accepted.
+     *
+     * @return Connection count.
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+    
+    /**
+     * Returns the number of remote procedure calls handled, including those within batches.
+     *
+     * @return Call count.
+     */
+    public int getCallCount() {
+        return callCount.get();
+    }
+    
+    /**
+     * Returns the number of batch requests handled.
+     *
+     * @return Batch count.
+     */
+    public int getBatchCount() {
+        return batchCount.get();
+    }
+    
+    /**
+     * Returns the number of polling (query) requests handled.
+     *
+     * @return Poll count.
+     */
+    public int getPollCount() {
+        return pollCount.get();
+    }
+    
+    /**
+     * Returns the number of compressed requests received and compressed responses sent.
+     *
+     * @return Compressed frame count.
+     */
+    public int getCompressedCount() {
+        return compressedCount.get();
+    }
+    
+    /**
+     * Returns the number of application handles issued.
+     *
+     * @return Application handle count.
+     */
+    public int getHandleCount() {
+        return handleCount.get();
+    }
+    
+    /**
+     * If set, remote procedure calls other than authentication fail unless the calling session has
+     * been authenticated, and application handles are verified.
+     *
+     * @param authenticationRequired True if calls require authentication.
+     */
+    public void setAuthenticationRequired(boolean authenticationRequired) {
+        this.authenticationRequired = authenticationRequired;
+    }
+    
+    /**
+     * Abruptly closes every client connection, as if the network had failed. Sessions that may be
+     * resumed are retained.
+     */
+    public void dropConnections() {
+        for (Socket socket : connections) {
+            try {
+                socket.close();
+            } catch (IOException e) {}
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        workers.shutdownNow();
+    }
+    
+    /**
+     * Accepts connections, servicing each on its own thread.
+     */
+    private void accept() {
+        try {
+            while (true) {
+                final Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Thread thread = new Thread(new Runnable() {
+                    
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                    
+                }, "StandInServer-" + connectionCount.incrementAndGet());
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException e) {
+            // Server was closed.
+        }
+    }
+    
+    /**
+     * Services a single connection until the client disconnects.
+     *
+     * @param socket The connection.
+     */
+    private void serve(Socket socket) {
+        Session session = new Session(sessionIds.incrementAndGet());
+        sessions.put(session.id, session);
+        connections.add(socket);
+        boolean channel = false;
+        boolean disconnected = false;
+        
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final OutputStream out = socket.getOutputStream();
+            boolean wide = false;
+            boolean framed = false;
+            boolean compressed = false;
+            
+            while (true) {
+                final int sequenceId;
+                final char action;
+                DataInputStream body = in;
+                
+                if (framed) {
+                    byte[] frame = new byte[in.readInt() - 5];
+                    sequenceId = in.readInt();
+                    int code = in.readUnsignedByte();
+                    in.readFully(frame);
+                    action = (char) (code & ~COMPRESSED);
+                    
+                    if ((code & COMPRESSED) != 0) {
+                        compressedCount.incrementAndGet();
+                        frame = inflate(frame);
+                    }
+                    
+                    frame = Arrays.copyOf(frame, frame.length + 1);
+                    frame[frame.length - 1] = (byte) EOD; // The frame has no trailer, so supply one.
+                    body = new DataInputStream(new ByteArrayInputStream(frame));
+                } else {
+                    in.readFully(new byte[6]);
+                    sequenceId = wide ? in.readInt() : in.readUnsignedByte();
+                    action = (char) in.readUnsignedByte();
+                }
+                
+                final List<Call> calls = new ArrayList<>();
+                Call call = readCall(body);
+                calls.add(call == null ? new Call() : call);
+                
+                while (action == 'B' && call != null && (call = readCall(body)) != null) {
+                    calls.add(call);
+                }
+                
+                // A connection that identifies an existing session by its id and token is that session's event
+                // channel.
+                Session existing = action == 'C' ? getSession(calls.get(0).control.get("UID")) : null;
+                String token = calls.get(0).control.get("TOK");
+                
+                if (existing != null && !channel && existing.resumeToken != null
+                        && existing.resumeToken.equals(token)) {
+                    sessions.remove(session.id);
+                    session = existing;
+                    channel = true;
+                }
+                
+                // Authenticating with a resume token moves the connection to the session it identifies.
+                Session resumed = action == 'R' && "RGNETBRP AUTH".equals(calls.get(0).control.get("RPC"))
+                        ? resumeTokens.get(getArgument(calls.get(0), 3, "")) : null;
+                
+                if (resumed != null && resumed != session && !channel) {
+                    sessions.remove(session.id);
+                    session = resumed;
+                }
+                
+                if (wide && (action == 'R' || action == 'B')) {
+                    final boolean pipelined = wide;
+                    final boolean lengthPrefixed = framed;
+                    final boolean compress = compressed;
+                    final Session caller = session;
+                    workers.execute(new Runnable() {
+                        
+                        @Override
+                        public void run() {
+                            try {
+                                respond(out, caller, sequenceId, pipelined, lengthPrefixed, compress, action, calls);
+                            } catch (IOException e) {
+                                // Connection was closed.
+                            }
+                        }
+                        
+                    });
+                } else {
+                    String data = respond(out, session, sequenceId, wide, framed, compressed, action, calls);
+                    wide |= action == 'C' && data.contains("PIPELINE");
+                    framed |= action == 'C' && data.contains("FRAMED");
+                    compressed |= framed && action == 'C' && data.contains("COMPRESS");
+                    session.resumable |= action == 'C' && data.contains("RESUME");
+                    session.channeled |= action == 'C' && data.contains("CHANNEL");
+                }
+                
+                if (action == 'D') {
+                    disconnected = true;
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // Client disconnected.
+        } finally {
+            connections.remove(socket);
+            
+            if (!channel && (disconnected || !session.resumable || session.resumeToken == null)) {
+                sessions.remove(session.id);
+                
+                if (session.resumeToken != null) {
+                    resumeTokens.remove(session.resumeToken);
+                }
+            }
+            
+            try {
+                socket.close();
+            } catch (IOException e) {}
+        }
+    }
+    
+    /**
+     * Returns the session with the specified id.
+     *
+     * @param uid The session id (may be null).
+     * @return The session, or null if not found.
+     */
+    private Session getSession(String uid) {
+        return uid == null || !uid.matches("\\d+") ? null : sessions.get(Integer.parseInt(uid));
+    }
+    
+    /**
+     * Reads the parameters of a single call, up to and including the end of data marker.
+     *
+     * @param in The input stream.
+     * @return The call, or null if its parameter list was empty.
+     * @throws IOException An IO exception.
+     */
+    private static Call readCall(DataInputStream in) throws IOException {
+        Call call = null;
+        String name;
+        
+        while ((name = readString(in)) != null) {
+            String sub = readString(in);
+            String value = readString(in);
+            call = call == null ? new Call() : call;
+            
+            if (Character.isDigit(name.charAt(0))) {
+                Map<String, String> param = call.params.get(name);
+                
+                if (param == null) {
+                    call.params.put(name, param = new TreeMap<>(COLLATION));
+                }
+                
+                param.put(sub, value);
+            } else {
+                call.control.put(name, value);
+            }
+        }
+        
+        return call;
+    }
+    
+    /**
+     * Processes a request and writes its response. A batch request is answered with the result of
+     * each call in turn, each preceded by a header of the form <code>code^length</code>.
+     *
+     * @param out The output stream for the response.
+     * @param session The client session.
+     * @param sequenceId The request's sequence id.
+     * @param wide If true, the sequence id is written as a 32-bit value.
+     * @param framed If true, the response is written as a length-prefixed frame.
+     * @param compress If true, a length-prefixed response above the compression threshold is
+     *            compressed.
+     * @param action The request action code.
+     * @param calls The parameters of each call in the request.
+     * @return The response data.
+     * @throws IOException An IO exception.
+     */
+    private String respond(OutputStream out, Session session, int sequenceId, boolean wide, boolean framed,
+                           boolean compress, char action, List<Call> calls) throws IOException {
+        int code = 0;
+        String data;
+        String[] notification = null;
+        Call call = calls.get(0);
+        
+        try {
+            switch (action) {
+                case 'C':
+                    String uid = call.control.get("UID");
+                    
+                    if (uid != null && !uid.equals(Integer.toString(session.id))) {
+                        throw new HostError(1, "Unknown session: " + uid);
+                    }
+                    
+                    data = "0^0^1.1^0^" + cipherKey + "^" + negotiate(call.control.get("CAP")) + LINE_SEPARATOR;
+                    break;
+                
+                case 'P':
+                    data = pollingInterval + "^" + HOST_TIME;
+                    break;
+                
+                case 'Q':
+                    pollCount.incrementAndGet();
+                    String wait = call.control.get("WAIT");
+                    notification = wait == null ? session.notifications.poll()
+                            : session.notifications.poll(Long.parseLong(wait), TimeUnit.MILLISECONDS);
+                    
+                    if (notification != null) {
+                        code = Integer.parseInt(notification[0]);
+                        data = notification[1];
+                    } else {
+                        data = pollingInterval + "^" + HOST_TIME;
+                    }
+                    
+                    break;
+                
+                case 'R':
+                    if ("1".equals(call.control.get("ASY"))) {
+                        data = Integer.toString(invokeAsync(session, call));
+                    } else {
+                        simulateLatency();
+                        StringBuilder result = new StringBuilder();
+                        code = invoke(session, call, result);
+                        data = result.toString();
+                    }
+                    
+                    break;
+                
+                case 'B':
+                    simulateLatency();
+                    batchCount.incrementAndGet();
+                    StringBuilder results = new StringBuilder();
+                    
+                    for (Call batched : calls) {
+                        StringBuilder result = new StringBuilder();
+                        int status = invoke(session, batched, result);
+                        results.append(status).append('^').append(result.toString().getBytes(UTF8).length)
+                                .append(LINE_SEPARATOR).append(result);
+                    }
+                    
+                    data = results.toString();
+                    break;
+                
+                case 'S':
+                case 'U':
+                    String eventName = call.control.get("EVT");
+                    
+                    if (action == 'S') {
+                        session.subscriptions.add(eventName);
+                    } else {
+                        session.subscriptions.remove(eventName);
+                    }
+                    
+                    data = "1";
+                    break;
+                
+                default:
+                    data = "1";
+            }
+        } catch (Exception e) {
+            code = 1;
+            data = "99" + LINE_SEPARATOR + e.getMessage();
+        }
+        
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream stream = new DataOutputStream(buffer);
+        byte[] bytes = data.getBytes(UTF8);
+        
+        if (framed) {
+            if (compress && bytes.length >= compressionThreshold) {
+                compressedCount.incrementAndGet();
+                bytes = deflate(bytes);
+                code |= COMPRESSED;
+            }
+            
+            stream.writeInt(5 + bytes.length);
+            stream.writeInt(sequenceId);
+            stream.write(code);
+            stream.write(bytes);
+        } else {
+            if (wide) {
+                stream.writeInt(sequenceId);
+            } else {
+                stream.write(sequenceId);
+            }
+            
+            stream.write(code);
+            stream.write(bytes);
+            stream.write(EOD);
+        }
+        
+        try {
+            synchronized (out) {
+                writeChunked(out, buffer.toByteArray());
+            }
+        } catch (IOException e) {
+            if (notification != null) { // Retain the notification for a resumed session.
+                session.notifications.addFirst(notification);
+            }
+            
+            throw e;
+        }
+        
+        return data;
+    }
+    
+    /**
+     * Writes a response in pieces of the configured chunk size, pausing briefly between pieces.
+     *
+     * @param out The output stream.
+     * @param data The response data.
+     * @throws IOException An IO exception.
+     */
+    private void writeChunked(OutputStream out, byte[] data) throws IOException {
+        int chunkSize = this.chunkSize;
+        int step = chunkSize > 0 ? chunkSize : data.length;
+        
+        for (int offset = 0; offset < data.length; offset += step) {
+            if (offset > 0) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            
+            out.write(data, offset, Math.min(step, data.length - offset));
+            out.flush();
+        }
+    }
+    
+    /**
+     * Returns the capabilities offered by a client that the server agrees to.
+     *
+     * @param offered Comma-delimited list of offered capabilities (may be null).
+     * @return Comma-delimited list of agreed capabilities.
+     */
+    private String negotiate(String offered) {
+        StringBuilder agreed = new StringBuilder();
+        
+        for (String capability : offered == null ? new String[0] : offered.split(",")) {
+            if (capabilities.contains(capability.trim())) {
+                agreed.append(agreed.length() == 0 ? "" : ",").append(capability.trim());
+            }
+        }
+        
+        return agreed.toString();
+    }
+    
+    /**
+     * Sleeps for the configured latency plus jitter, if any.
+     *
+     * @throws InterruptedException If interrupted while sleeping.
+     */
+    private void simulateLatency() throws InterruptedException {
+        long delay = latency + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter + 1) : 0);
+        
+        if (delay > 0) {
+            Thread.sleep(delay);
+        }
+    }
+    
+    /**
+     * Starts an asynchronous remote procedure call. Once complete, its result is returned to the
+     * client in response to a poll, unless the call has been aborted.
+     *
+     * @param session The client session.
+     * @param call The call.
+     * @return The handle for the asynchronous call.
+     */
+    private int invokeAsync(final Session session, final Call call) {
+        final int handle = asyncHandles.incrementAndGet();
+        asyncCalls.put(handle, session);
+        workers.execute(new Runnable() {
+            
+            @Override
+            public void run() {
+                StringBuilder result = new StringBuilder();
+                int code;
+                
+                try {
+                    simulateLatency();
+                    code = invoke(session, call, result);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                
+                // An error result already begins with its error code.
+                if (asyncCalls.remove(handle) != null) {
+                    String data = handle + "^" + (code == 0 ? "0" + LINE_SEPARATOR : "") + result;
+                    session.notifications.add(new String[] { "2", data });
+                }
+            }
+            
+        });
+        
+        return handle;
+    }
+    
+    /**
+     * Invokes the handler for a remote procedure call.
+     *
+     * @param session The client session.
+     * @param call The call.
+     * @param result Receives the result or, if the call fails, the error code and text.
+     * @return The response code: 0 if the call succeeded, 1 if it failed.
+     */
+    private int invoke(Session session, Call call, StringBuilder result) {
+        callCount.incrementAndGet();
+        String name = call.control.get("RPC");
+        IHandler handler = handlers.get(name);
+        
+        try {
+            if (authenticationRequired && !session.authenticated && !"RGNETBRP AUTH".equals(name)) {
+                throw new HostError(5, "Not authenticated");
+            }
+            
+            result.append(handler != null ? handler.handle(call.control, call.params) : invokeBuiltIn(session, call));
+            return 0;
+        } catch (HostError e) {
+            result.setLength(0);
+            result.append(e.getCode()).append(LINE_SEPARATOR).append(e.getMessage());
+        } catch (Exception e) {
+            result.setLength(0);
+            result.append(99).append(LINE_SEPARATOR).append(e.getMessage());
+        }
+        
+        return 1;
+    }
+    
+    /**
+     * Invokes a built-in remote procedure.
+     *
+     * @param session The client session.
+     * @param call The call.
+     * @return The result.
+     * @throws HostError If the remote procedure is not built in.
+     */
+    private String invokeBuiltIn(Session session, Call call) throws HostError {
+        String name = call.control.get("RPC");
+        
+        switch (name) {
+            case "RGNETBRP AUTH":
+                String token = getArgument(call, 3, "");
+                
+                if (!token.isEmpty() && !token.equals(session.resumeToken)) {
+                    return "4^Session cannot be resumed" + LINE_SEPARATOR;
+                }
+                
+                String av = getArgument(call, 4, "");
+                
+                if (av.startsWith("~1") && !handles.remove(av) && authenticationRequired) {
+                    return "4^Invalid application handle" + LINE_SEPARATOR;
+                }
+                
+                if ((session.resumable || session.channeled) && session.resumeToken == null) {
+                    session.resumeToken = UUID.randomUUID().toString();
+                    resumeTokens.put(session.resumeToken, session);
+                }
+                
+                session.authenticated = true;
+                return "0^" + LINE_SEPARATOR + session.id + "^STANDIN.DOMAIN^STANDIN SITE^1"
+                        + (session.resumeToken == null ? "" : "^" + session.resumeToken) + LINE_SEPARATOR;
+            
+            case "XUS GET TOKEN":
+                if (!session.authenticated) {
+                    throw new HostError(5, "Not authenticated");
+                }
+                
+                String handle = "~1" + UUID.randomUUID();
+                handles.add(handle);
+                handleCount.incrementAndGet();
+                return handle;
+            
+            case "RGNETBAS STOP":
+                return asyncCalls.remove(Integer.parseInt(getArgument(call, 1, ""))) != null ? "1" : "0";
+            
+            case "RGNETBEV BCAST":
+                broadcast(call);
+                return "1";
+            
+            default:
+                throw new HostError(3, "Remote procedure not found: " + name);
+        }
+    }
+    
+    /**
+     * Broadcasts a host event on behalf of a client. The first parameter is the event name, the
+     * second the event data in numbered chunks, and the third the recipients, subscripted by UID
+     * (session id) or DUZ (user id). If there are no recipients, the event is sent to all
+     * subscribers.
+     *
+     * @param call The call.
+     */
+    private void broadcast(Call call) {
+        String eventName = getArgument(call, 1, "");
+        Map<String, String> chunks = call.params.get("2");
+        Map<String, String> recipients = call.params.get("3");
+        StringBuilder eventData = new StringBuilder();
+        
+        for (int i = 1; chunks != null && chunks.containsKey(Integer.toString(i)); i++) {
+            eventData.append(chunks.get(Integer.toString(i)));
+        }
+        
+        if (recipients == null || recipients.isEmpty()) {
+            fireEvent(eventName, eventData.toString());
+            return;
+        }
+        
+        // All sessions are authenticated as the same user, so any DUZ matches all of them.
+        for (String recipient : recipients.keySet()) {
+            String[] pcs = recipient.replace("\"", "").split(",", 2);
+            boolean byId = "UID".equals(pcs[0]);
+            
+            for (Session session : sessions.values()) {
+                if (byId ? pcs[1].equals(Integer.toString(session.id)) : session.authenticated) {
+                    session.queueEvent(eventName, eventData.toString());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns the unsubscripted value of a positional parameter.
+     *
+     * @param call The call.
+     * @param position The parameter position (1-based).
+     * @param dflt The value to return if the parameter is absent.
+     * @return The parameter value.
+     */
+    private static String getArgument(Call call, int position, String dflt) {
+        Map<String, String> param = call.params.get(Integer.toString(position));
+        String value = param == null ? null : param.get("");
+        return value == null ? dflt : value;
+    }
+    
+    /**
+     * Compresses the payload of a frame. The compressed payload consists of the uncompressed size
+     * (4 bytes) followed by the DEFLATE-compressed data.
+     *
+     * @param data The data to compress.
+     * @return The compressed payload.
+     * @throws IOException An IO exception.
+     */
+    private static byte[] deflate(byte[] data) throws IOException {
+        Deflater deflater = new Deflater();
+        
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            new DataOutputStream(buffer).writeInt(data.length);
+            byte[] chunk = new byte[8192];
+            
+            while (!deflater.finished()) {
+                buffer.write(chunk, 0, deflater.deflate(chunk));
+            }
+            
+            return buffer.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+    
+    /**
+     * Restores the data from the payload of a compressed frame.
+     *
+     * @param payload The compressed payload.
+     * @return The uncompressed data.
+     * @throws IOException An IO exception.
+     */
+    private static byte[] inflate(byte[] payload) throws IOException {
+        Inflater inflater = new Inflater();
+        
+        try {
+            byte[] data = new byte[new DataInputStream(new ByteArrayInputStream(payload)).readInt()];
+            inflater.setInput(payload, 4, payload.length - 4);
+            int size = 0;
+            
+            while (size < data.length && !inflater.finished()) {
+                int count = inflater.inflate(data, size, data.length - size);
+                
+                if (count == 0 && inflater.needsInput()) {
+                    throw new EOFException("Compressed frame is truncated.");
+                }
+                
+                size += count;
+            }
+            
+            return data;
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+    
+    /**
+     * Reads a length-prefixed string.
+     *
+     * @param in The input stream.
+     * @return The string, or null if the end of data marker was read instead.
+     * @throws IOException An IO exception.
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        int b = in.read();
+        
+        if (b < 0) {
+            throw new EOFException();
+        }
+        
+        if (b == EOD) {
+            return null;
+        }
+        
+        long length = 0;
+        
+        for (int i = b >> 4; i > 0; i--) {
+            length = (length << 8) | in.readUnsignedByte();
+        }
+        
+        byte[] bytes = new byte[(int) (length << 4 | (b & 15))];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+/**
+ * A character sequence that is a view over a range of ASCII-encoded bytes. No bytes are copied.
+ */
+public class AsciiCharSequence implements CharSequence {
+    
+    private final byte[] bytes;
+    
+    private final int offset;
+    
+    private final int length;
+    
+    /**
+     * Returns true if every byte in the specified range is an ASCII character.
+     *
+     * @param bytes The byte array.
+     * @param offset Start of range.
+     * @param length Length of range.
+     * @return True if the range contains only ASCII characters.
+     */
+    public static boolean isAscii(byte[] bytes, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            if (bytes[i] < 0) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Creates a view over a range of ASCII-encoded bytes. The bytes are not validated and must not
+     * be modified while the view is in use.
+     *
+     * @param bytes The byte array.
+     * @param offset Start of range.
+     * @param length Length of range.
+     */
+    public AsciiCharSequence(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+    
+    @Override
+    public int length() {
+        return length;
+    }
+    
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("Index: " + index);
+        }
+        
+        return (char) bytes[offset + index];
+    }
+    
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("Start: " + start + ", end: " + end);
+        }
+        
+        return new AsciiCharSequence(bytes, offset + start, end - start);
+    }
+    
+    @Override
+    public String toString() {
+        return new String(bytes, offset, length, Constants.UTF8);
+    }
+}
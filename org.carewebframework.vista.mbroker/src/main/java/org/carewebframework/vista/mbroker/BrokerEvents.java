@@ -0,0 +1,178 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import org.carewebframework.vista.mbroker.PollingThread.IHostEventHandler;
+import org.carewebframework.vista.mbroker.Request.Action;
+import org.carewebframework.vista.mbroker.Response.ResponseType;
+
+/**
+ * Emits Java Flight Recorder events for broker activity, so that a recording shows which requests
+ * overlapped garbage collection pauses, lock contention and the like. The events are:
+ * <ul>
+ * <li><code>org.carewebframework.vista.mbroker.Request</code> - A request and its response,
+ * including the remote procedure name, calling context, sequence id, sizes and the time spent
+ * waiting for the connection.</li>
+ * <li><code>org.carewebframework.vista.mbroker.Poll</code> - A background poll of the server and
+ * the type of response received.</li>
+ * <li><code>org.carewebframework.vista.mbroker.HostEvent</code> - Delivery of a host event to a
+ * single handler.</li>
+ * </ul>
+ * All are disabled by default and are enabled through the usual recording settings (for example,
+ * a template edited in Java Mission Control). The broker is compiled for runtimes that may lack
+ * the Flight Recorder API, so the events are defined by a separate class that is built only by
+ * Java 11 or later and is loaded by name. If that class is absent, or the runtime has no Flight
+ * Recorder, no events are emitted.
+ */
+final class BrokerEvents {
+    
+    /**
+     * Emits the events. Each begin method returns a token to be passed to the matching commit
+     * method, or null if the event is not enabled.
+     */
+    abstract static class Recorder {
+        
+        /**
+         * Returns true if Flight Recorder is present in the Java runtime.
+         *
+         * @return True if events may be emitted.
+         */
+        abstract boolean isAvailable();
+        
+        abstract Object beginRequest();
+        
+        abstract void commitRequest(Object token, Request request, Response response, Throwable error);
+        
+        abstract Object beginPoll();
+        
+        abstract void commitPoll(Object token, Action action, ResponseType responseType);
+        
+        abstract Object beginHostEvent();
+        
+        abstract void commitHostEvent(Object token, String eventName, IHostEventHandler handler);
+        
+    }
+    
+    private static final String RECORDER_CLASS = "org.carewebframework.vista.mbroker.FlightRecorderEvents";
+    
+    private static final Recorder recorder = findRecorder();
+    
+    /**
+     * Loads the recorder that emits Flight Recorder events.
+     *
+     * @return The recorder, or null if events are not supported.
+     */
+    private static Recorder findRecorder() {
+        try {
+            Recorder recorder = (Recorder) Class.forName(RECORDER_CLASS).newInstance();
+            return recorder.isAvailable() ? recorder : null;
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Returns true if Flight Recorder events are supported.
+     *
+     * @return True if events may be emitted.
+     */
+    static boolean isSupported() {
+        return recorder != null;
+    }
+    
+    /**
+     * Begins timing a request.
+     *
+     * @return The event, or null if the event is not enabled.
+     */
+    static Object beginRequest() {
+        return recorder == null ? null : recorder.beginRequest();
+    }
+    
+    /**
+     * Completes timing a request and commits the event.
+     *
+     * @param token The event returned by {@link #beginRequest()}.
+     * @param request The request.
+     * @param response The response (null if none was received).
+     * @param error The exception that terminated the request, or null if it succeeded.
+     */
+    static void commitRequest(Object token, Request request, Response response, Throwable error) {
+        if (token != null) {
+            recorder.commitRequest(token, request, response, error);
+        }
+    }
+    
+    /**
+     * Begins timing a background poll.
+     *
+     * @return The event, or null if the event is not enabled.
+     */
+    static Object beginPoll() {
+        return recorder == null ? null : recorder.beginPoll();
+    }
+    
+    /**
+     * Completes timing a background poll and commits the event.
+     *
+     * @param token The event returned by {@link #beginPoll()}.
+     * @param action The polling action.
+     * @param responseType The type of response received (null if none was received).
+     */
+    static void commitPoll(Object token, Action action, ResponseType responseType) {
+        if (token != null) {
+            recorder.commitPoll(token, action, responseType);
+        }
+    }
+    
+    /**
+     * Begins timing the delivery of a host event to a handler.
+     *
+     * @return The event, or null if the event is not enabled.
+     */
+    static Object beginHostEvent() {
+        return recorder == null ? null : recorder.beginHostEvent();
+    }
+    
+    /**
+     * Completes timing the delivery of a host event and commits the event.
+     *
+     * @param token The event returned by {@link #beginHostEvent()}.
+     * @param eventName The name of the host event.
+     * @param handler The handler to which the host event was delivered.
+     */
+    static void commitHostEvent(Object token, String eventName, IHostEventHandler handler) {
+        if (token != null) {
+            recorder.commitHostEvent(token, eventName, handler);
+        }
+    }
+    
+    /**
+     * Enforces static class.
+     */
+    private BrokerEvents() {
+    }
+}
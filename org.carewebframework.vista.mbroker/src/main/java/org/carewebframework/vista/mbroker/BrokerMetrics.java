@@ -0,0 +1,540 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.lang.management.ManagementFactory;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Collects latency, size, error and compression statistics for the requests issued by one or
+ * more broker sessions. The time each request spends waiting for exclusive use of its connection is recorded
+ * separately from the time spent awaiting the server's response, and both are recorded for each
+ * remote procedure by name and for each server to which requests were sent. Collection is lock
+ * free and allocates nothing on the call path once a remote procedure has been seen, so it may be
+ * left enabled in production. Statistics are exposed
+ * through JMX once {@link #register()} has been called. A session collects statistics only when
+ * given an instance through {@link BrokerSession#setMetrics(BrokerMetrics)}; members of a session
+ * pool share the pool's instance.
+ */
+public class BrokerMetrics implements BrokerMetricsMXBean {
+    
+    private static final Log log = LogFactory.getLog(BrokerMetrics.class);
+    
+    /**
+     * A summary of a latency histogram. All times are in milliseconds.
+     */
+    public static class LatencySummary {
+        
+        private final long count;
+        
+        private final double mean;
+        
+        private final double p50;
+        
+        private final double p90;
+        
+        private final double p99;
+        
+        private final double max;
+        
+        private LatencySummary(LatencyHistogram histogram) {
+            count = histogram.getCount();
+            mean = histogram.getMean();
+            p50 = histogram.getPercentile(50);
+            p90 = histogram.getPercentile(90);
+            p99 = histogram.getPercentile(99);
+            max = histogram.getMax();
+        }
+        
+        public long getCount() {
+            return count;
+        }
+        
+        public double getMean() {
+            return mean;
+        }
+        
+        public double getP50() {
+            return p50;
+        }
+        
+        public double getP90() {
+            return p90;
+        }
+        
+        public double getP99() {
+            return p99;
+        }
+        
+        public double getMax() {
+            return max;
+        }
+        
+    }
+    
+    /**
+     * A snapshot of the statistics for a single remote procedure or server.
+     */
+    public static class RPCStatistics {
+        
+        private final String name;
+        
+        private final long requestCount;
+        
+        private final long errorCount;
+        
+        private final long timeoutCount;
+        
+        private final long failureCount;
+        
+        private final long requestBytes;
+        
+        private final long responseBytes;
+        
+        private final LatencySummary queueWait;
+        
+        private final LatencySummary serverTime;
+        
+        private RPCStatistics(String name, Counters counters) {
+            this.name = name;
+            requestCount = counters.requests.sum();
+            errorCount = counters.errors.sum();
+            timeoutCount = counters.timeouts.sum();
+            failureCount = counters.failures.sum();
+            requestBytes = counters.requestBytes.sum();
+            responseBytes = counters.responseBytes.sum();
+            queueWait = new LatencySummary(counters.queueWait);
+            serverTime = new LatencySummary(counters.serverTime);
+        }
+        
+        public String getName() {
+            return name;
+        }
+        
+        public long getRequestCount() {
+            return requestCount;
+        }
+        
+        public long getErrorCount() {
+            return errorCount;
+        }
+        
+        public long getTimeoutCount() {
+            return timeoutCount;
+        }
+        
+        public long getFailureCount() {
+            return failureCount;
+        }
+        
+        public long getRequestBytes() {
+            return requestBytes;
+        }
+        
+        public long getResponseBytes() {
+            return responseBytes;
+        }
+        
+        public LatencySummary getQueueWait() {
+            return queueWait;
+        }
+        
+        public LatencySummary getServerTime() {
+            return serverTime;
+        }
+        
+    }
+    
+    /**
+     * Statistics for a set of requests.
+     */
+    private static class Counters {
+        
+        final LongAdder requests = new LongAdder();
+        
+        final LongAdder errors = new LongAdder();
+        
+        final LongAdder timeouts = new LongAdder();
+        
+        final LongAdder failures = new LongAdder();
+        
+        final LongAdder requestBytes = new LongAdder();
+        
+        final LongAdder responseBytes = new LongAdder();
+        
+        final LatencyHistogram queueWait = new LatencyHistogram();
+        
+        final LatencyHistogram serverTime = new LatencyHistogram();
+        
+        /**
+         * Records a completed request.
+         *
+         * @param wait Time spent waiting for the connection, in nanoseconds.
+         * @param server Time spent awaiting the response, in nanoseconds.
+         * @param sent Bytes sent.
+         * @param received Bytes received.
+         * @param error The exception that terminated the request, or null if it succeeded.
+         */
+        void record(long wait, long server, int sent, int received, Throwable error) {
+            requests.increment();
+            requestBytes.add(sent);
+            responseBytes.add(received);
+            queueWait.record(wait);
+            serverTime.record(server);
+            
+            if (error instanceof RPCException) {
+                errors.increment();
+            } else if (error instanceof SocketTimeoutException) {
+                timeouts.increment();
+            } else if (error != null) {
+                failures.increment();
+            }
+        }
+        
+        /**
+         * Discards all recorded requests.
+         */
+        void reset() {
+            requests.reset();
+            errors.reset();
+            timeouts.reset();
+            failures.reset();
+            requestBytes.reset();
+            responseBytes.reset();
+            queueWait.reset();
+            serverTime.reset();
+        }
+        
+    }
+    
+    private final String name;
+    
+    private final Counters totals = new Counters();
+    
+    private final ConcurrentMap<String, Counters> rpcs = new ConcurrentHashMap<>();
+    
+    private final ConcurrentMap<String, Counters> endpoints = new ConcurrentHashMap<>();
+    
+    private final LatencyHistogram poolWait = new LatencyHistogram();
+    
+    private final LatencyHistogram pollRoundTrip = new LatencyHistogram();
+    
+    private final AtomicInteger outstandingAsync = new AtomicInteger();
+    
+    private final LongAdder compressedCount = new LongAdder();
+    
+    private final LongAdder uncompressedBytes = new LongAdder();
+    
+    private final LongAdder compressedBytes = new LongAdder();
+    
+    private final LongAdder compressionTime = new LongAdder();
+    
+    private ObjectName objectName;
+    
+    public BrokerMetrics() {
+        this("default");
+    }
+    
+    /**
+     * Creates metrics with the specified name, which distinguishes its JMX registration.
+     *
+     * @param name The name.
+     */
+    public BrokerMetrics(String name) {
+        this.name = name;
+    }
+    
+    /**
+     * Registers with the platform MBean server under the name
+     * <code>org.carewebframework.vista.mbroker:type=BrokerMetrics,name=&lt;name&gt;</code>.
+     */
+    public synchronized void register() {
+        if (objectName == null) {
+            try {
+                ObjectName objectName = new ObjectName(
+                        "org.carewebframework.vista.mbroker:type=BrokerMetrics,name=" + ObjectName.quote(name));
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+                this.objectName = objectName;
+            } catch (JMException e) {
+                log.warn("Failed to register broker metrics.", e);
+            }
+        }
+    }
+    
+    /**
+     * Removes the registration with the platform MBean server.
+     */
+    public synchronized void unregister() {
+        if (objectName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            
+            try {
+                server.unregisterMBean(objectName);
+            } catch (JMException e) {
+                log.warn("Failed to unregister broker metrics.", e);
+            }
+            
+            objectName = null;
+        }
+    }
+    
+    /**
+     * Returns the name of these metrics.
+     *
+     * @return The name.
+     */
+    public String getName() {
+        return name;
+    }
+    
+    /**
+     * Records a completed request.
+     *
+     * @param request The request.
+     * @param endpoint The server ("host:port") to which the request was sent (null if unknown).
+     * @param start Value of {@link System#nanoTime()} when the request was issued.
+     * @param response The response (null if none was received).
+     * @param error The exception that terminated the request, or null if it succeeded.
+     */
+    void recordRequest(Request request, String endpoint, long start, Response response, Throwable error) {
+        long end = System.nanoTime();
+        long sent = request.getSendTime();
+        long wait = sent < start ? end - start : sent - start;
+        long server = sent < start ? 0 : end - sent;
+        int size = sent < start ? 0 : request.getSize();
+        int received = response == null ? 0 : response.getPayloadSize();
+        String key = request.getRPCName() != null ? request.getRPCName() : request.getAction().getText();
+        getCounters(rpcs, key).record(wait, server, size, received, error);
+        totals.record(wait, server, size, received, error);
+        
+        if (endpoint != null) {
+            getCounters(endpoints, endpoint).record(wait, server, size, received, error);
+        }
+        
+        if (size > 0 && request.getUncompressedSize() > 0) {
+            recordCompression(request.getUncompressedSize(), size - Request.FRAME_HEADER_SIZE,
+                request.getCompressionTime());
+        }
+        
+        if (response != null && response.getCompressedSize() > 0) {
+            recordCompression(received, response.getCompressedSize(), response.getCompressionTime());
+        }
+    }
+    
+    /**
+     * Returns the counters for the specified key, creating them if necessary.
+     *
+     * @param map Map of counters.
+     * @param key The key.
+     * @return The counters.
+     */
+    private static Counters getCounters(ConcurrentMap<String, Counters> map, String key) {
+        Counters counters = map.get(key);
+        
+        if (counters == null) {
+            Counters newCounters = new Counters();
+            counters = map.putIfAbsent(key, newCounters);
+            counters = counters == null ? newCounters : counters;
+        }
+        
+        return counters;
+    }
+    
+    /**
+     * Records the compression of a request or response.
+     *
+     * @param uncompressed The uncompressed size in bytes.
+     * @param compressed The compressed size in bytes.
+     * @param nanos Time spent compressing or decompressing, in nanoseconds.
+     */
+    private void recordCompression(int uncompressed, int compressed, long nanos) {
+        compressedCount.increment();
+        uncompressedBytes.add(uncompressed);
+        compressedBytes.add(compressed);
+        compressionTime.add(nanos);
+    }
+    
+    /**
+     * Records the time taken to lease a session from a pool.
+     *
+     * @param nanos The elapsed time in nanoseconds.
+     */
+    void recordPoolWait(long nanos) {
+        poolWait.record(nanos);
+    }
+    
+    /**
+     * Records the round trip time of a background poll.
+     *
+     * @param nanos The elapsed time in nanoseconds.
+     */
+    void recordPoll(long nanos) {
+        pollRoundTrip.record(nanos);
+    }
+    
+    /**
+     * Adjusts the number of outstanding asynchronous calls.
+     *
+     * @param delta The change in the number of outstanding calls.
+     */
+    void updateOutstandingAsync(int delta) {
+        outstandingAsync.addAndGet(delta);
+    }
+    
+    @Override
+    public long getRequestCount() {
+        return totals.requests.sum();
+    }
+    
+    @Override
+    public long getErrorCount() {
+        return totals.errors.sum();
+    }
+    
+    @Override
+    public long getTimeoutCount() {
+        return totals.timeouts.sum();
+    }
+    
+    @Override
+    public long getFailureCount() {
+        return totals.failures.sum();
+    }
+    
+    @Override
+    public long getRequestBytes() {
+        return totals.requestBytes.sum();
+    }
+    
+    @Override
+    public long getResponseBytes() {
+        return totals.responseBytes.sum();
+    }
+    
+    @Override
+    public long getCompressedCount() {
+        return compressedCount.sum();
+    }
+    
+    @Override
+    public double getCompressionRatio() {
+        long compressed = compressedBytes.sum();
+        return compressed == 0 ? 1 : (double) uncompressedBytes.sum() / compressed;
+    }
+    
+    @Override
+    public double getCompressionTime() {
+        return compressionTime.sum() / 1000000.0;
+    }
+    
+    @Override
+    public int getOutstandingAsyncCount() {
+        return outstandingAsync.get();
+    }
+    
+    @Override
+    public LatencySummary getQueueWait() {
+        return new LatencySummary(totals.queueWait);
+    }
+    
+    @Override
+    public LatencySummary getServerTime() {
+        return new LatencySummary(totals.serverTime);
+    }
+    
+    @Override
+    public LatencySummary getPoolWait() {
+        return new LatencySummary(poolWait);
+    }
+    
+    @Override
+    public LatencySummary getPollRoundTrip() {
+        return new LatencySummary(pollRoundTrip);
+    }
+    
+    @Override
+    public Map<String, RPCStatistics> getRPCStatistics() {
+        Map<String, RPCStatistics> statistics = new TreeMap<>();
+        
+        for (Map.Entry<String, Counters> entry : rpcs.entrySet()) {
+            statistics.put(entry.getKey(), new RPCStatistics(entry.getKey(), entry.getValue()));
+        }
+        
+        return statistics;
+    }
+    
+    /**
+     * Returns statistics for a single remote procedure.
+     *
+     * @param name The remote procedure name.
+     * @return The statistics, or null if the remote procedure has not been called.
+     */
+    public RPCStatistics getRPCStatistics(String name) {
+        Counters counters = rpcs.get(name);
+        return counters == null ? null : new RPCStatistics(name, counters);
+    }
+    
+    @Override
+    public Map<String, RPCStatistics> getEndpointStatistics() {
+        Map<String, RPCStatistics> statistics = new TreeMap<>();
+        
+        for (Map.Entry<String, Counters> entry : endpoints.entrySet()) {
+            statistics.put(entry.getKey(), new RPCStatistics(entry.getKey(), entry.getValue()));
+        }
+        
+        return statistics;
+    }
+    
+    /**
+     * Discards all statistics collected so far. The count of outstanding asynchronous calls is not
+     * affected.
+     */
+    @Override
+    public void reset() {
+        rpcs.clear();
+        endpoints.clear();
+        totals.reset();
+        poolWait.reset();
+        pollRoundTrip.reset();
+        compressedCount.reset();
+        uncompressedBytes.reset();
+        compressedBytes.reset();
+        compressionTime.reset();
+    }
+}
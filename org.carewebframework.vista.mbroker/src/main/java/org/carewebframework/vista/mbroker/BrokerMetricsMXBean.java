@@ -0,0 +1,159 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.util.Map;
+
+import org.carewebframework.vista.mbroker.BrokerMetrics.LatencySummary;
+import org.carewebframework.vista.mbroker.BrokerMetrics.RPCStatistics;
+
+/**
+ * Management interface for broker metrics. All times are in milliseconds.
+ */
+public interface BrokerMetricsMXBean {
+    
+    /**
+     * Returns the number of requests issued, including remote procedure calls and protocol
+     * requests such as polls.
+     *
+     * @return The request count.
+     */
+    long getRequestCount();
+    
+    /**
+     * Returns the number of requests that failed with an error reported by the server.
+     *
+     * @return The error count.
+     */
+    long getErrorCount();
+    
+    /**
+     * Returns the number of requests that timed out awaiting a response.
+     *
+     * @return The timeout count.
+     */
+    long getTimeoutCount();
+    
+    /**
+     * Returns the number of requests that failed for any other reason, such as a lost connection.
+     *
+     * @return The failure count.
+     */
+    long getFailureCount();
+    
+    /**
+     * Returns the total size of the requests sent.
+     *
+     * @return The number of bytes sent.
+     */
+    long getRequestBytes();
+    
+    /**
+     * Returns the total size of the responses received. Streamed responses are not included.
+     *
+     * @return The number of bytes received.
+     */
+    long getResponseBytes();
+    
+    /**
+     * Returns the number of requests and responses that were compressed.
+     *
+     * @return The number of compressed frames.
+     */
+    long getCompressedCount();
+    
+    /**
+     * Returns the ratio of the uncompressed size of the compressed requests and responses to their
+     * size as transmitted.
+     *
+     * @return The compression ratio, or 1 if nothing has been compressed.
+     */
+    double getCompressionRatio();
+    
+    /**
+     * Returns the total time spent compressing requests and decompressing responses.
+     *
+     * @return The compression time.
+     */
+    double getCompressionTime();
+    
+    /**
+     * Returns the number of asynchronous remote procedure calls awaiting completion.
+     *
+     * @return The number of outstanding asynchronous calls.
+     */
+    int getOutstandingAsyncCount();
+    
+    /**
+     * Returns the time that requests waited for exclusive use of a connection before being sent.
+     *
+     * @return Summary of queue wait times.
+     */
+    LatencySummary getQueueWait();
+    
+    /**
+     * Returns the time from sending each request to receiving its response.
+     *
+     * @return Summary of server times.
+     */
+    LatencySummary getServerTime();
+    
+    /**
+     * Returns the time callers waited to lease a session from a session pool.
+     *
+     * @return Summary of pool wait times.
+     */
+    LatencySummary getPoolWait();
+    
+    /**
+     * Returns the round trip time of background polls.
+     *
+     * @return Summary of polling round trip times.
+     */
+    LatencySummary getPollRoundTrip();
+    
+    /**
+     * Returns statistics for each remote procedure called, keyed by remote procedure name.
+     * Protocol requests are keyed by action (e.g., "Query").
+     *
+     * @return Statistics by remote procedure name.
+     */
+    Map<String, RPCStatistics> getRPCStatistics();
+    
+    /**
+     * Returns statistics for each server to which requests were sent, keyed by "host:port". This
+     * distinguishes the servers among which a session pool balances its connections.
+     *
+     * @return Statistics by server.
+     */
+    Map<String, RPCStatistics> getEndpointStatistics();
+    
+    /**
+     * Discards all statistics collected so far.
+     */
+    void reset();
+    
+}
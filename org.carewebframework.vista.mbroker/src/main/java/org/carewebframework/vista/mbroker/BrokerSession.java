@@ -25,18 +25,21 @@
  */
 package org.carewebframework.vista.mbroker;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import org.apache.commons.lang.StringUtils;
 import org.carewebframework.common.MiscUtil;
@@ -45,9 +48,61 @@ import org.carewebframework.vista.mbroker.PollingThread.IHostEventHandler;
 import org.carewebframework.vista.mbroker.Request.Action;
 import org.carewebframework.vista.mbroker.Response.ResponseType;
 import org.carewebframework.vista.mbroker.Security.AuthResult;
+import org.carewebframework.vista.mbroker.ServerCaps.Capability;
 
 public class BrokerSession {
     
+    /**
+     * The result of an asynchronous RPC that arrived before the call that issued its handle had
+     * registered a callback.
+     */
+    private static class AsyncResult {
+        
+        private final boolean failed;
+        
+        private final int code;
+        
+        private final String data;
+        
+        private final long received = System.currentTimeMillis();
+        
+        private AsyncResult(boolean failed, int code, String data) {
+            this.failed = failed;
+            this.code = code;
+            this.data = data;
+        }
+        
+        /**
+         * Delivers the result to a callback.
+         *
+         * @param handle Unique handle of the request.
+         * @param callback The callback.
+         */
+        private void deliver(int handle, IAsyncRPCEvent callback) {
+            if (failed) {
+                callback.onRPCError(handle, code, data);
+            } else {
+                callback.onRPCComplete(handle, data);
+            }
+        }
+    }
+    
+    /**
+     * The time, in milliseconds, for which a result without a callback is kept.
+     */
+    private static final long ORPHAN_LIFETIME = 60000;
+    
+    /**
+     * The remote procedure that issues a one-time application handle for the current user.
+     */
+    private static final String HANDLE_RPC = "XUS GET TOKEN";
+    
+    /**
+     * The maximum number of calls by name that are kept prepared. The least recently used call is
+     * discarded once the limit is reached.
+     */
+    private static final int MAX_PREPARED_CALLS = 256;
+    
     /**
      * Callback interface for asynchronous RPC's.
      */
@@ -79,6 +134,62 @@ public class BrokerSession {
         Normal, Cache, NT
     }
     
+    private static final Function<String, String> TO_STRING = new Function<String, String>() {
+        
+        @Override
+        public String apply(String data) {
+            return data;
+        }
+        
+    };
+    
+    private static final Function<String, Integer> TO_INT = new Function<String, Integer>() {
+        
+        @Override
+        public Integer apply(String data) {
+            return StrUtil.toInt(data);
+        }
+        
+    };
+    
+    private static final Function<String, Boolean> TO_BOOL = new Function<String, Boolean>() {
+        
+        @Override
+        public Boolean apply(String data) {
+            return StrUtil.toBoolean(data);
+        }
+        
+    };
+    
+    private static final Function<String, Double> TO_FLOAT = new Function<String, Double>() {
+        
+        @Override
+        public Double apply(String data) {
+            return StrUtil.toDouble(data);
+        }
+        
+    };
+    
+    private static final Function<String, Long> TO_LONG = new Function<String, Long>() {
+        
+        @Override
+        public Long apply(String data) {
+            return StrUtil.toLong(data);
+        }
+        
+    };
+    
+    private static final Function<String, List<String>> TO_LIST = new Function<String, List<String>>() {
+        
+        @Override
+        public List<String> apply(String data) {
+            List<String> result = new ArrayList<>();
+            StrUtil.toList(data, result, Constants.LINE_SEPARATOR);
+            return result;
+        }
+        
+    };
+    
     private ConnectionParams connectionParams;
     
     private ServerCaps serverCaps;
@@ -93,17 +204,52 @@ public class BrokerSession {
     
     private int userId;
     
-    private byte netSequence;
+    private volatile ITransport transport;
     
-    private volatile Socket socket;
+    private volatile String endpoint; // Server ("host:port") of the current connection
     
     private final List<IHostEventHandler> hostEventHandlers = new ArrayList<>();
     
     private PollingThread pollingThread;
     
+    private volatile EventChannel eventChannel;
+    
     private final List<String> postLoginMessage = new ArrayList<>();
     
-    private final Map<Integer, IAsyncRPCEvent> callbacks = new HashMap<>();
+    private final Map<Integer, IAsyncRPCEvent> callbacks = new ConcurrentHashMap<>();
+    
+    // Results that arrived before their callbacks were registered, keyed by handle.
+    private final Map<Integer, AsyncResult> orphans = new ConcurrentHashMap<>();
+    
+    private volatile RPCCache rpcCache;
+    
+    // Calls by name, prepared once for the RPC cache and for streaming, keyed by requested name.
+    private final Map<String, PreparedRPC> preparedCalls = new LinkedHashMap<String, PreparedRPC>(16, 0.75f, true) {
+        
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedRPC> eldest) {
+            return size() > MAX_PREPARED_CALLS;
+        }
+        
+    };
+    
+    private final ReentrantLock preparedLock = new ReentrantLock();
+    
+    private volatile BrokerMetrics metrics;
+    
+    private volatile TrafficRecorder trafficRecorder;
+    
+    private volatile RPCScheduler scheduler;
+    
+    private final Set<String> subscriptions = ConcurrentHashMap.newKeySet();
+    
+    private volatile String sessionToken;
+    
+    private volatile boolean established; // True if connected and not since disconnected
+    
+    private final ReentrantLock reconnectLock = new ReentrantLock();
     
     public BrokerSession() {
         
@@ -115,17 +261,12 @@ public class BrokerSession {
     
     public AuthResult connect() {
         AuthResult authResult = null;
+        sessionToken = null;
+        subscriptions.clear();
         
         try {
-            close();
-            socket = new Socket(connectionParams.getServer(), connectionParams.getPort());
-            Request request = new Request(Action.CONNECT);
-            request.addParameter("IP", socket.getLocalAddress());
-            request.addParameter("LP", socket.getLocalPort());
-            request.addParameter("UCI", connectionParams.getNamespace());
-            request.addParameter("VER", Constants.VERSION);
-            Response response = netCall(request, connectionParams.getTimeout());
-            serverCaps = new ServerCaps(response.getData());
+            open();
+            established = true;
             
             if (!StringUtils.isEmpty(connectionParams.getUsername())
                     && !StringUtils.isEmpty(connectionParams.getPassword())) {
@@ -140,14 +281,169 @@ public class BrokerSession {
         return authResult;
     }
     
+    /**
+     * Restores a lost connection. If the server issued a session token when the session was
+     * authenticated, the session is resumed over the new connection, keeping its id, user, host
+     * event subscriptions and the results of outstanding asynchronous calls. Otherwise, the session
+     * is authenticated afresh if the connection parameters include credentials, its subscriptions
+     * are restored, and outstanding asynchronous calls fail. Attempts are repeated as specified by
+     * the connection parameters, with a delay that doubles after each failed attempt. A request that
+     * was in flight when the connection was lost is not repeated. If the session has never been
+     * connected, or has since been disconnected, this simply connects.
+     */
+    public void reconnect() {
+        if (!established) {
+            connect();
+            return;
+        }
+        
+        reconnectLock.lock();
+        
+        try {
+            if (isConnected()) {
+                return;
+            }
+            
+            int attempts = Math.max(connectionParams.getReconnectAttempts(), 1);
+            long delay = connectionParams.getReconnectDelay();
+            
+            for (int attempt = 1;; attempt++) {
+                try {
+                    restore();
+                    return;
+                } catch (RuntimeException e) {
+                    if (attempt >= attempts) {
+                        throw e;
+                    }
+                }
+                
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw MiscUtil.toUnchecked(e);
+                }
+                
+                delay *= 2;
+            }
+        } finally {
+            reconnectLock.unlock();
+        }
+    }
+    
+    /**
+     * Opens a new connection and resumes the session over it or, failing that, re-establishes the
+     * session.
+     */
+    private void restore() {
+        String token = sessionToken;
+        
+        try {
+            open();
+        } catch (Exception e) {
+            throw MiscUtil.toUnchecked(e);
+        }
+        
+        if (token == null || !serverCaps.hasCapability(Capability.RESUME) || !resume(token)) {
+            sessionToken = null;
+            
+            for (Integer handle : new ArrayList<>(callbacks.keySet())) {
+                onRPCError(handle, 0, "Connection to server was lost.");
+            }
+            
+            if (!StringUtils.isEmpty(connectionParams.getUsername())
+                    && !StringUtils.isEmpty(connectionParams.getPassword())) {
+                authenticate();
+            }
+            
+            if (isAuthenticated()) {
+                for (String eventName : new ArrayList<>(subscriptions)) {
+                    eventSubscribe(eventName, true);
+                }
+            } else {
+                subscriptions.clear();
+            }
+        }
+        
+        polling(true);
+        
+        if (pollingThread != null) {
+            pollingThread.expedite(); // Collects what arrived while the connection was down.
+        }
+    }
+    
+    /**
+     * Resumes the session identified by a session token over the current connection. The server
+     * retains the session's host event subscriptions and the results of its asynchronous calls.
+     *
+     * @param token The session token.
+     * @return True if the session was resumed.
+     */
+    private boolean resume(String token) {
+        try {
+            return requestAuthentication("", token, null).status.succeeded();
+        } catch (RPCException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Closes any existing connection, then opens a new one and negotiates the protocol features to
+     * be used over it.
+     *
+     * @throws IOException Exception opening the connection.
+     */
+    private void open() throws IOException {
+        close();
+        ITransport transport = createTransport();
+        transport.open(connectionParams.getServer(), connectionParams.getPort(), connectionParams.getTimeout());
+        this.transport = transport;
+        this.endpoint = connectionParams.getServer() + ":" + connectionParams.getPort();
+        Request request = new Request(Action.CONNECT);
+        request.addParameter("IP", transport.getLocalAddress());
+        request.addParameter("LP", transport.getLocalPort());
+        request.addParameter("UCI", connectionParams.getNamespace());
+        request.addParameter("VER", Constants.VERSION);
+        EnumSet<Capability> offered = getOfferedCapabilities();
+        
+        if (!offered.isEmpty()) {
+            request.addParameter("CAP", ServerCaps.formatCapabilities(offered));
+        }
+        
+        Response response = netCall(request, connectionParams.getTimeout());
+        serverCaps = new ServerCaps(response.getData());
+        
+        if (serverCaps.hasCapability(Capability.FRAMED)) {
+            transport.enableFraming();
+            
+            if (serverCaps.hasCapability(Capability.COMPRESS)) {
+                transport.enableCompression(connectionParams.getCompressionThreshold());
+            }
+        }
+        
+        if (serverCaps.hasCapability(Capability.PIPELINE)) {
+            transport.enablePipelining();
+        }
+    }
+    
     public void disconnect() {
-        callbacks.clear();
+        // Discard callbacks individually so that the count of outstanding calls remains accurate.
+        for (Integer handle : new ArrayList<>(callbacks.keySet())) {
+            getCallback(handle);
+        }
+        
+        orphans.clear();
+        
+        closeEventChannel();
         polling(false);
         postLoginMessage.clear();
+        subscriptions.clear();
+        sessionToken = null;
+        established = false;
         serverCaps = null;
         userId = 0;
         
-        if (socket != null) {
+        if (transport != null) {
             Request request = new Request(Action.DISCONNECT);
             request.addParameter("UID", id);
             
@@ -159,14 +455,20 @@ public class BrokerSession {
         }
         
         id = 0;
+        RPCCache rpcCache = this.rpcCache;
+        
+        if (rpcCache != null) {
+            rpcCache.onDisconnected(this);
+        }
     }
     
     private void close() {
+        closeEventChannel();
         polling(false);
         
-        if (socket != null) {
-            close(socket);
-            socket = null;
+        if (transport != null) {
+            transport.close();
+            transport = null;
             reset();
         }
     }
@@ -179,7 +481,11 @@ public class BrokerSession {
     
     private void polling(boolean start) {
         if (start) {
-            if (pollingThread == null) {
+            if (!isPollingEnabled() || eventChannel != null) {
+                return;
+            }
+            
+            if (pollingThread == null || pollingThread.isTerminated()) {
                 pollingThread = new PollingThread(this);
             }
             pollingThread.setEnabled(true);
@@ -191,21 +497,66 @@ public class BrokerSession {
         }
     }
     
+    /**
+     * Returns the optional protocol features that this client offers to the server when connecting.
+     * None are offered unless the connection parameters enable the experimental protocol
+     * extensions. An event channel is then offered only if the connection parameters request one,
+     * and compression only if they specify a compression threshold. Override to restrict the
+     * features that may be negotiated.
+     *
+     * @return The offered protocol features.
+     */
+    protected EnumSet<Capability> getOfferedCapabilities() {
+        if (!connectionParams.isProtocolExtensions()) {
+            return EnumSet.noneOf(Capability.class);
+        }
+        
+        EnumSet<Capability> offered = EnumSet.of(Capability.PIPELINE, Capability.BATCH, Capability.FRAMED,
+            Capability.RESUME);
+        
+        if (connectionParams.isEventChannel()) {
+            offered.add(Capability.CHANNEL);
+        }
+        
+        if (connectionParams.getCompressionThreshold() > 0) {
+            offered.add(Capability.COMPRESS);
+        }
+        
+        return offered;
+    }
+    
+    /**
+     * Creates the transport for a new connection. By default, this is a non-blocking transport if
+     * so specified by the connection parameters, or a blocking socket transport otherwise.
+     *
+     * @return A new, unopened transport.
+     */
+    protected ITransport createTransport() {
+        return connectionParams.isNonBlocking() ? new ChannelTransport() : new SocketTransport();
+    }
+    
+    /**
+     * Returns true if the session should poll the host in the background while connected.
+     * Override to suppress background polling.
+     *
+     * @return True if background polling is enabled.
+     */
+    protected boolean isPollingEnabled() {
+        return true;
+    }
+    
     private void reset() {
         id = 0;
         userId = 0;
-        netSequence = 0;
-    }
-    
-    private void close(Socket socket) {
-        try {
-            socket.close();
-        } catch (Exception e) {}
     }
     
+    /**
+     * Ensures that the session is connected. A connection that has been lost is restored, as
+     * described for {@link #reconnect()}.
+     */
     public void ensureConnection() {
         if (!isConnected()) {
-            connect();
+            reconnect();
         }
     }
     
@@ -217,12 +568,82 @@ public class BrokerSession {
         }
     }
     
+    /**
+     * Submits an asynchronous remote procedure call. The callback is notified when the call
+     * completes. If the result arrived before the callback could be registered, the callback is
+     * notified before this returns.
+     *
+     * @param name The remote procedure name.
+     * @param callback Callback to be notified of the call's completion.
+     * @param args The remote procedure arguments.
+     * @return The handle that identifies the call.
+     */
     public int callRPCAsync(String name, IAsyncRPCEvent callback, Object... args) {
         int handle = StrUtil.toInt(callRPC(name, true, connectionParams.getTimeout(), args));
-        callbacks.put(handle, callback);
+        BrokerMetrics metrics = this.metrics;
+        
+        if (callbacks.put(handle, callback) == null && metrics != null) {
+            metrics.updateOutstandingAsync(1);
+        }
+        
+        AsyncResult orphan = orphans.remove(handle);
+        
+        if (orphan != null) {
+            callback = getCallback(handle);
+            
+            if (callback != null) { // Otherwise, the dispatcher found the callback and delivered it.
+                orphan.deliver(handle, callback);
+            }
+        }
+        
+        if (pollingThread != null) {
+            pollingThread.expedite();
+        }
+        
         return handle;
     }
     
+    public RPCFuture<String> callRPCFuture(String name, Object... args) {
+        return callRPCFuture(name, TO_STRING, args);
+    }
+    
+    public RPCFuture<Integer> callRPCFutureInt(String name, Object... args) {
+        return callRPCFuture(name, TO_INT, args);
+    }
+    
+    public RPCFuture<Boolean> callRPCFutureBool(String name, Object... args) {
+        return callRPCFuture(name, TO_BOOL, args);
+    }
+    
+    public RPCFuture<Double> callRPCFutureFloat(String name, Object... args) {
+        return callRPCFuture(name, TO_FLOAT, args);
+    }
+    
+    public RPCFuture<Long> callRPCFutureLong(String name, Object... args) {
+        return callRPCFuture(name, TO_LONG, args);
+    }
+    
+    public RPCFuture<List<String>> callRPCFutureList(String name, Object... args) {
+        return callRPCFuture(name, TO_LIST, args);
+    }
+    
+    /**
+     * Performs an asynchronous remote procedure call, returning a future for its result. While
+     * asynchronous requests are outstanding, the host is polled more frequently so that the future
+     * completes soon after the result becomes available.
+     *
+     * @param <T> The result type.
+     * @param name Name of the remote procedure.
+     * @param converter Converts the data returned by the remote procedure to the result type.
+     * @param args Parameters to be passed to the remote procedure.
+     * @return A future for the result.
+     */
+    public <T> RPCFuture<T> callRPCFuture(String name, Function<String, T> converter, Object... args) {
+        RPCFuture<T> future = new RPCFuture<>(this, converter);
+        future.setHandle(callRPCAsync(name, future, args));
+        return future;
+    }
+    
     public int callRPCInt(String name, Object... args) {
         return StrUtil.toInt(callRPC(name, args));
     }
@@ -286,7 +707,12 @@ public class BrokerSession {
      *         unique handle of the request, if call asynchronously.
      */
     public String callRPC(String name, boolean async, int timeout, RPCParameters params) {
+        if (!async && rpcCache != null) {
+            return callRPC(getPreparedCall(name), async, timeout, params);
+        }
+        
         ensureConnection();
+        name = resolveAlias(name);
         String version = "";
         String context = connectionParams.getAppid();
         
@@ -303,6 +729,163 @@ public class BrokerSession {
         request.addParameter("VER", version);
         request.addParameter("RPC", name);
         request.addParameter("ASY", async);
+        request.setRPC(name, context);
+        
+        if (params != null) {
+            request.addParameters(params);
+        }
+        
+        Response response = netCall(request, timeout);
+        return response.getData();
+    }
+    
+    /**
+     * Prepares a remote procedure call for repeated use. The name is parsed, and any alias
+     * resolved, only once. The control parameters identifying the remote procedure are encoded
+     * once per session id and calling context rather than on every call.
+     *
+     * @param name Name of the remote procedure, with optional version and calling context, as for
+     *            {@link #callRPC(String, boolean, int, RPCParameters)}.
+     * @return The prepared call.
+     */
+    public PreparedRPC prepare(String name) {
+        return new PreparedRPC(this, name, resolveAlias(name));
+    }
+    
+    /**
+     * Returns the prepared call for a remote procedure called by name while there is an RPC cache,
+     * or streamed, preparing it only on its first use.
+     *
+     * @param name Name of the remote procedure, with optional version and calling context.
+     * @return The prepared call.
+     */
+    private PreparedRPC getPreparedCall(String name) {
+        preparedLock.lock();
+        
+        try {
+            PreparedRPC rpc = preparedCalls.get(name);
+            
+            if (rpc == null) {
+                rpc = prepare(name);
+                preparedCalls.put(name, rpc);
+            }
+            
+            return rpc;
+        } finally {
+            preparedLock.unlock();
+        }
+    }
+    
+    public List<String> callRPCList(PreparedRPC rpc, List<String> list, Object... args) {
+        List<String> result = list == null ? new ArrayList<>() : list;
+        StrUtil.toList(callRPC(rpc, args), result, Constants.LINE_SEPARATOR);
+        return result;
+    }
+    
+    public String callRPC(PreparedRPC rpc, Object... params) {
+        return callRPC(rpc, false, connectionParams.getTimeout(), packageParams(params));
+    }
+    
+    /**
+     * Performs a remote procedure call on the session's executor service, returning a future for
+     * its result. This lets a caller that must not block, such as a UI request thread, hand a
+     * synchronous call to a virtual thread. If the session has no executor service, the call is
+     * performed on the calling thread.
+     *
+     * @param name Name of the remote procedure.
+     * @param args Parameters to be passed to the remote procedure.
+     * @return A future for the result.
+     */
+    public CompletableFuture<String> submitRPC(final String name, final Object... args) {
+        Supplier<String> call = new Supplier<String>() {
+            
+            @Override
+            public String get() {
+                return callRPC(name, args);
+            }
+            
+        };
+        
+        ExecutorService executor = getExecutorService();
+        
+        if (executor != null) {
+            return CompletableFuture.supplyAsync(call, executor);
+        }
+        
+        CompletableFuture<String> future = new CompletableFuture<>();
+        
+        try {
+            future.complete(call.get());
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        
+        return future;
+    }
+    
+    public void callRPCStream(String name, ILineConsumer consumer, Object... args) {
+        callRPCStream(getPreparedCall(name), consumer, args);
+    }
+    
+    public void callRPCStream(PreparedRPC rpc, ILineConsumer consumer, Object... args) {
+        callRPCStream(rpc, consumer, connectionParams.getTimeout(), packageParams(args));
+    }
+    
+    /**
+     * Performs a remote procedure call, handing the returned data to a consumer one line at a time
+     * as it arrives from the server. Unlike {@link #callRPCList}, the data as a whole is never held
+     * in memory, making this suitable for remote procedures that may return very large results.
+     * Lines are delivered on the calling thread, and the call returns once the last line has been
+     * delivered. If the consumer throws an exception, the remaining data is discarded and the
+     * exception is rethrown.
+     *
+     * @param rpc The prepared call.
+     * @param consumer Consumer to receive the returned data.
+     * @param timeout The timeout, in milliseconds, to wait for each portion of the returned data.
+     * @param params Parameters to be passed to the remote procedure. This may be null.
+     */
+    public void callRPCStream(PreparedRPC rpc, ILineConsumer consumer, int timeout, RPCParameters params) {
+        ensureConnection();
+        Request request = new Request(Action.RPC);
+        rpc.addHeader(request, this, false);
+        
+        if (params != null) {
+            request.addParameters(params);
+        }
+        
+        netCall(request, timeout, consumer);
+    }
+    
+    /**
+     * Performs a prepared remote procedure call.
+     *
+     * @param rpc The prepared call.
+     * @param async If true, the remote procedure call will be executed asynchronously.
+     * @param timeout The timeout, in milliseconds, to wait for remote procedure completion.
+     * @param params Parameters to be passed to the remote procedure. This may be null.
+     * @return The data returned by the remote procedure called if called synchronously, or the
+     *         unique handle of the request, if call asynchronously.
+     */
+    public String callRPC(PreparedRPC rpc, boolean async, int timeout, RPCParameters params) {
+        RPCCache rpcCache = this.rpcCache;
+        return async || rpcCache == null ? invokeRPC(rpc, async, timeout, params)
+                : rpcCache.get(this, rpc, timeout, params);
+    }
+    
+    /**
+     * Performs a prepared remote procedure call without consulting the RPC cache.
+     *
+     * @param rpc The prepared call.
+     * @param async If true, the remote procedure call will be executed asynchronously.
+     * @param timeout The timeout, in milliseconds, to wait for remote procedure completion.
+     * @param params Parameters to be passed to the remote procedure. This may be null.
+     * @return The data returned by the remote procedure called if called synchronously, or the
+     *         unique handle of the request, if call asynchronously.
+     */
+    protected String invokeRPC(PreparedRPC rpc, boolean async, int timeout, RPCParameters params) {
+        ensureConnection();
+        Request request = new Request(Action.RPC);
+        rpc.addHeader(request, this, async);
         
         if (params != null) {
             request.addParameters(params);
@@ -312,13 +895,71 @@ public class BrokerSession {
         return response.getData();
     }
     
+    /**
+     * Creates an empty batch of remote procedure calls to be performed by this session.
+     *
+     * @return A new batch.
+     */
+    public RPCBatch createBatch() {
+        return new RPCBatch(this);
+    }
+    
+    /**
+     * Performs a batch of remote procedure calls, setting the result of each. If the server
+     * supports batching, the calls are sent in a single request. Otherwise, they are performed one
+     * at a time.
+     *
+     * @param batch The batch of calls.
+     * @param timeout The timeout, in milliseconds, to wait for completion of the batch.
+     */
+    protected void callRPCBatch(RPCBatch batch, int timeout) {
+        ensureConnection();
+        
+        if (!serverCaps.hasCapability(Capability.BATCH)) {
+            for (int i = 0; i < batch.size(); i++) {
+                try {
+                    batch.complete(i, callRPC(batch.getRPC(i), false, timeout, batch.getParameters(i)));
+                } catch (RPCException e) {
+                    batch.fail(i, e);
+                }
+            }
+            
+            return;
+        }
+        
+        Request request = new Request(Action.BATCH);
+        
+        for (int i = 0; i < batch.size(); i++) {
+            RPCParameters params = batch.getParameters(i);
+            batch.getRPC(i).addHeader(request, this, false);
+            
+            if (params != null) {
+                request.addParameters(params);
+            }
+            
+            request.endCall();
+        }
+        
+        batch.complete(netCall(request, timeout));
+    }
+    
+    /**
+     * Resolves a remote procedure name that may be an alias. Override to support aliases.
+     *
+     * @param name Remote procedure name or alias, with optional version and calling context.
+     * @return The resolved name (by default, the name unchanged).
+     */
+    protected String resolveAlias(String name) {
+        return name;
+    }
+    
     /**
      * Package parameters for RPC call. If parameters already packaged, simply return the package.
      *
      * @param params Parameters to be packaged.
      * @return Packaged parameters.
      */
-    private RPCParameters packageParams(Object... params) {
+    static RPCParameters packageParams(Object... params) {
         if (params == null) {
             return null;
         }
@@ -338,7 +979,15 @@ public class BrokerSession {
         Request request = new Request(subscribe ? Action.SUBSCRIBE : Action.UNSUBSCRIBE);
         request.addParameter("UID", id);
         request.addParameter("EVT", eventName);
-        return StrUtil.toBoolean(netCall(request).getData());
+        boolean result = StrUtil.toBoolean(netCall(request).getData());
+        
+        if (result && subscribe) {
+            subscriptions.add(eventName);
+        } else if (result) {
+            subscriptions.remove(eventName);
+        }
+        
+        return result;
     }
     
     public void fireRemoteEvent(String eventName, Object eventData, String recipients) {
@@ -384,7 +1033,8 @@ public class BrokerSession {
      * @return Client's host name.
      */
     public String getLocalName() {
-        return socket == null ? "" : socket.getLocalAddress().getHostName();
+        ITransport transport = this.transport;
+        return transport == null ? "" : transport.getLocalAddress().getHostName();
     }
     
     /**
@@ -393,7 +1043,8 @@ public class BrokerSession {
      * @return Client's ip address.
      */
     public String getLocalAddress() {
-        return socket == null ? "" : socket.getLocalAddress().getHostAddress();
+        ITransport transport = this.transport;
+        return transport == null ? "" : transport.getLocalAddress().getHostAddress();
     }
     
     /**
@@ -402,7 +1053,8 @@ public class BrokerSession {
      * @return True if the session is currently connected.
      */
     public boolean isConnected() {
-        return socket != null && socket.isConnected();
+        ITransport transport = this.transport;
+        return transport != null && transport.isOpen();
     }
     
     /**
@@ -439,14 +1091,77 @@ public class BrokerSession {
         }
         
         String av = username + ";" + password;
+        av = ";".equals(av) ? av : Security.encrypt(av, serverCaps.getCipherKey());
+        return requestAuthentication(av, "", division);
+    }
+    
+    /**
+     * Requests authentication from the server with a one-time application handle, issued to
+     * another session by {@link #issueHandle()}, in place of credentials. The session is
+     * authenticated as that session's user.
+     *
+     * @param handle The application handle.
+     * @param division Login division (may be null).
+     * @return Result of authentication.
+     */
+    protected AuthResult authenticateWithHandle(String handle, String division) {
+        ensureConnection();
+        
+        if (isAuthenticated()) {
+            return new AuthResult("0");
+        }
+        
+        return requestAuthentication(handle, "", division);
+    }
+    
+    /**
+     * Obtains from the server a one-time application handle with which another connection may be
+     * authenticated as this session's user without presenting credentials. The handle expires
+     * shortly after it is issued. The request is not scheduled, since it is issued on behalf of a
+     * call that may already have been admitted by the scheduler.
+     *
+     * @return The application handle.
+     */
+    protected String issueHandle() {
+        ensureConnection();
+        
+        if (!isAuthenticated()) {
+            throw new IllegalStateException("Broker session is not authenticated.");
+        }
+        
+        Request request = new Request(Action.RPC);
+        request.addParameter("UID", id);
+        request.addParameter("CTX", connectionParams.getAppid());
+        request.addParameter("VER", "");
+        request.addParameter("RPC", HANDLE_RPC);
+        request.addParameter("ASY", false);
+        request.setRPC(HANDLE_RPC, connectionParams.getAppid());
+        request.setScheduled(false);
+        return netCall(request).getData();
+    }
+    
+    /**
+     * Requests authentication from the server, either with credentials or, to resume an existing
+     * session, with the session token issued when that session was authenticated.
+     *
+     * @param av Encrypted credentials.
+     * @param token Pre-authentication token (empty if none).
+     * @param division Login division (may be null).
+     * @return Result of authentication.
+     */
+    private AuthResult requestAuthentication(String av, String token, String division) {
         List<String> results = callRPCList("RGNETBRP AUTH:" + Constants.VERSION, null, connectionParams.getAppid(),
-            getLocalName(), "", // This is the pre-authentication token
-            ";".equals(av) ? av : Security.encrypt(av, serverCaps.getCipherKey()), getLocalAddress(), division);
+            getLocalName(), token, av, getLocalAddress(), division);
         AuthResult authResult = new AuthResult(results.get(0));
         
         if (authResult.status.succeeded()) {
             setPostLoginMessage(results.subList(2, results.size()));
             init(results.get(1));
+            RPCCache rpcCache = this.rpcCache;
+            
+            if (rpcCache != null) {
+                rpcCache.onAuthenticated(this);
+            }
         }
         
         return authResult;
@@ -495,25 +1210,84 @@ public class BrokerSession {
     }
     
     /**
-     * Flushes the socket's input stream, discarding any pending input.
-     */
-    private void netFlush() {
-        try {
-            socket.getInputStream().skip(Long.MAX_VALUE);
-        } catch (Exception e) {}
-    }
-    
-    /**
-     * Initializes the broker session with information returned by the server.
+     * Initializes the broker session with information returned by the server. If the server
+     * supports session resumption or an event channel, this includes a secret token that
+     * identifies the session to the server, with which the session may be resumed and its event
+     * channel bound.
      *
      * @param init Initialization data.
      */
     protected void init(String init) {
-        String[] pcs = StrUtil.split(init, StrUtil.U, 4);
+        String[] pcs = StrUtil.split(init, StrUtil.U, 5);
         id = StrUtil.toInt(pcs[0]);
         serverCaps.domainName = pcs[1];
         serverCaps.siteName = pcs[2];
         userId = StrUtil.toInt(pcs[3]);
+        sessionToken = pcs[4].isEmpty() ? null : pcs[4];
+        
+        if (serverCaps.hasCapability(Capability.CHANNEL)) {
+            openEventChannel();
+        }
+    }
+    
+    /**
+     * Returns the secret token that the server issued to identify the session.
+     *
+     * @return The session token, or null if none was issued.
+     */
+    String getSessionToken() {
+        return sessionToken;
+    }
+    
+    /**
+     * Opens a dedicated event channel, which supersedes background polling. If the channel cannot
+     * be opened, background polling continues.
+     */
+    private void openEventChannel() {
+        closeEventChannel();
+        EventChannel channel = new EventChannel(this, createTransport());
+        
+        if (channel.open()) {
+            eventChannel = channel;
+            polling(false);
+        }
+    }
+    
+    /**
+     * Closes the event channel, if any.
+     */
+    private void closeEventChannel() {
+        EventChannel channel = eventChannel;
+        eventChannel = null;
+        
+        if (channel != null) {
+            channel.close();
+        }
+    }
+    
+    /**
+     * Called when the event channel has failed. Resumes background polling.
+     *
+     * @param channel The event channel.
+     */
+    void onEventChannelClosed(EventChannel channel) {
+        if (eventChannel == channel) {
+            eventChannel = null;
+            
+            if (isConnected()) {
+                polling(true);
+            }
+        }
+    }
+    
+    /**
+     * Returns true if completed asynchronous requests and host events are being delivered over a
+     * dedicated event channel, rather than by background polling.
+     *
+     * @return True if an event channel is open.
+     */
+    public boolean hasEventChannel() {
+        return eventChannel != null;
     }
     
     /**
@@ -523,55 +1297,195 @@ public class BrokerSession {
      * @param request Request to be sent.
      * @return Response returned by the server.
      */
-    protected synchronized Response netCall(Request request) {
+    protected Response netCall(Request request) {
         return netCall(request, connectionParams.getTimeout());
     }
     
     /**
-     * Issues a request to the server, returning the response.
+     * Issues a request to the server, returning the response. If the server supports pipelining,
+     * the request is sent without waiting for other requests in flight to complete. Otherwise,
+     * requests are serialized on the connection.
      *
      * @param request Request to be sent.
      * @param timeout The timeout, in milliseconds, to await a response.
      * @return Response returned by the server.
      */
-    protected synchronized Response netCall(Request request, int timeout) {
-        Response response = null;
+    protected Response netCall(Request request, int timeout) {
+        return netCall(request, timeout, null);
+    }
+    
+    /**
+     * Issues a request to the server, handing the response data to a consumer line by line as it
+     * arrives.
+     *
+     * @param request Request to be sent.
+     * @param timeout The timeout, in milliseconds, to await each portion of the response.
+     * @param consumer Consumer to receive the response data (if null, the response is not
+     *            streamed).
+     * @return Response returned by the server. If streamed, this carries no data.
+     */
+    protected Response netCall(Request request, int timeout, ILineConsumer consumer) {
+        Response response;
+        ITransport transport = this.transport;
+        
+        if (transport == null) {
+            throw new IllegalStateException("Broker session is not connected.");
+        }
         
         if (serverCaps != null && serverCaps.isDebugMode()) {
             timeout = 0;
         }
         
+        RPCScheduler scheduler = this.scheduler;
+        RPCScheduler.Lane lane = scheduler == null ? null : scheduler.acquire(request, timeout);
+        BrokerMetrics metrics = this.metrics;
+        TrafficRecorder recorder = this.trafficRecorder;
+        byte[] recorded = recorder != null && recorder.accepts(request) ? request.getEncodedParameters() : null;
+        final StringBuilder streamed = recorded != null && consumer != null ? new StringBuilder() : null;
+        long start = metrics == null && recorded == null ? 0 : System.nanoTime();
+        Object event = BrokerEvents.beginRequest();
+        
+        if (streamed != null) { // Capture the streamed data for the recorder.
+            final ILineConsumer target = consumer;
+            consumer = new ILineConsumer() {
+                
+                private boolean first = true;
+                
+                @Override
+                public void onLine(String line) {
+                    streamed.append(first ? "" : Constants.LINE_SEPARATOR).append(line);
+                    first = false;
+                    target.onLine(line);
+                }
+                
+            };
+        }
+        
         try {
-            socket.setSoTimeout(timeout);
-            DataOutputStream requestPacket = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
-            request.write(requestPacket, nextSequenceId());
-            requestPacket.flush();
-            DataInputStream responsePacket = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-            response = new Response(responsePacket);
+            response = transport.call(request, timeout, consumer);
+        } catch (RejectedExecutionException e) {
+            throw e; // A deferrable request was not sent.
+        } catch (Exception e) {
+            if (metrics != null) {
+                metrics.recordRequest(request, endpoint, start, null, e);
+            }
             
-            if (response.getSequenceId() != request.getSequenceId()) {
-                throw new IOException("Response is not for current request.");
+            if (recorded != null) {
+                recorder.record(recorded, start, null, e);
             }
-        } catch (Exception e) {
-            netFlush();
+            
+            BrokerEvents.commitRequest(event, request, null, e);
             throw MiscUtil.toUnchecked(e);
+        } finally {
+            if (lane != null) {
+                lane.release();
+            }
+        }
+        
+        RPCException error = response.getResponseType() == ResponseType.ERROR ? new RPCException(response.getData())
+                : null;
+        
+        if (metrics != null) {
+            metrics.recordRequest(request, endpoint, start, response, error);
         }
         
-        if (response.getResponseType() == ResponseType.ERROR) {
-            throw new RPCException(response.getData());
+        if (recorded != null) {
+            recorder.record(recorded, start, response, streamed == null ? null : streamed.toString(), null);
+        }
+        
+        BrokerEvents.commitRequest(event, request, response, error);
+        
+        if (error != null) {
+            throw error;
         }
         
         return response;
     }
     
     /**
-     * Returns the next valid sequence #.
+     * Returns the cache that services synchronous calls, if any.
+     *
+     * @return The RPC cache (may be null).
+     */
+    public RPCCache getRPCCache() {
+        return rpcCache;
+    }
+    
+    /**
+     * Sets the cache that services synchronous calls. A cache may be shared by multiple sessions,
+     * only one of which subscribes to the events that invalidate cached results (see
+     * {@link RPCCache}).
      *
-     * @return Sequence #.
+     * @param rpcCache The RPC cache (may be null).
      */
-    private byte nextSequenceId() {
-        while (++netSequence == Constants.EOD) {}
-        return netSequence;
+    public void setRPCCache(RPCCache rpcCache) {
+        RPCCache oldCache = this.rpcCache;
+        this.rpcCache = rpcCache;
+        
+        if (oldCache != null) {
+            oldCache.detach(this);
+        }
+        
+        if (rpcCache != null) {
+            rpcCache.attach(this);
+        }
+    }
+    
+    /**
+     * Returns the metrics to which this session's requests are reported, if any.
+     *
+     * @return The broker metrics (may be null).
+     */
+    public BrokerMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Sets the metrics to which this session's requests are reported. Metrics may be shared by
+     * multiple sessions.
+     *
+     * @param metrics The broker metrics (null to disable collection).
+     */
+    public void setMetrics(BrokerMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    /**
+     * Returns the recorder to which this session's remote procedure calls are written, if any.
+     *
+     * @return The traffic recorder (may be null).
+     */
+    public TrafficRecorder getTrafficRecorder() {
+        return trafficRecorder;
+    }
+    
+    /**
+     * Sets the recorder to which this session's remote procedure calls are written. A recorder may
+     * be shared by multiple sessions.
+     *
+     * @param trafficRecorder The traffic recorder (null to stop recording).
+     */
+    public void setTrafficRecorder(TrafficRecorder trafficRecorder) {
+        this.trafficRecorder = trafficRecorder;
+    }
+    
+    /**
+     * Returns the scheduler that admits this session's calls to the server, if any.
+     *
+     * @return The RPC scheduler (may be null).
+     */
+    public RPCScheduler getScheduler() {
+        return scheduler;
+    }
+    
+    /**
+     * Sets the scheduler that admits this session's calls to the server. A scheduler may be shared
+     * by multiple sessions.
+     *
+     * @param scheduler The RPC scheduler (null to admit calls as they arrive).
+     */
+    public void setScheduler(RPCScheduler scheduler) {
+        this.scheduler = scheduler;
     }
     
     /**
@@ -664,11 +1578,7 @@ public class BrokerSession {
      * @param text The error text.
      */
     protected void onRPCError(int asyncHandle, int asyncError, String text) {
-        IAsyncRPCEvent callback = getCallback(asyncHandle);
-        
-        if (callback != null) {
-            callback.onRPCError(asyncHandle, asyncError, text);
-        }
+        dispatch(asyncHandle, new AsyncResult(true, asyncError, text));
     }
     
     /**
@@ -679,10 +1589,48 @@ public class BrokerSession {
      * @param data The data returned by the RPC.
      */
     protected void onRPCComplete(int asyncHandle, String data) {
+        dispatch(asyncHandle, new AsyncResult(false, 0, data));
+    }
+    
+    /**
+     * Delivers the result of an asynchronous RPC call to its callback. If there is no callback,
+     * the result may have arrived before the call that issued the handle has registered one, so
+     * the result is kept for that call to collect. Whichever of the two removes the callback
+     * delivers the result, so it is delivered exactly once and neither waits for the other.
+     * Results that are never collected (e.g., those of aborted calls) are discarded once they
+     * are older than {@link #ORPHAN_LIFETIME}.
+     *
+     * @param asyncHandle The unique handle for the asynchronous RPC call.
+     * @param result The result.
+     */
+    private void dispatch(int asyncHandle, AsyncResult result) {
         IAsyncRPCEvent callback = getCallback(asyncHandle);
         
-        if (callback != null) {
-            callback.onRPCComplete(asyncHandle, data);
+        if (callback == null) {
+            purgeOrphans();
+            orphans.put(asyncHandle, result);
+            callback = getCallback(asyncHandle);
+            
+            if (callback == null) {
+                return;
+            }
+            
+            orphans.remove(asyncHandle, result);
+        }
+        
+        result.deliver(asyncHandle, callback);
+    }
+    
+    /**
+     * Discards results without a callback that have expired.
+     */
+    private void purgeOrphans() {
+        long expired = System.currentTimeMillis() - ORPHAN_LIFETIME;
+        
+        for (Map.Entry<Integer, AsyncResult> entry : orphans.entrySet()) {
+            if (entry.getValue().received < expired) {
+                orphans.remove(entry.getKey(), entry.getValue());
+            }
         }
     }
     
@@ -693,7 +1641,23 @@ public class BrokerSession {
      * @return The callback handler, or null if none found.
      */
     private IAsyncRPCEvent getCallback(int asyncHandle) {
-        return callbacks.remove(asyncHandle);
+        IAsyncRPCEvent callback = callbacks.remove(asyncHandle);
+        BrokerMetrics metrics = this.metrics;
+        
+        if (callback != null && metrics != null) {
+            metrics.updateOutstandingAsync(-1);
+        }
+        
+        return callback;
+    }
+    
+    /**
+     * Returns true if any asynchronous requests are awaiting completion.
+     *
+     * @return True if asynchronous requests are outstanding.
+     */
+    protected boolean hasPendingCallbacks() {
+        return !callbacks.isEmpty();
     }
     
     /**
@@ -715,16 +1679,23 @@ public class BrokerSession {
     }
     
     /**
-     * Returns the executor service used by the session for handling background polling.
+     * Returns the executor service used by the session for handling background polling and
+     * submitted calls. If none has been set and the connection parameters call for virtual
+     * threads, this is a shared executor that runs each task on a virtual thread.
      *
-     * @return Executor service.
+     * @return Executor service (may be null).
      */
     public ExecutorService getExecutorService() {
+        if (executorService == null && connectionParams != null && connectionParams.isVirtualThreads()) {
+            return VirtualThreads.getExecutor();
+        }
+        
         return executorService;
     }
     
     /**
-     * Sets the executor service used by the session for handling background polling.
+     * Sets the executor service used by the session for handling background polling and submitted
+     * calls.
      *
      * @param executorService Executor service.
      */
@@ -0,0 +1,873 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.carewebframework.vista.mbroker.Request.Action;
+import org.carewebframework.vista.mbroker.Security.AuthResult;
+
+/**
+ * A broker session that services synchronous remote procedure calls from a pool of additional
+ * authenticated connections, so that concurrent callers no longer serialize on a single socket.
+ * <p>
+ * The pool's own connection (the primary) is established exactly as for a simple broker session
+ * and continues to handle authentication, asynchronous RPC's, event subscriptions and background
+ * polling. Synchronous RPC's are dispatched to a member session leased from the pool for the
+ * duration of the call. Member sessions are opened on demand up to the maximum pool size, idle
+ * members above the minimum pool size are closed once they exceed the maximum idle time, and idle
+ * members are periodically pinged to verify that they are still healthy. The maximum pool size
+ * defaults to zero, which disables pooling altogether, in which case all calls are handled by the
+ * primary.
+ * <p>
+ * Members that are not authenticated by the credentials of the connection parameters are
+ * authenticated as the primary's user with one-time application handles issued to the primary, so
+ * that the user's password is never retained. A member whose connection is lost is not
+ * reconnected, but discarded once released, and another is opened in its place.
+ * <p>
+ * Each member is a separate server job, so job state established by one call, such as symbol
+ * table variables and locks, is not seen by a later call, which may be serviced by another
+ * member. Calls that depend on such state must be issued together in an {@link RPCBatch}, which
+ * is always performed on a single member, or through a session that is not pooled.
+ * <p>
+ * If the pool has an {@link RPCScheduler}, calls are admitted by the scheduler before a member
+ * session is leased, so that they wait for a connection in order of priority.
+ * <p>
+ * If the connection parameters specify several endpoints, each member session is opened on the
+ * endpoint chosen by an {@link EndpointBalancer}, and an endpoint that cannot be reached is
+ * ejected while the member is opened on another. The primary session always connects to the
+ * server and port of the connection parameters.
+ */
+public class BrokerSessionPool extends BrokerSession {
+    
+    private static final Log log = LogFactory.getLog(BrokerSessionPool.class);
+    
+    /**
+     * A broker session that is a member of the pool. Members do not perform background polling,
+     * since asynchronous activity is handled by the primary session.
+     */
+    protected static class PooledSession extends BrokerSession {
+        
+        private long lastUsed = System.currentTimeMillis();
+        
+        private EndpointBalancer.Endpoint endpoint;
+        
+        private long leased;
+        
+        public PooledSession(ConnectionParams params) {
+            super(params);
+        }
+        
+        @Override
+        protected boolean isPollingEnabled() {
+            return false;
+        }
+        
+        /**
+         * A member whose connection has been lost is not reconnected, since the new connection
+         * could not be authenticated without the user's credentials.
+         */
+        @Override
+        public void reconnect() {
+            if (!isConnected()) {
+                throw new IllegalStateException("Pooled broker session has lost its connection.");
+            }
+        }
+        
+        /**
+         * Verifies that the member session is still able to communicate with the server.
+         *
+         * @return True if the session responded to a ping request.
+         */
+        protected boolean validate() {
+            try {
+                return isUsable() && netCall(new Request(Action.PING), getConnectionParams().getTimeout()) != null;
+            } catch (Exception e) {
+                return false;
+            }
+        }
+        
+        /**
+         * Returns true if the member session is connected and authenticated.
+         *
+         * @return True if the session may service calls.
+         */
+        protected boolean isUsable() {
+            return isConnected() && isAuthenticated();
+        }
+        
+    }
+    
+    private int minSize;
+    
+    private int maxSize;
+    
+    private long maxIdleTime = 300000;
+    
+    private long healthCheckInterval = 60000;
+    
+    private int size;
+    
+    private final LinkedList<PooledSession> idle = new LinkedList<>();
+    
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    private final Condition available = lock.newCondition();
+    
+    private ScheduledFuture<?> maintenance;
+    
+    private volatile EndpointBalancer balancer;
+    
+    private String division;
+    
+    public BrokerSessionPool() {
+        super();
+    }
+    
+    public BrokerSessionPool(ConnectionParams params) {
+        super(params);
+    }
+    
+    /**
+     * Connects the primary session and, if it was authenticated, opens the minimum number of member
+     * sessions.
+     */
+    @Override
+    public AuthResult connect() {
+        AuthResult authResult = super.connect();
+        
+        if (isAuthenticated()) {
+            startPool();
+        }
+        
+        return authResult;
+    }
+    
+    /**
+     * Closes all member sessions and then disconnects the primary session.
+     */
+    @Override
+    public void disconnect() {
+        stopPool();
+        super.disconnect();
+    }
+    
+    /**
+     * Authenticates the primary session. Upon success, the pool is started. Only the division is
+     * retained, member sessions being authenticated with application handles issued to the primary.
+     */
+    @Override
+    public AuthResult authenticate(String username, String password, String division) {
+        boolean wasAuthenticated = isAuthenticated();
+        AuthResult authResult = super.authenticate(username, password, division);
+        
+        if (!wasAuthenticated && authResult.status.succeeded()) {
+            this.division = division;
+            startPool();
+        }
+        
+        return authResult;
+    }
+    
+    /**
+     * Synchronous calls are dispatched to a leased member session. Asynchronous calls, as well as
+     * all calls when pooling is disabled or the primary is not authenticated, are handled by the
+     * primary session. If there is an RPC cache, synchronous calls are first prepared and then
+     * dispatched by {@link #invokeRPC} on a cache miss.
+     */
+    @Override
+    public String callRPC(String name, boolean async, int timeout, RPCParameters params) {
+        if (async || maxSize <= 0 || !isAuthenticated() || getRPCCache() != null) {
+            return super.callRPC(name, async, timeout, params);
+        }
+        
+        name = resolveAlias(name);
+        RPCScheduler.Lane lane = schedule(name, timeout);
+        
+        try {
+            PooledSession session = lease();
+            
+            try {
+                return session.callRPC(name, async, timeout, params);
+            } finally {
+                release(session);
+            }
+        } finally {
+            if (lane != null) {
+                lane.release();
+            }
+        }
+    }
+    
+    /**
+     * Prepared calls are dispatched in the same manner as unprepared calls.
+     */
+    @Override
+    protected String invokeRPC(PreparedRPC rpc, boolean async, int timeout, RPCParameters params) {
+        if (async || maxSize <= 0 || !isAuthenticated()) {
+            return super.invokeRPC(rpc, async, timeout, params);
+        }
+        
+        RPCScheduler.Lane lane = schedule(rpc.getName(), timeout);
+        
+        try {
+            PooledSession session = lease();
+            
+            try {
+                return session.invokeRPC(rpc, async, timeout, params);
+            } finally {
+                release(session);
+            }
+        } finally {
+            if (lane != null) {
+                lane.release();
+            }
+        }
+    }
+    
+    /**
+     * Performs a streamed remote procedure call on a leased member session.
+     */
+    @Override
+    public void callRPCStream(PreparedRPC rpc, ILineConsumer consumer, int timeout, RPCParameters params) {
+        if (maxSize <= 0 || !isAuthenticated()) {
+            super.callRPCStream(rpc, consumer, timeout, params);
+            return;
+        }
+        
+        RPCScheduler.Lane lane = schedule(rpc.getName(), timeout);
+        
+        try {
+            PooledSession session = lease();
+            
+            try {
+                session.callRPCStream(rpc, consumer, timeout, params);
+            } finally {
+                release(session);
+            }
+        } finally {
+            if (lane != null) {
+                lane.release();
+            }
+        }
+    }
+    
+    /**
+     * Performs a batch of calls on a single leased member session.
+     */
+    @Override
+    protected void callRPCBatch(RPCBatch batch, int timeout) {
+        if (maxSize <= 0 || !isAuthenticated()) {
+            super.callRPCBatch(batch, timeout);
+            return;
+        }
+        
+        RPCScheduler.Lane lane = schedule(null, timeout);
+        
+        try {
+            PooledSession session = lease();
+            
+            try {
+                session.callRPCBatch(batch, timeout);
+            } finally {
+                release(session);
+            }
+        } finally {
+            if (lane != null) {
+                lane.release();
+            }
+        }
+    }
+    
+    /**
+     * Waits for the pool's scheduler, if any, to admit a call dispatched to a member session.
+     *
+     * @param rpcName Name of the remote procedure (null for a batch).
+     * @param timeout The timeout, in milliseconds, of the call.
+     * @return The lane to be released once the call has completed, or null if the call is not
+     *         scheduled.
+     */
+    private RPCScheduler.Lane schedule(String rpcName, int timeout) {
+        RPCScheduler scheduler = getScheduler();
+        return scheduler == null ? null : scheduler.acquire(rpcName, timeout);
+    }
+    
+    /**
+     * Leases a member session from the pool, opening a new one if none is idle and the pool has not
+     * reached its maximum size. If the pool is exhausted, waits up to the default timeout for a
+     * member to be released.
+     *
+     * @return A leased member session.
+     */
+    protected PooledSession lease() {
+        long start = System.nanoTime();
+        PooledSession session = acquire();
+        BrokerMetrics metrics = getMetrics();
+        session.leased = System.nanoTime();
+        session.setTrafficRecorder(getTrafficRecorder()); // In case recording began while it was leased.
+        
+        if (metrics != null) {
+            metrics.recordPoolWait(session.leased - start);
+        }
+        
+        if (session.endpoint != null) {
+            session.endpoint.begin();
+        }
+        
+        return session;
+    }
+    
+    /**
+     * Acquires a member session for {@link #lease()}.
+     *
+     * @return A member session.
+     */
+    private PooledSession acquire() {
+        long timeout = getConnectionParams().getTimeout();
+        long expiration = timeout <= 0 ? Long.MAX_VALUE : System.currentTimeMillis() + timeout;
+        
+        while (true) {
+            PooledSession session = null;
+            boolean create = false;
+            
+            lock.lock();
+            
+            try {
+                if (!idle.isEmpty()) {
+                    session = idle.removeFirst();
+                } else if (size < maxSize) {
+                    size++;
+                    create = true;
+                } else {
+                    long wait = expiration - System.currentTimeMillis();
+                    
+                    if (wait <= 0) {
+                        throw new RuntimeException("Timed out waiting for an available broker session.");
+                    }
+                    
+                    try {
+                        available.await(wait, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException("Interrupted while waiting for an available broker session.");
+                    }
+                    
+                    continue;
+                }
+            } finally {
+                lock.unlock();
+            }
+            
+            if (create) {
+                return openSession();
+            }
+            
+            if (session.isConnected()) {
+                return session;
+            }
+            
+            discard(session);
+        }
+    }
+    
+    /**
+     * Returns a leased member session to the pool. Sessions that have lost their connection are
+     * discarded.
+     *
+     * @param session The member session.
+     */
+    protected void release(PooledSession session) {
+        if (session.endpoint != null) {
+            session.endpoint.end(System.nanoTime() - session.leased, !session.isConnected());
+        }
+        
+        checkIn(session);
+    }
+    
+    /**
+     * Returns a member session to the idle members of the pool, or discards it if it has lost its
+     * connection or authentication.
+     *
+     * @param session The member session.
+     */
+    private void checkIn(PooledSession session) {
+        if (!session.isUsable()) {
+            discard(session);
+            return;
+        }
+        
+        session.lastUsed = System.currentTimeMillis();
+        
+        lock.lock();
+        
+        try {
+            if (maintenance == null) {
+                size--;
+                closeSession(session);
+            } else {
+                idle.addFirst(session);
+            }
+            
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Creates, connects and authenticates a new member session. The caller must already have
+     * reserved a slot in the pool. If the pool balances its members among several endpoints and
+     * the session cannot be opened on the chosen endpoint, that endpoint is ejected and the
+     * session is opened on another.
+     *
+     * @return The new member session.
+     */
+    private PooledSession openSession() {
+        EndpointBalancer balancer = this.balancer;
+        List<EndpointBalancer.Endpoint> failed = new ArrayList<>();
+        
+        try {
+            while (true) {
+                EndpointBalancer.Endpoint endpoint = balancer == null ? null : balancer.select(failed);
+                
+                try {
+                    return openSession(endpoint);
+                } catch (RuntimeException e) {
+                    if (endpoint == null) {
+                        throw e;
+                    }
+                    
+                    endpoint.eject();
+                    failed.add(endpoint);
+                    
+                    if (failed.size() >= balancer.getEndpoints().size()) {
+                        throw e;
+                    }
+                    
+                    log.warn("Unable to open pooled broker session on " + endpoint + ".", e);
+                }
+            }
+        } catch (RuntimeException e) {
+            lock.lock();
+            
+            try {
+                size--;
+                available.signal();
+            } finally {
+                lock.unlock();
+            }
+            
+            throw e;
+        }
+    }
+    
+    /**
+     * Creates, connects and authenticates a new member session on the specified endpoint.
+     *
+     * @param endpoint The endpoint, or null to connect to the server of the pool's connection
+     *            parameters.
+     * @return The new member session.
+     */
+    private PooledSession openSession(EndpointBalancer.Endpoint endpoint) {
+        ConnectionParams params = new ConnectionParams(getConnectionParams());
+        PooledSession session = null;
+        
+        // Host events are delivered to the primary session only, so members need no event channel.
+        params.setEventChannel(false);
+        
+        if (endpoint != null) {
+            params.setServer(endpoint.getHost());
+            params.setPort(endpoint.getPort());
+        }
+        
+        try {
+            session = createSession(params);
+            session.setSerializationMethod(getSerializationMethod());
+            session.setMetrics(getMetrics());
+            session.setTrafficRecorder(getTrafficRecorder());
+            session.connect();
+            
+            if (!session.isAuthenticated() && isAuthenticated()) {
+                session.authenticateWithHandle(issueHandle(), division);
+            }
+            
+            if (!session.isAuthenticated()) {
+                throw new RuntimeException("Failed to authenticate pooled broker session.");
+            }
+        } catch (RuntimeException e) {
+            if (session != null) {
+                closeSession(session);
+            }
+            
+            throw e;
+        }
+        
+        if (endpoint != null) {
+            session.endpoint = endpoint;
+            endpoint.connected();
+        }
+        
+        return session;
+    }
+    
+    /**
+     * Creates a new member session. Override to provide a specialized member implementation.
+     *
+     * @param params Connection parameters for the member session.
+     * @return A new, unconnected member session.
+     */
+    protected PooledSession createSession(ConnectionParams params) {
+        return new PooledSession(params);
+    }
+    
+    /**
+     * Closes a member session and releases its slot in the pool.
+     *
+     * @param session The member session.
+     */
+    private void discard(PooledSession session) {
+        closeSession(session);
+        
+        lock.lock();
+        
+        try {
+            size--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Disconnects a member session, ignoring any errors.
+     *
+     * @param session The member session.
+     */
+    private void closeSession(PooledSession session) {
+        try {
+            session.disconnect();
+        } catch (Exception e) {
+            log.debug("Error closing pooled broker session.", e);
+        }
+        
+        if (session.endpoint != null) {
+            session.endpoint.disconnected();
+            session.endpoint = null;
+        }
+    }
+    
+    /**
+     * Starts pool maintenance and opens the minimum number of member sessions.
+     */
+    private void startPool() {
+        lock.lock();
+        
+        try {
+            if (maintenance != null || maxSize <= 0) {
+                return;
+            }
+            
+            ConnectionParams params = getConnectionParams();
+            balancer = params.getEndpoints().length == 0 ? null : new EndpointBalancer(params);
+            long interval = Math.max(1000, Math.min(healthCheckInterval, maxIdleTime));
+            
+            // Maintenance shares the polling threads, so that pools do not each hold a thread.
+            maintenance = PollingScheduler.getInstance().schedule(new Runnable() {
+                
+                @Override
+                public void run() {
+                    try {
+                        maintain();
+                    } catch (RuntimeException e) {
+                        log.error("Error during broker session pool maintenance.", e);
+                    }
+                }
+                
+            }, interval, interval);
+        } finally {
+            lock.unlock();
+        }
+        
+        fill();
+    }
+    
+    /**
+     * Stops pool maintenance and closes all idle member sessions. Leased member sessions are closed
+     * as they are released.
+     */
+    private void stopPool() {
+        List<PooledSession> sessions;
+        
+        lock.lock();
+        
+        try {
+            if (maintenance != null) {
+                maintenance.cancel(false);
+                maintenance = null;
+            }
+            
+            sessions = new ArrayList<>(idle);
+            size -= idle.size();
+            idle.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        
+        for (PooledSession session : sessions) {
+            closeSession(session);
+        }
+        
+        division = null;
+    }
+    
+    /**
+     * Opens member sessions until the pool reaches its minimum size.
+     */
+    private void fill() {
+        while (true) {
+            lock.lock();
+            
+            try {
+                if (maintenance == null || size >= Math.min(minSize, maxSize)) {
+                    return;
+                }
+                
+                size++;
+            } finally {
+                lock.unlock();
+            }
+            
+            try {
+                checkIn(openSession());
+            } catch (Exception e) {
+                log.warn("Unable to open pooled broker session.", e);
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Performs periodic pool maintenance: evicts members that have been idle too long, removes
+     * members that fail a health check, and replenishes the pool to its minimum size.
+     */
+    protected void maintain() {
+        List<PooledSession> evicted = new ArrayList<>();
+        List<PooledSession> check = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        
+        lock.lock();
+        
+        try {
+            Iterator<PooledSession> iter = idle.descendingIterator();
+            
+            while (iter.hasNext()) {
+                PooledSession session = iter.next();
+                long idleTime = now - session.lastUsed;
+                
+                if (size - evicted.size() > minSize && idleTime >= maxIdleTime) {
+                    evicted.add(session);
+                    iter.remove();
+                } else if (idleTime >= healthCheckInterval) {
+                    check.add(session);
+                    iter.remove();
+                }
+            }
+            
+            size -= evicted.size();
+        } finally {
+            lock.unlock();
+        }
+        
+        for (PooledSession session : evicted) {
+            closeSession(session);
+        }
+        
+        for (PooledSession session : check) {
+            if (session.validate()) {
+                checkIn(session);
+            } else {
+                log.warn("Discarding unresponsive pooled broker session.");
+                
+                if (session.endpoint != null) {
+                    session.endpoint.eject();
+                }
+                
+                discard(session);
+            }
+        }
+        
+        fill();
+    }
+    
+    /**
+     * Returns the minimum number of member sessions that the pool will keep open.
+     *
+     * @return Minimum pool size.
+     */
+    public int getMinSize() {
+        return minSize;
+    }
+    
+    /**
+     * Sets the minimum number of member sessions that the pool will keep open.
+     *
+     * @param minSize Minimum pool size.
+     */
+    public void setMinSize(int minSize) {
+        this.minSize = minSize;
+    }
+    
+    /**
+     * Returns the maximum number of member sessions that the pool may open. A value of zero disables
+     * pooling.
+     *
+     * @return Maximum pool size.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+    
+    /**
+     * Sets the maximum number of member sessions that the pool may open. A value of zero disables
+     * pooling.
+     *
+     * @param maxSize Maximum pool size.
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+    
+    /**
+     * Returns the time, in milliseconds, after which an idle member session above the minimum pool
+     * size is closed.
+     *
+     * @return Maximum idle time.
+     */
+    public long getMaxIdleTime() {
+        return maxIdleTime;
+    }
+    
+    /**
+     * Sets the time, in milliseconds, after which an idle member session above the minimum pool
+     * size is closed.
+     *
+     * @param maxIdleTime Maximum idle time.
+     */
+    public void setMaxIdleTime(long maxIdleTime) {
+        this.maxIdleTime = maxIdleTime;
+    }
+    
+    /**
+     * Returns the time, in milliseconds, that a member session may remain idle before its health is
+     * verified.
+     *
+     * @return Health check interval.
+     */
+    public long getHealthCheckInterval() {
+        return healthCheckInterval;
+    }
+    
+    /**
+     * Sets the time, in milliseconds, that a member session may remain idle before its health is
+     * verified.
+     *
+     * @param healthCheckInterval Health check interval.
+     */
+    public void setHealthCheckInterval(long healthCheckInterval) {
+        this.healthCheckInterval = healthCheckInterval;
+    }
+    
+    /**
+     * Sets the recorder to which the calls of the primary and of every member session are written.
+     * A member that is currently leased adopts the recorder when it is next leased.
+     */
+    @Override
+    public void setTrafficRecorder(TrafficRecorder trafficRecorder) {
+        super.setTrafficRecorder(trafficRecorder);
+        lock.lock();
+        
+        try {
+            for (PooledSession session : idle) {
+                session.setTrafficRecorder(trafficRecorder);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the number of member sessions currently open (both idle and leased).
+     *
+     * @return Number of member sessions.
+     */
+    public int getSize() {
+        lock.lock();
+        
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the endpoints among which member sessions are balanced, together with their
+     * statistics.
+     *
+     * @return List of endpoints (empty if member sessions are not balanced).
+     */
+    public List<EndpointBalancer.Endpoint> getEndpoints() {
+        EndpointBalancer balancer = this.balancer;
+        return balancer == null ? Collections.<EndpointBalancer.Endpoint> emptyList() : balancer.getEndpoints();
+    }
+    
+    /**
+     * Returns the number of member sessions currently idle.
+     *
+     * @return Number of idle member sessions.
+     */
+    public int getIdleCount() {
+        lock.lock();
+        
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+}
@@ -0,0 +1,108 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A global pool of fixed-size byte arrays. Buffers are borrowed only while they hold data in
+ * transit, so the memory held by idle connections stays flat no matter how many connections are
+ * open, and the steady state of request and response processing creates little garbage.
+ */
+final class BufferPool {
+    
+    /**
+     * Buffers into which responses are read.
+     */
+    static final BufferPool IO_BUFFERS = new BufferPool(8192, 64);
+    
+    /**
+     * Slabs from which request buffers are assembled.
+     */
+    static final BufferPool SLABS = new BufferPool(1024, 512);
+    
+    private final int bufferSize;
+    
+    private final int capacity;
+    
+    private final Queue<byte[]> pool = new ConcurrentLinkedQueue<>();
+    
+    private final AtomicInteger pooled = new AtomicInteger();
+    
+    /**
+     * Creates a pool.
+     *
+     * @param bufferSize The size of each buffer, in bytes.
+     * @param capacity The maximum number of idle buffers retained by the pool.
+     */
+    private BufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+    }
+    
+    /**
+     * Returns the size of the buffers in this pool.
+     *
+     * @return The buffer size, in bytes.
+     */
+    int getBufferSize() {
+        return bufferSize;
+    }
+    
+    /**
+     * Borrows a buffer from the pool, allocating a new one if none is available.
+     *
+     * @return A buffer. Its contents are undefined.
+     */
+    byte[] acquire() {
+        byte[] buffer = pool.poll();
+        
+        if (buffer == null) {
+            return new byte[bufferSize];
+        }
+        
+        pooled.decrementAndGet();
+        return buffer;
+    }
+    
+    /**
+     * Returns a buffer to the pool. Buffers of a different size, or that exceed the pool's
+     * capacity, are left to the garbage collector.
+     *
+     * @param buffer The buffer to return (may be null).
+     */
+    void release(byte[] buffer) {
+        if (buffer != null && buffer.length == bufferSize) {
+            if (pooled.incrementAndGet() <= capacity) {
+                pool.add(buffer);
+            } else {
+                pooled.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A selector thread that services the I/O of many non-blocking broker connections. A small, fixed
+ * number of selector threads is shared by all channel transports in the JVM, so the number of
+ * threads does not grow with the number of connections.
+ */
+class ChannelSelector implements Runnable {
+    
+    private static final Log log = LogFactory.getLog(ChannelSelector.class);
+    
+    private static final int SELECTOR_COUNT = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    
+    private static final ChannelSelector[] selectors = new ChannelSelector[SELECTOR_COUNT];
+    
+    private static final AtomicInteger next = new AtomicInteger();
+    
+    private final Selector selector;
+    
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    
+    /**
+     * Returns a selector thread for a new connection. Connections are assigned to selector threads
+     * in round-robin fashion. Selector threads are started on first use.
+     *
+     * @return A selector thread.
+     * @throws IOException An IO exception.
+     */
+    static ChannelSelector getInstance() throws IOException {
+        int index = (next.getAndIncrement() & Integer.MAX_VALUE) % SELECTOR_COUNT;
+        
+        synchronized (selectors) {
+            if (selectors[index] == null) {
+                selectors[index] = new ChannelSelector(index);
+            }
+            
+            return selectors[index];
+        }
+    }
+    
+    private ChannelSelector(int index) throws IOException {
+        selector = Selector.open();
+        Thread thread = new Thread(this, "MBrokerSelector-" + index);
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Registers a transport's channel for reading.
+     *
+     * @param transport The channel transport.
+     */
+    void register(final ChannelTransport transport) {
+        execute(new Runnable() {
+            
+            @Override
+            public void run() {
+                try {
+                    transport.setSelectionKey(transport.getChannel().register(selector, SelectionKey.OP_READ, transport));
+                } catch (IOException e) {
+                    transport.onError(e);
+                }
+            }
+            
+        });
+    }
+    
+    /**
+     * Requests notification when a transport's channel is ready for writing.
+     *
+     * @param transport The channel transport.
+     */
+    void requestWrite(final ChannelTransport transport) {
+        execute(new Runnable() {
+            
+            @Override
+            public void run() {
+                SelectionKey key = transport.getSelectionKey();
+                
+                if (key != null && key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            }
+            
+        });
+    }
+    
+    /**
+     * Queues a task for execution on the selector thread and wakes the thread.
+     *
+     * @param task The task.
+     */
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+    
+    /**
+     * Main selector loop. Dispatches read and write readiness to the owning transport.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+                Runnable task;
+                
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                
+                for (SelectionKey key : selector.selectedKeys()) {
+                    ChannelTransport transport = (ChannelTransport) key.attachment();
+                    
+                    try {
+                        if (key.isReadable()) {
+                            transport.onReadable();
+                        }
+                        
+                        if (key.isValid() && key.isWritable()) {
+                            if (transport.onWritable()) {
+                                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                            }
+                        }
+                    } catch (CancelledKeyException e) {
+                        // Channel was closed.
+                    } catch (IOException e) {
+                        transport.onError(e);
+                    }
+                }
+                
+                selector.selectedKeys().clear();
+            } catch (Throwable e) {
+                log.error("Error in broker selector thread.", e);
+            }
+        }
+    }
+    
+}
@@ -0,0 +1,448 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.carewebframework.vista.mbroker.ResponseDecoder.IPendingLookup;
+
+/**
+ * Non-blocking transport over a socket channel. Reads and writes are performed by a shared
+ * {@link ChannelSelector} thread, so a connection holds no thread of its own. Requests are written
+ * to the channel directly from their own storage using gathering writes; responses are decoded from pooled read
+ * buffers and handed to the caller waiting on the matching sequence id. Unless pipelining has been
+ * negotiated, only one request may be in flight at a time. The connection is guarded by locks
+ * rather than object monitors, so a virtual thread using it does not pin its carrier thread.
+ */
+public class ChannelTransport implements ITransport {
+    
+    /**
+     * A request frame that is being written to the channel. The request's storage is released
+     * once the frame has been completely written.
+     */
+    private static class PendingWrite {
+        
+        private final Request request;
+        
+        private final ByteBuffer[] frame;
+        
+        PendingWrite(Request request, ByteBuffer[] frame) {
+            this.request = request;
+            this.frame = frame;
+        }
+        
+        /**
+         * Writes as much of the frame as the channel will accept.
+         *
+         * @param channel The channel.
+         * @return True if the frame has been completely written.
+         * @throws IOException An IO exception.
+         */
+        boolean write(SocketChannel channel) throws IOException {
+            channel.write(frame);
+            
+            if (frame[frame.length - 1].hasRemaining()) {
+                return false;
+            }
+            
+            request.release();
+            return true;
+        }
+    }
+    
+    private volatile SocketChannel channel;
+    
+    private volatile SelectionKey selectionKey;
+    
+    private ChannelSelector selector;
+    
+    private final Map<Integer, PendingResponse> pending = new ConcurrentHashMap<>();
+    
+    private final Queue<PendingWrite> writeQueue = new ArrayDeque<>();
+    
+    private final ReentrantLock serialLock = new ReentrantLock();
+    
+    private final ReentrantLock writeLock = new ReentrantLock();
+    
+    private final ResponseDecoder decoder = new ResponseDecoder(new IPendingLookup() {
+        
+        @Override
+        public PendingResponse getPending(int sequenceId) {
+            return pending.get(sequenceId);
+        }
+        
+    });
+    
+    private volatile boolean pipelined;
+    
+    private volatile boolean framed;
+    
+    private volatile int compressionThreshold;
+    
+    private int sequence;
+    
+    private volatile IOException failure;
+    
+    @Override
+    public void open(String server, int port, int timeout) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        
+        try {
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().connect(new InetSocketAddress(server, port), timeout);
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        
+        this.channel = channel;
+        selector = ChannelSelector.getInstance();
+        selector.register(this);
+    }
+    
+    @Override
+    public Response call(Request request, int timeout) throws IOException, InterruptedException {
+        return call(request, timeout, null);
+    }
+    
+    @Override
+    public Response call(Request request, int timeout, ILineConsumer consumer) throws IOException, InterruptedException {
+        if (pipelined) {
+            return exchange(request, timeout, consumer);
+        }
+        
+        if (!request.isDeferrable()) {
+            serialLock.lock();
+        } else if (!serialLock.tryLock()) {
+            request.release();
+            throw new RejectedExecutionException("Connection is busy.");
+        }
+        
+        try {
+            return exchange(request, timeout, consumer);
+        } finally {
+            serialLock.unlock();
+        }
+    }
+    
+    /**
+     * Sends a request and waits for the response bearing the same sequence id.
+     *
+     * @param request Request to be sent.
+     * @param timeout The timeout, in milliseconds, to await a response.
+     * @param consumer If not null, consumer to receive the response data as it arrives.
+     * @return Response returned by the server.
+     * @throws IOException An IO exception.
+     * @throws InterruptedException If the caller was interrupted while waiting.
+     */
+    private Response exchange(Request request, int timeout, ILineConsumer consumer) throws IOException,
+                                                                                     InterruptedException {
+        PendingResponse pendingResponse = consumer == null ? new PendingResponse()
+                : new StreamingResponse(consumer, false);
+        boolean framed = this.framed;
+        boolean wide = pipelined || framed;
+        int sequenceId;
+        
+        writeLock.lock();
+        
+        try {
+            if (failure != null) {
+                request.release();
+                checkFailure();
+            }
+            
+            sequenceId = nextSequenceId(wide);
+            pending.put(sequenceId, pendingResponse);
+            ByteBuffer[] frame = framed ? request.toFramedByteBuffers(sequenceId, compressionThreshold)
+                    : request.toByteBuffers(sequenceId, wide);
+            PendingWrite write = new PendingWrite(request, frame);
+            
+            try {
+                if (!writeQueue.isEmpty() || !write.write(channel)) {
+                    writeQueue.add(write);
+                    selector.requestWrite(this);
+                }
+            } catch (IOException e) {
+                request.release();
+                pending.remove(sequenceId);
+                onError(e);
+                throw e;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        
+        try {
+            return pendingResponse.await(timeout);
+        } finally {
+            pending.remove(sequenceId);
+        }
+    }
+    
+    /**
+     * Returns the next sequence id. Single byte sequence ids skip the end of data marker, and are
+     * returned as the signed value that will be reported by the response. Wide sequence ids are
+     * positive and wrap around on overflow, skipping any still awaiting a response.
+     *
+     * @param wide If true, return a 32-bit sequence id.
+     * @return Sequence id.
+     */
+    private int nextSequenceId(boolean wide) {
+        if (wide) {
+            do {
+                sequence = sequence == Integer.MAX_VALUE ? 1 : sequence + 1;
+            } while (pending.containsKey(sequence));
+            
+            return sequence;
+        }
+        
+        byte seq = (byte) sequence;
+        
+        while (++seq == Constants.EOD) {}
+        
+        sequence = seq;
+        return seq;
+    }
+    
+    /**
+     * Sets the last sequence id issued, so that the next request is given the one that follows.
+     * Used to exercise sequence id wraparound.
+     *
+     * @param sequence The last sequence id issued.
+     */
+    void setSequence(int sequence) {
+        writeLock.lock();
+        
+        try {
+            this.sequence = sequence;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    
+    /**
+     * Called by the selector thread when the channel is ready for writing. Writes as much of the
+     * queued data as the channel will accept.
+     *
+     * @return True if the write queue has been drained.
+     * @throws IOException An IO exception.
+     */
+    boolean onWritable() throws IOException {
+        writeLock.lock();
+        
+        try {
+            PendingWrite write;
+            
+            while ((write = writeQueue.peek()) != null) {
+                if (!write.write(channel)) {
+                    return false;
+                }
+                
+                writeQueue.remove();
+            }
+            
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    
+    /**
+     * Called by the selector thread when data is available. Reads the data and dispatches every
+     * complete response received.
+     *
+     * @throws IOException An IO exception.
+     */
+    void onReadable() throws IOException {
+        if (decoder.read(channel) < 0) {
+            throw new EOFException("Connection closed by server.");
+        }
+        
+        Response response;
+        
+        while ((response = framed ? decoder.nextFramed() : decoder.next(pipelined)) != null) {
+            dispatch(response);
+        }
+    }
+    
+    /**
+     * Hands a response to the caller waiting on its sequence id. Responses for which no caller is
+     * waiting (e.g., because the caller timed out) are discarded.
+     *
+     * @param response The response.
+     */
+    private void dispatch(Response response) {
+        PendingResponse pendingResponse = pending.remove(response.getSequenceId());
+        
+        if (pendingResponse != null) {
+            pendingResponse.complete(response, null);
+        }
+    }
+    
+    /**
+     * Throws the exception that caused the transport to fail, if any.
+     *
+     * @throws IOException The failure exception.
+     */
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Connection has failed.", failure);
+        }
+    }
+    
+    /**
+     * Marks the transport as failed, closes the channel, and fails all pending requests.
+     *
+     * @param e The cause of failure.
+     */
+    void onError(IOException e) {
+        if (failure == null) {
+            failure = e;
+            
+            try {
+                channel.close();
+            } catch (IOException e2) {}
+        }
+        
+        writeLock.lock();
+        
+        try {
+            for (PendingWrite write : writeQueue) {
+                write.request.release();
+            }
+            
+            writeQueue.clear();
+        } finally {
+            writeLock.unlock();
+        }
+        
+        List<PendingResponse> responses = new ArrayList<>(pending.values());
+        pending.clear();
+        
+        for (PendingResponse response : responses) {
+            response.complete(null, e);
+        }
+    }
+    
+    @Override
+    public void enablePipelining() {
+        serialLock.lock();
+        
+        try {
+            pipelined = true;
+        } finally {
+            serialLock.unlock();
+        }
+    }
+    
+    @Override
+    public void enableFraming() {
+        serialLock.lock();
+        
+        try {
+            framed = true;
+        } finally {
+            serialLock.unlock();
+        }
+    }
+    
+    @Override
+    public void enableCompression(int threshold) {
+        serialLock.lock();
+        
+        try {
+            compressionThreshold = threshold;
+        } finally {
+            serialLock.unlock();
+        }
+    }
+    
+    @Override
+    public boolean isOpen() {
+        SocketChannel channel = this.channel;
+        return channel != null && channel.isOpen() && failure == null;
+    }
+    
+    @Override
+    public InetAddress getLocalAddress() {
+        return channel.socket().getLocalAddress();
+    }
+    
+    @Override
+    public int getLocalPort() {
+        return channel.socket().getLocalPort();
+    }
+    
+    @Override
+    public void close() {
+        if (channel != null) {
+            onError(new IOException("Connection was closed."));
+        }
+    }
+    
+    /**
+     * Returns the underlying channel.
+     *
+     * @return The socket channel.
+     */
+    SocketChannel getChannel() {
+        return channel;
+    }
+    
+    /**
+     * Returns the key under which the channel is registered with its selector.
+     *
+     * @return The selection key.
+     */
+    SelectionKey getSelectionKey() {
+        return selectionKey;
+    }
+    
+    /**
+     * Sets the key under which the channel is registered with its selector.
+     *
+     * @param selectionKey The selection key.
+     */
+    void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+    
+}
@@ -49,6 +49,26 @@ public class ConnectionParams {
     
     private int timeout; // Default connection timeout
     
+    private boolean nonBlocking; // If true, use non-blocking (NIO) transport
+    
+    private boolean virtualThreads; // If true, run background work on virtual threads
+    
+    private boolean protocolExtensions; // If true, offer the experimental protocol extensions
+    
+    private boolean eventChannel; // If true, request a dedicated connection for host events
+    
+    private int compressionThreshold; // Minimum size of a compressed frame (0 = no compression)
+    
+    private int reconnectAttempts = 1; // Attempts to restore a lost connection before giving up
+    
+    private int reconnectDelay = 100; // Delay before the second attempt (doubled for each thereafter)
+    
+    private String[] endpoints = {}; // Servers ("host[:port]") among which pooled connections are balanced
+    
+    private EndpointBalancer.Strategy loadBalancing = EndpointBalancer.Strategy.LEAST_OUTSTANDING;
+    
+    private int ejectionTime = 30000; // Time an unhealthy endpoint is excluded from selection
+    
     /**
      * Create with all default values
      */
@@ -107,6 +127,16 @@ public class ConnectionParams {
         server = source.server;
         timeout = source.timeout;
         username = source.username;
+        nonBlocking = source.nonBlocking;
+        virtualThreads = source.virtualThreads;
+        protocolExtensions = source.protocolExtensions;
+        eventChannel = source.eventChannel;
+        compressionThreshold = source.compressionThreshold;
+        reconnectAttempts = source.reconnectAttempts;
+        reconnectDelay = source.reconnectDelay;
+        endpoints = source.endpoints.clone();
+        loadBalancing = source.loadBalancing;
+        ejectionTime = source.ejectionTime;
     }
     
     /**
@@ -127,6 +157,207 @@ public class ConnectionParams {
         this.timeout = timeout;
     }
     
+    /**
+     * Returns true if the connection should use non-blocking (NIO) transport.
+     *
+     * @return True if non-blocking transport is to be used.
+     */
+    public boolean isNonBlocking() {
+        return nonBlocking;
+    }
+    
+    /**
+     * Set to true if the connection should use non-blocking (NIO) transport.
+     *
+     * @param nonBlocking True if non-blocking transport is to be used.
+     */
+    public void setNonBlocking(boolean nonBlocking) {
+        this.nonBlocking = nonBlocking;
+    }
+    
+    /**
+     * Returns true if background polling, asynchronous callbacks and submitted calls should run on
+     * virtual threads. Ignored if the Java runtime does not support virtual threads.
+     *
+     * @return True if virtual threads are to be used.
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+    
+    /**
+     * Set to true if background polling, asynchronous callbacks and submitted calls should run on
+     * virtual threads. Ignored if the Java runtime does not support virtual threads.
+     *
+     * @param virtualThreads True if virtual threads are to be used.
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+    
+    /**
+     * Returns true if the session should offer the experimental protocol extensions (pipelining,
+     * batching, framing, session resumption and, if requested, an event channel and compression)
+     * when connecting. These are implemented by the client and by the stand-in server used for
+     * testing, but not yet by the RGNETBRK listener distributed with the KIDS build, which ignores
+     * the offer.
+     *
+     * @return True if the protocol extensions are to be offered.
+     */
+    public boolean isProtocolExtensions() {
+        return protocolExtensions;
+    }
+    
+    /**
+     * Set to true if the session should offer the experimental protocol extensions when
+     * connecting. By default, they are not offered, and the session uses the original protocol.
+     *
+     * @param protocolExtensions True if the protocol extensions are to be offered.
+     */
+    public void setProtocolExtensions(boolean protocolExtensions) {
+        this.protocolExtensions = protocolExtensions;
+    }
+    
+    /**
+     * Returns true if the session should request a second connection, dedicated to asynchronous
+     * results and host events, once authenticated. Ignored if the server does not agree to one.
+     *
+     * @return True if an event channel is to be requested.
+     */
+    public boolean isEventChannel() {
+        return eventChannel;
+    }
+    
+    /**
+     * Set to true if the session should request a second connection, dedicated to asynchronous
+     * results and host events, once authenticated. Ignored if the server does not agree to one.
+     *
+     * @param eventChannel True if an event channel is to be requested.
+     */
+    public void setEventChannel(boolean eventChannel) {
+        this.eventChannel = eventChannel;
+    }
+    
+    /**
+     * Returns the size, in bytes, at or above which request parameters are compressed. If this is
+     * not 0, compression is offered to the server, which applies its own threshold to responses.
+     * Ignored if the server does not agree to compression, which also requires length-prefixed
+     * framing.
+     *
+     * @return The compression threshold (0 = no compression).
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+    
+    /**
+     * Sets the size, in bytes, at or above which request parameters are compressed. If this is
+     * not 0, compression is offered to the server, which applies its own threshold to responses.
+     * Ignored if the server does not agree to compression, which also requires length-prefixed
+     * framing.
+     *
+     * @param compressionThreshold The compression threshold (0 = no compression).
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+    
+    /**
+     * Returns the number of attempts made to restore a lost connection before giving up.
+     *
+     * @return The number of reconnect attempts.
+     */
+    public int getReconnectAttempts() {
+        return reconnectAttempts;
+    }
+    
+    /**
+     * Sets the number of attempts made to restore a lost connection before giving up. The first
+     * attempt is made immediately.
+     *
+     * @param reconnectAttempts The number of reconnect attempts.
+     */
+    public void setReconnectAttempts(int reconnectAttempts) {
+        this.reconnectAttempts = reconnectAttempts;
+    }
+    
+    /**
+     * Returns the delay, in milliseconds, before the second attempt to restore a lost connection.
+     *
+     * @return The reconnect delay.
+     */
+    public int getReconnectDelay() {
+        return reconnectDelay;
+    }
+    
+    /**
+     * Sets the delay, in milliseconds, before the second attempt to restore a lost connection. The
+     * delay doubles with each attempt thereafter.
+     *
+     * @param reconnectDelay The reconnect delay.
+     */
+    public void setReconnectDelay(int reconnectDelay) {
+        this.reconnectDelay = reconnectDelay;
+    }
+    
+    /**
+     * Returns the servers among which the connections of a session pool are balanced.
+     *
+     * @return The endpoints, each of the form "host[:port]".
+     */
+    public String[] getEndpoints() {
+        return endpoints.clone();
+    }
+    
+    /**
+     * Sets the servers among which the connections of a session pool are balanced. An endpoint
+     * without a port uses the port of these parameters. If no endpoints are specified, all
+     * connections are made to the server and port of these parameters.
+     *
+     * @param endpoints The endpoints, each of the form "host[:port]".
+     */
+    public void setEndpoints(String... endpoints) {
+        this.endpoints = endpoints == null ? new String[0] : endpoints.clone();
+    }
+    
+    /**
+     * Returns the strategy used to choose an endpoint for each new pooled connection.
+     *
+     * @return The load balancing strategy.
+     */
+    public EndpointBalancer.Strategy getLoadBalancing() {
+        return loadBalancing;
+    }
+    
+    /**
+     * Sets the strategy used to choose an endpoint for each new pooled connection.
+     *
+     * @param loadBalancing The load balancing strategy.
+     */
+    public void setLoadBalancing(EndpointBalancer.Strategy loadBalancing) {
+        this.loadBalancing = loadBalancing;
+    }
+    
+    /**
+     * Returns the time, in milliseconds, that an endpoint which failed is excluded from selection
+     * before it is tried again.
+     *
+     * @return The ejection time.
+     */
+    public int getEjectionTime() {
+        return ejectionTime;
+    }
+    
+    /**
+     * Sets the time, in milliseconds, that an endpoint which failed is excluded from selection
+     * before it is tried again.
+     *
+     * @param ejectionTime The ejection time.
+     */
+    public void setEjectionTime(int ejectionTime) {
+        this.ejectionTime = ejectionTime;
+    }
+    
     /**
      * Displays the connection string reflecting the current connection parameters.
      *
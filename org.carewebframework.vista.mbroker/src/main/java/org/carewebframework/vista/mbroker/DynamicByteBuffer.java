@@ -25,19 +25,26 @@
  */
 package org.carewebframework.vista.mbroker;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
  * This is a byte-oriented buffer that has an initial size and can grow as needed by a specified
- * incremental size. Buffers are allocated internally as a pool of byte arrays. Buffer operations
- * are not thread safe.
+ * incremental size. Buffers are allocated internally as a list of byte arrays (chunks). By default,
+ * chunks are slabs borrowed from a global pool and returned to it when the buffer is released.
+ * Contents may be written to a stream or exposed as byte buffer views (for gathering writes)
+ * without first being assembled into a single array. Buffer operations are not thread safe.
  */
 public class DynamicByteBuffer {
     
     private int chunk; // Index of the current buffer chunk
     
-    private final List<byte[]> pool = new ArrayList<byte[]>(); // Buffer chunk pool
+    private final List<byte[]> chunks = new ArrayList<byte[]>(); // Buffer chunks
+    
+    private final BufferPool slabs; // Pool from which chunks are borrowed (null if not pooled)
     
     private final int incrementalSize; // Increment in bytes by which buffer will grow beyond initial size
     
@@ -48,10 +55,10 @@ public class DynamicByteBuffer {
     private int size; // Total number of bytes currently stored in buffer
     
     /**
-     * Create a buffer with an initial and incremental size of 100 bytes.
+     * Create a buffer whose chunks are slabs borrowed from the global slab pool.
      */
     DynamicByteBuffer() {
-        this(100);
+        this(BufferPool.SLABS);
     }
     
     /**
@@ -71,13 +78,27 @@ public class DynamicByteBuffer {
      * @param incrementalSize The expansion increment.
      */
     DynamicByteBuffer(int initialSize, int incrementalSize) {
+        this(null, initialSize, incrementalSize);
+    }
+    
+    /**
+     * Create a buffer whose chunks are borrowed from the specified pool.
+     *
+     * @param slabs The pool from which chunks are borrowed.
+     */
+    private DynamicByteBuffer(BufferPool slabs) {
+        this(slabs, slabs.getBufferSize(), slabs.getBufferSize());
+    }
+    
+    private DynamicByteBuffer(BufferPool slabs, int initialSize, int incrementalSize) {
+        this.slabs = slabs;
         this.initialSize = initialSize;
         this.incrementalSize = incrementalSize;
         clear();
     }
     
     /**
-     * Activates the next chunk from the pool, allocating it if necessary.
+     * Activates the next chunk, borrowing or allocating it if necessary.
      *
      * @return The active chunk.
      */
@@ -85,9 +106,9 @@ public class DynamicByteBuffer {
         position = 0;
         chunk++;
         
-        if (chunk >= pool.size()) {
-            byte[] bytes = new byte[chunk == 0 ? initialSize : incrementalSize];
-            pool.add(bytes);
+        if (chunk >= chunks.size()) {
+            byte[] bytes = slabs != null ? slabs.acquire() : new byte[chunk == 0 ? initialSize : incrementalSize];
+            chunks.add(bytes);
         }
         
         return chunk();
@@ -100,7 +121,7 @@ public class DynamicByteBuffer {
      * @return The currently active chunk.
      */
     private byte[] chunk() {
-        return chunk == -1 ? alloc() : pool.get(chunk);
+        return chunk == -1 ? alloc() : chunks.get(chunk);
     }
     
     /**
@@ -108,9 +129,10 @@ public class DynamicByteBuffer {
      * it does not.
      *
      * @param index The index to check.
+     * @param limit The upper bound of the valid range (exclusive).
      */
-    private void checkIndex(int index) {
-        if (index < 0 || index >= size) {
+    private void checkIndex(int index, int limit) {
+        if (index < 0 || index >= limit) {
             throw new IndexOutOfBoundsException();
         }
     }
@@ -123,23 +145,28 @@ public class DynamicByteBuffer {
      * @exception IndexOutOfBoundsException If index out of bounds.
      */
     public byte get(int index) {
-        checkIndex(index);
-        return getByte(index);
+        checkIndex(index, size);
+        return chunks.get(chunkIndex(index))[chunkOffset(index)];
     }
     
     /**
-     * Returns the byte at the specified index. No index validation is performed.
+     * Returns the index of the chunk containing the byte at the specified index.
      *
      * @param index The index.
-     * @return The byte at the specified index.
+     * @return The chunk index.
      */
-    private byte getByte(int index) {
-        if (index < initialSize) {
-            return pool.get(0)[index];
-        }
-        
-        index -= initialSize;
-        return pool.get(index / incrementalSize + 1)[index % incrementalSize];
+    private int chunkIndex(int index) {
+        return index < initialSize ? 0 : (index - initialSize) / incrementalSize + 1;
+    }
+    
+    /**
+     * Returns the offset, within its chunk, of the byte at the specified index.
+     *
+     * @param index The index.
+     * @return The offset within the chunk.
+     */
+    private int chunkOffset(int index) {
+        return index < initialSize ? index : (index - initialSize) % incrementalSize;
     }
     
     /**
@@ -152,6 +179,22 @@ public class DynamicByteBuffer {
         put(value, value.length);
     }
     
+    /**
+     * Writes a single byte to the buffer.
+     *
+     * @param value The byte value to be written.
+     */
+    public void put(byte value) {
+        byte[] buffer = chunk();
+        
+        if (position == buffer.length) {
+            buffer = alloc();
+        }
+        
+        buffer[position++] = value;
+        size++;
+    }
+    
     /**
      * Writes a specified number of bytes from an array, starting at the beginning of the array.
      *
@@ -172,13 +215,16 @@ public class DynamicByteBuffer {
     public void put(byte[] bytes, int start, int end) {
         byte[] buffer = chunk();
         
-        for (int i = start; i < end; i++) {
+        while (start < end) {
             if (position == buffer.length) {
                 buffer = alloc();
             }
             
-            buffer[position++] = bytes[i];
-            size++;
+            int count = Math.min(end - start, buffer.length - position);
+            System.arraycopy(bytes, start, buffer, position, count);
+            position += count;
+            size += count;
+            start += count;
         }
     }
     
@@ -188,16 +234,7 @@ public class DynamicByteBuffer {
      * @return Buffer contents as a byte array.
      */
     public byte[] toArray() {
-        byte[] result = new byte[size];
-        int pos = 0;
-        
-        for (byte[] buffer : pool) {
-            for (int i = 0; i < buffer.length && pos < size; i++) {
-                result[pos++] = buffer[i];
-            }
-        }
-        
-        return result;
+        return toArray(0, size);
     }
     
     /**
@@ -211,12 +248,60 @@ public class DynamicByteBuffer {
      * @exception IndexOutOfBoundsException If an index is out of bounds.
      */
     public byte[] toArray(int start, int end) {
-        checkIndex(start);
-        checkIndex(end);
-        byte[] result = new byte[start > end ? 0 : end - start];
+        if (start >= end) {
+            return new byte[0];
+        }
+        
+        checkIndex(start, size);
+        checkIndex(end, size + 1);
+        byte[] result = new byte[end - start];
+        int pos = 0;
         
-        for (int i = start; i < end; i++) {
-            result[i] = getByte(i);
+        while (start < end) {
+            byte[] buffer = chunks.get(chunkIndex(start));
+            int offset = chunkOffset(start);
+            int count = Math.min(end - start, buffer.length - offset);
+            System.arraycopy(buffer, offset, result, pos, count);
+            pos += count;
+            start += count;
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Writes the current contents of the buffer to an output stream, one chunk at a time.
+     *
+     * @param stream The output stream.
+     * @throws IOException An IO exception.
+     */
+    public void writeTo(OutputStream stream) throws IOException {
+        int remaining = size;
+        
+        for (int i = 0; remaining > 0; i++) {
+            byte[] buffer = chunks.get(i);
+            int count = Math.min(remaining, buffer.length);
+            stream.write(buffer, 0, count);
+            remaining -= count;
+        }
+    }
+    
+    /**
+     * Returns the current contents of the buffer as a list of byte buffers, one per chunk. The byte
+     * buffers are views that share the buffer's storage, so they are valid only until the buffer
+     * is next modified, cleared, or released.
+     *
+     * @return Byte buffer views of the buffer contents.
+     */
+    public List<ByteBuffer> toByteBuffers() {
+        List<ByteBuffer> result = new ArrayList<>(chunk + 1);
+        int remaining = size;
+        
+        for (int i = 0; remaining > 0; i++) {
+            byte[] buffer = chunks.get(i);
+            int count = Math.min(remaining, buffer.length);
+            result.add(ByteBuffer.wrap(buffer, 0, count));
+            remaining -= count;
         }
         
         return result;
@@ -240,10 +325,18 @@ public class DynamicByteBuffer {
     }
     
     /**
-     * Clears the buffer contents and deallocates all buffer space.
+     * Clears the buffer contents and deallocates all buffer space. Pooled chunks are returned to
+     * their pool.
      */
     public void release() {
         clear();
-        pool.clear();
+        
+        if (slabs != null) {
+            for (byte[] buffer : chunks) {
+                slabs.release(buffer);
+            }
+        }
+        
+        chunks.clear();
     }
 }
@@ -0,0 +1,404 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.carewebframework.common.StrUtil;
+
+/**
+ * Chooses the server on which each new connection of a session pool is opened, so that the pool's
+ * work is spread over several equivalent servers. Each endpoint tracks the connections open to it,
+ * the calls in progress on those connections, a moving average of their latency and the number of
+ * calls that failed. A connection is opened on the healthy endpoint that best satisfies the
+ * balancer's {@link Strategy}. An endpoint on which a connection cannot be opened, or on which a
+ * connection is lost, is ejected: it is not chosen again until the ejection time has elapsed,
+ * unless every endpoint has been ejected.
+ */
+public class EndpointBalancer {
+    
+    /**
+     * Strategies for choosing an endpoint.
+     */
+    public enum Strategy {
+        /**
+         * Chooses the endpoint with the fewest calls in progress, then the fewest connections.
+         */
+        LEAST_OUTSTANDING,
+        /**
+         * Chooses the endpoint with the lowest average latency weighted by its calls in progress,
+         * then the fewest connections.
+         */
+        LATENCY_WEIGHTED
+    }
+    
+    /**
+     * Weight given to the latest sample in the moving average of an endpoint's latency.
+     */
+    private static final double LATENCY_WEIGHT = 0.2;
+    
+    /**
+     * A server to which connections may be opened, together with its statistics.
+     */
+    public class Endpoint {
+        
+        private final String host;
+        
+        private final int port;
+        
+        private int connections;
+        
+        private int outstanding;
+        
+        private long requests;
+        
+        private long failures;
+        
+        private double latency;
+        
+        private long ejectedUntil;
+        
+        private Endpoint(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+        
+        /**
+         * Returns the host name or IP address of the server.
+         *
+         * @return The host.
+         */
+        public String getHost() {
+            return host;
+        }
+        
+        /**
+         * Returns the port number of the listener on the server.
+         *
+         * @return The port.
+         */
+        public int getPort() {
+            return port;
+        }
+        
+        /**
+         * Returns the number of connections currently open to the endpoint.
+         *
+         * @return The connection count.
+         */
+        public int getConnectionCount() {
+            lock.lock();
+            
+            try {
+                return connections;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * Returns the number of calls currently in progress on the endpoint.
+         *
+         * @return The outstanding call count.
+         */
+        public int getOutstandingCount() {
+            lock.lock();
+            
+            try {
+                return outstanding;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * Returns the number of calls completed on the endpoint.
+         *
+         * @return The request count.
+         */
+        public long getRequestCount() {
+            lock.lock();
+            
+            try {
+                return requests;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * Returns the number of failures on the endpoint, including connections that could not be
+         * opened and connections that were lost.
+         *
+         * @return The failure count.
+         */
+        public long getFailureCount() {
+            lock.lock();
+            
+            try {
+                return failures;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * Returns the moving average of the latency of calls on the endpoint, in milliseconds.
+         *
+         * @return The average latency, or 0 if no calls have completed.
+         */
+        public double getLatency() {
+            lock.lock();
+            
+            try {
+                return latency;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * Returns true if the endpoint has been ejected and its ejection time has not yet elapsed.
+         *
+         * @return True if ejected.
+         */
+        public boolean isEjected() {
+            lock.lock();
+            
+            try {
+                return ejectedUntil > System.currentTimeMillis();
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * Records that a connection to the endpoint has been opened. A successful connection
+         * restores an ejected endpoint.
+         */
+        void connected() {
+            lock.lock();
+            
+            try {
+                connections++;
+                ejectedUntil = 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * Records that a connection to the endpoint has been closed.
+         */
+        void disconnected() {
+            lock.lock();
+            
+            try {
+                connections--;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * Records the start of a call on the endpoint.
+         */
+        void begin() {
+            lock.lock();
+            
+            try {
+                outstanding++;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * Records the completion of a call on the endpoint. If the call failed, the endpoint is
+         * ejected.
+         *
+         * @param nanos Duration of the call in nanoseconds.
+         * @param failed True if the connection was lost during the call.
+         */
+        void end(long nanos, boolean failed) {
+            lock.lock();
+            
+            try {
+                outstanding--;
+                requests++;
+                double sample = nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+                latency = requests == 1 ? sample : latency + LATENCY_WEIGHT * (sample - latency);
+            } finally {
+                lock.unlock();
+            }
+            
+            if (failed) {
+                eject();
+            }
+        }
+        
+        /**
+         * Records a failure on the endpoint and excludes it from selection for the ejection time.
+         */
+        void eject() {
+            lock.lock();
+            
+            try {
+                failures++;
+                ejectedUntil = System.currentTimeMillis() + ejectionTime;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * Returns the endpoint's score under the balancer's strategy. Must be called while holding
+         * the lock.
+         *
+         * @return The score (lower is better).
+         */
+        private double score() {
+            switch (strategy) {
+                case LATENCY_WEIGHTED:
+                    return Math.max(latency, 1.0) * (outstanding + 1);
+                
+                default:
+                    return outstanding;
+            }
+        }
+        
+        /**
+         * Returns the endpoint in the form "host:port".
+         */
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+        
+    }
+    
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    private final List<Endpoint> endpoints;
+    
+    private final Strategy strategy;
+    
+    private final long ejectionTime;
+    
+    /**
+     * Creates a balancer for the endpoints of the specified connection parameters.
+     *
+     * @param params Connection parameters. Endpoints without a port use the port of these
+     *            parameters.
+     */
+    public EndpointBalancer(ConnectionParams params) {
+        List<Endpoint> endpoints = new ArrayList<>();
+        
+        for (String value : params.getEndpoints()) {
+            if (!StringUtils.isBlank(value)) {
+                String[] pcs = StrUtil.split(value.trim(), ":", 2, true);
+                endpoints.add(new Endpoint(pcs[0], NumberUtils.toInt(pcs[1], params.getPort())));
+            }
+        }
+        
+        this.endpoints = Collections.unmodifiableList(endpoints);
+        this.strategy = params.getLoadBalancing() == null ? Strategy.LEAST_OUTSTANDING : params.getLoadBalancing();
+        this.ejectionTime = params.getEjectionTime();
+    }
+    
+    /**
+     * Returns the endpoints among which connections are balanced.
+     *
+     * @return List of endpoints.
+     */
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+    
+    /**
+     * Returns the strategy used to choose an endpoint.
+     *
+     * @return The load balancing strategy.
+     */
+    public Strategy getStrategy() {
+        return strategy;
+    }
+    
+    /**
+     * Chooses the endpoint on which to open a connection. Ejected endpoints are chosen only if all
+     * endpoints have been ejected, in which case the one whose ejection expires first is chosen.
+     *
+     * @param exclude Endpoints not to be chosen (e.g., because a connection to them has just
+     *            failed).
+     * @return The chosen endpoint, or null if all endpoints are excluded.
+     */
+    public Endpoint select(Collection<Endpoint> exclude) {
+        long now = System.currentTimeMillis();
+        Endpoint best = null;
+        Endpoint ejected = null;
+        
+        lock.lock();
+        
+        try {
+            for (Endpoint endpoint : endpoints) {
+                if (exclude.contains(endpoint)) {
+                    continue;
+                }
+                
+                if (endpoint.ejectedUntil > now) {
+                    if (ejected == null || endpoint.ejectedUntil < ejected.ejectedUntil) {
+                        ejected = endpoint;
+                    }
+                    
+                    continue;
+                }
+                
+                if (best == null) {
+                    best = endpoint;
+                    continue;
+                }
+                
+                int diff = Double.compare(endpoint.score(), best.score());
+                
+                if (diff < 0 || (diff == 0 && endpoint.connections < best.connections)) {
+                    best = endpoint;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        
+        return best != null ? best : ejected;
+    }
+    
+}
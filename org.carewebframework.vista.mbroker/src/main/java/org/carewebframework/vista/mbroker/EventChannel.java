@@ -0,0 +1,232 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.lang.ref.WeakReference;
+import java.util.EnumSet;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.carewebframework.common.StrUtil;
+import org.carewebframework.vista.mbroker.Request.Action;
+import org.carewebframework.vista.mbroker.Response.ResponseType;
+import org.carewebframework.vista.mbroker.ServerCaps.Capability;
+
+/**
+ * A second connection to the server, dedicated to the delivery of completed asynchronous requests
+ * and host events, so that interactive remote procedure calls and event delivery do not wait on
+ * one another. Once the session has authenticated, the channel connects with the session's id and
+ * the secret token that the server issued to the session, without which the server will not bind
+ * the connection to the session. The channel negotiates framing and compression as agreed for the
+ * primary connection. It then issues queries that the server holds open until a result or event
+ * is waiting, or until the wait period elapses. Each result or event is therefore delivered as
+ * soon as it is available, rather than at the next polling interval. The channel is served by a
+ * thread of its own, which is a virtual thread where the session's connection parameters request
+ * it and the runtime supports it. Should the channel fail, or the server not have issued a token,
+ * the session reverts to background polling on its primary connection.
+ */
+class EventChannel implements Runnable {
+    
+    private static final Log log = LogFactory.getLog(EventChannel.class);
+    
+    /**
+     * The longest time, in milliseconds, that the server is asked to hold a query open.
+     */
+    static final int WAIT = 20000;
+    
+    private final WeakReference<BrokerSession> sessionRef;
+    
+    private final ITransport transport;
+    
+    private final Request query;
+    
+    private final int timeout;
+    
+    private volatile boolean terminated;
+    
+    /**
+     * Creates an event channel for a session.
+     *
+     * @param session The authenticated session.
+     * @param transport An unopened transport for the channel's connection.
+     */
+    EventChannel(BrokerSession session, ITransport transport) {
+        this.sessionRef = new WeakReference<>(session);
+        this.transport = transport;
+        this.timeout = session.getConnectionParams().getTimeout();
+        query = new Request(Action.QUERY);
+        query.addParameter("UID", session.getId());
+        query.addParameter("WAIT", WAIT);
+        query.setReusable(true);
+    }
+    
+    /**
+     * Opens the channel's connection, binds it to the session, and starts listening.
+     *
+     * @return True if the channel was opened. If false, the reason has been logged.
+     */
+    boolean open() {
+        BrokerSession session = sessionRef.get();
+        ConnectionParams params = session.getConnectionParams();
+        String token = session.getSessionToken();
+        
+        if (token == null) {
+            log.warn("Server issued no session token for the event channel.  Background polling will be used instead.");
+            return false;
+        }
+        
+        try {
+            transport.open(params.getServer(), params.getPort(), timeout);
+            Request request = new Request(Action.CONNECT);
+            request.addParameter("IP", transport.getLocalAddress());
+            request.addParameter("LP", transport.getLocalPort());
+            request.addParameter("UCI", params.getNamespace());
+            request.addParameter("VER", Constants.VERSION);
+            request.addParameter("CAP", ServerCaps.formatCapabilities(getOfferedCapabilities(session)));
+            request.addParameter("UID", session.getId());
+            request.addParameter("TOK", token);
+            Response response = transport.call(request, timeout);
+            
+            if (response.getResponseType() == ResponseType.ERROR) {
+                throw new RPCException(response.getData());
+            }
+            
+            ServerCaps serverCaps = new ServerCaps(response.getData());
+            
+            if (serverCaps.hasCapability(Capability.FRAMED)) {
+                transport.enableFraming();
+                
+                if (serverCaps.hasCapability(Capability.COMPRESS)) {
+                    transport.enableCompression(params.getCompressionThreshold());
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Unable to open event channel.  Background polling will be used instead.", e);
+            transport.close();
+            return false;
+        }
+        
+        if (params.isVirtualThreads() && VirtualThreads.isSupported()) {
+            VirtualThreads.getExecutor().execute(this);
+        } else {
+            Thread thread = new Thread(this, "BrokerEventChannel-" + session.getId());
+            thread.setDaemon(true);
+            thread.start();
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Returns the protocol features to offer when connecting the channel. These are the framing
+     * and compression features agreed for the session's primary connection.
+     *
+     * @param session The session.
+     * @return The offered protocol features.
+     */
+    private EnumSet<Capability> getOfferedCapabilities(BrokerSession session) {
+        EnumSet<Capability> offered = EnumSet.noneOf(Capability.class);
+        ServerCaps serverCaps = session.getServerCaps();
+        
+        for (Capability capability : EnumSet.of(Capability.FRAMED, Capability.COMPRESS)) {
+            if (serverCaps != null && serverCaps.hasCapability(capability)) {
+                offered.add(capability);
+            }
+        }
+        
+        return offered;
+    }
+    
+    /**
+     * Closes the channel. Any query in progress is abandoned.
+     */
+    void close() {
+        terminated = true;
+        transport.close();
+    }
+    
+    /**
+     * Returns true if the channel has been closed or has failed.
+     *
+     * @return True if closed.
+     */
+    boolean isClosed() {
+        return terminated;
+    }
+    
+    /**
+     * Issues queries until the channel is closed or fails, delivering each result or event to the
+     * session.
+     */
+    @Override
+    public void run() {
+        while (!terminated) {
+            Object poll = BrokerEvents.beginPoll();
+            Response response;
+            
+            try {
+                response = transport.call(query, WAIT + timeout);
+            } catch (Exception e) {
+                BrokerEvents.commitPoll(poll, Action.QUERY, null);
+                failed(e);
+                return;
+            }
+            
+            BrokerEvents.commitPoll(poll, Action.QUERY, response.getResponseType());
+            BrokerSession session = sessionRef.get();
+            
+            if (session == null) {
+                close();
+            } else if (response.getResponseType() == ResponseType.ERROR) {
+                failed(new RPCException(response.getData()));
+            } else if (response.getResponseType() == ResponseType.ACK) {
+                String[] params = StrUtil.split(response.getData().split(Constants.LINE_SEPARATOR, 2)[0], StrUtil.U, 2);
+                session.setHostTime(new FMDate(params[1]));
+            } else {
+                PollingThread.dispatch(session, response);
+            }
+        }
+    }
+    
+    /**
+     * Called when a query fails. Unless the channel was closed deliberately, closes the channel and
+     * notifies the session so that it may resume background polling.
+     *
+     * @param e The cause of the failure.
+     */
+    private void failed(Exception e) {
+        if (!terminated) {
+            log.warn("Event channel failed.  Background polling will be used instead.", e);
+            close();
+            BrokerSession session = sessionRef.get();
+            
+            if (session != null) {
+                session.onEventChannelClosed(this);
+            }
+        }
+    }
+    
+}
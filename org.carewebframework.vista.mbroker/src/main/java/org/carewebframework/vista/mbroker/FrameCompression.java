@@ -0,0 +1,172 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * DEFLATE compression of length-prefixed (protocol version 2) frames. A compressed frame is marked
+ * by the high-order bit of its action or response code, and its payload consists of the size of
+ * the uncompressed data (4 bytes) followed by the compressed data. Deflaters and inflaters hold
+ * native memory that is costly to allocate, so a small number are pooled for reuse.
+ */
+final class FrameCompression {
+    
+    /**
+     * Bit set in the action or response code of a compressed frame.
+     */
+    static final int FLAG = 0x80;
+    
+    private static final int CAPACITY = 16;
+    
+    private static final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    
+    private static final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+    
+    private static final AtomicInteger pooledDeflaters = new AtomicInteger();
+    
+    private static final AtomicInteger pooledInflaters = new AtomicInteger();
+    
+    /**
+     * Compresses data for transmission in a frame.
+     *
+     * @param data The data to compress.
+     * @return The compressed payload, or null if compression would not reduce the size of the data.
+     */
+    static byte[] compress(byte[] data) {
+        Deflater deflater = deflaters.poll();
+        
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        } else {
+            pooledDeflaters.decrementAndGet();
+        }
+        
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] payload = new byte[data.length];
+            int size = 4;
+            
+            while (!deflater.finished() && size < payload.length) {
+                size += deflater.deflate(payload, size, payload.length - size);
+            }
+            
+            if (!deflater.finished()) {
+                return null;
+            }
+            
+            payload[0] = (byte) (data.length >>> 24);
+            payload[1] = (byte) (data.length >>> 16);
+            payload[2] = (byte) (data.length >>> 8);
+            payload[3] = (byte) data.length;
+            return Arrays.copyOf(payload, size);
+        } finally {
+            deflater.reset();
+            
+            if (pooledDeflaters.incrementAndGet() <= CAPACITY) {
+                deflaters.add(deflater);
+            } else {
+                pooledDeflaters.decrementAndGet();
+                deflater.end();
+            }
+        }
+    }
+    
+    /**
+     * Restores the data from the payload of a compressed frame.
+     *
+     * @param payload The compressed payload.
+     * @return The uncompressed data.
+     * @throws IOException If the payload is not valid.
+     */
+    static byte[] decompress(byte[] payload) throws IOException {
+        if (payload.length < 4) {
+            throw new IOException("Invalid compressed frame.");
+        }
+        
+        int length = (payload[0] & 0xFF) << 24 | (payload[1] & 0xFF) << 16 | (payload[2] & 0xFF) << 8
+                | (payload[3] & 0xFF);
+        
+        if (length < 0) {
+            throw new IOException("Invalid compressed frame length: " + length);
+        }
+        
+        Inflater inflater = inflaters.poll();
+        
+        if (inflater == null) {
+            inflater = new Inflater();
+        } else {
+            pooledInflaters.decrementAndGet();
+        }
+        
+        try {
+            inflater.setInput(payload, 4, payload.length - 4);
+            byte[] data = new byte[length];
+            int size = 0;
+            
+            while (size < length && !inflater.finished()) {
+                int count = inflater.inflate(data, size, length - size);
+                
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                
+                size += count;
+            }
+            
+            if (size != length) {
+                throw new IOException("Compressed frame is truncated.");
+            }
+            
+            return data;
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed frame.", e);
+        } finally {
+            inflater.reset();
+            
+            if (pooledInflaters.incrementAndGet() <= CAPACITY) {
+                inflaters.add(inflater);
+            } else {
+                pooledInflaters.decrementAndGet();
+                inflater.end();
+            }
+        }
+    }
+    
+    /**
+     * Enforce static class.
+     */
+    private FrameCompression() {
+    }
+}
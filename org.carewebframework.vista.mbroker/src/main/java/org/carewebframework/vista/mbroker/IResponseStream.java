@@ -0,0 +1,45 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+/**
+ * A request that accepts its response data as it arrives rather than as part of a complete
+ * response. The response decoder hands the data of a successful response to any pending request
+ * that implements this interface.
+ */
+interface IResponseStream {
+    
+    /**
+     * Accepts a portion of the response data as it arrives. The data must be copied if it is to be
+     * retained.
+     *
+     * @param data Buffer containing the data.
+     * @param offset Offset of the data within the buffer.
+     * @param length Length of the data.
+     */
+    void append(byte[] data, int offset, int length);
+    
+}
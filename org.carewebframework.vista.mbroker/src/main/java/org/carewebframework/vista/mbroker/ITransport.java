@@ -0,0 +1,130 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * A transport carries requests to the server and responses back to the caller over a single
+ * connection. It is responsible for framing and for matching responses to requests.
+ */
+public interface ITransport {
+    
+    /**
+     * Opens a connection to the server.
+     *
+     * @param server Server name or address.
+     * @param port Server port.
+     * @param timeout Connection timeout in milliseconds (0 = no timeout).
+     * @throws IOException An IO exception.
+     */
+    void open(String server, int port, int timeout) throws IOException;
+    
+    /**
+     * Sends a request and waits for its response.
+     *
+     * @param request Request to be sent.
+     * @param timeout The timeout, in milliseconds, to await a response (0 = no timeout).
+     * @return Response returned by the server.
+     * @throws IOException An IO exception, including a timeout.
+     * @throws InterruptedException If the caller was interrupted while waiting.
+     */
+    Response call(Request request, int timeout) throws IOException, InterruptedException;
+    
+    /**
+     * Sends a request and waits for its response, handing the response data to a consumer line by
+     * line as it arrives. A successful response is not retained, so the returned response carries
+     * no data. An error response is returned complete, as usual.
+     *
+     * @param request Request to be sent.
+     * @param timeout The timeout, in milliseconds, to await each portion of the response (0 = no
+     *            timeout).
+     * @param consumer Consumer to receive the response data (if null, the response is not
+     *            streamed).
+     * @return Response returned by the server.
+     * @throws IOException An IO exception, including a timeout.
+     * @throws InterruptedException If the caller was interrupted while waiting.
+     */
+    Response call(Request request, int timeout, ILineConsumer consumer) throws IOException, InterruptedException;
+    
+    /**
+     * Switches the transport to pipelined mode, in which multiple requests may be in flight at
+     * once, each identified by a 32-bit sequence id. Called once the server has agreed to the
+     * {@link ServerCaps.Capability#PIPELINE PIPELINE} capability.
+     *
+     * @throws IOException An IO exception.
+     */
+    void enablePipelining() throws IOException;
+    
+    /**
+     * Switches the transport to length-prefixed (protocol version 2) frames, which carry a 32-bit
+     * sequence id and are read without scanning for an end of data marker. Called once the server
+     * has agreed to the {@link ServerCaps.Capability#FRAMED FRAMED} capability, before any other
+     * request is sent and before pipelining is enabled.
+     *
+     * @throws IOException An IO exception.
+     */
+    void enableFraming() throws IOException;
+    
+    /**
+     * Compresses requests whose parameters meet the specified size. Called once the server has
+     * agreed to the {@link ServerCaps.Capability#COMPRESS COMPRESS} capability, after framing has
+     * been enabled and before pipelining is enabled. Compressed responses are accepted once
+     * framing has been enabled.
+     *
+     * @param threshold The compression threshold, in bytes.
+     * @throws IOException An IO exception.
+     */
+    void enableCompression(int threshold) throws IOException;
+    
+    /**
+     * Returns true if the connection is open and usable.
+     *
+     * @return True if the connection is open.
+     */
+    boolean isOpen();
+    
+    /**
+     * Returns the local address of the connection.
+     *
+     * @return The local address.
+     */
+    InetAddress getLocalAddress();
+    
+    /**
+     * Returns the local port of the connection.
+     *
+     * @return The local port.
+     */
+    int getLocalPort();
+    
+    /**
+     * Closes the connection. Any requests awaiting a response will fail.
+     */
+    void close();
+    
+}
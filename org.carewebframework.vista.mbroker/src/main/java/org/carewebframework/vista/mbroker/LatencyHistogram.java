@@ -0,0 +1,143 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of elapsed times with exponentially sized buckets. Bucket <i>n</i> counts times of
+ * at least 2<sup>n</sup> and less than 2<sup>n+1</sup> microseconds, so percentiles are accurate
+ * to within a factor of two. Recording a time takes a few atomic operations and allocates nothing,
+ * so a histogram may be updated on every call. Histograms are thread safe.
+ */
+class LatencyHistogram {
+    
+    private static final int BUCKETS = 32;
+    
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    
+    private final LongAdder count = new LongAdder();
+    
+    private final LongAdder total = new LongAdder();
+    
+    private final AtomicLong max = new AtomicLong();
+    
+    /**
+     * Records an elapsed time.
+     *
+     * @param nanos The elapsed time in nanoseconds.
+     */
+    void record(long nanos) {
+        long micros = Math.max(nanos, 0) / 1000;
+        int bucket = micros == 0 ? 0 : Math.min(63 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+        buckets.incrementAndGet(bucket);
+        count.increment();
+        total.add(nanos);
+        long current;
+        
+        while ((current = max.get()) < nanos && !max.compareAndSet(current, nanos)) {}
+    }
+    
+    /**
+     * Returns the number of times recorded.
+     *
+     * @return The count.
+     */
+    long getCount() {
+        return count.sum();
+    }
+    
+    /**
+     * Returns the mean time recorded.
+     *
+     * @return The mean time in milliseconds (0 if none recorded).
+     */
+    double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : toMillis(total.sum()) / n;
+    }
+    
+    /**
+     * Returns the longest time recorded.
+     *
+     * @return The maximum time in milliseconds.
+     */
+    double getMax() {
+        return toMillis(max.get());
+    }
+    
+    /**
+     * Returns an upper bound for the specified percentile of the times recorded.
+     *
+     * @param percentile The percentile (0 to 100).
+     * @return The time in milliseconds below which the specified percentage of times fall.
+     */
+    double getPercentile(double percentile) {
+        long n = 0;
+        
+        for (int i = 0; i < BUCKETS; i++) {
+            n += buckets.get(i);
+        }
+        
+        long target = (long) Math.ceil(n * percentile / 100);
+        long seen = 0;
+        
+        for (int i = 0; i < BUCKETS && n > 0; i++) {
+            seen += buckets.get(i);
+            
+            if (seen >= target) {
+                return Math.min((1L << (i + 1)) / 1000.0, getMax());
+            }
+        }
+        
+        return getMax();
+    }
+    
+    /**
+     * Discards all recorded times.
+     */
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        
+        count.reset();
+        total.reset();
+        max.set(0);
+    }
+    
+    /**
+     * Converts nanoseconds to milliseconds.
+     *
+     * @param nanos Time in nanoseconds.
+     * @return Time in milliseconds.
+     */
+    private static double toMillis(long nanos) {
+        return nanos / 1000000.0;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A request awaiting its response. The caller waits while another thread (the one reading from the
+ * connection) supplies the response or the error that prevented it. Waiting uses a lock rather than
+ * an object monitor, so a virtual thread awaiting a response does not pin its carrier thread.
+ */
+class PendingResponse {
+    
+    final ReentrantLock lock = new ReentrantLock();
+    
+    final Condition changed = lock.newCondition();
+    
+    private Response response;
+    
+    private IOException error;
+    
+    /**
+     * Supplies the outcome of the request and releases the waiting caller.
+     *
+     * @param response The response (null if an error occurred).
+     * @param error The error (null if a response was received).
+     */
+    void complete(Response response, IOException error) {
+        lock.lock();
+        
+        try {
+            if (this.response == null && this.error == null) {
+                this.response = response;
+                this.error = error;
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns true if the outcome of the request has been supplied.
+     *
+     * @return True if complete.
+     */
+    boolean isComplete() {
+        lock.lock();
+        
+        try {
+            return response != null || error != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Waits for the outcome of the request.
+     *
+     * @param timeout The timeout, in milliseconds, to await the response (0 = no timeout).
+     * @return The response.
+     * @throws IOException The error that prevented a response, or a timeout.
+     * @throws InterruptedException If the caller was interrupted while waiting.
+     */
+    Response await(int timeout) throws IOException, InterruptedException {
+        long expiration = System.currentTimeMillis() + timeout;
+        lock.lock();
+        
+        try {
+            while (response == null && error == null) {
+                awaitChange(timeout, expiration);
+            }
+            
+            if (error != null) {
+                throw error;
+            }
+            
+            return response;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Waits to be signaled of a change in state. Must be called while holding the lock.
+     *
+     * @param timeout The timeout, in milliseconds (0 = no timeout).
+     * @param expiration The time at which the timeout expires.
+     * @throws IOException A timeout.
+     * @throws InterruptedException If the caller was interrupted while waiting.
+     */
+    void awaitChange(int timeout, long expiration) throws IOException, InterruptedException {
+        if (timeout <= 0) {
+            changed.await();
+            return;
+        }
+        
+        long wait = expiration - System.currentTimeMillis();
+        
+        if (wait <= 0) {
+            throw new SocketTimeoutException("Read timed out");
+        }
+        
+        changed.await(wait, TimeUnit.MILLISECONDS);
+    }
+    
+}
@@ -0,0 +1,102 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Schedules the background polling of all broker sessions in the JVM. Each session's next poll is
+ * queued with the time at which it is due, and polls are run on a small, fixed pool of daemon
+ * threads, so the number of threads does not grow with the number of sessions. The periodic
+ * maintenance of session pools is run on the same threads.
+ */
+class PollingScheduler {
+    
+    private static final int THREAD_COUNT = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+    
+    private static PollingScheduler instance;
+    
+    private final ScheduledThreadPoolExecutor executor;
+    
+    /**
+     * Returns the shared scheduler, creating it on first use.
+     *
+     * @return The polling scheduler.
+     */
+    static synchronized PollingScheduler getInstance() {
+        if (instance == null) {
+            instance = new PollingScheduler();
+        }
+        
+        return instance;
+    }
+    
+    private PollingScheduler() {
+        executor = new ScheduledThreadPoolExecutor(THREAD_COUNT, new ThreadFactory() {
+            
+            private final AtomicInteger count = new AtomicInteger();
+            
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "MBrokerPoller-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+            
+        });
+        
+        executor.setRemoveOnCancelPolicy(true);
+    }
+    
+    /**
+     * Schedules a poll.
+     *
+     * @param poll The poll to run.
+     * @param delay Delay, in milliseconds, before the poll is run.
+     * @return The scheduled poll, which may be cancelled.
+     */
+    ScheduledFuture<?> schedule(Runnable poll, long delay) {
+        return executor.schedule(poll, delay, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Schedules a task to run repeatedly, with a fixed delay between the end of one run and the
+     * start of the next.
+     *
+     * @param task The task to run.
+     * @param initialDelay Delay, in milliseconds, before the first run.
+     * @param delay Delay, in milliseconds, between runs.
+     * @return The scheduled task, which may be cancelled.
+     */
+    ScheduledFuture<?> schedule(Runnable task, long initialDelay, long delay) {
+        return executor.scheduleWithFixedDelay(task, initialDelay, delay, TimeUnit.MILLISECONDS);
+    }
+    
+}
@@ -28,16 +28,38 @@ package org.carewebframework.vista.mbroker;
 import java.lang.ref.WeakReference;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.carewebframework.common.StrUtil;
 import org.carewebframework.vista.mbroker.Request.Action;
+import org.carewebframework.vista.mbroker.Response.ResponseType;
 
 /**
- * Background thread for polling host.
+ * Background polling of the host for a session. Polls do not run on a thread of their own; each
+ * poll is queued with the shared {@link PollingScheduler}, which runs the polls of all sessions on
+ * a small pool of threads. If the session has an executor service, the scheduler hands each poll
+ * to that service instead. A session's polls never overlap. The interval between polls adapts to
+ * the session's activity:
+ * <ul>
+ * <li>Whenever a poll returns a completed asynchronous request or a host event, the host is polled
+ * again immediately, until it reports that nothing further is waiting.</li>
+ * <li>While asynchronous requests are outstanding, polling starts at the expedited interval and
+ * slows gradually towards the server's polling interval.</li>
+ * <li>When the session is idle, the interval backs off exponentially from the server's polling
+ * interval to the maximum interval.</li>
+ * </ul>
+ * Polls are deferrable (see {@link Request#setDeferrable(boolean)}): a poll whose connection is
+ * busy with another call is not sent, and is tried again after the current interval, so that a
+ * long running call never occupies a thread shared with other sessions. A poll that fails is
+ * treated as idle, so polling backs off rather than stopping. Scheduling state is guarded by a
+ * lock rather than an object monitor, so that a poll run on a virtual thread does not pin its
+ * carrier thread.
  */
-public class PollingThread extends Thread {
+public class PollingThread implements Runnable {
     
     private static final Log log = LogFactory.getLog(PollingThread.class);
     
@@ -56,53 +78,105 @@ public class PollingThread extends Thread {
         
     }
     
-    private boolean enabled;
+    private volatile boolean enabled;
     
-    private boolean terminated;
+    private volatile boolean terminated;
     
     private int pollingInterval = 3000;
     
+    private int expeditedInterval = 100;
+    
+    private int maxInterval = 12000;
+    
+    private int interval;
+    
+    private volatile boolean expedited;
+    
     private final WeakReference<BrokerSession> sessionRef;
     
-    private final Object monitor = new Object();
+    private final PollingScheduler scheduler = PollingScheduler.getInstance();
+    
+    private final Runnable dispatcher;
+    
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    private ScheduledFuture<?> scheduled;
+    
+    private boolean running;
     
     private Request query;
     
     private Request ping;
     
+    private boolean deferred;
+    
+    private int failures;
+    
     /**
-     * Creates and starts a polling thread for the specified session. If an executor service has
-     * been configured, thread execution will be delegated to that service. Otherwise, it will be
-     * started directly.
+     * Creates background polling for the specified session and schedules the first poll. If an
+     * executor service has been configured, polls will be executed by that service.
      *
-     * @param session Broker session associated with the thread.
+     * @param session Broker session to be polled.
      */
     public PollingThread(BrokerSession session) {
-        super();
-        setName("MBrokerPollingDaemon-" + getId());
         sessionRef = new WeakReference<BrokerSession>(session);
-        ExecutorService executor = session.getExecutorService();
+        final ExecutorService executor = session.getExecutorService();
+        
+        dispatcher = executor == null ? this : new Runnable() {
+            
+            @Override
+            public void run() {
+                try {
+                    executor.execute(PollingThread.this);
+                } catch (RejectedExecutionException e) {
+                    log.error("Executor service rejected background poll.", e);
+                    terminate();
+                }
+            }
+            
+        };
         
-        if (executor != null) {
-            executor.execute(this);
-        } else {
-            start();
+        lock.lock();
+        
+        try {
+            schedule(0);
+        } finally {
+            lock.unlock();
         }
     }
     
     /**
-     * Requests the background thread to terminate.
+     * Requests background polling to terminate.
      */
     public void terminate() {
-        enabled = false;
-        terminated = true;
-        wakeup();
+        lock.lock();
+        
+        try {
+            enabled = false;
+            terminated = true;
+            
+            if (scheduled != null) {
+                scheduled.cancel(false);
+                scheduled = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns true if background polling has terminated.
+     *
+     * @return True if terminated.
+     */
+    public boolean isTerminated() {
+        return terminated;
     }
     
     /**
-     * Returns the enabled state of the background thread.
+     * Returns the enabled state of background polling.
      *
-     * @return True if the background thread is actively polling. False if background polling has
+     * @return True if the host is actively being polled. False if background polling has
      *         been suspended.
      */
     public boolean isEnabled() {
@@ -110,13 +184,117 @@ public class PollingThread extends Thread {
     }
     
     /**
-     * Sets the enabled state of the background thread.
+     * Sets the enabled state of background polling. When polling is resumed, the host is polled
+     * immediately and the polling interval starts afresh, rather than continuing from whatever
+     * interval was scheduled while it was suspended.
      *
-     * @param enabled True if the background thread is actively polling. False if background polling
+     * @param enabled True if the host is actively being polled. False if background polling
      *            has been suspended.
      */
     public void setEnabled(boolean enabled) {
+        boolean resumed = enabled && !this.enabled;
         this.enabled = enabled;
+        
+        if (resumed) {
+            lock.lock();
+            
+            try {
+                if (!running && scheduled != null && scheduled.cancel(false)) {
+                    interval = 0;
+                    schedule(0);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * Returns the interval, in milliseconds, at which the host is polled while asynchronous
+     * requests are outstanding.
+     *
+     * @return The expedited polling interval.
+     */
+    public int getExpeditedInterval() {
+        return expeditedInterval;
+    }
+    
+    /**
+     * Sets the interval, in milliseconds, at which the host is polled while asynchronous requests
+     * are outstanding.
+     *
+     * @param expeditedInterval The expedited polling interval.
+     */
+    public void setExpeditedInterval(int expeditedInterval) {
+        this.expeditedInterval = expeditedInterval;
+    }
+    
+    /**
+     * Returns the longest interval, in milliseconds, between polls when the session is idle.
+     *
+     * @return The maximum polling interval.
+     */
+    public int getMaxInterval() {
+        return maxInterval;
+    }
+    
+    /**
+     * Sets the longest interval, in milliseconds, between polls when the session is idle. Since
+     * host events are delivered only when the host is polled, this bounds how long an idle session
+     * may take to receive an event.
+     *
+     * @param maxInterval The maximum polling interval.
+     */
+    public void setMaxInterval(int maxInterval) {
+        this.maxInterval = maxInterval;
+    }
+    
+    /**
+     * Cuts short the current polling interval, so that the expedited interval takes effect
+     * immediately after an asynchronous request has been submitted.
+     */
+    public void expedite() {
+        expedited = true;
+        
+        lock.lock();
+        
+        try {
+            if (!running && scheduled != null && scheduled.cancel(false)) {
+                schedule(0);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Computes the interval to wait before the next poll.
+     *
+     * @param responseType Type of response to the last poll (null if the host was not polled).
+     * @param session Session whose host is being polled.
+     * @return The polling interval in milliseconds, or 0 to poll again immediately.
+     */
+    private int nextInterval(ResponseType responseType, BrokerSession session) {
+        if (responseType == ResponseType.ASYNC || responseType == ResponseType.EVENT) {
+            return 0;
+        }
+        
+        if (responseType != null && session.hasPendingCallbacks()) {
+            if (expedited || interval < expeditedInterval) {
+                expedited = false;
+                return Math.min(expeditedInterval, pollingInterval);
+            }
+            
+            return Math.min(interval * 2, pollingInterval);
+        }
+        
+        expedited = false;
+        
+        if (interval < pollingInterval) {
+            return pollingInterval;
+        }
+        
+        return Math.max(Math.min(interval * 2, maxInterval), pollingInterval);
     }
     
     /**
@@ -132,6 +310,8 @@ public class PollingThread extends Thread {
                 if (query == null) {
                     query = new Request(action);
                     query.addParameter("UID", session.getId());
+                    query.setReusable(true);
+                    query.setDeferrable(true);
                 }
                 
                 return query;
@@ -139,6 +319,8 @@ public class PollingThread extends Thread {
             case PING:
                 if (ping == null) {
                     ping = new Request(action);
+                    ping.setReusable(true);
+                    ping.setDeferrable(true);
                 }
                 
                 return ping;
@@ -152,108 +334,174 @@ public class PollingThread extends Thread {
      * Polls the host at the specified interval for asynchronous activity.
      *
      * @param session Session whose host is to be polled.
+     * @return Type of the response received, or null if the host was not polled or the poll failed.
      */
-    private void pollHost(BrokerSession session) {
+    private ResponseType pollHost(BrokerSession session) {
         Request request = !enabled ? null : getRequest(session.pollingAction(), session);
         
         if (request == null) {
-            return;
+            return null;
         }
         
         try {
-            Response response = session.netCall(request, 1000);
-            String results[] = response.getData().split(Constants.LINE_SEPARATOR, 2);
-            String params[] = StrUtil.split(results[0], StrUtil.U, 2);
+            long start = System.nanoTime();
+            Object poll = BrokerEvents.beginPoll();
+            Response response;
             
-            switch (response.getResponseType()) {
-                case ACK: // A simple server acknowledgement
-                    int i = StrUtil.toInt(params[0]);
-                    
-                    if (i > 0) {
-                        pollingInterval = i * 1000;
-                    }
-                    
-                    FMDate hostTime = new FMDate(params[1]);
-                    session.setHostTime(hostTime);
-                    break;
+            try {
+                response = session.netCall(request, 1000);
+            } catch (RuntimeException e) {
+                BrokerEvents.commitPoll(poll, request.getAction(), null);
+                throw e;
+            }
+            
+            BrokerEvents.commitPoll(poll, request.getAction(), response.getResponseType());
+            failures = 0;
+            BrokerMetrics metrics = session.getMetrics();
+            
+            if (metrics != null) {
+                metrics.recordPoll(System.nanoTime() - start);
+            }
+            
+            if (response.getResponseType() == ResponseType.ACK) { // A simple server acknowledgement
+                String results[] = response.getData().split(Constants.LINE_SEPARATOR, 2);
+                String params[] = StrUtil.split(results[0], StrUtil.U, 2);
+                int i = StrUtil.toInt(params[0]);
                 
-                case ASYNC: // Completed asynchronous RPC
-                    int asyncHandle = StrUtil.toInt(params[0]);
-                    int asyncError = StrUtil.toInt(params[1]);
-                    
-                    if (asyncHandle > 0) {
-                        if (asyncError != 0) {
-                            session.onRPCError(asyncHandle, asyncError, results[1]);
-                        } else {
-                            session.onRPCComplete(asyncHandle, results[1]);
-                        }
+                if (i > 0) {
+                    pollingInterval = i * 1000;
+                }
+                
+                FMDate hostTime = new FMDate(params[1]);
+                session.setHostTime(hostTime);
+            } else {
+                dispatch(session, response);
+            }
+            
+            return response.getResponseType();
+        } catch (RejectedExecutionException e) {
+            deferred = true; // The connection is busy or the session's scheduler shed the poll.
+            return null;
+        } catch (Throwable e) {
+            if (failures++ == 0) {
+                log.warn("Error polling host; polling will continue at a reduced rate.", e);
+            } else {
+                log.debug("Error polling host.", e);
+            }
+            
+            return null;
+        }
+    }
+    
+    /**
+     * Delivers a completed asynchronous request or a host event returned in response to a query.
+     * Other responses are ignored.
+     *
+     * @param session Session that issued the query.
+     * @param response Response to the query.
+     */
+    static void dispatch(BrokerSession session, Response response) {
+        String results[] = response.getData().split(Constants.LINE_SEPARATOR, 2);
+        String params[] = StrUtil.split(results[0], StrUtil.U, 2);
+        
+        switch (response.getResponseType()) {
+            case ASYNC: // Completed asynchronous RPC
+                int asyncHandle = StrUtil.toInt(params[0]);
+                int asyncError = StrUtil.toInt(params[1]);
+                
+                if (asyncHandle > 0) {
+                    if (asyncError != 0) {
+                        session.onRPCError(asyncHandle, asyncError, results[1]);
+                    } else {
+                        session.onRPCComplete(asyncHandle, results[1]);
                     }
-                    break;
+                }
+                break;
+            
+            case EVENT: // Global event for delivery
+                List<IHostEventHandler> hostEventHandlers = session.getHostEventHandlers();
                 
-                case EVENT: // Global event for delivery
-                    List<IHostEventHandler> hostEventHandlers = session.getHostEventHandlers();
-                    
-                    if (hostEventHandlers != null) {
-                        try {
-                            String eventName = results[0];
-                            Object eventData = SerializationMethod.deserialize(results[1]);
+                if (hostEventHandlers != null) {
+                    try {
+                        String eventName = results[0];
+                        Object eventData = SerializationMethod.deserialize(results[1]);
+                        
+                        for (IHostEventHandler hostEventHandler : hostEventHandlers) {
+                            Object delivery = BrokerEvents.beginHostEvent();
                             
-                            for (IHostEventHandler hostEventHandler : hostEventHandlers) {
-                                try {
-                                    hostEventHandler.onHostEvent(eventName, eventData);
-                                } catch (Throwable e) {
-                                    log.error("Host event subscriber threw an exception", e);
-                                }
+                            try {
+                                hostEventHandler.onHostEvent(eventName, eventData);
+                            } catch (Throwable e) {
+                                log.error("Host event subscriber threw an exception", e);
                             }
-                        } catch (Throwable e) {
-                            log.error("Error processing host event", e);
+                            
+                            BrokerEvents.commitHostEvent(delivery, eventName, hostEventHandler);
                         }
+                    } catch (Throwable e) {
+                        log.error("Error processing host event", e);
                     }
-                    break;
-            }
-        } catch (Throwable e) {
-            log.error("Error processing polling response.", e);
-            terminate();
+                }
+                break;
+            
+            default:
+                break;
         }
     }
     
     /**
-     * Wakes up the background thread.
+     * Schedules the next poll. Must be called while holding the lock.
      *
-     * @return True if request was successful.
+     * @param delay Delay, in milliseconds, before the poll.
      */
-    private synchronized boolean wakeup() {
-        try {
-            synchronized (monitor) {
-                monitor.notify();
-            }
-            return true;
-        } catch (Throwable t) {
-            return false;
-        }
+    private void schedule(long delay) {
+        scheduled = terminated ? null : scheduler.schedule(dispatcher, delay);
     }
     
     /**
-     * Main polling loop.
+     * Performs a single poll and schedules the next one.
      */
     @Override
     public void run() {
-        synchronized (monitor) {
-            while (!terminated) {
-                try {
-                    BrokerSession session = this.sessionRef.get();
-                    
-                    if (session == null) {
-                        break;
-                    } else {
-                        pollHost(session);
-                    }
-                    session = null;
-                    monitor.wait(pollingInterval);
-                } catch (InterruptedException e) {}
+        lock.lock();
+        
+        try {
+            if (terminated || running) {
+                return;
             }
+            
+            running = true;
+            scheduled = null;
+        } finally {
+            lock.unlock();
         }
         
-        log.debug(getName() + " has exited.");
+        boolean suspended = !enabled;
+        
+        try {
+            BrokerSession session = sessionRef.get();
+            
+            if (session == null) {
+                terminate();
+            } else {
+                deferred = false;
+                ResponseType responseType = pollHost(session);
+                interval = deferred ? Math.min(Math.max(interval, expeditedInterval), pollingInterval)
+                        : nextInterval(responseType, session);
+            }
+        } finally {
+            lock.lock();
+            
+            try {
+                running = false;
+                
+                if (suspended && enabled) { // Polling was resumed during a poll that was skipped
+                    interval = 0;
+                }
+                
+                schedule(interval);
+            } finally {
+                lock.unlock();
+            }
+        }
     }
 }
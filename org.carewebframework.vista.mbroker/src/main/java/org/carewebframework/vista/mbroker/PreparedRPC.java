@@ -0,0 +1,226 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.carewebframework.common.StrUtil;
+import org.carewebframework.vista.mbroker.Request.Action;
+
+/**
+ * A remote procedure call whose name, version, and calling context have been resolved in advance.
+ * The control parameters that identify the remote procedure are encoded once for each session id
+ * and calling context and reused on every call, so that each call need only encode its own parameters. Obtain an
+ * instance from {@link BrokerSession#prepare(String)}. Instances are thread safe.
+ */
+public class PreparedRPC {
+    
+    private static final int MAX_CACHED_HEADERS = 32;
+    
+    private static final byte[] SYNC = encode("ASY", false);
+    
+    private static final byte[] ASYNC = encode("ASY", true);
+    
+    private final BrokerSession session;
+    
+    private final String requestedName;
+    
+    private final String name;
+    
+    private final String version;
+    
+    private final String context;
+    
+    // Encoded control parameters, keyed by session id and calling context.
+    private final Map<String, byte[]> headers = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+        
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > MAX_CACHED_HEADERS;
+        }
+        
+    };
+    
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    /**
+     * Encodes a single control parameter.
+     *
+     * @param name The parameter name.
+     * @param value The parameter value.
+     * @return The encoded parameter.
+     */
+    private static byte[] encode(String name, Object value) {
+        Request request = new Request(Action.RPC);
+        request.addParameter(name, value);
+        byte[] encoded = request.getEncodedParameters();
+        request.release();
+        return encoded;
+    }
+    
+    /**
+     * Creates a prepared call.
+     *
+     * @param session The session that prepared the call.
+     * @param requestedName The name as requested, which may be an alias.
+     * @param name Name of the remote procedure, with optional version and calling context, as for
+     *            {@link BrokerSession#callRPC(String, boolean, int, RPCParameters)}. Aliases must
+     *            already have been resolved.
+     */
+    PreparedRPC(BrokerSession session, String requestedName, String name) {
+        this.session = session;
+        this.requestedName = requestedName;
+        String pcs[] = StrUtil.split(name, ":", 3, true);
+        this.name = pcs[0];
+        this.version = pcs[1];
+        this.context = pcs[2];
+    }
+    
+    /**
+     * Performs the remote procedure call synchronously using the default timeout.
+     *
+     * @param params Parameters to be passed to the remote procedure.
+     * @return The data returned by the remote procedure.
+     */
+    public String call(Object... params) {
+        return session.callRPC(this, params);
+    }
+    
+    /**
+     * Performs the remote procedure call.
+     *
+     * @param async If true, the remote procedure call will be executed asynchronously.
+     * @param timeout The timeout, in milliseconds, to wait for remote procedure completion.
+     * @param params Parameters to be passed to the remote procedure. This may be null.
+     * @return The data returned by the remote procedure if called synchronously, or the unique
+     *         handle of the request if called asynchronously.
+     */
+    public String call(boolean async, int timeout, RPCParameters params) {
+        return session.callRPC(this, async, timeout, params);
+    }
+    
+    /**
+     * Adds the encoded control parameters that identify this call to a request issued by the
+     * specified session. Encodings are cached by session id and calling context, since sessions
+     * with the same id may use different default contexts.
+     *
+     * @param request The request.
+     * @param session The session issuing the request.
+     * @param async True if the call is asynchronous.
+     */
+    void addHeader(Request request, BrokerSession session, boolean async) {
+        int id = session.getId();
+        String callingContext = context.isEmpty() ? session.getConnectionParams().getAppid() : context;
+        String key = id + StrUtil.U + callingContext;
+        byte[] header;
+        lock.lock();
+        
+        try {
+            header = headers.get(key);
+        } finally {
+            lock.unlock();
+        }
+        
+        if (header == null) {
+            Request encoder = new Request(Action.RPC);
+            encoder.addParameter("UID", id);
+            encoder.addParameter("CTX", callingContext);
+            encoder.addParameter("VER", version);
+            encoder.addParameter("RPC", name);
+            header = encoder.getEncodedParameters();
+            encoder.release();
+            lock.lock();
+            
+            try {
+                headers.put(key, header);
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        request.addEncodedParameters(header);
+        request.addEncodedParameters(async ? ASYNC : SYNC);
+        
+        if (request.getAction() == Action.RPC) {
+            request.setRPC(name, callingContext);
+        }
+    }
+    
+    /**
+     * Returns the session that prepared the call.
+     *
+     * @return The broker session.
+     */
+    public BrokerSession getSession() {
+        return session;
+    }
+    
+    /**
+     * Returns the name from which the call was prepared. This may be an alias and may include a
+     * version and calling context.
+     *
+     * @return The requested name.
+     */
+    public String getRequestedName() {
+        return requestedName;
+    }
+    
+    /**
+     * Returns the name of the remote procedure.
+     *
+     * @return The remote procedure name.
+     */
+    public String getName() {
+        return name;
+    }
+    
+    /**
+     * Returns the remote procedure version.
+     *
+     * @return The remote procedure version (empty if not specified).
+     */
+    public String getVersion() {
+        return version;
+    }
+    
+    /**
+     * Returns the calling context.
+     *
+     * @return The calling context (empty if the default context is to be used).
+     */
+    public String getContext() {
+        return context;
+    }
+    
+    @Override
+    public String toString() {
+        return name;
+    }
+}
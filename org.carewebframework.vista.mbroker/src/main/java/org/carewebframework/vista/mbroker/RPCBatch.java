@@ -0,0 +1,258 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.carewebframework.common.StrUtil;
+
+/**
+ * A group of remote procedure calls that are performed together. If the server supports the
+ * {@link ServerCaps.Capability#BATCH BATCH} capability, the calls are sent in a single request and
+ * their results returned in a single response, so that the batch costs one network round trip
+ * regardless of its size. Otherwise, the calls are performed one after another. Obtain an instance
+ * from {@link BrokerSession#createBatch()}. Calls are executed on the server in the order in which
+ * they were added. A batch may be executed only once and is not thread safe.
+ * <p>
+ * The result of each call is available from the future returned when the call was added, which
+ * completes exceptionally if that call failed. The failure of one call does not prevent the
+ * execution of the others.
+ */
+public class RPCBatch {
+    
+    private static class Call {
+        
+        private final PreparedRPC rpc;
+        
+        private final RPCParameters params;
+        
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+        
+        private Call(PreparedRPC rpc, RPCParameters params) {
+            this.rpc = rpc;
+            this.params = params;
+        }
+    }
+    
+    private final BrokerSession session;
+    
+    private final List<Call> calls = new ArrayList<>();
+    
+    private boolean executed;
+    
+    /**
+     * Creates an empty batch.
+     *
+     * @param session The session that will perform the calls.
+     */
+    RPCBatch(BrokerSession session) {
+        this.session = session;
+    }
+    
+    /**
+     * Adds a remote procedure call to the batch.
+     *
+     * @param name Name of the remote procedure, with optional version and calling context, as for
+     *            {@link BrokerSession#callRPC(String, boolean, int, RPCParameters)}.
+     * @param args Parameters to be passed to the remote procedure.
+     * @return A future for the result of the call, completed when the batch is executed.
+     */
+    public CompletableFuture<String> add(String name, Object... args) {
+        return add(session.prepare(name), args);
+    }
+    
+    /**
+     * Adds a prepared remote procedure call to the batch.
+     *
+     * @param rpc The prepared call.
+     * @param args Parameters to be passed to the remote procedure.
+     * @return A future for the result of the call, completed when the batch is executed.
+     */
+    public CompletableFuture<String> add(PreparedRPC rpc, Object... args) {
+        checkExecuted();
+        Call call = new Call(rpc, BrokerSession.packageParams(args));
+        calls.add(call);
+        return call.result;
+    }
+    
+    /**
+     * Returns the number of calls in the batch.
+     *
+     * @return The number of calls.
+     */
+    public int size() {
+        return calls.size();
+    }
+    
+    /**
+     * Performs the calls using the default timeout.
+     *
+     * @return The results of the calls, in the order in which the calls were added.
+     * @throws RPCException The exception thrown by the first call that failed, if any.
+     */
+    public List<String> execute() {
+        return execute(session.getConnectionParams().getTimeout());
+    }
+    
+    /**
+     * Performs the calls.
+     *
+     * @param timeout The timeout, in milliseconds, to wait for completion of the batch.
+     * @return The results of the calls, in the order in which the calls were added.
+     * @throws RPCException The exception thrown by the first call that failed, if any.
+     */
+    public List<String> execute(int timeout) {
+        checkExecuted();
+        executed = true;
+        
+        if (!calls.isEmpty()) {
+            try {
+                session.callRPCBatch(this, timeout);
+            } catch (RuntimeException e) {
+                for (Call call : calls) {
+                    call.result.completeExceptionally(e);
+                }
+                
+                throw e;
+            }
+        }
+        
+        List<String> results = new ArrayList<>(calls.size());
+        
+        for (Call call : calls) {
+            try {
+                results.add(call.result.get());
+            } catch (ExecutionException e) {
+                throw (RuntimeException) e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+        
+        return results;
+    }
+    
+    /**
+     * Returns the prepared call at the specified position.
+     *
+     * @param index Position of the call.
+     * @return The prepared call.
+     */
+    PreparedRPC getRPC(int index) {
+        return calls.get(index).rpc;
+    }
+    
+    /**
+     * Returns the parameters for the call at the specified position.
+     *
+     * @param index Position of the call.
+     * @return The parameters (may be null).
+     */
+    RPCParameters getParameters(int index) {
+        return calls.get(index).params;
+    }
+    
+    /**
+     * Sets the result of the call at the specified position.
+     *
+     * @param index Position of the call.
+     * @param data The data returned by the remote procedure.
+     */
+    void complete(int index, String data) {
+        calls.get(index).result.complete(data);
+    }
+    
+    /**
+     * Sets the failure of the call at the specified position.
+     *
+     * @param index Position of the call.
+     * @param e The exception.
+     */
+    void fail(int index, RuntimeException e) {
+        calls.get(index).result.completeExceptionally(e);
+    }
+    
+    /**
+     * Sets the results of all calls from a batch response. The response contains, for each call in
+     * order, a header of the form <code>code^length</code> terminated by a line separator,
+     * followed by the number of bytes of data given by the length. A code of 0 indicates success,
+     * in which case the data is the result of the call. Otherwise, the data is the error text.
+     *
+     * @param response The batch response.
+     */
+    void complete(Response response) {
+        ByteBuffer payload = response.getPayload();
+        
+        try {
+            for (int i = 0; i < calls.size(); i++) {
+                String[] header = StrUtil.split(readHeader(payload), StrUtil.U, 2);
+                byte[] data = new byte[StrUtil.toInt(header[1])];
+                payload.get(data);
+                String text = new String(data, Constants.UTF8);
+                
+                if (StrUtil.toInt(header[0]) == 0) {
+                    complete(i, text);
+                } else {
+                    fail(i, new RPCException(text));
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new RPCException("Batch response is incomplete.");
+        }
+    }
+    
+    /**
+     * Reads the header that precedes the result of a call in a batch response.
+     *
+     * @param payload The response payload, positioned at the start of the header.
+     * @return The header, excluding its terminating line separator.
+     */
+    private static String readHeader(ByteBuffer payload) {
+        StringBuilder sb = new StringBuilder();
+        char c;
+        
+        while ((c = (char) payload.get()) != Constants.LINE_SEPARATOR.charAt(0)) {
+            sb.append(c);
+        }
+        
+        return sb.toString();
+    }
+    
+    /**
+     * Throws an exception if the batch has already been executed.
+     */
+    private void checkExecuted() {
+        if (executed) {
+            throw new IllegalStateException("Batch has already been executed.");
+        }
+    }
+}
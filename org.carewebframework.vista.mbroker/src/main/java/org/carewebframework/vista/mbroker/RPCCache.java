@@ -0,0 +1,765 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.carewebframework.common.MiscUtil;
+import org.carewebframework.vista.mbroker.PollingThread.IHostEventHandler;
+import org.carewebframework.vista.mbroker.RPCParameter.HasData;
+
+/**
+ * A cache for the results of remote procedure calls that return reference or slowly changing
+ * data. Only calls to remote procedures for which a {@link Policy} has been registered are cached,
+ * each keyed by its parameters as well as its name, so that calls with different parameters are
+ * cached separately. A policy may further restrict caching to calls whose first parameter has one
+ * of a given set of values. Results are also keyed by the user of the issuing session, unless the policy
+ * declares them the same for all users. An entry expires when its policy's time to live has
+ * elapsed, and all entries for a remote procedure are discarded when the host signals any of the
+ * events named by its policy. Once the cache reaches its maximum size, the least recently used
+ * entry is evicted to make room for a new one.
+ * <p>
+ * Concurrent identical calls to a remote procedure that has a policy share a single round trip to
+ * the server: the first caller performs the call and the others wait for and receive its result.
+ * A policy with no time to live serves only this purpose, and is suitable for remote procedures
+ * that are safe to share but whose results should not be reused once returned.
+ * <p>
+ * A cache created for a broker session is attached to it by {@link #init()}, after which the
+ * session's synchronous calls are serviced from the cache where possible. A cache may instead be
+ * shared by several sessions, each given the cache by {@link BrokerSession#setRPCCache}, such as
+ * the sessions of all desktops on a node. One of those sessions, preferably an authenticated one,
+ * subscribes on the cache's behalf to the events that invalidate cached results and delivers them
+ * to the cache, so that each event invalidates results only once. Should that session be
+ * disconnected or detached from the cache, another takes its place.
+ */
+public class RPCCache implements IHostEventHandler {
+    
+    /**
+     * Caching policy for a remote procedure.
+     */
+    public static class Policy {
+        
+        private String name;
+        
+        private long ttl;
+        
+        private String[] events = new String[0];
+        
+        private boolean shared;
+        
+        private String[] arguments = new String[0];
+        
+        public Policy() {
+            
+        }
+        
+        /**
+         * Creates a policy.
+         *
+         * @param name Name of the remote procedure.
+         * @param ttl Time to live, in milliseconds, for results of the remote procedure. If zero,
+         *            results are not cached, but concurrent identical calls are still coalesced.
+         */
+        public Policy(String name, long ttl) {
+            this.name = name;
+            this.ttl = ttl;
+        }
+        
+        /**
+         * Returns the name of the remote procedure.
+         *
+         * @return Name of the remote procedure.
+         */
+        public String getName() {
+            return name;
+        }
+        
+        public void setName(String name) {
+            this.name = name;
+        }
+        
+        /**
+         * Returns the time to live, in milliseconds, for results of the remote procedure.
+         *
+         * @return The time to live.
+         */
+        public long getTtl() {
+            return ttl;
+        }
+        
+        public void setTtl(long ttl) {
+            this.ttl = ttl;
+        }
+        
+        /**
+         * Returns the names of the host events that invalidate results of the remote procedure.
+         * An event name also matches events in its hierarchy (e.g., "ALERT" matches "ALERT.1234").
+         *
+         * @return Names of the invalidating host events.
+         */
+        public String[] getEvents() {
+            return events;
+        }
+        
+        public void setEvents(String[] events) {
+            this.events = events == null ? new String[0] : events;
+        }
+        
+        /**
+         * Returns true if results of the remote procedure are the same for all users, and so may be
+         * shared among them. Otherwise, each user's results are cached separately.
+         *
+         * @return True if results are shared among users.
+         */
+        public boolean isShared() {
+            return shared;
+        }
+        
+        public void setShared(boolean shared) {
+            this.shared = shared;
+        }
+        
+        /**
+         * Returns the values of the first parameter for which calls are subject to this policy.
+         * Calls with any other first parameter are neither cached nor coalesced. If empty, all
+         * calls to the remote procedure are subject to the policy.
+         *
+         * @return Values of the first parameter.
+         */
+        public String[] getArguments() {
+            return arguments;
+        }
+        
+        public void setArguments(String[] arguments) {
+            this.arguments = arguments == null ? new String[0] : arguments;
+        }
+        
+        /**
+         * Returns true if a call with the specified parameters is subject to this policy.
+         *
+         * @param params Parameters to be passed to the remote procedure. This may be null.
+         * @return True if the call is subject to this policy.
+         */
+        boolean appliesTo(RPCParameters params) {
+            if (arguments.length == 0) {
+                return true;
+            }
+            
+            RPCParameter param = params == null || params.getCount() == 0 ? null : params.get(0);
+            
+            if (param == null || param.hasData() != HasData.SCALAR) {
+                return false;
+            }
+            
+            String value = BrokerUtil.toString(param.getValue());
+            
+            for (String argument : arguments) {
+                if (argument.equals(value)) {
+                    return true;
+                }
+            }
+            
+            return false;
+        }
+    }
+    
+    /**
+     * A cached result.
+     */
+    private static class Entry {
+        
+        private final String data;
+        
+        private final long expires;
+        
+        private Entry(String data, long expires) {
+            this.data = data;
+            this.expires = expires;
+        }
+    }
+    
+    private final BrokerSession session;
+    
+    private final Map<String, Policy> policies = new ConcurrentHashMap<>();
+    
+    private final Map<RPCKey, Entry> entries = new LinkedHashMap<RPCKey, Entry>(16, 0.75f, true) {
+        
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<RPCKey, Entry> eldest) {
+            if (size() > maxSize) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            
+            return false;
+        }
+        
+    };
+    
+    private final Map<RPCKey, CompletableFuture<String>> inFlight = new HashMap<>();
+    
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    private final Set<BrokerSession> sessions = Collections
+            .newSetFromMap(new WeakHashMap<BrokerSession, Boolean>());
+    
+    private final ReentrantLock listenerLock = new ReentrantLock();
+    
+    private BrokerSession listener;
+    
+    private final AtomicLong hits = new AtomicLong();
+    
+    private final AtomicLong misses = new AtomicLong();
+    
+    private final AtomicLong coalesced = new AtomicLong();
+    
+    private final AtomicLong evictions = new AtomicLong();
+    
+    private final AtomicLong invalidations = new AtomicLong();
+    
+    private volatile int maxSize = 1000;
+    
+    private long generation;
+    
+    /**
+     * Creates a cache to be shared by the sessions to which it is given.
+     */
+    public RPCCache() {
+        this(null);
+    }
+    
+    /**
+     * Creates a cache for the specified session.
+     *
+     * @param session The broker session whose calls are to be cached (may be null).
+     */
+    public RPCCache(BrokerSession session) {
+        this.session = session;
+    }
+    
+    /**
+     * Attaches the cache to its session, if any. Call after setting all requisite properties.
+     */
+    public void init() {
+        if (session != null) {
+            session.setRPCCache(this);
+        }
+    }
+    
+    /**
+     * Detaches the cache from its session, if any, and discards all cached results.
+     */
+    public void destroy() {
+        if (session != null && session.getRPCCache() == this) {
+            session.setRPCCache(null);
+        }
+        
+        invalidateAll();
+    }
+    
+    /**
+     * Returns the result of a synchronous call, from the cache if possible. Otherwise, if an
+     * identical call is already in progress, waits for and returns its result. Otherwise, the call
+     * is performed and, if the remote procedure has a caching policy, its result is cached.
+     *
+     * @param session The session issuing the call.
+     * @param rpc The prepared call.
+     * @param timeout The timeout, in milliseconds, to wait for remote procedure completion.
+     * @param params Parameters to be passed to the remote procedure. This may be null.
+     * @return The data returned by the remote procedure.
+     */
+    String get(BrokerSession session, PreparedRPC rpc, int timeout, RPCParameters params) {
+        Policy policy = policies.get(rpc.getName());
+        
+        if (policy == null || !policy.appliesTo(params)) {
+            return session.invokeRPC(rpc, false, timeout, params);
+        }
+        
+        RPCKey key = new RPCKey(session, rpc, params, policy.isShared());
+        CompletableFuture<String> call;
+        long generation;
+        
+        lock.lock();
+        
+        try {
+            Entry entry = entries.get(key);
+            
+            if (entry != null) {
+                if (entry.expires > System.currentTimeMillis()) {
+                    hits.incrementAndGet();
+                    return entry.data;
+                }
+                
+                entries.remove(key);
+            }
+            
+            call = inFlight.get(key);
+            
+            if (call != null) {
+                coalesced.incrementAndGet();
+            } else {
+                misses.incrementAndGet();
+                inFlight.put(key, new CompletableFuture<String>());
+            }
+            
+            generation = this.generation;
+        } finally {
+            lock.unlock();
+        }
+        
+        return call != null ? await(call, timeout) : load(session, rpc, timeout, params, key, policy, generation);
+    }
+    
+    /**
+     * Performs a call on behalf of itself and any identical calls that arrive while it is in
+     * progress, caching its result if the policy allows.
+     *
+     * @param session The session issuing the call.
+     * @param rpc The prepared call.
+     * @param timeout The timeout, in milliseconds, to wait for remote procedure completion.
+     * @param params Parameters to be passed to the remote procedure. This may be null.
+     * @param key The key for the call.
+     * @param policy The caching policy for the remote procedure.
+     * @param generation The invalidation generation at the time of the call.
+     * @return The data returned by the remote procedure.
+     */
+    private String load(BrokerSession session, PreparedRPC rpc, int timeout, RPCParameters params, RPCKey key,
+                        Policy policy, long generation) {
+        String data = null;
+        RuntimeException exception = null;
+        
+        try {
+            data = session.invokeRPC(rpc, false, timeout, params);
+        } catch (RuntimeException e) {
+            exception = e;
+        }
+        
+        CompletableFuture<String> call;
+        
+        lock.lock();
+        
+        try {
+            call = inFlight.remove(key);
+            
+            // Don't cache a result that may predate an invalidation that occurred during the call.
+            if (exception == null && policy.getTtl() > 0 && maxSize > 0 && generation == this.generation) {
+                entries.put(key, new Entry(data, System.currentTimeMillis() + policy.getTtl()));
+            }
+        } finally {
+            lock.unlock();
+        }
+        
+        if (exception != null) {
+            call.completeExceptionally(exception);
+            throw exception;
+        }
+        
+        call.complete(data);
+        return data;
+    }
+    
+    /**
+     * Waits for the result of an identical call that is already in progress.
+     *
+     * @param call The call in progress.
+     * @param timeout The timeout, in milliseconds, to wait for the result (0 = no timeout).
+     * @return The data returned by the remote procedure.
+     */
+    private String await(CompletableFuture<String> call, int timeout) {
+        try {
+            return timeout > 0 ? call.get(timeout, TimeUnit.MILLISECONDS) : call.get();
+        } catch (ExecutionException e) {
+            throw MiscUtil.toUnchecked(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw MiscUtil.toUnchecked(e);
+        } catch (TimeoutException e) {
+            throw MiscUtil.toUnchecked(e);
+        }
+    }
+    
+    /**
+     * Called when the cache is given to a session. The session becomes the cache's listener if
+     * there is none, or if the current listener is not authenticated.
+     *
+     * @param session The session.
+     */
+    void attach(BrokerSession session) {
+        listenerLock.lock();
+        
+        try {
+            sessions.add(session);
+            
+            if (listener == null || !listener.isAuthenticated()) {
+                setListener(session);
+            }
+        } finally {
+            listenerLock.unlock();
+        }
+    }
+    
+    /**
+     * Called when the cache is taken from a session. If the session was the cache's listener,
+     * another session takes its place.
+     *
+     * @param session The session.
+     */
+    void detach(BrokerSession session) {
+        listenerLock.lock();
+        
+        try {
+            sessions.remove(session);
+            
+            if (listener == session) {
+                setListener(findListener(session));
+            }
+        } finally {
+            listenerLock.unlock();
+        }
+    }
+    
+    /**
+     * Called when a session holding the cache has been authenticated. The listener subscribes to
+     * the invalidating events; another session takes the place of a listener that is not
+     * authenticated.
+     *
+     * @param session The session.
+     */
+    void onAuthenticated(BrokerSession session) {
+        listenerLock.lock();
+        
+        try {
+            if (listener == session) {
+                subscribe(session, true);
+            } else if (listener == null || !listener.isAuthenticated()) {
+                setListener(session);
+            }
+        } finally {
+            listenerLock.unlock();
+        }
+    }
+    
+    /**
+     * Called when a session holding the cache has been disconnected. If the session was the
+     * cache's listener, another authenticated session takes its place.
+     *
+     * @param session The session.
+     */
+    void onDisconnected(BrokerSession session) {
+        listenerLock.lock();
+        
+        try {
+            if (listener == session) {
+                BrokerSession next = findListener(session);
+                
+                if (next != null) {
+                    setListener(next);
+                }
+            }
+        } finally {
+            listenerLock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the session that subscribes to invalidating events on behalf of the cache.
+     *
+     * @return The listening session (may be null).
+     */
+    BrokerSession getListener() {
+        return listener;
+    }
+    
+    /**
+     * Finds a session to take the place of the listener, preferring an authenticated one. Must be
+     * called while holding the listener lock.
+     *
+     * @param exclude The session to be replaced.
+     * @return The new listener (may be null).
+     */
+    private BrokerSession findListener(BrokerSession exclude) {
+        BrokerSession found = null;
+        
+        for (BrokerSession session : sessions) {
+            if (session != exclude) {
+                if (session.isAuthenticated()) {
+                    return session;
+                }
+                
+                found = found == null ? session : found;
+            }
+        }
+        
+        return found;
+    }
+    
+    /**
+     * Makes a session the cache's listener, in place of the current one. Must be called while
+     * holding the listener lock.
+     *
+     * @param session The new listener (may be null).
+     */
+    private void setListener(BrokerSession session) {
+        if (listener == session) {
+            return;
+        }
+        
+        if (listener != null) {
+            listener.removeHostEventHandler(this);
+            subscribe(listener, false);
+        }
+        
+        listener = session;
+        
+        if (session != null) {
+            session.addHostEventHandler(this);
+            subscribe(session, true);
+        }
+    }
+    
+    /**
+     * Subscribes a session to, or unsubscribes it from, the events that invalidate cached results.
+     * Does nothing if the session is not authenticated.
+     *
+     * @param session The session.
+     * @param subscribe If true, subscribe; if false, unsubscribe.
+     */
+    private void subscribe(BrokerSession session, boolean subscribe) {
+        if (session.isAuthenticated()) {
+            for (String event : getEvents()) {
+                session.eventSubscribe(event, subscribe);
+            }
+        }
+    }
+    
+    /**
+     * Discards all cached results for a remote procedure.
+     *
+     * @param name Name of the remote procedure.
+     */
+    public void invalidate(String name) {
+        lock.lock();
+        
+        try {
+            generation++;
+            Iterator<RPCKey> iter = entries.keySet().iterator();
+            
+            while (iter.hasNext()) {
+                if (iter.next().getName().equals(name)) {
+                    iter.remove();
+                    invalidations.incrementAndGet();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Discards all cached results.
+     */
+    public void invalidateAll() {
+        lock.lock();
+        
+        try {
+            generation++;
+            invalidations.addAndGet(entries.size());
+            entries.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Discards cached results invalidated by a host event.
+     */
+    @Override
+    public void onHostEvent(String name, Object data) {
+        for (Policy policy : policies.values()) {
+            for (String event : policy.getEvents()) {
+                if (name.equals(event) || name.startsWith(event + ".")) {
+                    invalidate(policy.getName());
+                    break;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Registers a caching policy, replacing any existing policy for the same remote procedure.
+     * Results already cached for the remote procedure are discarded.
+     *
+     * @param policy The caching policy.
+     */
+    public void addPolicy(Policy policy) {
+        policies.put(policy.getName(), policy);
+        invalidate(policy.getName());
+    }
+    
+    /**
+     * Returns the registered caching policies.
+     *
+     * @return The caching policies.
+     */
+    public List<Policy> getPolicies() {
+        return new ArrayList<>(policies.values());
+    }
+    
+    /**
+     * Registers caching policies, replacing all existing policies.
+     *
+     * @param policies The caching policies.
+     */
+    public void setPolicies(List<Policy> policies) {
+        this.policies.clear();
+        invalidateAll();
+        
+        for (Policy policy : policies) {
+            this.policies.put(policy.getName(), policy);
+        }
+    }
+    
+    /**
+     * Returns the names of all host events that invalidate cached results.
+     *
+     * @return Names of the invalidating host events.
+     */
+    public Set<String> getEvents() {
+        Set<String> events = new TreeSet<>();
+        
+        for (Policy policy : policies.values()) {
+            for (String event : policy.getEvents()) {
+                events.add(event);
+            }
+        }
+        
+        return events;
+    }
+    
+    /**
+     * Returns the maximum number of cached results.
+     *
+     * @return The maximum size.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+    
+    /**
+     * Sets the maximum number of cached results. A value of zero disables caching, although
+     * concurrent identical calls are still coalesced.
+     *
+     * @param maxSize The maximum size.
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        
+        if (maxSize <= 0) {
+            invalidateAll();
+        }
+    }
+    
+    /**
+     * Returns the number of cached results. This may include results that have expired but have
+     * not yet been discarded.
+     *
+     * @return The number of cached results.
+     */
+    public int getSize() {
+        lock.lock();
+        
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the number of calls serviced from the cache.
+     *
+     * @return The hit count.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+    
+    /**
+     * Returns the number of calls to cacheable remote procedures that had to be sent to the
+     * server.
+     *
+     * @return The miss count.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+    
+    /**
+     * Returns the number of calls that shared the round trip of an identical call already in
+     * progress.
+     *
+     * @return The coalesced call count.
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+    
+    /**
+     * Returns the number of results evicted to make room for others.
+     *
+     * @return The eviction count.
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+    
+    /**
+     * Returns the number of results discarded because they were invalidated.
+     *
+     * @return The invalidation count.
+     */
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+}
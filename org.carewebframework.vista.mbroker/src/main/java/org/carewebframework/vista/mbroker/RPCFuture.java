@@ -0,0 +1,181 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+import org.carewebframework.vista.mbroker.BrokerSession.IAsyncRPCEvent;
+
+/**
+ * The pending result of an asynchronous remote procedure call. The future completes when the
+ * session's background polling receives the result, converted to the result type, or
+ * exceptionally with an {@link RPCException} if the remote procedure failed. Cancelling the
+ * future aborts the remote procedure on the server. Note that dependent actions that are not
+ * explicitly asynchronous execute on the polling thread, so should not block.
+ *
+ * @param <T> The result type.
+ */
+public class RPCFuture<T> extends CompletableFuture<T> implements IAsyncRPCEvent {
+    
+    private static ScheduledExecutorService timer;
+    
+    private final BrokerSession session;
+    
+    private final Function<String, T> converter;
+    
+    private volatile int handle;
+    
+    /**
+     * Returns the shared timer used to enforce timeouts, creating it if necessary.
+     *
+     * @return The shared timer.
+     */
+    private static synchronized ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "MBrokerRPCTimer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+                
+            });
+        }
+        
+        return timer;
+    }
+    
+    /**
+     * Creates a future for an asynchronous call on the specified session.
+     *
+     * @param session The session on which the call is made.
+     * @param converter Converts the data returned by the remote procedure to the result type.
+     */
+    RPCFuture(BrokerSession session, Function<String, T> converter) {
+        this.session = session;
+        this.converter = converter;
+    }
+    
+    /**
+     * Returns the unique handle of the asynchronous request.
+     *
+     * @return The request handle, or 0 if the request has not yet been accepted by the server.
+     */
+    public int getHandle() {
+        return handle;
+    }
+    
+    /**
+     * Sets the handle assigned by the server. If the future was cancelled before the request was
+     * accepted, the request is aborted.
+     *
+     * @param handle The request handle.
+     */
+    void setHandle(int handle) {
+        this.handle = handle;
+        
+        if (isCancelled()) {
+            abort();
+        }
+    }
+    
+    /**
+     * Fails the future with a {@link TimeoutException} and aborts the remote procedure if a result
+     * has not been received within the specified time.
+     *
+     * @param timeout Maximum time to wait for the result.
+     * @param unit Time unit of the timeout.
+     * @return This future.
+     */
+    public RPCFuture<T> timeout(long timeout, TimeUnit unit) {
+        if (!isDone()) {
+            getTimer().schedule(new Runnable() {
+                
+                @Override
+                public void run() {
+                    if (completeExceptionally(new TimeoutException("Remote procedure call timed out."))) {
+                        abort();
+                    }
+                }
+                
+            }, timeout, unit);
+        }
+        
+        return this;
+    }
+    
+    /**
+     * Cancels the future and aborts the remote procedure.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        
+        if (cancelled) {
+            abort();
+        }
+        
+        return cancelled;
+    }
+    
+    /**
+     * Aborts the remote procedure, if the server has accepted it.
+     */
+    private void abort() {
+        int handle = this.handle;
+        
+        if (handle != 0) {
+            try {
+                session.callRPCAbort(handle);
+            } catch (RuntimeException e) {
+                // Nothing more can be done if the abort request fails.
+            }
+        }
+    }
+    
+    @Override
+    public void onRPCComplete(int handle, String data) {
+        try {
+            complete(converter.apply(data));
+        } catch (RuntimeException e) {
+            completeExceptionally(e);
+        }
+    }
+    
+    @Override
+    public void onRPCError(int handle, int code, String text) {
+        completeExceptionally(new RPCException(code, text));
+    }
+    
+}
@@ -0,0 +1,119 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.util.Arrays;
+
+import org.carewebframework.vista.mbroker.Request.Action;
+
+/**
+ * Identifies a remote procedure call by its name, version, calling context, parameters and,
+ * unless its result is the same for all users, the user issuing it, such that two calls with equal
+ * keys may be expected to return the same result. Parameters are compared in their encoded form.
+ */
+final class RPCKey {
+    
+    private final String name;
+    
+    private final String version;
+    
+    private final String context;
+    
+    private final byte[] params;
+    
+    private final int user;
+    
+    private final int hashCode;
+    
+    /**
+     * Creates the key for a prepared call.
+     *
+     * @param session The session issuing the call (supplies the default calling context).
+     * @param rpc The prepared call.
+     * @param params Parameters to be passed to the remote procedure. This may be null.
+     * @param shared If true, the result is the same for all users, so the key omits the user.
+     */
+    RPCKey(BrokerSession session, PreparedRPC rpc, RPCParameters params, boolean shared) {
+        this.name = rpc.getName();
+        this.version = rpc.getVersion();
+        this.context = rpc.getContext().isEmpty() ? session.getConnectionParams().getAppid() : rpc.getContext();
+        this.params = encode(params);
+        this.user = shared ? 0 : session.getUserId();
+        this.hashCode = ((name.hashCode() * 31 + context.hashCode()) * 31 + Arrays.hashCode(this.params)) * 31 + user;
+    }
+    
+    /**
+     * Encodes call parameters.
+     *
+     * @param params The parameters (may be null).
+     * @return The encoded parameters.
+     */
+    private static byte[] encode(RPCParameters params) {
+        if (params == null) {
+            return new byte[0];
+        }
+        
+        Request request = new Request(Action.RPC);
+        request.addParameters(params);
+        byte[] encoded = request.getEncodedParameters();
+        request.release();
+        return encoded;
+    }
+    
+    /**
+     * Returns the name of the remote procedure.
+     *
+     * @return The remote procedure name.
+     */
+    String getName() {
+        return name;
+    }
+    
+    @Override
+    public boolean equals(Object object) {
+        if (object == this) {
+            return true;
+        }
+        
+        if (!(object instanceof RPCKey)) {
+            return false;
+        }
+        
+        RPCKey key = (RPCKey) object;
+        return hashCode == key.hashCode && user == key.user && name.equals(key.name) && version.equals(key.version)
+                && context.equals(key.context) && Arrays.equals(params, key.params);
+    }
+    
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+    
+    @Override
+    public String toString() {
+        return name;
+    }
+}
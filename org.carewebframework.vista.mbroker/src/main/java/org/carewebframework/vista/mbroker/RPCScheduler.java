@@ -0,0 +1,680 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.carewebframework.common.MiscUtil;
+import org.carewebframework.vista.mbroker.Request.Action;
+
+/**
+ * Schedules remote procedure calls ahead of the transport, so that calls on which a user is
+ * waiting are not held up behind bulk or speculative work. Each remote procedure belongs to an
+ * {@link RPCClass} (typically interactive, background, polling or prefetch) that has a priority, a
+ * limit on the number of its calls in progress, a limit on the number of its calls waiting, and a
+ * deadline by which a waiting call must be admitted. No more than the scheduler's maximum number
+ * of calls, if any, are in progress at once. As each completes, the waiting call of highest
+ * priority whose class is below its limit is admitted, calls of equal priority being admitted in
+ * order of arrival. A call that arrives when its class already has the maximum number of calls waiting, or
+ * that is not admitted by its deadline, is shed: it fails with a
+ * {@link RejectedExecutionException} without being sent to the server.
+ * <p>
+ * Remote procedures are assigned to classes by name. Those not assigned to any class, as well as
+ * batches, belong to the default class, and background polls belong to the polling class. Calls
+ * that belong to no class (because the default or polling class does not exist) are not
+ * scheduled. The scheduler is attached to a broker session by
+ * {@link BrokerSession#setScheduler(RPCScheduler)} and governs all calls issued by that session,
+ * including those a pooled session dispatches to its member sessions. A scheduler shared by
+ * several sessions applies its limits to their calls together, so that a single scheduler can
+ * bound the load that all of the users of an application place on the server.
+ */
+public class RPCScheduler {
+    
+    /**
+     * A class of remote procedure calls that are scheduled alike.
+     */
+    public static class RPCClass {
+        
+        private String name;
+        
+        private int priority;
+        
+        private int maxConcurrent;
+        
+        private int maxQueued;
+        
+        private long deadline;
+        
+        private String[] rpcs = new String[0];
+        
+        public RPCClass() {
+            
+        }
+        
+        /**
+         * Creates a class of remote procedure calls.
+         *
+         * @param name Name of the class.
+         * @param priority Priority of the class. Calls of a class with a higher priority are
+         *            admitted first.
+         * @param rpcs Names of the remote procedures that belong to the class.
+         */
+        public RPCClass(String name, int priority, String... rpcs) {
+            this.name = name;
+            this.priority = priority;
+            setRpcs(rpcs);
+        }
+        
+        /**
+         * Returns the name of the class.
+         *
+         * @return Name of the class.
+         */
+        public String getName() {
+            return name;
+        }
+        
+        public void setName(String name) {
+            this.name = name;
+        }
+        
+        /**
+         * Returns the priority of the class. Calls of a class with a higher priority are admitted
+         * first.
+         *
+         * @return Priority of the class.
+         */
+        public int getPriority() {
+            return priority;
+        }
+        
+        public void setPriority(int priority) {
+            this.priority = priority;
+        }
+        
+        /**
+         * Returns the maximum number of calls of the class that may be in progress at once.
+         *
+         * @return Maximum number of calls in progress (0 = no limit).
+         */
+        public int getMaxConcurrent() {
+            return maxConcurrent;
+        }
+        
+        public void setMaxConcurrent(int maxConcurrent) {
+            this.maxConcurrent = maxConcurrent;
+        }
+        
+        /**
+         * Returns the maximum number of calls of the class that may be waiting for admission.
+         * Calls that arrive once this many are waiting are shed.
+         *
+         * @return Maximum number of waiting calls (0 = no limit).
+         */
+        public int getMaxQueued() {
+            return maxQueued;
+        }
+        
+        public void setMaxQueued(int maxQueued) {
+            this.maxQueued = maxQueued;
+        }
+        
+        /**
+         * Returns the time, in milliseconds, within which a call of the class must be admitted. A
+         * call that has not been admitted by then is shed. A call never waits longer than its own
+         * timeout.
+         *
+         * @return The deadline (0 = none).
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+        
+        public void setDeadline(long deadline) {
+            this.deadline = deadline;
+        }
+        
+        /**
+         * Returns the names of the remote procedures that belong to the class.
+         *
+         * @return Names of the remote procedures.
+         */
+        public String[] getRpcs() {
+            return rpcs;
+        }
+        
+        public void setRpcs(String[] rpcs) {
+            this.rpcs = rpcs == null ? new String[0] : rpcs;
+        }
+    }
+    
+    /**
+     * The scheduling state of a class.
+     */
+    final class Lane {
+        
+        private final RPCClass rpcClass;
+        
+        private final LinkedList<Waiter> queue = new LinkedList<>();
+        
+        private int running;
+        
+        private long admitted;
+        
+        private long shed;
+        
+        private Lane(RPCClass rpcClass) {
+            this.rpcClass = rpcClass;
+        }
+        
+        /**
+         * Signals the completion of a call admitted to this lane, allowing the next waiting call
+         * to be admitted.
+         */
+        void release() {
+            RPCScheduler.this.release(this);
+        }
+        
+        /**
+         * Returns true if another call of the class may be admitted.
+         *
+         * @return True if the class is below its limit.
+         */
+        private boolean hasCapacity() {
+            return rpcClass.getMaxConcurrent() <= 0 || running < rpcClass.getMaxConcurrent();
+        }
+    }
+    
+    /**
+     * A call waiting for admission.
+     */
+    private static final class Waiter {
+        
+        private final long sequence;
+        
+        private boolean admitted;
+        
+        private Waiter(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+    
+    private static final Comparator<Lane> BY_PRIORITY = new Comparator<Lane>() {
+        
+        @Override
+        public int compare(Lane lane1, Lane lane2) {
+            return Integer.compare(lane2.rpcClass.getPriority(), lane1.rpcClass.getPriority());
+        }
+        
+    };
+    
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    private final Condition admission = lock.newCondition();
+    
+    private List<Lane> lanes = Collections.emptyList();
+    
+    private Map<String, Lane> lanesByName = Collections.emptyMap();
+    
+    private Map<String, Lane> lanesByRPC = Collections.emptyMap();
+    
+    private String defaultClass = "interactive";
+    
+    private String pollingClass = "polling";
+    
+    private int maxConcurrent;
+    
+    private int running;
+    
+    private long sequence;
+    
+    /**
+     * Admits a request to the server, waiting if necessary. A deferrable request that cannot be
+     * admitted at once is shed without waiting.
+     *
+     * @param request The request.
+     * @param timeout The request's timeout, in milliseconds (0 = no timeout).
+     * @return The lane to be released once the request has completed, or null if the request is
+     *         not scheduled.
+     */
+    Lane acquire(Request request, int timeout) {
+        Action action = request.getAction();
+        
+        if (!request.isScheduled()) {
+            return null;
+        }
+        
+        if (action == Action.QUERY || action == Action.PING) {
+            return acquire(getLaneByName(pollingClass), "background poll", timeout, request.isDeferrable());
+        }
+        
+        if (action == Action.RPC || action == Action.BATCH) {
+            return acquire(getLane(request.getRPCName()), request.getRPCName(), timeout, request.isDeferrable());
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Admits a call to a remote procedure, waiting if necessary.
+     *
+     * @param rpcName Name of the remote procedure, with optional version and calling context. If
+     *            null, the call belongs to the default class.
+     * @param timeout The call's timeout, in milliseconds (0 = no timeout).
+     * @return The lane to be released once the call has completed, or null if the call is not
+     *         scheduled.
+     */
+    Lane acquire(String rpcName, int timeout) {
+        return acquire(getLane(rpcName), rpcName, timeout, false);
+    }
+    
+    /**
+     * Returns the lane of the class to which a remote procedure belongs.
+     *
+     * @param rpcName Name of the remote procedure, with optional version and calling context. If
+     *            null, the call belongs to the default class.
+     * @return The lane, or null if the call is not scheduled.
+     */
+    private Lane getLane(String rpcName) {
+        String name = rpcName == null ? "" : rpcName.split(":", 2)[0];
+        Lane lane;
+        
+        lock.lock();
+        
+        try {
+            lane = lanesByRPC.get(name);
+        } finally {
+            lock.unlock();
+        }
+        
+        return lane != null ? lane : getLaneByName(defaultClass);
+    }
+    
+    /**
+     * Admits a call of the specified class, waiting if necessary.
+     *
+     * @param lane The lane of the call's class (if null, the call is not scheduled).
+     * @param description Describes the call.
+     * @param timeout The call's timeout, in milliseconds (0 = no timeout).
+     * @param deferrable If true, the call is shed if it cannot be admitted at once.
+     * @return The lane, or null if the call is not scheduled.
+     */
+    private Lane acquire(Lane lane, String description, int timeout, boolean deferrable) {
+        if (lane == null) {
+            return null;
+        }
+        
+        long limit = lane.rpcClass.getDeadline();
+        limit = timeout > 0 && (limit <= 0 || timeout < limit) ? timeout : limit;
+        long expiration = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(limit);
+        
+        lock.lock();
+        
+        try {
+            int maxQueued = lane.rpcClass.getMaxQueued();
+            
+            if (maxQueued > 0 && lane.queue.size() >= maxQueued) {
+                lane.shed++;
+                throw new RejectedExecutionException(
+                        "Too many " + lane.rpcClass.getName() + " calls are waiting; shed " + description + ".");
+            }
+            
+            Waiter waiter = new Waiter(sequence++);
+            lane.queue.add(waiter);
+            dispatch();
+            
+            if (deferrable && !waiter.admitted) {
+                lane.queue.remove(waiter);
+                lane.shed++;
+                throw new RejectedExecutionException("A " + lane.rpcClass.getName()
+                        + " call could not be admitted at once; shed " + description + ".");
+            }
+            
+            while (!waiter.admitted) {
+                long wait = expiration - System.nanoTime();
+                
+                if (limit > 0 && wait <= 0) {
+                    lane.queue.remove(waiter);
+                    lane.shed++;
+                    throw new RejectedExecutionException("A " + lane.rpcClass.getName()
+                            + " call was not admitted in time; shed " + description + ".");
+                }
+                
+                try {
+                    if (limit > 0) {
+                        admission.awaitNanos(wait);
+                    } else {
+                        admission.await();
+                    }
+                } catch (InterruptedException e) {
+                    if (waiter.admitted) {
+                        release(lane);
+                    } else {
+                        lane.queue.remove(waiter);
+                    }
+                    
+                    Thread.currentThread().interrupt();
+                    throw MiscUtil.toUnchecked(e);
+                }
+            }
+            
+            lane.admitted++;
+            return lane;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Signals the completion of an admitted call, allowing the next waiting call to be admitted.
+     *
+     * @param lane The lane to which the call was admitted.
+     */
+    private void release(Lane lane) {
+        lock.lock();
+        
+        try {
+            lane.running--;
+            running--;
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Admits waiting calls in order of priority, and then of arrival, for as long as the limits
+     * allow. Must be called while holding the lock.
+     */
+    private void dispatch() {
+        boolean admitted = false;
+        
+        while (maxConcurrent <= 0 || running < maxConcurrent) {
+            Lane next = null;
+            
+            for (Lane lane : lanes) {
+                if (next != null && lane.rpcClass.getPriority() < next.rpcClass.getPriority()) {
+                    break;
+                }
+                
+                if (!lane.queue.isEmpty() && lane.hasCapacity()
+                        && (next == null || lane.queue.getFirst().sequence < next.queue.getFirst().sequence)) {
+                    next = lane;
+                }
+            }
+            
+            if (next == null) {
+                break;
+            }
+            
+            next.queue.removeFirst().admitted = true;
+            next.running++;
+            running++;
+            admitted = true;
+        }
+        
+        if (admitted) {
+            admission.signalAll();
+        }
+    }
+    
+    /**
+     * Returns the lane of the named class.
+     *
+     * @param className Name of the class.
+     * @return The lane, or null if no such class exists.
+     */
+    private Lane getLaneByName(String className) {
+        lock.lock();
+        
+        try {
+            return lanesByName.get(className);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the registered classes, in order of priority.
+     *
+     * @return The classes.
+     */
+    public List<RPCClass> getClasses() {
+        lock.lock();
+        
+        try {
+            List<RPCClass> classes = new ArrayList<>();
+            
+            for (Lane lane : lanes) {
+                classes.add(lane.rpcClass);
+            }
+            
+            return classes;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Registers classes, replacing all existing classes. Calls waiting in a class that is replaced
+     * are admitted at once.
+     *
+     * @param classes The classes.
+     */
+    public void setClasses(List<RPCClass> classes) {
+        List<Lane> lanes = new ArrayList<>();
+        Map<String, Lane> lanesByName = new HashMap<>();
+        Map<String, Lane> lanesByRPC = new HashMap<>();
+        
+        for (RPCClass rpcClass : classes) {
+            Lane lane = new Lane(rpcClass);
+            lanes.add(lane);
+            lanesByName.put(rpcClass.getName(), lane);
+            
+            for (String rpc : rpcClass.getRpcs()) {
+                lanesByRPC.put(rpc, lane);
+            }
+        }
+        
+        Collections.sort(lanes, BY_PRIORITY);
+        
+        lock.lock();
+        
+        try {
+            for (Lane lane : this.lanes) {
+                while (!lane.queue.isEmpty()) {
+                    lane.queue.removeFirst().admitted = true;
+                    lane.running++;
+                    running++;
+                }
+            }
+            
+            this.lanes = lanes;
+            this.lanesByName = lanesByName;
+            this.lanesByRPC = lanesByRPC;
+            admission.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Registers a class, in addition to the existing classes.
+     *
+     * @param rpcClass The class.
+     */
+    public void addClass(RPCClass rpcClass) {
+        List<RPCClass> classes = getClasses();
+        classes.add(rpcClass);
+        setClasses(classes);
+    }
+    
+    /**
+     * Returns the name of the class to which remote procedures not assigned to any class belong.
+     *
+     * @return Name of the default class.
+     */
+    public String getDefaultClass() {
+        return defaultClass;
+    }
+    
+    /**
+     * Sets the name of the class to which remote procedures not assigned to any class belong.
+     *
+     * @param defaultClass Name of the default class.
+     */
+    public void setDefaultClass(String defaultClass) {
+        this.defaultClass = defaultClass;
+    }
+    
+    /**
+     * Returns the name of the class to which background polls belong.
+     *
+     * @return Name of the polling class.
+     */
+    public String getPollingClass() {
+        return pollingClass;
+    }
+    
+    /**
+     * Sets the name of the class to which background polls belong.
+     *
+     * @param pollingClass Name of the polling class.
+     */
+    public void setPollingClass(String pollingClass) {
+        this.pollingClass = pollingClass;
+    }
+    
+    /**
+     * Returns the maximum number of scheduled calls, of all classes, that may be in progress at
+     * once.
+     *
+     * @return Maximum number of calls in progress (0 = no limit).
+     */
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+    
+    /**
+     * Sets the maximum number of scheduled calls, of all classes, that may be in progress at once.
+     * Priorities take effect only when calls must wait for this limit, so it should not exceed the
+     * number of calls the sessions sharing the scheduler can carry at once (the number of their
+     * connections times the number of calls each may have in flight); calls then wait here in
+     * order of priority rather than for a connection. For a scheduler shared by all of the
+     * sessions of an application, it bounds the load that the application places on the server.
+     * The default is no limit.
+     *
+     * @param maxConcurrent Maximum number of calls in progress (0 = no limit).
+     */
+    public void setMaxConcurrent(int maxConcurrent) {
+        lock.lock();
+        
+        try {
+            this.maxConcurrent = maxConcurrent;
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the number of calls of a class now in progress.
+     *
+     * @param className Name of the class.
+     * @return Number of calls in progress.
+     */
+    public int getRunning(String className) {
+        lock.lock();
+        
+        try {
+            Lane lane = lanesByName.get(className);
+            return lane == null ? 0 : lane.running;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the number of calls of a class now waiting for admission.
+     *
+     * @param className Name of the class.
+     * @return Number of waiting calls.
+     */
+    public int getQueued(String className) {
+        lock.lock();
+        
+        try {
+            Lane lane = lanesByName.get(className);
+            return lane == null ? 0 : lane.queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the number of calls of a class that have been admitted.
+     *
+     * @param className Name of the class.
+     * @return Number of admitted calls.
+     */
+    public long getAdmittedCount(String className) {
+        lock.lock();
+        
+        try {
+            Lane lane = lanesByName.get(className);
+            return lane == null ? 0 : lane.admitted;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the number of calls of a class that have been shed.
+     *
+     * @param className Name of the class.
+     * @return Number of shed calls.
+     */
+    public long getShedCount(String className) {
+        lock.lock();
+        
+        try {
+            Lane lane = lanesByName.get(className);
+            return lane == null ? 0 : lane.shed;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -27,7 +27,10 @@ package org.carewebframework.vista.mbroker;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import org.carewebframework.vista.mbroker.RPCParameter.HasData;
@@ -43,14 +46,15 @@ public class Request {
             'Q', // query
             'R', // RPC call
             'S', // subscribe
-            'U' // unsubscribe
+            'U', // unsubscribe
+            'B' // batch
     };
     
     private static final String[] ACTION_TEXT = { "Connect", "Disconnect", "Ping", "Query", "Remote Procedure Call",
-            "Subscribe", "Unsubscribe" };
+            "Subscribe", "Unsubscribe", "Batch" };
     
     public static enum Action {
-        CONNECT, DISCONNECT, PING, QUERY, RPC, SUBSCRIBE, UNSUBSCRIBE;
+        CONNECT, DISCONNECT, PING, QUERY, RPC, SUBSCRIBE, UNSUBSCRIBE, BATCH;
         
         public String getText() {
             return ACTION_TEXT[this.ordinal()];
@@ -63,12 +67,39 @@ public class Request {
     
     private static final byte[] PREAMBLE = new byte[] { '{', 'R', 'G', 'N', '}', Constants.EOD };
     
+    private static final byte[] TRAILER = new byte[] { Constants.EOD };
+    
+    /**
+     * The size of the fixed header of a length-prefixed (protocol version 2) frame.
+     */
+    static final int FRAME_HEADER_SIZE = 9;
+    
     private final Action action;
     
-    private byte sequenceId;
+    private int sequenceId;
     
     private final DynamicByteBuffer buffer = new DynamicByteBuffer();
     
+    private boolean released;
+    
+    private boolean reusable;
+    
+    private boolean deferrable;
+    
+    private boolean scheduled = true;
+    
+    private String rpcName;
+    
+    private String rpcContext;
+    
+    private int size;
+    
+    private long sendTime;
+    
+    private int uncompressedSize;
+    
+    private long compressionTime;
+    
     public Request(Action action) {
         this.action = action;
     }
@@ -80,36 +111,100 @@ public class Request {
      */
     private void pack(String data) {
         byte[] bytes = data.getBytes(Constants.UTF8);
-        buffer.put(getLengthDescriptor(bytes.length));
-        buffer.put(bytes);
+        putLengthDescriptor(bytes.length);
+        buffer.put(bytes, 0, bytes.length);
     }
     
     /**
-     * Returns the length descriptor for a data packet. Length descriptor consists of a descriptor
+     * Writes the length descriptor for a data packet. Length descriptor consists of a descriptor
      * length byte whose high nybble is the number of additional bytes in the descriptor and whose
      * low nybble is the low nybble of the data length value. The additional descriptor bytes (if
-     * any) form the rest of the data length value from low byte to high byte.
+     * any) form the rest of the data length value from high byte to low byte.
      *
      * @param length The length to be encoded.
-     * @return The length descriptor.
      */
-    private byte[] getLengthDescriptor(int length) {
+    private void putLengthDescriptor(int length) {
+        int high = length >>> 4;
         int c = 0;
-        int j = length & 15;
-        length = length >> 4;
-        int max = 9;
-        byte[] result = new byte[max + 1];
-        
-        while (length > 0) {
-            byte b = (byte) (length & 255);
-            result[max - c] = b;
-            length = length >> 8;
+        
+        for (int i = high; i > 0; i >>>= 8) {
             c++;
         }
         
-        byte b = (byte) ((c << 4) + j);
-        result[max - c] = b;
-        return Arrays.copyOfRange(result, max - c, max + 1);
+        buffer.put((byte) ((c << 4) + (length & 15)));
+        
+        while (c-- > 0) {
+            buffer.put((byte) (high >>> (c * 8)));
+        }
+    }
+    
+    /**
+     * Adds parameters that have already been encoded, as returned by
+     * {@link #getEncodedParameters()}.
+     *
+     * @param encoded The encoded parameters.
+     */
+    void addEncodedParameters(byte[] encoded) {
+        buffer.put(encoded, 0, encoded.length);
+    }
+    
+    /**
+     * Returns the parameters added so far in encoded form, so that they may be added to other
+     * requests without being encoded again.
+     *
+     * @return The encoded parameters.
+     */
+    byte[] getEncodedParameters() {
+        return buffer.toArray();
+    }
+    
+    /**
+     * Decodes parameters encoded by a request, as returned by {@link #getEncodedParameters()}.
+     * Decoding stops at the first end of data marker, so only the first call of a batch request is
+     * decoded.
+     *
+     * @param encoded The encoded parameters.
+     * @return The parameters, each as an array of name, subscript and value.
+     */
+    static List<String[]> decodeParameters(byte[] encoded) {
+        List<String[]> parameters = new ArrayList<>();
+        int[] pos = { 0 };
+        
+        while (pos[0] < encoded.length && encoded[pos[0]] != Constants.EOD) {
+            parameters.add(new String[] { unpack(encoded, pos), unpack(encoded, pos), unpack(encoded, pos) });
+        }
+        
+        return parameters;
+    }
+    
+    /**
+     * Unpacks an argument written by {@link #pack(String)}.
+     *
+     * @param encoded The encoded data.
+     * @param pos The position of the length descriptor, updated to follow the argument.
+     * @return The argument.
+     */
+    private static String unpack(byte[] encoded, int[] pos) {
+        int b = encoded[pos[0]++] & 0xFF;
+        int high = 0;
+        
+        for (int c = b >>> 4; c > 0; c--) {
+            high = (high << 8) | (encoded[pos[0]++] & 0xFF);
+        }
+        
+        int length = (high << 4) | (b & 15);
+        String data = new String(encoded, pos[0], length, Constants.UTF8);
+        pos[0] += length;
+        return data;
+    }
+    
+    /**
+     * Marks the end of the parameters for one call within a batch request. Each call's parameters
+     * are terminated by an end of data marker, and the frame's own trailer then follows the last
+     * call, so that the server sees an empty parameter list at the end of the batch.
+     */
+    void endCall() {
+        buffer.put(Constants.EOD);
     }
     
     /**
@@ -205,7 +300,7 @@ public class Request {
      * 
      * @return The sequence id.
      */
-    public byte getSequenceId() {
+    public int getSequenceId() {
         return sequenceId;
     }
     
@@ -217,11 +312,315 @@ public class Request {
      * @throws IOException An IO exception.
      */
     public void write(DataOutputStream stream, byte sequenceId) throws IOException {
+        write(stream, sequenceId, false);
+    }
+    
+    /**
+     * Write request components to output stream.
+     * 
+     * @param stream Output stream.
+     * @param sequenceId Sequence identifier for packet.
+     * @param wideSequence If true, the sequence identifier is written as a 32-bit value (pipelined
+     *            mode). Otherwise, it is written as a single byte.
+     * @throws IOException An IO exception.
+     */
+    public void write(DataOutputStream stream, int sequenceId, boolean wideSequence) throws IOException {
+        checkReleased();
         this.sequenceId = sequenceId;
+        sent(PREAMBLE.length + (wideSequence ? 5 : 2) + buffer.getSize() + TRAILER.length);
         stream.write(PREAMBLE);
-        stream.write(sequenceId);
+        
+        if (wideSequence) {
+            stream.writeInt(sequenceId);
+        } else {
+            stream.write(sequenceId);
+        }
+        
         stream.write(action.getCode());
-        stream.write(buffer.toArray());
+        buffer.writeTo(stream);
         stream.write(Constants.EOD);
     }
+    
+    /**
+     * Returns the request as a sequence of byte buffers comprising the complete frame, suitable for
+     * a gathering write to a channel. The parameter data is not copied; the byte buffers are views
+     * over the request's own storage and are valid only until the request is released.
+     * 
+     * @param sequenceId Sequence identifier for packet.
+     * @param wideSequence If true, the sequence identifier is written as a 32-bit value (pipelined
+     *            mode). Otherwise, it is written as a single byte.
+     * @return Byte buffers containing the request frame.
+     */
+    public ByteBuffer[] toByteBuffers(int sequenceId, boolean wideSequence) {
+        checkReleased();
+        this.sequenceId = sequenceId;
+        sent(PREAMBLE.length + (wideSequence ? 5 : 2) + buffer.getSize() + TRAILER.length);
+        List<ByteBuffer> data = buffer.toByteBuffers();
+        ByteBuffer[] frame = new ByteBuffer[data.size() + 2];
+        ByteBuffer header = ByteBuffer.allocate(PREAMBLE.length + (wideSequence ? 5 : 2));
+        header.put(PREAMBLE);
+        
+        if (wideSequence) {
+            header.putInt(sequenceId);
+        } else {
+            header.put((byte) sequenceId);
+        }
+        
+        header.put(action.getCode());
+        header.flip();
+        frame[0] = header;
+        
+        for (int i = 0; i < data.size(); i++) {
+            frame[i + 1] = data.get(i);
+        }
+        
+        frame[frame.length - 1] = ByteBuffer.wrap(TRAILER);
+        return frame;
+    }
+    
+    /**
+     * Write the request to an output stream as a length-prefixed (protocol version 2) frame. The
+     * frame has a fixed header consisting of the length of the remainder of the frame (4 bytes),
+     * the sequence id (4 bytes) and the action code (1 byte), followed by the encoded parameters.
+     * There is no preamble or trailer, so the server may read the frame without scanning it.
+     *
+     * @param stream Output stream.
+     * @param sequenceId Sequence identifier for packet.
+     * @param compressionThreshold Parameters of at least this size, in bytes, are compressed (0
+     *            for no compression).
+     * @throws IOException An IO exception.
+     */
+    public void writeFramed(DataOutputStream stream, int sequenceId, int compressionThreshold) throws IOException {
+        checkReleased();
+        this.sequenceId = sequenceId;
+        byte[] compressed = compress(compressionThreshold);
+        int length = compressed == null ? buffer.getSize() : compressed.length;
+        sent(FRAME_HEADER_SIZE + length);
+        stream.writeInt(FRAME_HEADER_SIZE - 4 + length);
+        stream.writeInt(sequenceId);
+        
+        if (compressed == null) {
+            stream.write(action.getCode());
+            buffer.writeTo(stream);
+        } else {
+            stream.write(action.getCode() | FrameCompression.FLAG);
+            stream.write(compressed);
+        }
+    }
+    
+    /**
+     * Returns the request as a sequence of byte buffers comprising a complete length-prefixed
+     * (protocol version 2) frame, as written by {@link #writeFramed}. As with
+     * {@link #toByteBuffers}, the parameter data is not copied unless it is compressed.
+     *
+     * @param sequenceId Sequence identifier for packet.
+     * @param compressionThreshold Parameters of at least this size, in bytes, are compressed (0
+     *            for no compression).
+     * @return Byte buffers containing the request frame.
+     */
+    public ByteBuffer[] toFramedByteBuffers(int sequenceId, int compressionThreshold) {
+        checkReleased();
+        this.sequenceId = sequenceId;
+        byte[] compressed = compress(compressionThreshold);
+        int length = compressed == null ? buffer.getSize() : compressed.length;
+        sent(FRAME_HEADER_SIZE + length);
+        List<ByteBuffer> data = compressed == null ? buffer.toByteBuffers()
+                : Collections.singletonList(ByteBuffer.wrap(compressed));
+        ByteBuffer[] frame = new ByteBuffer[data.size() + 1];
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        header.putInt(FRAME_HEADER_SIZE - 4 + length);
+        header.putInt(sequenceId);
+        header.put((byte) (compressed == null ? action.getCode() : action.getCode() | FrameCompression.FLAG));
+        header.flip();
+        frame[0] = header;
+        
+        for (int i = 0; i < data.size(); i++) {
+            frame[i + 1] = data.get(i);
+        }
+        
+        return frame;
+    }
+    
+    /**
+     * Compresses the encoded parameters if they meet the compression threshold.
+     *
+     * @param compressionThreshold The compression threshold, in bytes (0 for no compression).
+     * @return The compressed parameters, or null if they are not to be compressed.
+     */
+    private byte[] compress(int compressionThreshold) {
+        uncompressedSize = 0;
+        compressionTime = 0;
+        
+        if (compressionThreshold <= 0 || buffer.getSize() < compressionThreshold) {
+            return null;
+        }
+        
+        long start = System.nanoTime();
+        byte[] compressed = FrameCompression.compress(buffer.toArray());
+        compressionTime = System.nanoTime() - start;
+        uncompressedSize = compressed == null ? 0 : buffer.getSize();
+        return compressed;
+    }
+    
+    /**
+     * Records the time at which, and the size of the frame in which, the request was handed to the
+     * connection.
+     *
+     * @param size The size of the frame in bytes.
+     */
+    private void sent(int size) {
+        this.size = size;
+        sendTime = System.nanoTime();
+    }
+    
+    /**
+     * Returns the name of the remote procedure invoked by the request, if known.
+     *
+     * @return The remote procedure name (may be null).
+     */
+    String getRPCName() {
+        return rpcName;
+    }
+    
+    /**
+     * Returns the calling context of the remote procedure invoked by the request, if known.
+     *
+     * @return The calling context (may be null).
+     */
+    String getRPCContext() {
+        return rpcContext;
+    }
+    
+    /**
+     * Sets the name and calling context of the remote procedure invoked by the request. These are
+     * used for diagnostics only and are not sent to the server.
+     *
+     * @param rpcName The remote procedure name.
+     * @param rpcContext The calling context.
+     */
+    void setRPC(String rpcName, String rpcContext) {
+        this.rpcName = rpcName;
+        this.rpcContext = rpcContext;
+    }
+    
+    /**
+     * Returns the size, in bytes, of the frame in which the request was last sent.
+     *
+     * @return The frame size, or 0 if the request has not been sent.
+     */
+    int getSize() {
+        return size;
+    }
+    
+    /**
+     * Returns the size, in bytes, of the parameters of the request before they were compressed.
+     *
+     * @return The uncompressed size, or 0 if the request was not compressed when last sent.
+     */
+    int getUncompressedSize() {
+        return uncompressedSize;
+    }
+    
+    /**
+     * Returns the time spent compressing the request when it was last sent.
+     *
+     * @return The compression time in nanoseconds.
+     */
+    long getCompressionTime() {
+        return compressionTime;
+    }
+    
+    /**
+     * Returns the value of {@link System#nanoTime()} when the request was last handed to the
+     * connection. The interval between the caller's issuing a request and this time is spent
+     * waiting for exclusive use of the connection.
+     *
+     * @return The send time, or 0 if the request has not been sent.
+     */
+    long getSendTime() {
+        return sendTime;
+    }
+    
+    /**
+     * Returns the request's storage to the buffer pool. The request may not be sent again once it
+     * has been released. Transports release a request once it has been written. Has no effect on a
+     * reusable request.
+     */
+    public void release() {
+        if (!reusable) {
+            released = true;
+            buffer.release();
+        }
+    }
+    
+    /**
+     * Returns true if the request may be sent more than once.
+     *
+     * @return True if the request is reusable.
+     */
+    public boolean isReusable() {
+        return reusable;
+    }
+    
+    /**
+     * Set to true if the request is to be sent more than once. A reusable request retains its
+     * storage after it has been sent.
+     *
+     * @param reusable True if the request is reusable.
+     */
+    public void setReusable(boolean reusable) {
+        this.reusable = reusable;
+    }
+    
+    /**
+     * Returns true if the request is to be abandoned, rather than wait, when it cannot be sent at
+     * once.
+     *
+     * @return True if the request is deferrable.
+     */
+    public boolean isDeferrable() {
+        return deferrable;
+    }
+    
+    /**
+     * Set to true if the request is to be abandoned, rather than wait, when its connection is busy
+     * with another request or it is not admitted at once by the session's scheduler. An abandoned
+     * request fails with a {@link java.util.concurrent.RejectedExecutionException} and may be
+     * tried again later. Background polls are deferrable, so that the threads shared by all
+     * sessions' polls never wait behind a long running call.
+     *
+     * @param deferrable True if the request is deferrable.
+     */
+    public void setDeferrable(boolean deferrable) {
+        this.deferrable = deferrable;
+    }
+    
+    /**
+     * Returns true if the request must be admitted by the session's scheduler, if any, before it is
+     * sent.
+     *
+     * @return True if the request is scheduled.
+     */
+    public boolean isScheduled() {
+        return scheduled;
+    }
+    
+    /**
+     * Set to false if the request is to be sent without being admitted by the session's scheduler,
+     * as when it is issued on behalf of a call that the scheduler has already admitted.
+     *
+     * @param scheduled True if the request is scheduled.
+     */
+    public void setScheduled(boolean scheduled) {
+        this.scheduled = scheduled;
+    }
+    
+    /**
+     * Throws an exception if the request has been released.
+     */
+    private void checkReleased() {
+        if (released) {
+            throw new IllegalStateException("Request has already been sent.");
+        }
+    }
 }
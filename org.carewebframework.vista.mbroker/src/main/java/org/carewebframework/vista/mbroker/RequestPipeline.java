@@ -0,0 +1,263 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.carewebframework.vista.mbroker.ResponseDecoder.IPendingLookup;
+
+/**
+ * Allows multiple requests to be in flight on a single connection. Requests are written back to
+ * back, each tagged with a 32-bit sequence id. A background reader thread consumes responses as
+ * they arrive and hands each to the caller waiting on the matching sequence id. Used only when the
+ * server has agreed to the {@link ServerCaps.Capability#PIPELINE PIPELINE} capability. Frames are
+ * length-prefixed if the server has also agreed to the {@link ServerCaps.Capability#FRAMED FRAMED}
+ * capability, and may then be compressed.
+ */
+class RequestPipeline implements Runnable {
+    
+    private static final Log log = LogFactory.getLog(RequestPipeline.class);
+    
+    private final Socket socket;
+    
+    private final boolean framed;
+    
+    private final int compressionThreshold;
+    
+    private final DataOutputStream requestStream;
+    
+    private final InputStream responseStream;
+    
+    private final Map<Integer, PendingResponse> pending = new ConcurrentHashMap<>();
+    
+    private final ResponseDecoder decoder = new ResponseDecoder(new IPendingLookup() {
+        
+        @Override
+        public PendingResponse getPending(int sequenceId) {
+            return pending.get(sequenceId);
+        }
+        
+    });
+    
+    private final Thread reader;
+    
+    private final ReentrantLock writeLock = new ReentrantLock();
+    
+    private int sequence;
+    
+    private volatile IOException failure;
+    
+    /**
+     * Creates a pipeline over an established connection and starts its reader thread.
+     *
+     * @param socket The connected socket.
+     * @param framed If true, use length-prefixed (protocol version 2) frames.
+     * @param compressionThreshold Requests of at least this size, in bytes, are compressed (0 for
+     *            no compression).
+     * @throws IOException An IO exception.
+     */
+    RequestPipeline(Socket socket, boolean framed, int compressionThreshold) throws IOException {
+        this.socket = socket;
+        this.framed = framed;
+        this.compressionThreshold = compressionThreshold;
+        socket.setSoTimeout(0);
+        requestStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        responseStream = socket.getInputStream();
+        reader = new Thread(this, "MBrokerPipelineReader-" + socket.getLocalPort());
+        reader.setDaemon(true);
+        reader.start();
+    }
+    
+    /**
+     * Sends a request and waits for its response. Other callers may send requests while this one
+     * is waiting.
+     *
+     * @param request Request to be sent.
+     * @param timeout The timeout, in milliseconds, to await a response (0 = no timeout).
+     * @param consumer If not null, consumer to receive the response data as it arrives.
+     * @return Response returned by the server.
+     * @throws IOException An IO exception, including a timeout.
+     * @throws InterruptedException If the caller was interrupted while waiting.
+     */
+    Response call(Request request, int timeout, ILineConsumer consumer) throws IOException, InterruptedException {
+        PendingResponse pendingRequest = consumer == null ? new PendingResponse()
+                : new StreamingResponse(consumer, false);
+        int sequenceId;
+        
+        writeLock.lock();
+        
+        try {
+            if (failure != null) {
+                request.release();
+                checkFailure();
+            }
+            
+            sequenceId = nextSequenceId();
+            pending.put(sequenceId, pendingRequest);
+            
+            try {
+                if (framed) {
+                    request.writeFramed(requestStream, sequenceId, compressionThreshold);
+                } else {
+                    request.write(requestStream, sequenceId, true);
+                }
+                
+                requestStream.flush();
+            } catch (IOException e) {
+                pending.remove(sequenceId);
+                fail(e);
+                throw e;
+            } finally {
+                request.release();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        
+        try {
+            return pendingRequest.await(timeout);
+        } finally {
+            pending.remove(sequenceId);
+        }
+    }
+    
+    /**
+     * Returns the next sequence id. Sequence ids are positive and wrap around on overflow, skipping
+     * any still awaiting a response.
+     *
+     * @return Sequence id.
+     */
+    private int nextSequenceId() {
+        do {
+            sequence = sequence == Integer.MAX_VALUE ? 1 : sequence + 1;
+        } while (pending.containsKey(sequence));
+        
+        return sequence;
+    }
+    
+    /**
+     * Throws the exception that caused the pipeline to fail, if any.
+     *
+     * @throws IOException The failure exception.
+     */
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Pipelined connection has failed.", failure);
+        }
+    }
+    
+    /**
+     * Marks the pipeline as failed, closes the underlying connection, and fails all pending
+     * requests.
+     *
+     * @param e The cause of failure.
+     */
+    private void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+            
+            try {
+                socket.close();
+            } catch (IOException e2) {}
+        }
+        
+        List<PendingResponse> requests = new ArrayList<>(pending.values());
+        pending.clear();
+        
+        for (PendingResponse request : requests) {
+            request.complete(null, e);
+        }
+    }
+    
+    /**
+     * Returns true if the pipeline has not failed.
+     *
+     * @return True if the pipeline is usable.
+     */
+    boolean isOpen() {
+        return failure == null;
+    }
+    
+    /**
+     * Closes the pipeline. Pending requests fail.
+     */
+    void close() {
+        fail(new IOException("Pipelined connection was closed."));
+    }
+    
+    /**
+     * Reads responses and dispatches each to the waiting caller. Responses for which no caller is
+     * waiting (e.g., because the caller timed out) are discarded.
+     */
+    @Override
+    public void run() {
+        try {
+            while (failure == null) {
+                if (decoder.read(responseStream) < 0) {
+                    throw new EOFException("Connection closed by server.");
+                }
+                
+                Response response;
+                
+                while ((response = framed ? decoder.nextFramed() : decoder.next(true)) != null) {
+                    dispatch(response);
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+        
+        decoder.reset();
+        log.debug(reader.getName() + " has exited.");
+    }
+    
+    /**
+     * Hands a response to the caller waiting on its sequence id.
+     *
+     * @param response The response.
+     */
+    private void dispatch(Response response) {
+        PendingResponse request = pending.remove(response.getSequenceId());
+        
+        if (request != null) {
+            request.complete(response, null);
+        } else {
+            log.debug("Discarding response for unknown sequence id: " + response.getSequenceId());
+        }
+    }
+}
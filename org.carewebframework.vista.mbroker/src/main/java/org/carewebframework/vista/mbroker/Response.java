@@ -27,9 +27,11 @@ package org.carewebframework.vista.mbroker;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
- * A response received from the host server.
+ * A response received from the host server. The payload is held as the raw bytes received and is
+ * decoded to a string only when first requested.
  */
 public class Response {
     
@@ -37,11 +39,19 @@ public class Response {
         ACK, ERROR, ASYNC, EVENT
     };
     
+    private static final byte[] NO_DATA = new byte[0];
+    
     private ResponseType responseType;
     
-    private final String data;
+    private final byte[] payload;
+    
+    private String data;
+    
+    private Integer sequenceId;
+    
+    private int compressedSize;
     
-    private Byte sequenceId;
+    private long compressionTime;
     
     /**
      * Creates a response from an input stream.
@@ -50,36 +60,48 @@ public class Response {
      * @throws IOException An IO exception.
      */
     public Response(DataInputStream stream) throws IOException {
-        int bufsize = 100;
-        byte[] temp = new byte[bufsize];
-        DynamicByteBuffer buffer = new DynamicByteBuffer(bufsize, 1000);
-        int bytesRead;
-        boolean eod = false;
-        
-        while (!eod && (bytesRead = stream.read(temp)) > -1) {
-            int offset = 0;
-            
-            if (bytesRead > 0 && temp[bytesRead - 1] == Constants.EOD) {
-                eod = true;
-                bytesRead--;
-            }
-            
-            if (bytesRead > 0 && sequenceId == null) {
-                sequenceId = temp[offset++];
-                bytesRead--;
-            }
-            
-            if (bytesRead > 0 && responseType == null) {
-                responseType = getResponseType(temp[offset++]);
-                bytesRead--;
-            }
-            
-            if (bytesRead > 0) {
-                buffer.put(temp, offset, offset + bytesRead);
-            }
-        }
-        
-        data = new String(buffer.toArray(), Constants.UTF8);
+        this(stream, false);
+    }
+    
+    /**
+     * Creates a response from an input stream that may contain additional responses (pipelined
+     * mode). Exactly one response is consumed from the stream.
+     *
+     * @param stream The input stream.
+     * @param wideSequence If true, the sequence id is read as a 32-bit value. Otherwise, it is read
+     *            as a single byte.
+     * @throws IOException An IO exception.
+     */
+    public Response(DataInputStream stream, boolean wideSequence) throws IOException {
+        this(ResponseDecoder.read(stream, wideSequence));
+    }
+    
+    /**
+     * Creates a response from its decoded components. The response takes ownership of the payload.
+     *
+     * @param sequenceId The sequence id.
+     * @param code The response code.
+     * @param payload The raw response data.
+     * @throws IOException An IO exception.
+     */
+    Response(int sequenceId, int code, byte[] payload) throws IOException {
+        this.sequenceId = sequenceId;
+        this.responseType = getResponseType(code);
+        this.payload = payload.length == 0 ? NO_DATA : payload;
+    }
+    
+    /**
+     * Copy constructor.
+     *
+     * @param source Source from which to copy.
+     */
+    private Response(Response source) {
+        sequenceId = source.sequenceId;
+        responseType = source.responseType;
+        payload = source.payload;
+        data = source.data;
+        compressedSize = source.compressedSize;
+        compressionTime = source.compressionTime;
     }
     
     /**
@@ -104,6 +126,7 @@ public class Response {
     public Response(Throwable e) {
         responseType = ResponseType.ERROR;
         data = e.toString();
+        payload = data.getBytes(Constants.UTF8);
     }
     
     /**
@@ -116,15 +139,81 @@ public class Response {
     }
     
     /**
-     * Returns the response data.
+     * Returns the response data. The data is decoded from the payload on first request.
      *
      * @return The response data.
      */
     public String getData() {
+        if (data == null) {
+            data = new String(payload, Constants.UTF8);
+        }
+        
         return data;
     }
     
-    public byte getSequenceId() {
+    /**
+     * Returns the response data as a character sequence. If the payload consists entirely of ASCII
+     * characters, as is typical, the sequence is a view over the payload and no decoding is
+     * performed. Otherwise, the decoded string is returned.
+     *
+     * @return The response data.
+     */
+    public CharSequence getCharSequence() {
+        if (data == null && AsciiCharSequence.isAscii(payload, 0, payload.length)) {
+            return new AsciiCharSequence(payload, 0, payload.length);
+        }
+        
+        return getData();
+    }
+    
+    /**
+     * Returns a read-only view of the raw (UTF-8 encoded) response data.
+     *
+     * @return The raw response data.
+     */
+    public ByteBuffer getPayload() {
+        return ByteBuffer.wrap(payload).asReadOnlyBuffer();
+    }
+    
+    /**
+     * Returns the size of the raw response data.
+     *
+     * @return The payload size in bytes.
+     */
+    int getPayloadSize() {
+        return payload.length;
+    }
+    
+    /**
+     * Returns the size of the response data as received, if it was compressed.
+     *
+     * @return The compressed size in bytes, or 0 if the response was not compressed.
+     */
+    int getCompressedSize() {
+        return compressedSize;
+    }
+    
+    /**
+     * Returns the time spent decompressing the response data.
+     *
+     * @return The decompression time in nanoseconds.
+     */
+    long getCompressionTime() {
+        return compressionTime;
+    }
+    
+    /**
+     * Records that the response data was received compressed.
+     *
+     * @param compressedSize The size of the data as received.
+     * @param compressionTime The time spent decompressing the data, in nanoseconds.
+     */
+    void setCompression(int compressedSize, long compressionTime) {
+        this.compressedSize = compressedSize;
+        this.compressionTime = compressionTime;
+    }
+    
+    public int getSequenceId() {
         return sequenceId == null ? 0 : sequenceId;
     }
     
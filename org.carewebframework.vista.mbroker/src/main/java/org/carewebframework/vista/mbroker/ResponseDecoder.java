@@ -0,0 +1,549 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.carewebframework.vista.mbroker.Response.ResponseType;
+
+/**
+ * Extracts responses from the data received on a connection. Data is read in bulk into pooled
+ * buffers, which are scanned for the end of data marker. A response larger than a single buffer
+ * spans several pooled buffers, which are returned to the pool once the response is complete. The
+ * payload is copied only once, into the response itself. Buffers are held only while data is
+ * pending, so an idle connection holds none. A successful response to a request that is
+ * {@link IResponseStream streamed} is not assembled at all; its data is handed to the
+ * request as it arrives.
+ * <p>
+ * Length-prefixed (protocol version 2) responses are not scanned. Once a response's header has
+ * been read, its payload is allocated at its final size and filled directly: data already in the
+ * read buffer is copied once, and the remainder is read from the connection straight into the
+ * payload. A compressed response is decompressed once complete, and is never streamed as it
+ * arrives. A decoder is not thread safe and must only be used by the thread reading from the
+ * connection.
+ */
+class ResponseDecoder {
+    
+    /**
+     * Locates the request awaiting a response.
+     */
+    interface IPendingLookup {
+        
+        /**
+         * Returns the request awaiting the response with the specified sequence id.
+         *
+         * @param sequenceId The sequence id.
+         * @return The waiting request, or null if none.
+         */
+        PendingResponse getPending(int sequenceId);
+        
+    }
+    
+    private final IPendingLookup lookup;
+    
+    private byte[] buffer; // The current buffer
+    
+    private final List<byte[]> spill = new ArrayList<>(); // Full buffers holding the start of the current response
+    
+    private int spilled; // Number of bytes in full buffers
+    
+    private int start; // Start of unconsumed data in current buffer
+    
+    private int end; // End of unconsumed data in current buffer
+    
+    private int scan; // Position from which to resume scanning for the end of data marker
+    
+    private boolean inspected; // True if the header of the current response has been examined
+    
+    private IResponseStream streamTarget; // Request receiving the current response as it arrives
+    
+    private int streamSequenceId; // Sequence id of the response being streamed
+    
+    private byte[] payload; // Payload of the length-prefixed response being received
+    
+    private int filled; // Number of bytes of the payload received
+    
+    private int remaining; // Number of bytes of the length-prefixed response being streamed still to come
+    
+    private int frameSequenceId; // Sequence id of the length-prefixed response being received
+    
+    private int frameCode; // Response code of the length-prefixed response being received
+    
+    private boolean frameCompressed; // True if the length-prefixed response being received is compressed
+    
+    /**
+     * Creates a decoder that assembles every response.
+     */
+    ResponseDecoder() {
+        this(null);
+    }
+    
+    /**
+     * Creates a decoder that streams responses to requests that ask for it.
+     *
+     * @param lookup Locates the request awaiting a response (may be null).
+     */
+    ResponseDecoder(IPendingLookup lookup) {
+        this.lookup = lookup;
+    }
+    
+    /**
+     * Reads a single response from an input stream that may contain other data. Reads no further
+     * than the response's end of data marker.
+     *
+     * @param stream The input stream.
+     * @param wideSequence If true, the response has a 32-bit sequence id. Otherwise, it has a single
+     *            byte sequence id.
+     * @return The response.
+     * @throws IOException An IO exception.
+     */
+    static Response read(InputStream stream, boolean wideSequence) throws IOException {
+        ResponseDecoder decoder = new ResponseDecoder();
+        Response response;
+        
+        while ((response = decoder.next(wideSequence)) == null) {
+            int b = stream.read();
+            
+            if (b < 0) {
+                decoder.reset();
+                throw new EOFException("Connection closed by server.");
+            }
+            
+            decoder.ensureCapacity();
+            decoder.buffer[decoder.end++] = (byte) b;
+        }
+        
+        return response;
+    }
+    
+    /**
+     * Returns the size of a response's header (the sequence id and response type).
+     *
+     * @param wideSequence If true, the response has a 32-bit sequence id.
+     * @return The header size in bytes.
+     */
+    private static int getHeaderSize(boolean wideSequence) {
+        return wideSequence ? 5 : 2;
+    }
+    
+    /**
+     * Reads whatever data is available from a channel.
+     *
+     * @param channel The channel.
+     * @return The number of bytes read, or -1 at end of stream.
+     * @throws IOException An IO exception.
+     */
+    int read(ReadableByteChannel channel) throws IOException {
+        if (payload != null && start == end) {
+            return fill(channel.read(ByteBuffer.wrap(payload, filled, payload.length - filled)));
+        }
+        
+        ensureCapacity();
+        return advance(channel.read(ByteBuffer.wrap(buffer, end, buffer.length - end)));
+    }
+    
+    /**
+     * Reads whatever data is available from an input stream, blocking until at least one byte is
+     * available.
+     *
+     * @param stream The input stream.
+     * @return The number of bytes read, or -1 at end of stream.
+     * @throws IOException An IO exception.
+     */
+    int read(InputStream stream) throws IOException {
+        if (payload != null && start == end) {
+            return fill(stream.read(payload, filled, payload.length - filled));
+        }
+        
+        ensureCapacity();
+        return advance(stream.read(buffer, end, buffer.length - end));
+    }
+    
+    /**
+     * Updates the end of data after a read, releasing the buffer if it holds no data.
+     *
+     * @param count The number of bytes read.
+     * @return The number of bytes read.
+     */
+    private int advance(int count) {
+        if (count > 0) {
+            end += count;
+        } else {
+            releaseIfEmpty();
+        }
+        
+        return count;
+    }
+    
+    /**
+     * Updates the number of payload bytes received after a read directly into the payload.
+     *
+     * @param count The number of bytes read.
+     * @return The number of bytes read.
+     */
+    private int fill(int count) {
+        filled += Math.max(count, 0);
+        return count;
+    }
+    
+    /**
+     * Returns the next complete response, if any.
+     *
+     * @param wideSequence If true, the response has a 32-bit sequence id. Otherwise, it has a single
+     *            byte sequence id.
+     * @return The next response, or null if a complete response has not yet been received.
+     * @throws IOException An IO exception.
+     */
+    Response next(boolean wideSequence) throws IOException {
+        if (streamTarget != null) {
+            return nextStreamed();
+        }
+        
+        int headerSize = getHeaderSize(wideSequence);
+        
+        if (spilled == 0 && end - start < headerSize) {
+            return null;
+        }
+        
+        if (!inspected) {
+            inspected = true;
+            
+            if (startStream(wideSequence)) {
+                return nextStreamed();
+            }
+        }
+        
+        int eod = findEOD(Math.max(scan, spilled == 0 ? start + headerSize : 0));
+        
+        if (eod < 0) {
+            scan = end;
+            return null;
+        }
+        
+        byte[] header = spilled == 0 ? buffer : spill.get(0);
+        int offset = spilled == 0 ? start : 0;
+        int sequenceId = getSequenceId(header, offset, wideSequence);
+        int code = header[offset + headerSize - 1] & 0xFF;
+        byte[] payload = new byte[spilled + eod - start - headerSize];
+        int position = 0;
+        offset += headerSize;
+        
+        for (byte[] chunk : spill) {
+            System.arraycopy(chunk, offset, payload, position, chunk.length - offset);
+            position += chunk.length - offset;
+            offset = 0;
+            BufferPool.IO_BUFFERS.release(chunk);
+        }
+        
+        System.arraycopy(buffer, offset, payload, position, payload.length - position);
+        spill.clear();
+        spilled = 0;
+        start = scan = eod + 1;
+        inspected = false;
+        releaseIfEmpty();
+        return new Response(sequenceId, code, payload);
+    }
+    
+    /**
+     * Returns the next complete length-prefixed (protocol version 2) response, if any. Each such
+     * response begins with a fixed header consisting of the length of the remainder of the frame (4
+     * bytes), the sequence id (4 bytes) and the response code (1 byte), followed by the payload.
+     *
+     * @return The next response, or null if a complete response has not yet been received.
+     * @throws IOException An IO exception.
+     */
+    Response nextFramed() throws IOException {
+        if (streamTarget != null) {
+            return nextStreamedFramed();
+        }
+        
+        if (payload == null) {
+            if (end - start < Request.FRAME_HEADER_SIZE) {
+                return null;
+            }
+            
+            ByteBuffer header = ByteBuffer.wrap(buffer, start, Request.FRAME_HEADER_SIZE);
+            int length = header.getInt() - (Request.FRAME_HEADER_SIZE - 4);
+            frameSequenceId = header.getInt();
+            frameCode = header.get() & 0xFF;
+            frameCompressed = (frameCode & FrameCompression.FLAG) != 0;
+            frameCode &= ~FrameCompression.FLAG;
+            start += Request.FRAME_HEADER_SIZE;
+            
+            if (length < 0) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            
+            if (startFramedStream(length)) {
+                return nextStreamedFramed();
+            }
+            
+            payload = new byte[length];
+            filled = 0;
+        }
+        
+        int count = Math.min(end - start, payload.length - filled);
+        
+        if (count > 0) {
+            System.arraycopy(buffer, start, payload, filled, count);
+            start += count;
+            filled += count;
+        }
+        
+        releaseIfEmpty();
+        
+        if (filled < payload.length) {
+            return null;
+        }
+        
+        byte[] payload = this.payload;
+        this.payload = null;
+        return frameCompressed ? decompress(payload) : new Response(frameSequenceId, frameCode, payload);
+    }
+    
+    /**
+     * Creates a response from a compressed payload. If the response is to a request that is
+     * streamed, the uncompressed data is handed to the request and a response with no data is
+     * returned.
+     *
+     * @param payload The compressed payload.
+     * @return The response.
+     * @throws IOException An IO exception.
+     */
+    private Response decompress(byte[] payload) throws IOException {
+        long start = System.nanoTime();
+        byte[] data = FrameCompression.decompress(payload);
+        long elapsed = System.nanoTime() - start;
+        PendingResponse pending = lookup == null || frameCode != ResponseType.ACK.ordinal() ? null
+                : lookup.getPending(frameSequenceId);
+        
+        if (pending instanceof IResponseStream) {
+            ((IResponseStream) pending).append(data, 0, data.length);
+            data = new byte[0];
+        }
+        
+        Response response = new Response(frameSequenceId, frameCode, data);
+        response.setCompression(payload.length, elapsed);
+        return response;
+    }
+    
+    /**
+     * Examines the header of a newly arrived length-prefixed response. If it is a successful
+     * response to a request that is streamed, the request becomes the target for the response
+     * data.
+     *
+     * @param length The length of the payload.
+     * @return True if the response is to be streamed.
+     */
+    private boolean startFramedStream(int length) {
+        if (lookup == null || frameCompressed || frameCode != ResponseType.ACK.ordinal()) {
+            return false;
+        }
+        
+        PendingResponse pending = lookup.getPending(frameSequenceId);
+        
+        if (!(pending instanceof IResponseStream)) {
+            return false;
+        }
+        
+        streamTarget = (IResponseStream) pending;
+        streamSequenceId = frameSequenceId;
+        remaining = length;
+        return true;
+    }
+    
+    /**
+     * Hands the length-prefixed response data received so far to the request receiving it. Once
+     * all of the data has been handed over, returns a response with no data to signal that the
+     * response is complete.
+     *
+     * @return A response with no data, or null if the response is not yet complete.
+     * @throws IOException An IO exception.
+     */
+    private Response nextStreamedFramed() throws IOException {
+        int count = Math.min(end - start, remaining);
+        
+        if (count > 0) {
+            streamTarget.append(buffer, start, count);
+            start += count;
+            remaining -= count;
+        }
+        
+        releaseIfEmpty();
+        
+        if (remaining > 0) {
+            return null;
+        }
+        
+        streamTarget = null;
+        return new Response(streamSequenceId, ResponseType.ACK.ordinal(), new byte[0]);
+    }
+    
+    /**
+     * Returns the sequence id from a response header.
+     *
+     * @param header Buffer containing the header.
+     * @param offset Offset of the header within the buffer.
+     * @param wideSequence If true, the response has a 32-bit sequence id.
+     * @return The sequence id.
+     */
+    private static int getSequenceId(byte[] header, int offset, boolean wideSequence) {
+        return wideSequence ? ByteBuffer.wrap(header, offset, 4).getInt() : header[offset];
+    }
+    
+    /**
+     * Examines the header of a newly arrived response. If it is a successful response to a request
+     * that is streamed, the header is consumed and the request becomes the target for the response
+     * data.
+     *
+     * @param wideSequence If true, the response has a 32-bit sequence id.
+     * @return True if the response is to be streamed.
+     */
+    private boolean startStream(boolean wideSequence) {
+        int headerSize = getHeaderSize(wideSequence);
+        
+        if (lookup == null || buffer[start + headerSize - 1] != ResponseType.ACK.ordinal()) {
+            return false;
+        }
+        
+        int sequenceId = getSequenceId(buffer, start, wideSequence);
+        PendingResponse pending = lookup.getPending(sequenceId);
+        
+        if (!(pending instanceof IResponseStream)) {
+            return false;
+        }
+        
+        streamTarget = (IResponseStream) pending;
+        streamSequenceId = sequenceId;
+        start = scan = start + headerSize;
+        return true;
+    }
+    
+    /**
+     * Hands the response data received so far to the request receiving it. Once the end of data
+     * marker is reached, returns a response with no data to signal that the response is complete.
+     *
+     * @return A response with no data, or null if the response is not yet complete.
+     * @throws IOException An IO exception.
+     */
+    private Response nextStreamed() throws IOException {
+        int eod = findEOD(start);
+        int stop = eod < 0 ? end : eod;
+        
+        if (stop > start) {
+            streamTarget.append(buffer, start, stop - start);
+        }
+        
+        if (eod < 0) {
+            start = scan = end;
+            releaseIfEmpty();
+            return null;
+        }
+        
+        streamTarget = null;
+        inspected = false;
+        start = scan = eod + 1;
+        releaseIfEmpty();
+        return new Response(streamSequenceId, ResponseType.ACK.ordinal(), new byte[0]);
+    }
+    
+    /**
+     * Returns the position of the next end of data marker in the current buffer.
+     *
+     * @param from Starting position.
+     * @return Position of the marker, or -1 if not found.
+     */
+    private int findEOD(int from) {
+        byte[] buffer = this.buffer;
+        
+        for (int i = from; i < end; i++) {
+            if (buffer[i] == Constants.EOD) {
+                return i;
+            }
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Ensures there is room in the current buffer to receive more data. Acquires a buffer from the
+     * pool if none is held. If the current buffer is full, unconsumed data is moved to the start of
+     * the buffer or, if the buffer holds only the start of a single response, the buffer is set
+     * aside and another is acquired.
+     */
+    private void ensureCapacity() {
+        if (buffer == null) {
+            buffer = BufferPool.IO_BUFFERS.acquire();
+        } else if (end == buffer.length) {
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                scan -= start;
+                start = 0;
+            } else {
+                spill.add(buffer);
+                spilled += end;
+                buffer = BufferPool.IO_BUFFERS.acquire();
+                start = end = scan = 0;
+            }
+        }
+    }
+    
+    /**
+     * Returns the current buffer to the pool if it holds no unconsumed data.
+     */
+    private void releaseIfEmpty() {
+        if (start == end && spilled == 0) {
+            BufferPool.IO_BUFFERS.release(buffer);
+            buffer = null;
+            start = end = scan = 0;
+        }
+    }
+    
+    /**
+     * Discards any unconsumed data and returns all buffers to the pool.
+     */
+    void reset() {
+        for (byte[] chunk : spill) {
+            BufferPool.IO_BUFFERS.release(chunk);
+        }
+        
+        spill.clear();
+        BufferPool.IO_BUFFERS.release(buffer);
+        buffer = null;
+        spilled = start = end = scan = 0;
+        inspected = false;
+        streamTarget = null;
+        payload = null;
+        filled = remaining = 0;
+    }
+}
@@ -101,6 +101,7 @@ public enum SerializationMethod {
                         Base64OutputStream b64 = new Base64OutputStream(bary);
                         ObjectOutputStream oos = new ObjectOutputStream(b64)) {
                     oos.writeObject(eventData);
+                    oos.close(); // Flushes any partially encoded data
                     data = bary.toString("UTF-8");
                 } catch (Exception e) {
                     throw MiscUtil.toUnchecked(e);
@@ -25,7 +25,9 @@
  */
 package org.carewebframework.vista.mbroker;
 
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 import org.carewebframework.common.StrUtil;
 import org.carewebframework.vista.mbroker.BrokerSession.AuthMethod;
@@ -35,6 +37,21 @@ import org.carewebframework.vista.mbroker.BrokerSession.AuthMethod;
  */
 public class ServerCaps implements Cloneable {
     
+    /**
+     * Optional protocol features. The client offers the features it supports when connecting and
+     * the server returns those it has agreed to use. These are experimental extensions to the
+     * protocol, which the RGNETBRK listener distributed with the KIDS build does not yet support,
+     * and are offered only if enabled by {@link ConnectionParams#setProtocolExtensions(boolean)}.
+     */
+    public static enum Capability {
+        PIPELINE, // Multiple requests in flight, matched by a 32-bit sequence id
+        BATCH, // Multiple remote procedure calls in a single request
+        CHANNEL, // A second connection dedicated to asynchronous results and host events
+        FRAMED, // Length-prefixed frames (protocol version 2) in place of end of data markers
+        COMPRESS, // DEFLATE compression of length-prefixed frames that exceed a size threshold
+        RESUME // Resumption of an authenticated session over a new connection
+    }
+    
     private AuthMethod authMethod = AuthMethod.Normal;
     
     private final Version serverVersion;
@@ -51,6 +68,8 @@ public class ServerCaps implements Cloneable {
     
     private final List<String> preLoginMessage;
     
+    private final Set<Capability> capabilities = EnumSet.noneOf(Capability.class);
+    
     public ServerCaps(String init) {
         List<String> data = StrUtil.toList(init, null, Constants.LINE_SEPARATOR);
         String[] pcs = StrUtil.split(data.get(0), StrUtil.U, 6, true);
@@ -59,6 +78,15 @@ public class ServerCaps implements Cloneable {
         serverVersion = new Version(pcs[2]);
         caseSensitivePassword = StrUtil.toBoolean(pcs[3]);
         cipherKey = pcs[4];
+        
+        for (String capability : StrUtil.split(pcs[5], ",")) {
+            try {
+                capabilities.add(Capability.valueOf(capability.trim()));
+            } catch (IllegalArgumentException e) {
+                // Ignore capabilities not known to this client.
+            }
+        }
+        
         data.remove(0);
         preLoginMessage = data;
     }
@@ -95,4 +123,30 @@ public class ServerCaps implements Cloneable {
         return preLoginMessage;
     }
     
+    /**
+     * Returns true if the server has agreed to use the specified protocol feature.
+     *
+     * @param capability The protocol feature.
+     * @return True if the feature is in effect.
+     */
+    public boolean hasCapability(Capability capability) {
+        return capabilities.contains(capability);
+    }
+    
+    /**
+     * Returns the client's offer of protocol features, formatted for the connect request.
+     *
+     * @param offered The protocol features the client supports.
+     * @return The capability list.
+     */
+    public static String formatCapabilities(Set<Capability> offered) {
+        StringBuilder sb = new StringBuilder();
+        
+        for (Capability capability : offered) {
+            sb.append(sb.length() == 0 ? "" : ",").append(capability.name());
+        }
+        
+        return sb.toString();
+    }
+    
 }
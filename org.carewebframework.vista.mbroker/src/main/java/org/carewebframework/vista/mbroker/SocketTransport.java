@@ -0,0 +1,261 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.carewebframework.vista.mbroker.ResponseDecoder.IPendingLookup;
+
+/**
+ * Transport over a blocking socket. Unless pipelining has been negotiated, only one request may be
+ * in flight at a time and callers are serialized.
+ */
+public class SocketTransport implements ITransport {
+    
+    private volatile Socket socket;
+    
+    private volatile RequestPipeline pipeline;
+    
+    private volatile boolean framed;
+    
+    private volatile int compressionThreshold;
+    
+    private DataOutputStream requestStream;
+    
+    private byte netSequence;
+    
+    private final ReentrantLock serialLock = new ReentrantLock();
+    
+    private StreamingResponse streamed;
+    
+    private int streamedSequenceId;
+    
+    private final ResponseDecoder decoder = new ResponseDecoder(new IPendingLookup() {
+        
+        @Override
+        public PendingResponse getPending(int sequenceId) {
+            return sequenceId == streamedSequenceId ? streamed : null;
+        }
+        
+    });
+    
+    @Override
+    public void open(String server, int port, int timeout) throws IOException {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(server, port), timeout);
+        requestStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.socket = socket;
+    }
+    
+    @Override
+    public Response call(Request request, int timeout) throws IOException, InterruptedException {
+        return call(request, timeout, null);
+    }
+    
+    @Override
+    public Response call(Request request, int timeout, ILineConsumer consumer) throws IOException, InterruptedException {
+        RequestPipeline pipeline = this.pipeline;
+        return pipeline != null ? pipeline.call(request, timeout, consumer) : callSerial(request, timeout, consumer);
+    }
+    
+    /**
+     * Issues a request to the server and waits for its response before allowing another request
+     * to be sent. If the response is streamed, lines are handed to the consumer as the data is
+     * read. A deferrable request is not sent if another request is in progress.
+     *
+     * @param request Request to be sent.
+     * @param timeout The timeout, in milliseconds, to await a response.
+     * @param consumer If not null, consumer to receive the response data as it arrives.
+     * @return Response returned by the server.
+     * @throws IOException An IO exception.
+     * @throws InterruptedException Never thrown, since the connection is read by the caller.
+     */
+    private Response callSerial(Request request, int timeout, ILineConsumer consumer) throws IOException,
+                                                                                       InterruptedException {
+        lockSerial(request);
+        
+        try {
+            socket.setSoTimeout(timeout);
+            
+            try {
+                if (framed) {
+                    request.writeFramed(requestStream, nextSequenceId(), compressionThreshold);
+                } else {
+                    request.write(requestStream, nextSequenceId());
+                }
+                
+                requestStream.flush();
+            } finally {
+                request.release();
+            }
+            
+            streamedSequenceId = request.getSequenceId();
+            streamed = consumer == null ? null : new StreamingResponse(consumer, true);
+            
+            Response response;
+            
+            while ((response = framed ? decoder.nextFramed() : decoder.next(false)) == null) {
+                if (decoder.read(socket.getInputStream()) < 0) {
+                    throw new EOFException("Connection closed by server.");
+                }
+            }
+            
+            if (response.getSequenceId() != request.getSequenceId()) {
+                throw new IOException("Response is not for current request.");
+            }
+            
+            if (streamed != null) {
+                streamed.complete(response, null);
+                response = streamed.await(0);
+            }
+            
+            return response;
+        } catch (EOFException | SocketException e) {
+            socket.close(); // The connection has been lost.
+            throw e;
+        } catch (IOException e) {
+            netFlush();
+            throw e;
+        } finally {
+            streamed = null;
+            serialLock.unlock();
+        }
+    }
+    
+    /**
+     * Acquires exclusive use of the connection for a request. A deferrable request does not wait.
+     *
+     * @param request The request.
+     * @throws RejectedExecutionException If the request is deferrable and the connection is busy.
+     */
+    private void lockSerial(Request request) {
+        if (!request.isDeferrable()) {
+            serialLock.lock();
+        } else if (!serialLock.tryLock()) {
+            request.release();
+            throw new RejectedExecutionException("Connection is busy.");
+        }
+    }
+    
+    /**
+     * Flushes the socket's input stream, discarding any pending input.
+     */
+    private void netFlush() {
+        decoder.reset();
+        
+        try {
+            socket.getInputStream().skip(Long.MAX_VALUE);
+        } catch (Exception e) {}
+    }
+    
+    /**
+     * Returns the next valid sequence #.
+     *
+     * @return Sequence #.
+     */
+    private byte nextSequenceId() {
+        while (++netSequence == Constants.EOD) {}
+        return netSequence;
+    }
+    
+    @Override
+    public void enablePipelining() throws IOException {
+        serialLock.lock();
+        
+        try {
+            if (pipeline == null) {
+                pipeline = new RequestPipeline(socket, framed, compressionThreshold);
+            }
+        } finally {
+            serialLock.unlock();
+        }
+    }
+    
+    @Override
+    public void enableFraming() {
+        serialLock.lock();
+        
+        try {
+            framed = true;
+        } finally {
+            serialLock.unlock();
+        }
+    }
+    
+    @Override
+    public void enableCompression(int threshold) {
+        serialLock.lock();
+        
+        try {
+            compressionThreshold = threshold;
+        } finally {
+            serialLock.unlock();
+        }
+    }
+    
+    @Override
+    public boolean isOpen() {
+        Socket socket = this.socket;
+        RequestPipeline pipeline = this.pipeline;
+        return socket != null && socket.isConnected() && !socket.isClosed() && (pipeline == null || pipeline.isOpen());
+    }
+    
+    @Override
+    public InetAddress getLocalAddress() {
+        return socket.getLocalAddress();
+    }
+    
+    @Override
+    public int getLocalPort() {
+        return socket.getLocalPort();
+    }
+    
+    @Override
+    public void close() {
+        if (pipeline != null) {
+            pipeline.close();
+            pipeline = null;
+        }
+        
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (Exception e) {}
+            
+            socket = null;
+        }
+    }
+    
+}
@@ -0,0 +1,242 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+
+/**
+ * A request whose response data is split into lines and handed to a consumer as it arrives, so
+ * that the complete response is never held in memory. When the connection is read by the calling
+ * thread, lines are delivered directly as the data is read. Otherwise, the reading thread queues
+ * the data in pooled buffers and the calling thread delivers the lines while it waits, so a slow
+ * consumer never stalls the reading thread.
+ */
+class StreamingResponse extends PendingResponse implements IResponseStream {
+    
+    private static final byte SEPARATOR = (byte) Constants.LINE_SEPARATOR.charAt(0);
+    
+    private final ILineConsumer consumer;
+    
+    private final boolean direct;
+    
+    private final Queue<ByteBuffer> chunks = new ArrayDeque<>();
+    
+    private byte[] partial; // Start of a line that spans chunks
+    
+    private int partialLength;
+    
+    private RuntimeException consumerError;
+    
+    private boolean abandoned;
+    
+    /**
+     * Creates a streamed request.
+     *
+     * @param consumer Consumer to receive the response data.
+     * @param direct If true, lines are delivered by the thread supplying the data, which must be
+     *            the calling thread.
+     */
+    StreamingResponse(ILineConsumer consumer, boolean direct) {
+        this.consumer = consumer;
+        this.direct = direct;
+    }
+    
+    @Override
+    public void append(byte[] data, int offset, int length) {
+        if (direct) {
+            if (consumerError == null) {
+                try {
+                    split(data, offset, length);
+                } catch (RuntimeException e) {
+                    consumerError = e;
+                }
+            }
+            
+            return;
+        }
+        
+        lock.lock();
+        
+        try {
+            if (!abandoned) {
+                byte[] chunk = BufferPool.IO_BUFFERS.acquire();
+                
+                if (chunk.length < length) {
+                    BufferPool.IO_BUFFERS.release(chunk);
+                    chunk = new byte[length];
+                }
+                
+                System.arraycopy(data, offset, chunk, 0, length);
+                chunks.add(ByteBuffer.wrap(chunk, 0, length));
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Delivers the response data to the consumer until the response is complete. The timeout
+     * applies to the wait for each successive portion of the data rather than to the response as a
+     * whole.
+     */
+    @Override
+    Response await(int timeout) throws IOException, InterruptedException {
+        boolean done = false;
+        
+        try {
+            ByteBuffer chunk;
+            
+            while ((chunk = nextChunk(timeout)) != null) {
+                try {
+                    split(chunk.array(), 0, chunk.limit());
+                } finally {
+                    BufferPool.IO_BUFFERS.release(chunk.array());
+                }
+            }
+            
+            if (consumerError != null) {
+                throw consumerError;
+            }
+            
+            Response response = super.await(0);
+            flush();
+            done = true;
+            return response;
+        } finally {
+            if (!done) {
+                abandon();
+            }
+        }
+    }
+    
+    /**
+     * Waits for the next portion of the response data.
+     *
+     * @param timeout The timeout, in milliseconds (0 = no timeout).
+     * @return The next portion of the data, or null if the response is complete.
+     * @throws IOException A timeout.
+     * @throws InterruptedException If the caller was interrupted while waiting.
+     */
+    private ByteBuffer nextChunk(int timeout) throws IOException, InterruptedException {
+        long expiration = System.currentTimeMillis() + timeout;
+        lock.lock();
+        
+        try {
+            while (chunks.isEmpty() && !isComplete()) {
+                awaitChange(timeout, expiration);
+            }
+            
+            return chunks.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Discards any queued data and any data that arrives subsequently.
+     */
+    private void abandon() {
+        lock.lock();
+        
+        try {
+            abandoned = true;
+            
+            for (ByteBuffer chunk : chunks) {
+                BufferPool.IO_BUFFERS.release(chunk.array());
+            }
+            
+            chunks.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Splits data into lines, passing each complete line to the consumer. A line that is not yet
+     * complete is retained until the rest of it arrives.
+     *
+     * @param data Buffer containing the data.
+     * @param offset Offset of the data within the buffer.
+     * @param length Length of the data.
+     */
+    private void split(byte[] data, int offset, int length) {
+        int limit = offset + length;
+        int lineStart = offset;
+        
+        for (int i = offset; i < limit; i++) {
+            if (data[i] == SEPARATOR) {
+                if (partialLength == 0) {
+                    consumer.onLine(new String(data, lineStart, i - lineStart, Constants.UTF8));
+                } else {
+                    retain(data, lineStart, i - lineStart);
+                    flush();
+                }
+                
+                lineStart = i + 1;
+            }
+        }
+        
+        retain(data, lineStart, limit - lineStart);
+    }
+    
+    /**
+     * Retains the start of a line that is not yet complete.
+     *
+     * @param data Buffer containing the data.
+     * @param offset Offset of the data within the buffer.
+     * @param length Length of the data.
+     */
+    private void retain(byte[] data, int offset, int length) {
+        if (length == 0) {
+            return;
+        }
+        
+        if (partial == null || partialLength + length > partial.length) {
+            partial = Arrays.copyOf(partial == null ? new byte[0] : partial,
+                Math.max(partialLength + length, partialLength * 2 + 64));
+        }
+        
+        System.arraycopy(data, offset, partial, partialLength, length);
+        partialLength += length;
+    }
+    
+    /**
+     * Passes any retained data to the consumer as a line. A trailing line separator therefore does
+     * not produce an empty final line.
+     */
+    private void flush() {
+        if (partialLength > 0) {
+            consumer.onLine(new String(partial, 0, partialLength, Constants.UTF8));
+            partialLength = 0;
+        }
+    }
+    
+}
@@ -0,0 +1,330 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.carewebframework.vista.mbroker.Request.Action;
+
+/**
+ * Records the remote procedure calls made by one or more broker sessions to a compact binary log,
+ * so that the traffic may later be reproduced without a live server by {@link TrafficReplayer}, or
+ * served by the stand-in broker server. For each call, the remote procedure name, version, calling
+ * context and parameters are recorded, together with the time at which the call was issued, how
+ * long it took to complete, and the response. Only remote procedure calls are recorded; polling,
+ * subscription and batch requests are not. A session records its calls only when given an instance
+ * through {@link BrokerSession#setTrafficRecorder(TrafficRecorder)}, and recording is synchronous
+ * with each call, so it is intended for capturing load profiles rather than for continuous use.
+ * <p>
+ * Because parameters and responses routinely contain protected health information, a
+ * {@link IFieldMask field mask} may be supplied to redact them before they are written. A failure
+ * writing the log is logged and ends the recording; it never fails the call being recorded.
+ * <p>
+ * The log begins with a header consisting of the magic number "MBRL" (4 bytes), a format version
+ * (2 bytes) and the wall clock time, in milliseconds since the epoch, at which recording began (8
+ * bytes). Each call follows as:
+ * <ul>
+ * <li>the time the call was issued, in nanoseconds since recording began (8 bytes)</li>
+ * <li>the time taken to complete the call, in nanoseconds (8 bytes)</li>
+ * <li>the remote procedure name, version and calling context (strings)</li>
+ * <li>1 if the call was asynchronous, 0 otherwise (1 byte)</li>
+ * <li>the number of parameter values (4 bytes), followed by the position, subscript and value of
+ * each (strings)</li>
+ * <li>the response type ordinal, or -1 if no response was received (1 byte)</li>
+ * <li>the response data or, if no response was received, the reason (string)</li>
+ * </ul>
+ * All integers are big-endian. A string is written as its UTF-8 encoded length (4 bytes) followed
+ * by its UTF-8 encoded bytes.
+ */
+public class TrafficRecorder implements Closeable {
+    
+    private static final Log log = LogFactory.getLog(TrafficRecorder.class);
+    
+    /**
+     * Redacts sensitive data before it is recorded.
+     */
+    public interface IFieldMask {
+        
+        /**
+         * Returns the value to be recorded for a remote procedure parameter.
+         *
+         * @param rpcName The remote procedure name.
+         * @param position The parameter position (1-based).
+         * @param subscript The subscript of the value (empty if unsubscripted).
+         * @param value The value passed to the server.
+         * @return The value to be recorded.
+         */
+        String maskParameter(String rpcName, int position, String subscript, String value);
+        
+        /**
+         * Returns the response data to be recorded for a remote procedure call.
+         *
+         * @param rpcName The remote procedure name.
+         * @param data The data returned by the server.
+         * @return The data to be recorded.
+         */
+        String maskResponse(String rpcName, String data);
+        
+    }
+    
+    static final int MAGIC = 0x4D42524C;
+    
+    static final int VERSION = 1;
+    
+    private final DataOutputStream out;
+    
+    private final long origin = System.nanoTime();
+    
+    private final Lock lock = new ReentrantLock();
+    
+    private volatile IFieldMask fieldMask;
+    
+    private volatile boolean closed;
+    
+    private int count;
+    
+    /**
+     * Creates a recorder that writes to a file, replacing any existing content.
+     *
+     * @param file The log file.
+     * @throws IOException An IO exception.
+     */
+    public TrafficRecorder(File file) throws IOException {
+        this(new FileOutputStream(file));
+    }
+    
+    /**
+     * Creates a recorder that writes to an output stream. The stream is closed when the recorder is
+     * closed.
+     *
+     * @param stream The output stream.
+     * @throws IOException An IO exception.
+     */
+    public TrafficRecorder(OutputStream stream) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeLong(System.currentTimeMillis());
+    }
+    
+    /**
+     * Returns the mask applied to parameters and responses before they are recorded.
+     *
+     * @return The field mask (may be null).
+     */
+    public IFieldMask getFieldMask() {
+        return fieldMask;
+    }
+    
+    /**
+     * Sets the mask applied to parameters and responses before they are recorded.
+     *
+     * @param fieldMask The field mask (null to record data as is).
+     */
+    public void setFieldMask(IFieldMask fieldMask) {
+        this.fieldMask = fieldMask;
+    }
+    
+    /**
+     * Returns the number of calls recorded.
+     *
+     * @return The call count.
+     */
+    public int getCount() {
+        lock.lock();
+        
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns true if the request is one that would be recorded, in which case its parameters must
+     * be captured before it is sent.
+     *
+     * @param request The request.
+     * @return True if the request is to be recorded.
+     */
+    boolean accepts(Request request) {
+        return !closed && request.getAction() == Action.RPC;
+    }
+    
+    /**
+     * Records a completed call.
+     *
+     * @param parameters The encoded parameters of the request, captured before it was sent.
+     * @param start The value of {@link System#nanoTime()} when the call was issued.
+     * @param response The response (null if the call failed).
+     * @param error The reason the call failed, if it did not receive a response.
+     */
+    void record(byte[] parameters, long start, Response response, Throwable error) {
+        record(parameters, start, response, null, error);
+    }
+    
+    /**
+     * Records a completed call whose response data may have been streamed.
+     *
+     * @param parameters The encoded parameters of the request, captured before it was sent.
+     * @param start The value of {@link System#nanoTime()} when the call was issued.
+     * @param response The response (null if the call failed).
+     * @param streamed The response data if it was streamed, and so is not carried by the response
+     *            (otherwise null).
+     * @param error The reason the call failed, if it did not receive a response.
+     */
+    void record(byte[] parameters, long start, Response response, String streamed, Throwable error) {
+        long duration = System.nanoTime() - start;
+        IFieldMask fieldMask = this.fieldMask;
+        String rpcName = "";
+        String version = "";
+        String context = "";
+        boolean async = false;
+        List<String[]> values = new ArrayList<>();
+        
+        for (String[] parameter : Request.decodeParameters(parameters)) {
+            String name = parameter[0];
+            
+            switch (name) {
+                case "RPC":
+                    rpcName = parameter[2];
+                    break;
+                
+                case "VER":
+                    version = parameter[2];
+                    break;
+                
+                case "CTX":
+                    context = parameter[2];
+                    break;
+                
+                case "ASY":
+                    async = "1".equals(parameter[2]);
+                    break;
+                
+                case "UID":
+                    break;
+                
+                default:
+                    values.add(parameter);
+            }
+        }
+        
+        if (fieldMask != null) {
+            for (String[] value : values) {
+                value[2] = fieldMask.maskParameter(rpcName, Integer.parseInt(value[0]), value[1], value[2]);
+            }
+        }
+        
+        String data = response == null ? String.valueOf(error) : streamed != null ? streamed : response.getData();
+        data = response != null && fieldMask != null ? fieldMask.maskResponse(rpcName, data) : data;
+        lock.lock();
+        
+        try {
+            if (closed) {
+                return;
+            }
+            
+            out.writeLong(start - origin);
+            out.writeLong(duration);
+            writeString(rpcName);
+            writeString(version);
+            writeString(context);
+            out.writeBoolean(async);
+            out.writeInt(values.size());
+            
+            for (String[] value : values) {
+                writeString(value[0]);
+                writeString(value[1]);
+                writeString(value[2]);
+            }
+            
+            out.writeByte(response == null ? -1 : response.getResponseType().ordinal());
+            writeString(data);
+            count++;
+        } catch (IOException e) {
+            log.error("Error writing to traffic log.  Recording has been stopped.", e);
+            closeQuietly();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Writes a length-prefixed string.
+     *
+     * @param value The string.
+     * @throws IOException An IO exception.
+     */
+    private void writeString(String value) throws IOException {
+        byte[] bytes = value.getBytes(Constants.UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    /**
+     * Closes the log, ignoring any error. Call only while holding the lock.
+     */
+    private void closeQuietly() {
+        closed = true;
+        
+        try {
+            out.close();
+        } catch (IOException e) {
+            // NOP
+        }
+    }
+    
+    /**
+     * Stops recording and closes the log.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        
+        try {
+            if (!closed) {
+                closed = true;
+                out.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+}
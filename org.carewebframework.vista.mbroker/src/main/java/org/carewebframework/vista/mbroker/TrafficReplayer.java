@@ -0,0 +1,429 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.carewebframework.vista.mbroker.Response.ResponseType;
+
+/**
+ * Replays remote procedure call traffic captured by {@link TrafficRecorder} against a broker
+ * session, so that a recorded load profile may be reproduced on a test system. Calls are issued
+ * concurrently, each at the same offset from the start of the replay as it was from the first
+ * recorded call, divided by the replay speed. The stand-in broker server can serve the same log in
+ * place of a live server.
+ */
+public class TrafficReplayer {
+    
+    /**
+     * A remote procedure call read from a traffic log.
+     */
+    public static class RecordedCall {
+        
+        private final long offset;
+        
+        private final long duration;
+        
+        private final String rpcName;
+        
+        private final String version;
+        
+        private final String context;
+        
+        private final boolean async;
+        
+        private final List<String[]> values = new ArrayList<>();
+        
+        private final ResponseType responseType;
+        
+        private final String data;
+        
+        private RecordedCall(DataInputStream in, long offset) throws IOException {
+            this.offset = offset;
+            duration = in.readLong();
+            rpcName = readString(in);
+            version = readString(in);
+            context = readString(in);
+            async = in.readBoolean();
+            
+            for (int i = in.readInt(); i > 0; i--) {
+                values.add(new String[] { readString(in), readString(in), readString(in) });
+            }
+            
+            int type = in.readByte();
+            responseType = type < 0 ? null : ResponseType.values()[type];
+            data = readString(in);
+        }
+        
+        /**
+         * Returns the time the call was issued, relative to the start of recording.
+         *
+         * @return The offset in nanoseconds.
+         */
+        public long getOffset() {
+            return offset;
+        }
+        
+        /**
+         * Returns the time taken to complete the call.
+         *
+         * @return The duration in nanoseconds.
+         */
+        public long getDuration() {
+            return duration;
+        }
+        
+        public String getRPCName() {
+            return rpcName;
+        }
+        
+        public String getVersion() {
+            return version;
+        }
+        
+        public String getContext() {
+            return context;
+        }
+        
+        public boolean isAsync() {
+            return async;
+        }
+        
+        /**
+         * Returns the recorded parameters.
+         *
+         * @return A new parameter list.
+         */
+        public RPCParameters getParameters() {
+            RPCParameters parameters = new RPCParameters();
+            
+            for (String[] value : values) {
+                parameters.get(Integer.parseInt(value[0]) - 1).put(value[1], value[2]);
+            }
+            
+            return parameters;
+        }
+        
+        /**
+         * Returns the type of the response received.
+         *
+         * @return The response type, or null if the call failed without a response.
+         */
+        public ResponseType getResponseType() {
+            return responseType;
+        }
+        
+        /**
+         * Returns the recorded response data or, if the call failed without a response, the reason
+         * for the failure.
+         *
+         * @return The response data.
+         */
+        public String getData() {
+            return data;
+        }
+        
+    }
+    
+    /**
+     * The outcome of a replay.
+     */
+    public static class Result {
+        
+        private final int count;
+        
+        private final int errorCount;
+        
+        private final int mismatchCount;
+        
+        private final long elapsed;
+        
+        private final long maxLag;
+        
+        private Result(int count, int errorCount, int mismatchCount, long elapsed, long maxLag) {
+            this.count = count;
+            this.errorCount = errorCount;
+            this.mismatchCount = mismatchCount;
+            this.elapsed = elapsed;
+            this.maxLag = maxLag;
+        }
+        
+        /**
+         * Returns the number of calls issued.
+         *
+         * @return The call count.
+         */
+        public int getCount() {
+            return count;
+        }
+        
+        /**
+         * Returns the number of calls that raised an exception.
+         *
+         * @return The error count.
+         */
+        public int getErrorCount() {
+            return errorCount;
+        }
+        
+        /**
+         * Returns the number of synchronous calls whose outcome or response data differed from that
+         * recorded. A response altered by a field mask is counted as a mismatch.
+         *
+         * @return The mismatch count.
+         */
+        public int getMismatchCount() {
+            return mismatchCount;
+        }
+        
+        /**
+         * Returns the time from the start of the replay until the last call completed.
+         *
+         * @return The elapsed time in milliseconds.
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+        
+        /**
+         * Returns the most that any call was issued later than scheduled. A large lag indicates that
+         * the executor could not keep pace with the recorded load.
+         *
+         * @return The maximum lag in milliseconds.
+         */
+        public long getMaxLag() {
+            return maxLag;
+        }
+        
+    }
+    
+    private final List<RecordedCall> calls = new ArrayList<>();
+    
+    private final long startTime;
+    
+    private volatile double speed = 1.0;
+    
+    /**
+     * Reads a traffic log from a file.
+     *
+     * @param file The log file.
+     * @throws IOException An IO exception.
+     */
+    public TrafficReplayer(File file) throws IOException {
+        this(new FileInputStream(file));
+    }
+    
+    /**
+     * Reads a traffic log from an input stream.
+     *
+     * @param source The traffic log. This is closed once read.
+     * @throws IOException An IO exception.
+     */
+    public TrafficReplayer(InputStream source) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(source))) {
+            if (in.readInt() != TrafficRecorder.MAGIC || in.readShort() != TrafficRecorder.VERSION) {
+                throw new IOException("Not a supported traffic log.");
+            }
+            
+            startTime = in.readLong();
+            long offset;
+            
+            while ((offset = readOffset(in)) >= 0) {
+                calls.add(new RecordedCall(in, offset));
+            }
+        }
+    }
+    
+    /**
+     * Reads the offset that begins a recorded call.
+     *
+     * @param in The input stream.
+     * @return The offset, or -1 at the end of the log.
+     * @throws IOException An IO exception.
+     */
+    private static long readOffset(DataInputStream in) throws IOException {
+        try {
+            return in.readLong();
+        } catch (EOFException e) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Reads a length-prefixed string.
+     *
+     * @param in The input stream.
+     * @return The string.
+     * @throws IOException An IO exception.
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, Constants.UTF8);
+    }
+    
+    /**
+     * Returns the calls read from the log, in the order they completed.
+     *
+     * @return The recorded calls.
+     */
+    public List<RecordedCall> getCalls() {
+        return Collections.unmodifiableList(calls);
+    }
+    
+    /**
+     * Returns the wall clock time at which recording began.
+     *
+     * @return The start time in milliseconds since the epoch.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+    
+    /**
+     * Returns the replay speed.
+     *
+     * @return The replay speed.
+     */
+    public double getSpeed() {
+        return speed;
+    }
+    
+    /**
+     * Sets the replay speed, as a multiple of the recorded rate. For example, 1 replays calls at
+     * the rate recorded and 2 replays them twice as fast. A speed of 0 issues all calls at once.
+     *
+     * @param speed The replay speed.
+     */
+    public void setSpeed(double speed) {
+        this.speed = speed;
+    }
+    
+    /**
+     * Replays the recorded calls against a session, issuing them from a cached thread pool.
+     *
+     * @param session The broker session, which must be connected.
+     * @return The outcome of the replay.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public Result replay(BrokerSession session) throws InterruptedException {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        
+        try {
+            return replay(session, executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    /**
+     * Replays the recorded calls against a session, returning once all have completed.
+     *
+     * @param session The broker session, which must be connected.
+     * @param executor The executor from which calls are issued. To reproduce the recorded
+     *            concurrency, this must be able to run as many calls at once as were in progress
+     *            when recorded.
+     * @return The outcome of the replay.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public Result replay(final BrokerSession session, ExecutorService executor) throws InterruptedException {
+        List<RecordedCall> schedule = new ArrayList<>(calls);
+        Collections.sort(schedule, new Comparator<RecordedCall>() {
+            
+            @Override
+            public int compare(RecordedCall call1, RecordedCall call2) {
+                return Long.compare(call1.offset, call2.offset);
+            }
+            
+        });
+        
+        final int timeout = session.getConnectionParams().getTimeout();
+        final AtomicInteger errors = new AtomicInteger();
+        final AtomicInteger mismatches = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(schedule.size());
+        double speed = this.speed;
+        long origin = schedule.isEmpty() ? 0 : schedule.get(0).offset;
+        long start = System.nanoTime();
+        long maxLag = 0;
+        
+        for (final RecordedCall call : schedule) {
+            if (speed > 0) {
+                long delay = start + (long) ((call.offset - origin) / speed) - System.nanoTime();
+                
+                if (delay > 0) {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                } else {
+                    maxLag = Math.max(maxLag, -delay);
+                }
+            }
+            
+            executor.execute(new Runnable() {
+                
+                @Override
+                public void run() {
+                    try {
+                        String name = call.rpcName + ":" + call.version + ":" + call.context;
+                        String data = session.callRPC(name, call.async, timeout, call.getParameters());
+                        
+                        if (!call.async && (call.responseType != ResponseType.ACK || !call.data.equals(data))) {
+                            mismatches.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                        
+                        if (!call.async && call.responseType == ResponseType.ACK) {
+                            mismatches.incrementAndGet();
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+                
+            });
+        }
+        
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        return new Result(schedule.size(), errors.get(), mismatches.get(), TimeUnit.NANOSECONDS.toMillis(elapsed),
+                TimeUnit.NANOSECONDS.toMillis(maxLag));
+    }
+    
+}
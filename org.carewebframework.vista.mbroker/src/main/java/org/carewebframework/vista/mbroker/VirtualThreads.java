@@ -0,0 +1,117 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Provides access to virtual threads where the Java runtime supports them (Java 21 or later). The
+ * broker is compiled for earlier runtimes, so virtual threads are obtained reflectively. On older
+ * runtimes, virtual threads are reported as unsupported and callers fall back to platform threads.
+ */
+public class VirtualThreads {
+    
+    private static final Log log = LogFactory.getLog(VirtualThreads.class);
+    
+    private static final Method newExecutor = findMethod();
+    
+    private static ExecutorService executor;
+    
+    private static boolean warned;
+    
+    /**
+     * Locates the factory method for virtual thread executors.
+     *
+     * @return The factory method, or null if virtual threads are not supported.
+     */
+    private static Method findMethod() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (Exception e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Returns true if the Java runtime supports virtual threads.
+     *
+     * @return True if virtual threads are supported.
+     */
+    public static boolean isSupported() {
+        return newExecutor != null;
+    }
+    
+    /**
+     * Returns a shared executor that runs each task on a new virtual thread.
+     *
+     * @return The shared executor, or null if virtual threads are not supported.
+     */
+    public static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            if (!isSupported()) {
+                if (!warned) {
+                    warned = true;
+                    log.warn("Virtual threads are not supported by this Java runtime; using platform threads.");
+                }
+                
+                return null;
+            }
+            
+            executor = newExecutor();
+        }
+        
+        return executor;
+    }
+    
+    /**
+     * Creates an executor that runs each task on a new virtual thread.
+     *
+     * @return A new executor.
+     * @throws UnsupportedOperationException If virtual threads are not supported.
+     */
+    public static ExecutorService newExecutor() {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later.");
+        }
+        
+        try {
+            return (ExecutorService) newExecutor.invoke(null);
+        } catch (Exception e) {
+            throw new UnsupportedOperationException("Unable to create virtual thread executor.", e);
+        }
+    }
+    
+    /**
+     * Enforce static class.
+     */
+    private VirtualThreads() {
+    }
+}
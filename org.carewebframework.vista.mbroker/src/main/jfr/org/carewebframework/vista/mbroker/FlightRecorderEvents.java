@@ -0,0 +1,210 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import org.carewebframework.vista.mbroker.PollingThread.IHostEventHandler;
+import org.carewebframework.vista.mbroker.Request.Action;
+import org.carewebframework.vista.mbroker.Response.ResponseType;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Emits Java Flight Recorder events for broker activity, as described by {@link BrokerEvents}.
+ * This class is compiled only by Java 11 or later, from a source set of its own, and is loaded by
+ * name, so that the rest of the broker neither requires nor references the Flight Recorder API.
+ */
+final class FlightRecorderEvents extends BrokerEvents.Recorder {
+    
+    private static final String CATEGORY = "CareWeb Framework";
+    
+    private static final String SUBCATEGORY = "VistA Broker";
+    
+    @Name("org.carewebframework.vista.mbroker.Request")
+    @Label("Broker Request")
+    @Description("A request sent to the broker server and its response")
+    @Category({ CATEGORY, SUBCATEGORY })
+    @Enabled(false)
+    @StackTrace(false)
+    static class RequestEvent extends Event {
+        
+        @Label("Action")
+        String action;
+        
+        @Label("Remote Procedure")
+        String rpcName;
+        
+        @Label("Context")
+        String context;
+        
+        @Label("Sequence Id")
+        int sequenceId;
+        
+        @Label("Request Size")
+        @DataAmount
+        long requestSize;
+        
+        @Label("Response Size")
+        @DataAmount
+        long responseSize;
+        
+        @Label("Queue Wait")
+        @Description("Time spent waiting for exclusive use of the connection")
+        @Timespan
+        long queueWait;
+        
+        @Label("Error")
+        String error;
+        
+        transient long start;
+        
+    }
+    
+    @Name("org.carewebframework.vista.mbroker.Poll")
+    @Label("Broker Poll")
+    @Description("A background poll of the broker server")
+    @Category({ CATEGORY, SUBCATEGORY })
+    @Enabled(false)
+    @StackTrace(false)
+    static class PollEvent extends Event {
+        
+        @Label("Action")
+        String action;
+        
+        @Label("Response Type")
+        String responseType;
+        
+    }
+    
+    @Name("org.carewebframework.vista.mbroker.HostEvent")
+    @Label("Broker Host Event")
+    @Description("Delivery of a host event to a handler")
+    @Category({ CATEGORY, SUBCATEGORY })
+    @Enabled(false)
+    @StackTrace(false)
+    static class HostEventEvent extends Event {
+        
+        @Label("Event Name")
+        String eventName;
+        
+        @Label("Handler")
+        Class<?> handler;
+        
+    }
+    
+    @Override
+    boolean isAvailable() {
+        return FlightRecorder.isAvailable();
+    }
+    
+    @Override
+    Object beginRequest() {
+        RequestEvent event = new RequestEvent();
+        
+        if (!event.isEnabled()) {
+            return null;
+        }
+        
+        event.start = System.nanoTime();
+        event.begin();
+        return event;
+    }
+    
+    @Override
+    void commitRequest(Object token, Request request, Response response, Throwable error) {
+        RequestEvent event = (RequestEvent) token;
+        event.end();
+        
+        if (event.shouldCommit()) {
+            long sent = request.getSendTime();
+            event.action = request.getAction().getText();
+            event.rpcName = request.getRPCName();
+            event.context = request.getRPCContext();
+            event.sequenceId = request.getSequenceId();
+            event.requestSize = sent < event.start ? 0 : request.getSize();
+            event.responseSize = response == null ? 0 : response.getPayloadSize();
+            event.queueWait = sent < event.start ? 0 : sent - event.start;
+            event.error = error == null ? null : error.toString();
+            event.commit();
+        }
+    }
+    
+    @Override
+    Object beginPoll() {
+        PollEvent event = new PollEvent();
+        
+        if (!event.isEnabled()) {
+            return null;
+        }
+        
+        event.begin();
+        return event;
+    }
+    
+    @Override
+    void commitPoll(Object token, Action action, ResponseType responseType) {
+        PollEvent event = (PollEvent) token;
+        event.end();
+        
+        if (event.shouldCommit()) {
+            event.action = action.getText();
+            event.responseType = responseType == null ? null : responseType.name();
+            event.commit();
+        }
+    }
+    
+    @Override
+    Object beginHostEvent() {
+        HostEventEvent event = new HostEventEvent();
+        
+        if (!event.isEnabled()) {
+            return null;
+        }
+        
+        event.begin();
+        return event;
+    }
+    
+    @Override
+    void commitHostEvent(Object token, String eventName, IHostEventHandler handler) {
+        HostEventEvent event = (HostEventEvent) token;
+        event.end();
+        
+        if (event.shouldCommit()) {
+            event.eventName = eventName;
+            event.handler = handler.getClass();
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.carewebframework.vista.mbroker.BrokerMetrics.RPCStatistics;
+import org.carewebframework.vista.mbroker.BrokerSession.IAsyncRPCEvent;
+import org.carewebframework.vista.mbroker.testsupport.StandInServer;
+
+import org.junit.Test;
+
+public class BrokerMetricsTest {
+    
+    @Test
+    public void testHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(99), 0);
+        
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        
+        assertEquals(100, histogram.getCount());
+        assertEquals(50.5, histogram.getMean(), 0.001);
+        assertEquals(100, histogram.getMax(), 0);
+        double p50 = histogram.getPercentile(50);
+        assertTrue(p50 >= 50 && p50 <= 100);
+        assertEquals(100, histogram.getPercentile(99), 0);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+    }
+    
+    @Test
+    public void testMetrics() throws Exception {
+        try (StandInServer server = new StandInServer()) {
+            final CountDownLatch release = new CountDownLatch(1);
+            server.setLatency(20);
+            server.register("ECHO", new StandInServer.IHandler() {
+                
+                @Override
+                public String handle(Map<String, String> control, Map<String, Map<String, String>> params) {
+                    return params.get("1").get("");
+                }
+                
+            });
+            server.register("FAIL", new StandInServer.IHandler() {
+                
+                @Override
+                public String handle(Map<String, String> control, Map<String, Map<String, String>> params)
+                        throws Exception {
+                    throw new StandInServer.HostError(5, "Failed");
+                }
+                
+            });
+            server.register("WAIT", new StandInServer.IHandler() {
+                
+                @Override
+                public String handle(Map<String, String> control, Map<String, Map<String, String>> params)
+                        throws Exception {
+                    release.await(5, TimeUnit.SECONDS);
+                    return "done";
+                }
+                
+            });
+            server.register("SLOW", new StandInServer.IHandler() {
+                
+                @Override
+                public String handle(Map<String, String> control, Map<String, Map<String, String>> params)
+                        throws Exception {
+                    Thread.sleep(500);
+                    return "done";
+                }
+                
+            });
+            
+            BrokerMetrics metrics = new BrokerMetrics("test");
+            final BrokerSession session = new BrokerSession(new ConnectionParams(server.getConnectionString()));
+            session.setMetrics(metrics);
+            session.connect();
+            
+            try {
+                assertEquals("12345", session.callRPC("ECHO", "12345"));
+                assertEquals("x", session.prepare("ECHO").call("x"));
+                RPCStatistics echo = metrics.getRPCStatistics("ECHO");
+                assertEquals(2, echo.getRequestCount());
+                assertEquals(6, echo.getResponseBytes());
+                assertTrue(echo.getRequestBytes() > 6);
+                assertTrue(echo.getServerTime().getMax() >= 20);
+                assertNull(metrics.getRPCStatistics("FAIL"));
+                
+                try {
+                    session.callRPC("FAIL");
+                    fail("Expected an exception.");
+                } catch (RPCException e) {}
+                
+                assertEquals(1, metrics.getRPCStatistics("FAIL").getErrorCount());
+                assertEquals(1, metrics.getErrorCount());
+                
+                // Requests on a connection without pipelining wait for one another.
+                CompletableFuture<String> other = CompletableFuture.supplyAsync(new Supplier<String>() {
+                    
+                    @Override
+                    public String get() {
+                        return session.callRPC("ECHO", "other");
+                    }
+                    
+                });
+                Thread.sleep(5);
+                assertEquals("this", session.callRPC("ECHO", "this"));
+                assertEquals("other", other.join());
+                assertTrue(metrics.getRPCStatistics("ECHO").getQueueWait().getMax() >= 5);
+                
+                int handle = session.callRPCAsync("WAIT", new IAsyncRPCEvent() {
+                    
+                    @Override
+                    public void onRPCComplete(int handle, String data) {
+                    }
+                    
+                    @Override
+                    public void onRPCError(int handle, int code, String text) {
+                    }
+                    
+                });
+                assertEquals(1, metrics.getOutstandingAsyncCount());
+                assertTrue(session.callRPCAbort(handle));
+                assertEquals(0, metrics.getOutstandingAsyncCount());
+                release.countDown();
+                // A poll that finds the connection busy is deferred, so allow time for one to complete.
+                for (int i = 0; i < 50 && metrics.getPollRoundTrip().getCount() == 0; i++) {
+                    Thread.sleep(100);
+                }
+                
+                assertTrue(metrics.getPollRoundTrip().getCount() > 0);
+                assertTrue(metrics.getRPCStatistics().containsKey("Ping"));
+                
+                MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName("org.carewebframework.vista.mbroker:type=BrokerMetrics,name=\"test\"");
+                metrics.register();
+                
+                try {
+                    assertEquals(metrics.getRequestCount(), mbeanServer.getAttribute(name, "RequestCount"));
+                    TabularData rpcs = (TabularData) mbeanServer.getAttribute(name, "RPCStatistics");
+                    CompositeData row = rpcs.get(new Object[] { "FAIL" });
+                    CompositeData stats = (CompositeData) row.get("value");
+                    assertEquals(1L, stats.get("errorCount"));
+                } finally {
+                    metrics.unregister();
+                }
+                
+                assertFalse(mbeanServer.isRegistered(name));
+                
+                try {
+                    session.callRPC("SLOW", false, 100);
+                    fail("Expected an exception.");
+                } catch (RuntimeException e) {}
+                
+                assertEquals(1, metrics.getTimeoutCount());
+                metrics.reset();
+                assertEquals(0, metrics.getRequestCount());
+            } finally {
+                session.disconnect();
+            }
+        }
+    }
+    
+}
@@ -0,0 +1,238 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.carewebframework.vista.mbroker.testsupport.StandInServer;
+
+import org.junit.Test;
+
+public class BrokerSessionPoolTest {
+    
+    /**
+     * Job state, such as a symbol table variable, keyed by the session id of the server job.
+     */
+    private final Map<String, String> state = new ConcurrentHashMap<>();
+    
+    /**
+     * Members must be authenticated as the primary's user without the primary's credentials.
+     */
+    @Test
+    public void testMemberAuthentication() throws Exception {
+        try (StandInServer server = createServer()) {
+            BrokerSessionPool pool = createPool(server, 2);
+            
+            try {
+                assertEquals(2, pool.getSize());
+                assertEquals(2, server.getHandleCount());
+                
+                for (int i = 0; i < 4; i++) {
+                    assertEquals("ok", pool.callRPC("ECHO", "ok"));
+                }
+            } finally {
+                pool.disconnect();
+            }
+        }
+    }
+    
+    /**
+     * A member whose connection is lost must be replaced by a newly authenticated member rather
+     * than reconnected without authentication.
+     */
+    @Test
+    public void testLostMember() throws Exception {
+        try (StandInServer server = createServer()) {
+            server.setCapabilities("RESUME");
+            BrokerSessionPool pool = createPool(server, 1);
+            
+            try {
+                assertEquals("ok", pool.callRPC("ECHO", "ok"));
+                server.dropConnections();
+                
+                for (int i = 0; i < 3; i++) {
+                    try {
+                        pool.callRPC("ECHO", "ok");
+                        break;
+                    } catch (RuntimeException e) {
+                        // The call in flight when the connection was lost fails.
+                    }
+                }
+                
+                for (int i = 0; i < 4; i++) {
+                    assertEquals("ok", pool.callRPC("ECHO", "ok"));
+                }
+                
+                assertEquals(1, pool.getSize());
+                assertTrue(server.getHandleCount() >= 2);
+            } finally {
+                pool.disconnect();
+            }
+        }
+    }
+    
+    /**
+     * Calls that depend on job state must see that state when issued together in a batch, even
+     * though the pool's members are separate jobs.
+     */
+    @Test
+    public void testStatefulBatch() throws Exception {
+        try (StandInServer server = createServer()) {
+            final BrokerSessionPool pool = createPool(server, 2);
+            ExecutorService executor = Executors.newCachedThreadPool();
+            
+            try {
+                List<Future<List<String>>> futures = new ArrayList<>();
+                
+                for (int i = 0; i < 8; i++) {
+                    final String value = Integer.toString(i);
+                    futures.add(executor.submit(new Callable<List<String>>() {
+                        
+                        @Override
+                        public List<String> call() {
+                            RPCBatch batch = pool.createBatch();
+                            batch.add("SET", value);
+                            batch.add("GET");
+                            return batch.execute();
+                        }
+                        
+                    }));
+                }
+                
+                for (int i = 0; i < futures.size(); i++) {
+                    String value = Integer.toString(i);
+                    assertEquals(Arrays.asList(value, value), futures.get(i).get(10, TimeUnit.SECONDS));
+                }
+                
+                assertEquals(2, state.size());
+            } finally {
+                executor.shutdown();
+                pool.disconnect();
+            }
+        }
+    }
+    
+    /**
+     * Only the primary receives host events, so members must not open event channels of their own.
+     */
+    @Test
+    public void testEventChannel() throws Exception {
+        try (StandInServer server = createServer()) {
+            server.setCapabilities("CHANNEL");
+            BrokerSessionPool pool = createPool(server, 2, true);
+            
+            try {
+                assertEquals("ok", pool.callRPC("ECHO", "ok"));
+                assertEquals(4, server.getConnectionCount());
+            } finally {
+                pool.disconnect();
+            }
+        }
+    }
+    
+    /**
+     * Pooling must be disabled unless a maximum pool size is configured.
+     */
+    @Test
+    public void testDisabledByDefault() throws Exception {
+        try (StandInServer server = createServer()) {
+            BrokerSessionPool pool = new BrokerSessionPool(new ConnectionParams(server.getConnectionString()));
+            pool.connect();
+            
+            try {
+                pool.authenticate("", "", null);
+                assertEquals(0, pool.getSize());
+                assertEquals("ok", pool.callRPC("ECHO", "ok"));
+                assertEquals(1, server.getConnectionCount());
+            } finally {
+                pool.disconnect();
+            }
+        }
+    }
+    
+    private BrokerSessionPool createPool(StandInServer server, int size) {
+        return createPool(server, size, false);
+    }
+    
+    private BrokerSessionPool createPool(StandInServer server, int size, boolean eventChannel) {
+        ConnectionParams params = new ConnectionParams(server.getConnectionString());
+        params.setProtocolExtensions(true);
+        params.setEventChannel(eventChannel);
+        BrokerSessionPool pool = new BrokerSessionPool(params);
+        pool.setMinSize(size);
+        pool.setMaxSize(size);
+        pool.connect();
+        pool.authenticate("", "", null);
+        return pool;
+    }
+    
+    private StandInServer createServer() throws Exception {
+        StandInServer server = new StandInServer();
+        server.setAuthenticationRequired(true);
+        server.register("ECHO", new StandInServer.IHandler() {
+            
+            @Override
+            public String handle(Map<String, String> control, Map<String, Map<String, String>> params) {
+                return params.get("1").get("");
+            }
+            
+        });
+        server.register("SET", new StandInServer.IHandler() {
+            
+            @Override
+            public String handle(Map<String, String> control, Map<String, Map<String, String>> params)
+                    throws Exception {
+                String value = params.get("1").get("");
+                state.put(control.get("UID"), value);
+                Thread.sleep(20); // Gives other jobs the chance to interleave.
+                return value;
+            }
+            
+        });
+        server.register("GET", new StandInServer.IHandler() {
+            
+            @Override
+            public String handle(Map<String, String> control, Map<String, Map<String, String>> params) {
+                return state.get(control.get("UID"));
+            }
+            
+        });
+        return server;
+    }
+    
+}
@@ -0,0 +1,230 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.carewebframework.vista.mbroker.testsupport.StandInServer;
+
+import org.junit.Test;
+
+public class ChannelTransportTest {
+    
+    private ChannelTransport transport;
+    
+    /**
+     * A call that times out must release the connection, and its late response must be discarded
+     * rather than handed to the next caller.
+     */
+    @Test
+    public void testTimeout() throws Exception {
+        try (StandInServer server = createServer()) {
+            BrokerSession session = createSession(server, false);
+            
+            try {
+                try {
+                    session.callRPC("SLEEP", false, 100, new Object[] { "500" });
+                    fail("Expected the call to time out.");
+                } catch (RuntimeException e) {
+                    // Expected
+                }
+                
+                assertEquals("0", session.callRPC("SLEEP", "0"));
+                assertEquals("1", session.callRPC("SLEEP", "1"));
+                assertTrue(session.isConnected());
+                assertEquals(1, server.getConnectionCount());
+            } finally {
+                session.disconnect();
+            }
+        }
+    }
+    
+    /**
+     * Single byte sequence ids wrap around (skipping the end of data marker) without confusing one
+     * response for another.
+     */
+    @Test
+    public void testSequenceWraparound() throws Exception {
+        try (StandInServer server = createServer()) {
+            BrokerSession session = createSession(server, false);
+            
+            try {
+                for (int i = 0; i < 600; i++) {
+                    assertEquals("call " + i, session.callRPC("ECHO", "call " + i));
+                }
+            } finally {
+                session.disconnect();
+            }
+        }
+    }
+    
+    /**
+     * Wide sequence ids wrap around from the largest positive value to 1, and an id whose request
+     * is still awaiting a response is not issued again.
+     */
+    @Test
+    public void testWideSequenceWraparound() throws Exception {
+        try (StandInServer server = createServer()) {
+            final BrokerSession session = createSession(server, true);
+            ExecutorService executor = Executors.newCachedThreadPool();
+            
+            try {
+                transport.setSequence(Integer.MAX_VALUE - 3);
+                List<Future<String>> futures = new ArrayList<>();
+                
+                for (int i = 0; i < 8; i++) {
+                    futures.add(call(executor, session, Integer.toString((8 - i) * 20)));
+                }
+                
+                for (int i = 0; i < 8; i++) {
+                    assertEquals(Integer.toString((8 - i) * 20), futures.get(i).get(10, TimeUnit.SECONDS));
+                }
+                
+                transport.setSequence(Integer.MAX_VALUE);
+                Future<String> slow = call(executor, session, "500");
+                Thread.sleep(100); // The slow call now holds sequence id 1.
+                transport.setSequence(Integer.MAX_VALUE);
+                assertEquals("0", session.callRPC("SLEEP", "0"));
+                assertEquals("500", slow.get(10, TimeUnit.SECONDS));
+            } finally {
+                executor.shutdown();
+                session.disconnect();
+            }
+        }
+    }
+    
+    /**
+     * Responses that arrive in many small pieces are reassembled, whether sent serially or
+     * pipelined in length-prefixed frames.
+     */
+    @Test
+    public void testPartialReads() throws Exception {
+        testPartialReads(false);
+        testPartialReads(true);
+    }
+    
+    private void testPartialReads(boolean pipelined) throws Exception {
+        try (StandInServer server = createServer()) {
+            server.setChunkSize(7);
+            final BrokerSession session = createSession(server, pipelined, "PIPELINE", "FRAMED");
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            
+            try {
+                StringBuilder sb = new StringBuilder();
+                
+                for (int i = 0; i < 40; i++) {
+                    sb.append("line ").append(i).append(Constants.LINE_SEPARATOR);
+                }
+                
+                String data = sb.append("last").toString();
+                assertEquals(data, session.callRPC("ECHO", data));
+                List<Future<String>> futures = new ArrayList<>();
+                
+                for (int i = 0; i < 6; i++) {
+                    futures.add(call(executor, session, Integer.toString(i)));
+                }
+                
+                for (int i = 0; i < 6; i++) {
+                    assertEquals(Integer.toString(i), futures.get(i).get(10, TimeUnit.SECONDS));
+                }
+            } finally {
+                executor.shutdown();
+                session.disconnect();
+            }
+        }
+    }
+    
+    private Future<String> call(ExecutorService executor, final BrokerSession session, final String delay) {
+        return executor.submit(new Callable<String>() {
+            
+            @Override
+            public String call() {
+                return session.callRPC("SLEEP", delay);
+            }
+            
+        });
+    }
+    
+    private BrokerSession createSession(StandInServer server, boolean pipelined) {
+        return createSession(server, pipelined, "PIPELINE");
+    }
+    
+    private BrokerSession createSession(StandInServer server, boolean pipelined, String... capabilities) {
+        server.setCapabilities(capabilities);
+        ConnectionParams params = new ConnectionParams(server.getConnectionString());
+        params.setNonBlocking(true);
+        params.setProtocolExtensions(pipelined);
+        BrokerSession session = new BrokerSession(params) {
+            
+            @Override
+            protected ITransport createTransport() {
+                return transport = new ChannelTransport();
+            }
+            
+        };
+        
+        session.connect();
+        return session;
+    }
+    
+    private StandInServer createServer() throws Exception {
+        StandInServer server = new StandInServer();
+        server.register("SLEEP", new StandInServer.IHandler() {
+            
+            @Override
+            public String handle(Map<String, String> control, Map<String, Map<String, String>> params)
+                    throws Exception {
+                String delay = params.get("1").get("");
+                Thread.sleep(Long.parseLong(delay));
+                return delay;
+            }
+            
+        });
+        
+        server.register("ECHO", new StandInServer.IHandler() {
+            
+            @Override
+            public String handle(Map<String, String> control, Map<String, Map<String, String>> params) {
+                return params.get("1").get("");
+            }
+            
+        });
+        
+        return server;
+    }
+    
+}
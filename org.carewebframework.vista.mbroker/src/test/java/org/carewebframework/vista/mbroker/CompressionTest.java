@@ -0,0 +1,123 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.carewebframework.vista.mbroker.ServerCaps.Capability;
+import org.carewebframework.vista.mbroker.testsupport.StandInServer;
+
+import org.junit.Test;
+
+public class CompressionTest {
+    
+    @Test
+    public void testCompression() throws Exception {
+        testCompression(false, true, "FRAMED", "COMPRESS");
+    }
+    
+    @Test
+    public void testCompressionPipeline() throws Exception {
+        testCompression(false, true, "FRAMED", "COMPRESS", "PIPELINE");
+    }
+    
+    @Test
+    public void testCompressionNonBlocking() throws Exception {
+        testCompression(true, true, "FRAMED", "COMPRESS", "PIPELINE");
+    }
+    
+    @Test
+    public void testUnframed() throws Exception {
+        testCompression(false, false, "COMPRESS");
+    }
+    
+    private void testCompression(boolean nonBlocking, boolean supported, String... capabilities) throws Exception {
+        try (StandInServer server = new StandInServer()) {
+            server.setCapabilities(capabilities);
+            server.setCompressionThreshold(1000);
+            server.register("ECHO", new StandInServer.IHandler() {
+                
+                @Override
+                public String handle(Map<String, String> control, Map<String, Map<String, String>> params) {
+                    return params.isEmpty() ? "" : params.get("1").get("");
+                }
+                
+            });
+            
+            ConnectionParams params = new ConnectionParams(server.getConnectionString());
+            params.setProtocolExtensions(true);
+            params.setNonBlocking(nonBlocking);
+            params.setCompressionThreshold(1000);
+            BrokerSession session = new BrokerSession(params);
+            BrokerMetrics metrics = new BrokerMetrics();
+            session.setMetrics(metrics);
+            session.connect();
+            assertEquals(supported, session.getServerCaps().hasCapability(Capability.FRAMED));
+            
+            try {
+                StringBuilder sb = new StringBuilder();
+                
+                for (int i = 0; i < 5000; i++) {
+                    sb.append("Temperature 98.6 F caf\u00e9 ").append(i % 50).append(Constants.LINE_SEPARATOR);
+                }
+                
+                String large = sb.append("last").toString();
+                assertEquals("small", session.callRPC("ECHO", "small"));
+                assertEquals(0, server.getCompressedCount());
+                assertEquals(large, session.callRPC("ECHO", large));
+                assertEquals(supported ? 2 : 0, server.getCompressedCount());
+                final List<String> lines = new ArrayList<>();
+                session.callRPCStream("ECHO", new ILineConsumer() {
+                    
+                    @Override
+                    public void onLine(String line) {
+                        lines.add(line);
+                    }
+                    
+                }, large);
+                assertEquals(Arrays.asList(large.split(Constants.LINE_SEPARATOR)), lines);
+                assertEquals(supported ? 4 : 0, server.getCompressedCount());
+                assertEquals(supported ? 4 : 0, metrics.getCompressedCount());
+                
+                if (supported) {
+                    assertTrue(metrics.getCompressionRatio() > 5);
+                    assertTrue(metrics.getCompressionTime() > 0);
+                } else {
+                    assertEquals(1, metrics.getCompressionRatio(), 0);
+                }
+            } finally {
+                session.disconnect();
+            }
+        }
+    }
+    
+}
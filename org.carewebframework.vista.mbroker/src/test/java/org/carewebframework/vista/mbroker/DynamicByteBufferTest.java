@@ -0,0 +1,89 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DynamicByteBufferTest {
+    
+    @Test
+    public void testPooledBuffer() throws IOException {
+        testBuffer(new DynamicByteBuffer());
+    }
+    
+    @Test
+    public void testSizedBuffer() throws IOException {
+        testBuffer(new DynamicByteBuffer(100, 37));
+    }
+    
+    private void testBuffer(DynamicByteBuffer buffer) throws IOException {
+        Random random = new Random(4321);
+        byte[] expected = new byte[5000];
+        random.nextBytes(expected);
+        int pos = 0;
+        
+        while (pos < expected.length) {
+            int count = Math.min(expected.length - pos, random.nextInt(300));
+            
+            if (count == 1) {
+                buffer.put(expected[pos]);
+            } else {
+                buffer.put(expected, pos, pos + count);
+            }
+            
+            pos += count;
+        }
+        
+        assertEquals(expected.length, buffer.getSize());
+        assertArrayEquals(expected, buffer.toArray());
+        assertEquals(expected[4321], buffer.get(4321));
+        byte[] range = new byte[2000];
+        System.arraycopy(expected, 1000, range, 0, range.length);
+        assertArrayEquals(range, buffer.toArray(1000, 3000));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        buffer.writeTo(out);
+        assertArrayEquals(expected, out.toByteArray());
+        out.reset();
+        
+        for (ByteBuffer view : buffer.toByteBuffers()) {
+            out.write(view.array(), view.arrayOffset() + view.position(), view.remaining());
+        }
+        
+        assertArrayEquals(expected, out.toByteArray());
+        buffer.release();
+        assertEquals(0, buffer.getSize());
+        buffer.put(expected, 0, 10);
+        assertArrayEquals(new byte[] { expected[0], expected[9] }, new byte[] { buffer.get(0), buffer.get(9) });
+    }
+}
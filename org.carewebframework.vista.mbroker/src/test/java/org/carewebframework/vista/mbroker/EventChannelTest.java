@@ -0,0 +1,234 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.carewebframework.vista.mbroker.BrokerSession.IAsyncRPCEvent;
+import org.carewebframework.vista.mbroker.PollingThread.IHostEventHandler;
+import org.carewebframework.vista.mbroker.testsupport.StandInServer;
+
+import org.junit.Test;
+
+public class EventChannelTest implements IHostEventHandler, IAsyncRPCEvent {
+    
+    private final LinkedBlockingQueue<String> received = new LinkedBlockingQueue<>();
+    
+    @Test
+    public void testEventChannel() throws Exception {
+        try (StandInServer server = createServer()) {
+            server.setCapabilities("CHANNEL");
+            BrokerSession session = createSession(server, true);
+            
+            try {
+                assertFalse(session.hasEventChannel());
+                session.authenticate("", "", null);
+                assertTrue(session.hasEventChannel());
+                assertEquals(2, server.getConnectionCount());
+                long start = System.nanoTime();
+                assertEquals("data", session.callRPC("ECHO", "data"));
+                assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < EventChannel.WAIT);
+                assertEvents(session);
+            } finally {
+                session.disconnect();
+            }
+            
+            assertFalse(session.hasEventChannel());
+        }
+    }
+    
+    @Test
+    public void testFallback() throws Exception {
+        try (StandInServer server = createServer()) {
+            server.setPollingInterval(1);
+            BrokerSession session = createSession(server, true);
+            
+            try {
+                session.authenticate("", "", null);
+                assertFalse(session.hasEventChannel());
+                assertEquals(1, server.getConnectionCount());
+                assertEvents(session);
+            } finally {
+                session.disconnect();
+            }
+        }
+    }
+    
+    @Test
+    public void testForgedToken() throws Exception {
+        try (StandInServer server = createServer()) {
+            server.setCapabilities("CHANNEL");
+            server.setPollingInterval(1);
+            ConnectionParams params = new ConnectionParams(server.getConnectionString());
+            params.setProtocolExtensions(true);
+            params.setEventChannel(true);
+            BrokerSession session = new BrokerSession(params) {
+                
+                @Override
+                String getSessionToken() {
+                    return "forged";
+                }
+                
+            };
+            
+            session.connect();
+            session.addHostEventHandler(this);
+            
+            try {
+                session.authenticate("", "", null);
+                assertFalse(session.hasEventChannel());
+                assertEvents(session);
+            } finally {
+                session.disconnect();
+            }
+        }
+    }
+    
+    @Test
+    public void testFramedChannel() throws Exception {
+        try (StandInServer server = createServer()) {
+            server.setCapabilities("CHANNEL", "FRAMED");
+            BrokerSession session = createSession(server, true);
+            
+            try {
+                session.authenticate("", "", null);
+                assertTrue(session.hasEventChannel());
+                assertEvents(session);
+            } finally {
+                session.disconnect();
+            }
+        }
+    }
+    
+    @Test
+    public void testEarlyResult() throws Exception {
+        try (StandInServer server = createServer()) {
+            BrokerSession session = new BrokerSession(new ConnectionParams(server.getConnectionString())) {
+                
+                @Override
+                public String callRPC(String name, boolean async, int timeout, Object... params) {
+                    String handle = super.callRPC(name, async, timeout, params);
+                    
+                    if (async) { // Delivered before the callback has been registered
+                        onRPCComplete(Integer.parseInt(handle), "early");
+                    }
+                    
+                    return handle;
+                }
+                
+            };
+            
+            session.connect();
+            
+            try {
+                session.authenticate("", "", null);
+                session.callRPCAsync("ECHO", this, "async");
+                assertEquals("async:early", received.poll(5, TimeUnit.SECONDS));
+                assertFalse(session.hasPendingCallbacks());
+                session.onRPCComplete(-1, "unclaimed");
+                assertEquals(null, received.poll(200, TimeUnit.MILLISECONDS));
+            } finally {
+                session.disconnect();
+            }
+        }
+    }
+    
+    @Test
+    public void testNotRequested() throws Exception {
+        try (StandInServer server = createServer()) {
+            server.setCapabilities("CHANNEL");
+            BrokerSession session = createSession(server, false);
+            
+            try {
+                session.authenticate("", "", null);
+                assertFalse(session.hasEventChannel());
+                assertFalse(session.getServerCaps().hasCapability(ServerCaps.Capability.CHANNEL));
+            } finally {
+                session.disconnect();
+            }
+        }
+    }
+    
+    private StandInServer createServer() throws Exception {
+        StandInServer server = new StandInServer();
+        // Long enough that events could not arrive in time by polling alone.
+        server.setPollingInterval(60);
+        server.register("ECHO", new StandInServer.IHandler() {
+            
+            @Override
+            public String handle(Map<String, String> control, Map<String, Map<String, String>> params) {
+                return params.get("1").get("");
+            }
+            
+        });
+        
+        return server;
+    }
+    
+    private BrokerSession createSession(StandInServer server, boolean eventChannel) {
+        ConnectionParams params = new ConnectionParams(server.getConnectionString());
+        params.setProtocolExtensions(true);
+        params.setEventChannel(eventChannel);
+        BrokerSession session = new BrokerSession(params);
+        session.connect();
+        session.addHostEventHandler(this);
+        return session;
+    }
+    
+    private void assertEvents(BrokerSession session) throws Exception {
+        session.eventSubscribe("test", true);
+        
+        for (int i = 1; i <= 3; i++) {
+            session.fireRemoteEvent("test", "event " + i, (String) null);
+            assertEquals("test:event " + i, received.poll(5, TimeUnit.SECONDS));
+        }
+        
+        session.callRPCAsync("ECHO", this, "async");
+        assertEquals("async:async", received.poll(5, TimeUnit.SECONDS));
+    }
+    
+    @Override
+    public void onRPCComplete(int handle, String data) {
+        received.add("async:" + data);
+    }
+    
+    @Override
+    public void onRPCError(int handle, int code, String text) {
+        received.add("error:" + code);
+    }
+    
+    @Override
+    public void onHostEvent(String name, Object data) {
+        received.add(name + ":" + data);
+    }
+    
+}
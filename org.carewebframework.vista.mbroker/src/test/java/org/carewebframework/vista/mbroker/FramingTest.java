@@ -0,0 +1,141 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.carewebframework.vista.mbroker.ServerCaps.Capability;
+import org.carewebframework.vista.mbroker.testsupport.StandInServer;
+
+import org.junit.Test;
+
+public class FramingTest {
+    
+    @Test
+    public void testFramed() throws Exception {
+        testFraming(false, "FRAMED", "BATCH");
+    }
+    
+    @Test
+    public void testFramedPipeline() throws Exception {
+        testFraming(false, "FRAMED", "BATCH", "PIPELINE");
+    }
+    
+    @Test
+    public void testFramedNonBlocking() throws Exception {
+        testFraming(true, "FRAMED", "BATCH");
+    }
+    
+    @Test
+    public void testFramedPipelineNonBlocking() throws Exception {
+        testFraming(true, "FRAMED", "BATCH", "PIPELINE");
+    }
+    
+    @Test
+    public void testFallback() throws Exception {
+        testFraming(false, "BATCH");
+    }
+    
+    private void testFraming(boolean nonBlocking, String... capabilities) throws Exception {
+        try (StandInServer server = new StandInServer()) {
+            server.setCapabilities(capabilities);
+            server.register("ECHO", new StandInServer.IHandler() {
+                
+                @Override
+                public String handle(Map<String, String> control, Map<String, Map<String, String>> params) {
+                    return params.isEmpty() ? "" : params.get("1").get("");
+                }
+                
+            });
+            
+            ConnectionParams params = new ConnectionParams(server.getConnectionString());
+            params.setProtocolExtensions(true);
+            params.setNonBlocking(nonBlocking);
+            final BrokerSession session = new BrokerSession(params);
+            session.connect();
+            boolean framed = Arrays.asList(capabilities).contains("FRAMED");
+            assertEquals(framed, session.getServerCaps().hasCapability(Capability.FRAMED));
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            
+            try {
+                StringBuilder sb = new StringBuilder();
+                
+                for (int i = 0; i < 5000; i++) {
+                    sb.append("caf\u00e9 line ").append(i).append(Constants.LINE_SEPARATOR);
+                }
+                
+                final String large = sb.append("last").toString();
+                assertEquals(large, session.callRPC("ECHO", large));
+                assertEquals("", session.callRPC("ECHO"));
+                List<Future<String>> futures = new ArrayList<>();
+                
+                for (int i = 0; i < 20; i++) {
+                    final String data = i % 5 == 0 ? large : "call " + i;
+                    futures.add(executor.submit(new Callable<String>() {
+                        
+                        @Override
+                        public String call() {
+                            return session.callRPC("ECHO", data);
+                        }
+                        
+                    }));
+                }
+                
+                for (int i = 0; i < 20; i++) {
+                    assertEquals(i % 5 == 0 ? large : "call " + i, futures.get(i).get());
+                }
+                
+                final List<String> lines = new ArrayList<>();
+                session.callRPCStream("ECHO", new ILineConsumer() {
+                    
+                    @Override
+                    public void onLine(String line) {
+                        lines.add(line);
+                    }
+                    
+                }, large);
+                assertEquals(Arrays.asList(large.split(Constants.LINE_SEPARATOR)), lines);
+                RPCBatch batch = session.createBatch();
+                batch.add("ECHO", "first");
+                batch.add("ECHO", large);
+                assertEquals(Arrays.asList("first", large), batch.execute());
+            } finally {
+                executor.shutdown();
+                session.disconnect();
+            }
+        }
+    }
+    
+}
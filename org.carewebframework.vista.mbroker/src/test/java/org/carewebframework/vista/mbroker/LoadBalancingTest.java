@@ -0,0 +1,197 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.carewebframework.vista.mbroker.BrokerMetrics.RPCStatistics;
+import org.carewebframework.vista.mbroker.EndpointBalancer.Endpoint;
+import org.carewebframework.vista.mbroker.EndpointBalancer.Strategy;
+import org.carewebframework.vista.mbroker.testsupport.StandInServer;
+
+import org.junit.Test;
+
+public class LoadBalancingTest {
+    
+    @Test
+    public void testSpread() throws Exception {
+        try (StandInServer server1 = createServer(); StandInServer server2 = createServer()) {
+            ConnectionParams params = new ConnectionParams(server1.getConnectionString());
+            params.setEndpoints(server1.getConnectionString(), server2.getConnectionString());
+            BrokerSessionPool pool = new BrokerSessionPool(params);
+            BrokerMetrics metrics = new BrokerMetrics("test");
+            pool.setMetrics(metrics);
+            pool.setMinSize(4);
+            pool.setMaxSize(4);
+            pool.connect();
+            
+            try {
+                pool.authenticate("", "", null);
+                assertEquals(4, pool.getSize());
+                List<Endpoint> endpoints = pool.getEndpoints();
+                assertEquals(2, endpoints.size());
+                assertEquals(2, endpoints.get(0).getConnectionCount());
+                assertEquals(2, endpoints.get(1).getConnectionCount());
+                assertEquals(3, server1.getConnectionCount()); // Includes the primary session
+                assertEquals(2, server2.getConnectionCount());
+                
+                for (int i = 0; i < 5; i++) {
+                    assertEquals("ok", pool.callRPC("TEST"));
+                }
+                
+                long requests = 0;
+                
+                for (Endpoint endpoint : endpoints) {
+                    assertEquals(0, endpoint.getOutstandingCount());
+                    assertEquals(0, endpoint.getFailureCount());
+                    requests += endpoint.getRequestCount();
+                }
+                
+                assertEquals(5, requests);
+                assertEquals(5, metrics.getRPCStatistics("TEST").getRequestCount());
+                Map<String, RPCStatistics> statistics = metrics.getEndpointStatistics();
+                assertTrue(statistics.containsKey(server1.getConnectionString()));
+                assertTrue(statistics.containsKey(server2.getConnectionString()));
+            } finally {
+                pool.disconnect();
+            }
+            
+            assertEquals(0, pool.getEndpoints().get(0).getConnectionCount());
+            assertEquals(0, pool.getEndpoints().get(1).getConnectionCount());
+        }
+    }
+    
+    @Test
+    public void testEjection() throws Exception {
+        StandInServer down = createServer();
+        String unreachable = down.getConnectionString();
+        down.close();
+        
+        try (StandInServer server1 = createServer(); StandInServer server2 = createServer()) {
+            ConnectionParams params = new ConnectionParams(server1.getConnectionString());
+            params.setEndpoints(unreachable, server1.getConnectionString(), server2.getConnectionString());
+            BrokerSessionPool pool = new BrokerSessionPool(params);
+            pool.setMinSize(3);
+            pool.setMaxSize(3);
+            pool.connect();
+            
+            try {
+                pool.authenticate("", "", null);
+                assertEquals(3, pool.getSize());
+                List<Endpoint> endpoints = pool.getEndpoints();
+                assertTrue(endpoints.get(0).isEjected());
+                assertEquals(1, endpoints.get(0).getFailureCount());
+                assertEquals(0, endpoints.get(0).getConnectionCount());
+                assertEquals(3, endpoints.get(1).getConnectionCount() + endpoints.get(2).getConnectionCount());
+                assertEquals("ok", pool.callRPC("TEST"));
+            } finally {
+                pool.disconnect();
+            }
+        }
+    }
+    
+    @Test
+    public void testSelection() throws Exception {
+        ConnectionParams params = new ConnectionParams("localhost:9300");
+        params.setEndpoints("host1:9301", "host2", " ");
+        params.setEjectionTime(100);
+        EndpointBalancer balancer = new EndpointBalancer(params);
+        List<Endpoint> endpoints = balancer.getEndpoints();
+        List<Endpoint> none = Collections.emptyList();
+        assertEquals(2, endpoints.size());
+        Endpoint endpoint1 = endpoints.get(0);
+        Endpoint endpoint2 = endpoints.get(1);
+        assertEquals("host1:9301", endpoint1.toString());
+        assertEquals("host2:9300", endpoint2.toString());
+        assertEquals(Strategy.LEAST_OUTSTANDING, balancer.getStrategy());
+        // Ties are broken by the number of connections.
+        assertSame(endpoint1, balancer.select(none));
+        endpoint1.connected();
+        assertSame(endpoint2, balancer.select(none));
+        endpoint2.connected();
+        endpoint2.connected();
+        // Fewest calls in progress.
+        endpoint1.begin();
+        assertSame(endpoint2, balancer.select(none));
+        endpoint1.end(0, false);
+        assertSame(endpoint1, balancer.select(none));
+        // Ejected endpoints are skipped until all have been ejected.
+        endpoint1.eject();
+        assertSame(endpoint2, balancer.select(none));
+        endpoint2.eject();
+        assertSame(endpoint1, balancer.select(none));
+        List<Endpoint> excluded = new ArrayList<>(endpoints);
+        assertNull(balancer.select(excluded));
+        Thread.sleep(150);
+        assertFalse(endpoint1.isEjected());
+        assertFalse(endpoint2.isEjected());
+        assertSame(endpoint1, balancer.select(none));
+        // A connection lost during a call ejects the endpoint.
+        endpoint1.begin();
+        endpoint1.end(0, true);
+        assertTrue(endpoint1.isEjected());
+        assertEquals(2, endpoint1.getFailureCount());
+    }
+    
+    @Test
+    public void testLatencyWeighted() throws Exception {
+        ConnectionParams params = new ConnectionParams("localhost:9300");
+        params.setEndpoints("host1", "host2");
+        params.setLoadBalancing(Strategy.LATENCY_WEIGHTED);
+        EndpointBalancer balancer = new EndpointBalancer(params);
+        Endpoint endpoint1 = balancer.getEndpoints().get(0);
+        Endpoint endpoint2 = balancer.getEndpoints().get(1);
+        List<Endpoint> none = Collections.emptyList();
+        endpoint1.begin();
+        endpoint1.end(40000000L, false);
+        endpoint2.begin();
+        endpoint2.end(10000000L, false);
+        assertEquals(40.0, endpoint1.getLatency(), 0.001);
+        assertSame(endpoint2, balancer.select(none));
+        // The slower endpoint is chosen once the faster one is sufficiently busy.
+        for (int i = 0; i < 4; i++) {
+            endpoint2.begin();
+        }
+        
+        assertSame(endpoint1, balancer.select(none));
+    }
+    
+    private StandInServer createServer() throws Exception {
+        StandInServer server = new StandInServer();
+        server.addFixture("TEST", "ok");
+        return server;
+    }
+    
+}
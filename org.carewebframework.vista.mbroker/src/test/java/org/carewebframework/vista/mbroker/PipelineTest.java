@@ -0,0 +1,165 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.carewebframework.vista.mbroker.ServerCaps.Capability;
+import org.carewebframework.vista.mbroker.testsupport.StandInServer;
+
+import org.junit.Test;
+
+public class PipelineTest {
+    
+    /**
+     * The protocol extensions must not be offered unless enabled, even to a server that supports
+     * them.
+     */
+    @Test
+    public void testNotOffered() throws Exception {
+        try (StandInServer server = createServer()) {
+            server.setCapabilities("PIPELINE", "BATCH", "FRAMED", "RESUME", "CHANNEL", "COMPRESS");
+            BrokerSession session = new BrokerSession(new ConnectionParams(server.getConnectionString()));
+            session.connect();
+            
+            try {
+                for (Capability capability : Capability.values()) {
+                    assertFalse(session.getServerCaps().hasCapability(capability));
+                }
+                
+                assertEquals("0", session.callRPC("SLEEP", "0"));
+            } finally {
+                session.disconnect();
+            }
+        }
+    }
+    
+    /**
+     * Responses that arrive out of order must each be handed to the caller that sent the matching
+     * request, and calls must overlap on the single connection.
+     */
+    @Test
+    public void testOutOfOrder() throws Exception {
+        try (StandInServer server = createServer()) {
+            final BrokerSession session = createSession(server);
+            ExecutorService executor = Executors.newCachedThreadPool();
+            
+            try {
+                assertTrue(session.getServerCaps().hasCapability(Capability.PIPELINE));
+                List<Future<String>> futures = new ArrayList<>();
+                long start = System.currentTimeMillis();
+                
+                for (int i = 4; i >= 0; i--) {
+                    final String delay = Integer.toString(i * 100);
+                    futures.add(executor.submit(new Callable<String>() {
+                        
+                        @Override
+                        public String call() {
+                            return session.callRPC("SLEEP", delay);
+                        }
+                        
+                    }));
+                }
+                
+                for (int i = 4; i >= 0; i--) {
+                    assertEquals(Integer.toString(i * 100), futures.get(4 - i).get(10, TimeUnit.SECONDS));
+                }
+                
+                long elapsed = System.currentTimeMillis() - start;
+                assertTrue("Calls took " + elapsed + " ms.", elapsed < 900);
+                assertEquals(1, server.getConnectionCount());
+            } finally {
+                executor.shutdown();
+                session.disconnect();
+            }
+        }
+    }
+    
+    /**
+     * A call that times out must not receive, or disturb, the responses to later calls, and its own
+     * late response must be discarded.
+     */
+    @Test
+    public void testTimeout() throws Exception {
+        try (StandInServer server = createServer()) {
+            BrokerSession session = createSession(server);
+            
+            try {
+                try {
+                    session.callRPC("SLEEP", false, 100, new Object[] { "500" });
+                    fail("Expected the call to time out.");
+                } catch (RuntimeException e) {
+                    // Expected
+                }
+                
+                assertEquals("0", session.callRPC("SLEEP", "0"));
+                Thread.sleep(600); // The late response arrives.
+                assertEquals("1", session.callRPC("SLEEP", "1"));
+                assertEquals(1, server.getConnectionCount());
+            } finally {
+                session.disconnect();
+            }
+        }
+    }
+    
+    private BrokerSession createSession(StandInServer server) {
+        server.setCapabilities("PIPELINE");
+        ConnectionParams params = new ConnectionParams(server.getConnectionString());
+        params.setProtocolExtensions(true);
+        BrokerSession session = new BrokerSession(params);
+        session.connect();
+        return session;
+    }
+    
+    private StandInServer createServer() throws Exception {
+        StandInServer server = new StandInServer();
+        server.register("SLEEP", new StandInServer.IHandler() {
+            
+            @Override
+            public String handle(Map<String, String> control, Map<String, Map<String, String>> params)
+                    throws Exception {
+                String delay = params.get("1").get("");
+                Thread.sleep(Long.parseLong(delay));
+                return delay;
+            }
+            
+        });
+        return server;
+    }
+    
+}
@@ -0,0 +1,299 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.carewebframework.vista.mbroker.PollingThread.IHostEventHandler;
+import org.carewebframework.vista.mbroker.testsupport.StandInServer;
+
+import org.junit.Test;
+
+public class PollingThreadTest implements IHostEventHandler {
+    
+    private final LinkedBlockingQueue<String> received = new LinkedBlockingQueue<>();
+    
+    private final CountDownLatch release = new CountDownLatch(1);
+    
+    /**
+     * Polls of sessions whose connections are busy must not hold up the polls of other sessions,
+     * even when there are more busy sessions than polling threads.
+     */
+    @Test
+    public void testBusySessions() throws Exception {
+        List<BrokerSession> sessions = new ArrayList<>();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        
+        try (StandInServer server = createServer()) {
+            try {
+                for (int i = 0; i < 12; i++) {
+                    final BrokerSession busy = createSession(server);
+                    sessions.add(busy);
+                    executor.submit(new Callable<String>() {
+                        
+                        @Override
+                        public String call() {
+                            return busy.callRPC("WAIT");
+                        }
+                        
+                    });
+                }
+                
+                BrokerSession session = createSession(server);
+                sessions.add(session);
+                session.eventSubscribe("test", true);
+                Thread.sleep(500); // Allow the busy sessions' polls to fall due.
+                session.fireRemoteEvent("test", "idle", (String) null);
+                assertEquals("test:idle", received.poll(5, TimeUnit.SECONDS));
+                assertEquals(1, release.getCount());
+            } finally {
+                release.countDown();
+                executor.shutdown();
+                
+                for (BrokerSession session : sessions) {
+                    session.disconnect();
+                }
+            }
+        }
+    }
+    
+    /**
+     * A failed poll must not stop polling.
+     */
+    @Test
+    public void testRecovery() throws Exception {
+        try (StandInServer server = createServer()) {
+            server.setCapabilities("RESUME");
+            BrokerSession session = createSession(server);
+            
+            try {
+                session.eventSubscribe("test", true);
+                server.dropConnections();
+                Thread.sleep(1500); // Allow a poll to fail.
+                assertEquals("x", session.callRPC("ECHO", "x"));
+                assertTrue(session.isAuthenticated());
+                session.fireRemoteEvent("test", "restored", (String) null);
+                assertEquals("test:restored", received.poll(10, TimeUnit.SECONDS));
+            } finally {
+                session.disconnect();
+            }
+        }
+    }
+    
+    /**
+     * An idle session backs off to the maximum interval, and polls at once with the interval
+     * starting afresh when polling is resumed.
+     */
+    @Test
+    public void testBackoff() throws Exception {
+        try (StandInServer server = createServer()) {
+            BrokerSession session = new BrokerSession(new ConnectionParams(server.getConnectionString())) {
+                
+                @Override
+                protected boolean isPollingEnabled() {
+                    return false;
+                }
+                
+            };
+            
+            session.connect();
+            session.authenticate("", "", null);
+            PollingThread polling = new PollingThread(session);
+            
+            try {
+                polling.setMaxInterval(2000);
+                Thread.sleep(500);
+                assertEquals(0, server.getPollCount()); // Not yet enabled
+                polling.setEnabled(true); // Polls at 0, 1000, 3000, 5000...
+                Thread.sleep(3500);
+                assertEquals(3, server.getPollCount());
+                polling.setEnabled(false);
+                polling.setEnabled(true); // Polls at once, then after 1000
+                Thread.sleep(500);
+                assertEquals(4, server.getPollCount());
+                Thread.sleep(1000);
+                assertEquals(5, server.getPollCount());
+                assertFalse(polling.isTerminated());
+            } finally {
+                polling.terminate();
+                session.disconnect();
+            }
+            
+            assertTrue(polling.isTerminated());
+        }
+    }
+    
+    /**
+     * While an asynchronous request is outstanding, the host is polled at the expedited interval
+     * rather than the server's polling interval.
+     */
+    @Test
+    public void testExpedited() throws Exception {
+        try (StandInServer server = createServer()) {
+            server.setPollingInterval(5);
+            BrokerSession session = createSession(server);
+            
+            try {
+                final LinkedBlockingQueue<String> results = new LinkedBlockingQueue<>();
+                int polls = server.getPollCount();
+                long start = System.currentTimeMillis();
+                session.callRPCAsync("SLEEP", new BrokerSession.IAsyncRPCEvent() {
+                    
+                    @Override
+                    public void onRPCComplete(int handle, String data) {
+                        results.add(data);
+                    }
+                    
+                    @Override
+                    public void onRPCError(int handle, int code, String text) {
+                        results.add(text);
+                    }
+                    
+                }, "400");
+                assertEquals("400", results.poll(10, TimeUnit.SECONDS));
+                long elapsed = System.currentTimeMillis() - start;
+                assertTrue("Result took " + elapsed + " ms.", elapsed < 1500);
+                assertTrue(server.getPollCount() - polls >= 3);
+            } finally {
+                session.disconnect();
+            }
+        }
+    }
+    
+    /**
+     * When a poll returns a host event, the host is polled again at once until nothing further is
+     * waiting, rather than after the polling interval.
+     */
+    @Test
+    public void testDrain() throws Exception {
+        try (StandInServer server = createServer()) {
+            server.setPollingInterval(5);
+            BrokerSession session = new BrokerSession(new ConnectionParams(server.getConnectionString())) {
+                
+                @Override
+                protected boolean isPollingEnabled() {
+                    return false;
+                }
+                
+            };
+            
+            session.connect();
+            session.authenticate("", "", null);
+            session.addHostEventHandler(this);
+            session.eventSubscribe("test", true);
+            PollingThread polling = new PollingThread(session);
+            
+            try {
+                polling.setEnabled(true); // Polls at once, then waits the polling interval.
+                Thread.sleep(500);
+                assertEquals(1, server.getPollCount());
+                polling.setEnabled(false);
+                
+                for (int i = 0; i < 3; i++) {
+                    server.fireEvent("test", "event " + i);
+                }
+                
+                polling.setEnabled(true);
+                
+                for (int i = 0; i < 3; i++) {
+                    assertEquals("test:event " + i, received.poll(1, TimeUnit.SECONDS));
+                }
+                
+                Thread.sleep(200);
+                assertEquals(5, server.getPollCount());
+            } finally {
+                polling.terminate();
+                session.disconnect();
+            }
+        }
+    }
+    
+    private StandInServer createServer() throws Exception {
+        StandInServer server = new StandInServer();
+        server.setPollingInterval(1);
+        server.register("WAIT", new StandInServer.IHandler() {
+            
+            @Override
+            public String handle(Map<String, String> control, Map<String, Map<String, String>> params)
+                    throws Exception {
+                release.await(30, TimeUnit.SECONDS);
+                return "done";
+            }
+            
+        });
+        
+        server.register("SLEEP", new StandInServer.IHandler() {
+            
+            @Override
+            public String handle(Map<String, String> control, Map<String, Map<String, String>> params)
+                    throws Exception {
+                String delay = params.get("1").get("");
+                Thread.sleep(Long.parseLong(delay));
+                return delay;
+            }
+            
+        });
+        
+        server.register("ECHO", new StandInServer.IHandler() {
+            
+            @Override
+            public String handle(Map<String, String> control, Map<String, Map<String, String>> params) {
+                return params.get("1").get("");
+            }
+            
+        });
+        
+        return server;
+    }
+    
+    private BrokerSession createSession(StandInServer server) {
+        ConnectionParams params = new ConnectionParams(server.getConnectionString());
+        params.setProtocolExtensions(true);
+        BrokerSession session = new BrokerSession(params);
+        session.connect();
+        session.authenticate("", "", null);
+        session.addHostEventHandler(this);
+        return session;
+    }
+    
+    @Override
+    public void onHostEvent(String name, Object data) {
+        received.add(name + ":" + data);
+    }
+    
+}
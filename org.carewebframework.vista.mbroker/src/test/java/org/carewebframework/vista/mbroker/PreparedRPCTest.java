@@ -0,0 +1,70 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+
+import org.carewebframework.vista.mbroker.testsupport.StandInServer;
+
+import org.junit.Test;
+
+public class PreparedRPCTest {
+    
+    /**
+     * A prepared call without a calling context of its own must use the session's current default
+     * context, even after its control parameters have been encoded for another.
+     */
+    @Test
+    public void testDefaultContext() throws Exception {
+        try (StandInServer server = new StandInServer()) {
+            server.register("CONTEXT", new StandInServer.IHandler() {
+                
+                @Override
+                public String handle(Map<String, String> control, Map<String, Map<String, String>> params) {
+                    return control.get("CTX");
+                }
+                
+            });
+            ConnectionParams params = new ConnectionParams(server.getConnectionString());
+            params.setAppid("FIRST CONTEXT");
+            BrokerSession session = new BrokerSession(params);
+            session.connect();
+            
+            try {
+                PreparedRPC rpc = session.prepare("CONTEXT");
+                assertEquals("FIRST CONTEXT", rpc.call());
+                session.getConnectionParams().setAppid("SECOND CONTEXT");
+                assertEquals("SECOND CONTEXT", rpc.call());
+                assertEquals("OWN CONTEXT", session.prepare("CONTEXT::OWN CONTEXT").call());
+            } finally {
+                session.disconnect();
+            }
+        }
+    }
+    
+}
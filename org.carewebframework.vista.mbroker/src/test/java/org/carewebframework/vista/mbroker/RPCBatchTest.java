@@ -0,0 +1,120 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.carewebframework.vista.mbroker.ServerCaps.Capability;
+import org.carewebframework.vista.mbroker.testsupport.StandInServer;
+
+import org.junit.Test;
+
+public class RPCBatchTest {
+    
+    @Test
+    public void testBatch() throws Exception {
+        testBatch(true);
+    }
+    
+    @Test
+    public void testFallback() throws Exception {
+        testBatch(false);
+    }
+    
+    private void testBatch(boolean supported) throws Exception {
+        try (StandInServer server = new StandInServer()) {
+            if (supported) {
+                server.setCapabilities("BATCH");
+            }
+            
+            server.register("ECHO", new StandInServer.IHandler() {
+                
+                @Override
+                public String handle(Map<String, String> control, Map<String, Map<String, String>> params) {
+                    return params.isEmpty() ? "" : params.get("1").get("");
+                }
+                
+            });
+            server.register("FAIL", new StandInServer.IHandler() {
+                
+                @Override
+                public String handle(Map<String, String> control, Map<String, Map<String, String>> params) {
+                    throw new IllegalStateException("Failed");
+                }
+                
+            });
+            
+            ConnectionParams params = new ConnectionParams(server.getConnectionString());
+            params.setProtocolExtensions(true);
+            BrokerSession session = new BrokerSession(params);
+            session.connect();
+            assertEquals(supported, session.getServerCaps().hasCapability(Capability.BATCH));
+            
+            try {
+                RPCBatch batch = session.createBatch();
+                batch.add("ECHO", "first");
+                batch.add("ECHO", "caf\u00e9\rsecond line");
+                batch.add("ECHO");
+                assertEquals(Arrays.asList("first", "caf\u00e9\rsecond line", ""), batch.execute());
+                
+                batch = session.createBatch();
+                CompletableFuture<String> first = batch.add("ECHO", "first");
+                CompletableFuture<String> failed = batch.add("FAIL");
+                CompletableFuture<String> last = batch.add(session.prepare("ECHO"), "last");
+                
+                try {
+                    batch.execute();
+                    fail("Expected an exception.");
+                } catch (RPCException e) {
+                    assertEquals(99, e.getCode());
+                }
+                
+                assertEquals("first", first.get());
+                assertEquals("last", last.get());
+                
+                try {
+                    failed.get();
+                    fail("Expected an exception.");
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof RPCException);
+                }
+                
+                assertEquals(supported ? 2 : 0, server.getBatchCount());
+                assertEquals(6, server.getCallCount());
+            } finally {
+                session.disconnect();
+            }
+        }
+    }
+    
+}
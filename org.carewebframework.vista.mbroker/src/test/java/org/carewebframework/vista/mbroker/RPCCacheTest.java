@@ -0,0 +1,365 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.carewebframework.vista.mbroker.RPCCache.Policy;
+import org.carewebframework.vista.mbroker.testsupport.StandInServer;
+
+import org.junit.Test;
+
+public class RPCCacheTest {
+    
+    @Test
+    public void testCache() throws Exception {
+        try (StandInServer server = new StandInServer()) {
+            final AtomicInteger version = new AtomicInteger();
+            server.register("LOOKUP", new StandInServer.IHandler() {
+                
+                @Override
+                public String handle(Map<String, String> control, Map<String, Map<String, String>> params) {
+                    return params.get("1").get("") + version.get();
+                }
+                
+            });
+            
+            BrokerSession session = new BrokerSession(new ConnectionParams(server.getConnectionString()));
+            session.connect();
+            RPCCache cache = new RPCCache(session);
+            Policy policy = new Policy("LOOKUP", 200);
+            policy.setEvents(new String[] { "CHANGED" });
+            cache.setPolicies(Collections.singletonList(policy));
+            cache.setMaxSize(2);
+            cache.init();
+            
+            try {
+                // Results are cached by parameter value.
+                assertEquals("a0", session.callRPC("LOOKUP", "a"));
+                assertEquals("b0", session.callRPC("LOOKUP", "b"));
+                version.set(1);
+                assertEquals("a0", session.callRPC("LOOKUP", "a"));
+                assertEquals("b0", session.callRPC(session.prepare("LOOKUP"), "b"));
+                assertEquals(2, server.getCallCount());
+                assertEquals(2, cache.getHitCount());
+                assertEquals(2, cache.getMissCount());
+                
+                // The least recently used result is evicted.
+                assertEquals("c1", session.callRPC("LOOKUP", "c"));
+                assertEquals("b0", session.callRPC("LOOKUP", "b"));
+                assertEquals("a1", session.callRPC("LOOKUP", "a"));
+                assertEquals(2, cache.getEvictionCount());
+                assertEquals(2, cache.getSize());
+                
+                // Results are discarded when invalidated by a host event.
+                version.set(2);
+                cache.onHostEvent("CHANGED.123", null);
+                assertEquals(2, cache.getInvalidationCount());
+                assertEquals("a2", session.callRPC("LOOKUP", "a"));
+                
+                // Results expire.
+                version.set(3);
+                assertEquals("a2", session.callRPC("LOOKUP", "a"));
+                Thread.sleep(250);
+                assertEquals("a3", session.callRPC("LOOKUP", "a"));
+                
+                // Once detached, the cache is no longer consulted.
+                cache.destroy();
+                assertEquals("a3", session.callRPC("LOOKUP", "a"));
+                assertEquals(7, server.getCallCount());
+            } finally {
+                session.disconnect();
+            }
+        }
+    }
+    
+    @Test
+    public void testSharedCache() throws Exception {
+        try (StandInServer server = new StandInServer()) {
+            final AtomicInteger version = new AtomicInteger();
+            server.register("LOOKUP", new StandInServer.IHandler() {
+                
+                @Override
+                public String handle(Map<String, String> control, Map<String, Map<String, String>> params) {
+                    return params.get("1").get("") + version.get();
+                }
+                
+            });
+            
+            final AtomicInteger events = new AtomicInteger();
+            RPCCache cache = new RPCCache() {
+                
+                @Override
+                public void onHostEvent(String name, Object data) {
+                    events.incrementAndGet();
+                    super.onHostEvent(name, data);
+                }
+                
+            };
+            
+            Policy policy = new Policy("LOOKUP", 60000);
+            policy.setEvents(new String[] { "CHANGED" });
+            cache.addPolicy(policy);
+            BrokerSession session1 = new BrokerSession(new ConnectionParams(server.getConnectionString()));
+            BrokerSession session2 = new BrokerSession(new ConnectionParams(server.getConnectionString()));
+            
+            try {
+                // Only one session subscribes to invalidating events on the cache's behalf,
+                // whether given the cache before or after it is authenticated.
+                session1.connect();
+                session1.authenticate("", "", null);
+                session1.setRPCCache(cache);
+                session2.setRPCCache(cache);
+                session2.connect();
+                session2.authenticate("", "", null);
+                int calls = server.getCallCount();
+                
+                // A result fetched by one session is served to the other.
+                assertEquals("a0", session1.callRPC("LOOKUP", "a"));
+                version.set(1);
+                assertEquals("a0", session2.callRPC("LOOKUP", "a"));
+                assertEquals(1, cache.getHitCount());
+                assertEquals(calls + 1, server.getCallCount());
+                
+                // A host event invalidates the shared result, and is delivered to the cache once.
+                assertSame(session1, cache.getListener());
+                server.fireEvent("CHANGED", "");
+                awaitInvalidations(cache, 1);
+                Thread.sleep(500); // Allow time for any duplicate delivery.
+                assertEquals(1, events.get());
+                assertEquals("a1", session2.callRPC("LOOKUP", "a"));
+                
+                // When the listening session is disconnected, another takes its place.
+                session1.disconnect();
+                assertSame(session2, cache.getListener());
+                version.set(2);
+                server.fireEvent("CHANGED", "");
+                awaitInvalidations(cache, 2);
+                assertEquals("a2", session2.callRPC("LOOKUP", "a"));
+            } finally {
+                cache.destroy();
+                session1.disconnect();
+                session2.disconnect();
+            }
+        }
+    }
+    
+    /**
+     * A policy restricted to certain values of the first parameter caches only those calls.
+     */
+    @Test
+    public void testArguments() throws Exception {
+        try (StandInServer server = new StandInServer()) {
+            server.register("RGUTRPC FILGET", new StandInServer.IHandler() {
+                
+                @Override
+                public String handle(Map<String, String> control, Map<String, Map<String, String>> params) {
+                    return params.get("1").get("");
+                }
+                
+            });
+            
+            BrokerSession session = new BrokerSession(new ConnectionParams(server.getConnectionString()));
+            RPCCache cache = new RPCCache(session);
+            Policy policy = new Policy("RGUTRPC FILGET", 60000);
+            policy.setArguments(new String[] { "8925.1" });
+            cache.addPolicy(policy);
+            cache.init();
+            
+            try {
+                session.connect();
+                int calls = server.getCallCount();
+                assertEquals("8925.1", session.callRPC("RGUTRPC FILGET", 8925.1, null));
+                assertEquals("8925.1", session.callRPC("RGUTRPC FILGET", 8925.1, null));
+                assertEquals(calls + 1, server.getCallCount());
+                assertEquals("3.8", session.callRPC("RGUTRPC FILGET", 3.8, null));
+                assertEquals("3.8", session.callRPC("RGUTRPC FILGET", 3.8, null));
+                assertEquals(calls + 3, server.getCallCount());
+                assertEquals(1, cache.getHitCount());
+                assertEquals(1, cache.getSize());
+            } finally {
+                cache.destroy();
+                session.disconnect();
+            }
+        }
+    }
+    
+    @Test
+    public void testUsers() throws Exception {
+        try (StandInServer server = new StandInServer()) {
+            server.addFixture("LOOKUP", "result");
+            server.addFixture("REFERENCE", "result");
+            RPCCache cache = new RPCCache();
+            cache.addPolicy(new Policy("LOOKUP", 60000));
+            Policy shared = new Policy("REFERENCE", 60000);
+            shared.setShared(true);
+            cache.addPolicy(shared);
+            BrokerSession user = new BrokerSession(new ConnectionParams(server.getConnectionString()));
+            BrokerSession anonymous = new BrokerSession(new ConnectionParams(server.getConnectionString()));
+            
+            try {
+                user.connect();
+                user.authenticate("", "", null);
+                user.setRPCCache(cache);
+                anonymous.connect();
+                anonymous.setRPCCache(cache);
+                int calls = server.getCallCount();
+                
+                // Results are cached per user unless the policy shares them among users.
+                assertEquals("result", user.callRPC("LOOKUP", "a"));
+                assertEquals("result", anonymous.callRPC("LOOKUP", "a"));
+                assertEquals(calls + 2, server.getCallCount());
+                assertEquals("result", user.callRPC("REFERENCE", "a"));
+                assertEquals("result", anonymous.callRPC("REFERENCE", "a"));
+                assertEquals(calls + 3, server.getCallCount());
+                assertEquals(1, cache.getHitCount());
+            } finally {
+                cache.destroy();
+                user.disconnect();
+                anonymous.disconnect();
+            }
+        }
+    }
+    
+    @Test
+    public void testPreparedOnce() throws Exception {
+        try (StandInServer server = new StandInServer()) {
+            server.addFixture("LOOKUP", "result");
+            final AtomicInteger prepared = new AtomicInteger();
+            BrokerSession session = new BrokerSession(new ConnectionParams(server.getConnectionString())) {
+                
+                @Override
+                public PreparedRPC prepare(String name) {
+                    prepared.incrementAndGet();
+                    return super.prepare(name);
+                }
+                
+            };
+            
+            session.connect();
+            RPCCache cache = new RPCCache(session);
+            cache.addPolicy(new Policy("LOOKUP", 0));
+            cache.init();
+            
+            try {
+                for (int i = 0; i < 3; i++) {
+                    assertEquals("result", session.callRPC("LOOKUP", "a"));
+                }
+                
+                assertEquals(1, prepared.get());
+            } finally {
+                cache.destroy();
+                session.disconnect();
+            }
+        }
+    }
+    
+    @Test
+    public void testCoalescing() throws Exception {
+        try (StandInServer server = new StandInServer()) {
+            final CompletableFuture<Void> release = new CompletableFuture<>();
+            server.register("LIST", new StandInServer.IHandler() {
+                
+                @Override
+                public String handle(Map<String, String> control, Map<String, Map<String, String>> params) {
+                    release.join();
+                    return "list " + params.get("1").get("");
+                }
+                
+            });
+            
+            final BrokerSession session = new BrokerSession(new ConnectionParams(server.getConnectionString()));
+            session.connect();
+            RPCCache cache = new RPCCache(session);
+            cache.addPolicy(new Policy("LIST", 0));
+            cache.init();
+            ExecutorService executor = Executors.newFixedThreadPool(10);
+            
+            try {
+                List<Future<String>> results = new ArrayList<>();
+                
+                for (int i = 0; i < 10; i++) {
+                    results.add(executor.submit(new Callable<String>() {
+                        
+                        @Override
+                        public String call() {
+                            return session.callRPC("LIST", "ward");
+                        }
+                        
+                    }));
+                }
+                
+                long limit = System.currentTimeMillis() + 5000;
+                
+                while (cache.getCoalescedCount() < 9 && System.currentTimeMillis() < limit) {
+                    Thread.sleep(10);
+                }
+                
+                release.complete(null);
+                
+                for (Future<String> result : results) {
+                    assertEquals("list ward", result.get(5, TimeUnit.SECONDS));
+                }
+                
+                // One round trip serviced all ten calls, and its result was not cached.
+                assertEquals(1, server.getCallCount());
+                assertEquals(9, cache.getCoalescedCount());
+                assertEquals(0, cache.getSize());
+                assertEquals("list ward", session.callRPC("LIST", "ward"));
+                assertEquals(2, server.getCallCount());
+                assertEquals(0, cache.getHitCount());
+            } finally {
+                executor.shutdown();
+                cache.destroy();
+                session.disconnect();
+            }
+        }
+    }
+    
+    private void awaitInvalidations(RPCCache cache, int count) throws InterruptedException {
+        long limit = System.currentTimeMillis() + 5000;
+        
+        while (cache.getInvalidationCount() < count && System.currentTimeMillis() < limit) {
+            Thread.sleep(10);
+        }
+        
+        assertEquals(count, cache.getInvalidationCount());
+    }
+    
+}
@@ -0,0 +1,209 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
+
+import org.carewebframework.vista.mbroker.testsupport.StandInServer;
+
+import org.junit.Test;
+
+public class RPCFutureTest {
+    
+    private final LinkedBlockingQueue<String> aborted = new LinkedBlockingQueue<>();
+    
+    /**
+     * A future completes as soon as its result is available, well within the server's polling
+     * interval, and futures may be composed.
+     */
+    @Test
+    public void testComplete() throws Exception {
+        try (StandInServer server = createServer()) {
+            BrokerSession session = createSession(server);
+            
+            try {
+                long start = System.currentTimeMillis();
+                assertEquals("x", session.callRPCFuture("ECHO", "x").get(5, TimeUnit.SECONDS));
+                long elapsed = System.currentTimeMillis() - start;
+                assertTrue("Call took " + elapsed + " ms.", elapsed < 1000);
+                RPCFuture<Integer> a = session.callRPCFutureInt("ECHO", "40");
+                RPCFuture<Integer> b = session.callRPCFutureInt("ECHO", "2");
+                RPCFuture<List<String>> list = session.callRPCFutureList("ECHO", "a\rb");
+                CompletableFuture.allOf(a, b, list).get(5, TimeUnit.SECONDS);
+                assertEquals(42, a.thenCombine(b, new BiFunction<Integer, Integer, Integer>() {
+                    
+                    @Override
+                    public Integer apply(Integer x, Integer y) {
+                        return x + y;
+                    }
+                    
+                }).get().intValue());
+                assertEquals(Arrays.asList("a", "b"), list.get());
+            } finally {
+                session.disconnect();
+            }
+        }
+    }
+    
+    /**
+     * A remote procedure error completes the future exceptionally with an RPC exception.
+     */
+    @Test
+    public void testError() throws Exception {
+        try (StandInServer server = createServer()) {
+            BrokerSession session = createSession(server);
+            
+            try {
+                session.callRPCFuture("FAIL").get(5, TimeUnit.SECONDS);
+                fail("Expected the call to fail.");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RPCException);
+                assertEquals(5, ((RPCException) e.getCause()).getCode());
+            } finally {
+                session.disconnect();
+            }
+        }
+    }
+    
+    /**
+     * Cancelling a future aborts the remote procedure on the server.
+     */
+    @Test
+    public void testCancel() throws Exception {
+        try (StandInServer server = createServer()) {
+            BrokerSession session = createSession(server);
+            
+            try {
+                RPCFuture<String> future = session.callRPCFuture("SLEEP", "2000");
+                assertTrue(future.cancel(true));
+                assertEquals(Integer.toString(future.getHandle()), aborted.poll(5, TimeUnit.SECONDS));
+                
+                try {
+                    future.get();
+                    fail("Expected the future to be cancelled.");
+                } catch (CancellationException e) {
+                    // Expected
+                }
+            } finally {
+                session.disconnect();
+            }
+        }
+    }
+    
+    /**
+     * A future that is not complete within its timeout fails with a timeout exception, and the
+     * remote procedure is aborted.
+     */
+    @Test
+    public void testTimeout() throws Exception {
+        try (StandInServer server = createServer()) {
+            BrokerSession session = createSession(server);
+            
+            try {
+                RPCFuture<String> future = session.callRPCFuture("SLEEP", "2000").timeout(100, TimeUnit.MILLISECONDS);
+                
+                try {
+                    future.get(5, TimeUnit.SECONDS);
+                    fail("Expected the call to time out.");
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof TimeoutException);
+                }
+                
+                assertEquals(Integer.toString(future.getHandle()), aborted.poll(5, TimeUnit.SECONDS));
+            } finally {
+                session.disconnect();
+            }
+        }
+    }
+    
+    private BrokerSession createSession(StandInServer server) {
+        BrokerSession session = new BrokerSession(new ConnectionParams(server.getConnectionString()));
+        session.connect();
+        session.authenticate("", "", null);
+        return session;
+    }
+    
+    private StandInServer createServer() throws Exception {
+        StandInServer server = new StandInServer();
+        server.setPollingInterval(5);
+        server.register("ECHO", new StandInServer.IHandler() {
+            
+            @Override
+            public String handle(Map<String, String> control, Map<String, Map<String, String>> params) {
+                return params.get("1").get("");
+            }
+            
+        });
+        
+        server.register("SLEEP", new StandInServer.IHandler() {
+            
+            @Override
+            public String handle(Map<String, String> control, Map<String, Map<String, String>> params)
+                    throws Exception {
+                String delay = params.get("1").get("");
+                Thread.sleep(Long.parseLong(delay));
+                return delay;
+            }
+            
+        });
+        
+        server.register("FAIL", new StandInServer.IHandler() {
+            
+            @Override
+            public String handle(Map<String, String> control, Map<String, Map<String, String>> params)
+                    throws Exception {
+                throw new StandInServer.HostError(5, "Failed");
+            }
+            
+        });
+        
+        server.register("RGNETBAS STOP", new StandInServer.IHandler() {
+            
+            @Override
+            public String handle(Map<String, String> control, Map<String, Map<String, String>> params) {
+                aborted.add(params.get("1").get(""));
+                return "1";
+            }
+            
+        });
+        
+        return server;
+    }
+    
+}
@@ -0,0 +1,323 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.carewebframework.vista.mbroker.RPCScheduler.RPCClass;
+import org.carewebframework.vista.mbroker.testsupport.StandInServer;
+
+import org.junit.Test;
+
+public class RPCSchedulerTest {
+    
+    private final List<String> performed = Collections.synchronizedList(new ArrayList<String>());
+    
+    private static final int CALLS = 6;
+    
+    private static final long LATENCY = 250;
+    
+    private final CountDownLatch release = new CountDownLatch(1);
+    
+    @Test
+    public void testPriority() throws Exception {
+        testPriority(new BrokerSession());
+    }
+    
+    @Test
+    public void testPriorityPooled() throws Exception {
+        BrokerSessionPool pool = new BrokerSessionPool();
+        pool.setMaxSize(1);
+        testPriority(pool);
+    }
+    
+    private void testPriority(BrokerSession session) throws Exception {
+        RPCScheduler scheduler = createScheduler();
+        
+        try (StandInServer server = createServer()) {
+            session.setConnectionParams(new ConnectionParams(server.getConnectionString()));
+            session.connect();
+            session.authenticate("", "", null);
+            session.setScheduler(scheduler);
+            ExecutorService executor = Executors.newCachedThreadPool();
+            
+            try {
+                List<Future<String>> futures = new ArrayList<>();
+                futures.add(submit(executor, session, "WAIT"));
+                awaitCount(scheduler, "background", 1, 0);
+                futures.add(submit(executor, session, "BULK", "1"));
+                awaitCount(scheduler, "background", 1, 1);
+                futures.add(submit(executor, session, "BULK", "2"));
+                awaitCount(scheduler, "background", 1, 2);
+                futures.add(submit(executor, session, "ECHO", "interactive"));
+                awaitCount(scheduler, "interactive", 0, 1);
+                release.countDown();
+                
+                for (Future<String> future : futures) {
+                    future.get(10, TimeUnit.SECONDS);
+                }
+                
+                assertEquals(Arrays.asList("WAIT", "ECHO interactive", "BULK 1", "BULK 2"), performed);
+                assertEquals(3, scheduler.getAdmittedCount("background"));
+                assertEquals(0, scheduler.getRunning("background"));
+            } finally {
+                release.countDown();
+                executor.shutdown();
+                session.disconnect();
+            }
+        }
+    }
+    
+    @Test
+    public void testShedding() throws Exception {
+        RPCScheduler scheduler = createScheduler();
+        RPCClass prefetch = new RPCClass("prefetch", 0, "PREFETCH");
+        prefetch.setDeadline(100);
+        scheduler.addClass(prefetch);
+        
+        try (StandInServer server = createServer()) {
+            BrokerSession session = new BrokerSession(new ConnectionParams(server.getConnectionString()));
+            session.connect();
+            session.authenticate("", "", null);
+            session.setScheduler(scheduler);
+            ExecutorService executor = Executors.newCachedThreadPool();
+            
+            try {
+                Future<String> wait = submit(executor, session, "WAIT");
+                awaitCount(scheduler, "background", 1, 0);
+                Future<String> bulk1 = submit(executor, session, "BULK", "1");
+                awaitCount(scheduler, "background", 1, 1);
+                Future<String> bulk2 = submit(executor, session, "BULK", "2");
+                awaitCount(scheduler, "background", 1, 2);
+                
+                try {
+                    session.callRPC("BULK", "3");
+                    fail("Expected the call to be shed.");
+                } catch (RejectedExecutionException e) {
+                    assertEquals(1, scheduler.getShedCount("background"));
+                }
+                
+                try {
+                    session.callRPC("PREFETCH");
+                    fail("Expected the call to be shed.");
+                } catch (RejectedExecutionException e) {
+                    assertEquals(1, scheduler.getShedCount("prefetch"));
+                    assertEquals(0, scheduler.getQueued("prefetch"));
+                }
+                
+                release.countDown();
+                assertEquals("done", wait.get(10, TimeUnit.SECONDS));
+                assertEquals("1", bulk1.get(10, TimeUnit.SECONDS));
+                assertEquals("2", bulk2.get(10, TimeUnit.SECONDS));
+                assertEquals(Arrays.asList("WAIT", "BULK 1", "BULK 2"), performed);
+            } finally {
+                release.countDown();
+                executor.shutdown();
+                session.disconnect();
+            }
+        }
+    }
+    
+    /**
+     * A scheduler shared by several sessions must apply the limit of each class to their calls
+     * together, not to each session's calls separately.
+     */
+    @Test
+    public void testShared() throws Exception {
+        RPCClass background = new RPCClass("background", 1, "WAIT", "BULK");
+        background.setMaxConcurrent(1);
+        RPCScheduler scheduler = new RPCScheduler();
+        scheduler.setClasses(Arrays.asList(new RPCClass("interactive", 10), background));
+        
+        try (StandInServer server = createServer()) {
+            BrokerSession session1 = new BrokerSession(new ConnectionParams(server.getConnectionString()));
+            BrokerSession session2 = new BrokerSession(new ConnectionParams(server.getConnectionString()));
+            ExecutorService executor = Executors.newCachedThreadPool();
+            
+            try {
+                for (BrokerSession session : new BrokerSession[] { session1, session2 }) {
+                    session.connect();
+                    session.authenticate("", "", null);
+                    session.setScheduler(scheduler);
+                }
+                
+                Future<String> wait = submit(executor, session1, "WAIT");
+                awaitCount(scheduler, "background", 1, 0);
+                Future<String> bulk = submit(executor, session2, "BULK", "1");
+                awaitCount(scheduler, "background", 1, 1);
+                assertEquals("interactive", session2.callRPC("ECHO", "interactive"));
+                release.countDown();
+                assertEquals("done", wait.get(10, TimeUnit.SECONDS));
+                assertEquals("1", bulk.get(10, TimeUnit.SECONDS));
+                assertEquals(Arrays.asList("WAIT", "ECHO interactive", "BULK 1"), performed);
+            } finally {
+                release.countDown();
+                executor.shutdown();
+                session1.disconnect();
+                session2.disconnect();
+            }
+        }
+    }
+    
+    @Test
+    public void testDefaultThroughput() throws Exception {
+        BrokerSessionPool pool = new BrokerSessionPool();
+        pool.setMaxSize(CALLS);
+        
+        try (StandInServer server = createServer()) {
+            server.setLatency(LATENCY);
+            pool.setConnectionParams(new ConnectionParams(server.getConnectionString()));
+            pool.connect();
+            pool.authenticate("", "", null);
+            ExecutorService executor = Executors.newCachedThreadPool();
+            
+            try {
+                long unscheduled = timeCalls(executor, pool);
+                pool.setScheduler(createDefaultScheduler());
+                long scheduled = timeCalls(executor, pool);
+                assertTrue("Scheduled calls took " + scheduled + " ms, unscheduled " + unscheduled + " ms.",
+                    scheduled < unscheduled + LATENCY && scheduled < CALLS * LATENCY / 2);
+            } finally {
+                executor.shutdown();
+                pool.disconnect();
+            }
+        }
+    }
+    
+    /**
+     * Issues concurrent interactive calls, together with a background call, and returns the time
+     * taken for all to complete.
+     */
+    private long timeCalls(ExecutorService executor, BrokerSession session) throws Exception {
+        List<Future<String>> futures = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        futures.add(submit(executor, session, "BULK", "0"));
+        
+        for (int i = 1; i < CALLS; i++) {
+            futures.add(submit(executor, session, "ECHO", Integer.toString(i)));
+        }
+        
+        for (Future<String> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        
+        return System.currentTimeMillis() - start;
+    }
+    
+    /**
+     * Creates a scheduler configured as it is by default: an overall limit well above the number of
+     * calls, and bulkheads on the polling, background and prefetch classes.
+     */
+    private RPCScheduler createDefaultScheduler() {
+        RPCScheduler scheduler = new RPCScheduler();
+        scheduler.setMaxConcurrent(32);
+        RPCClass polling = new RPCClass("polling", 20);
+        polling.setMaxConcurrent(8);
+        RPCClass background = new RPCClass("background", 10, "BULK");
+        background.setMaxConcurrent(4);
+        RPCClass prefetch = new RPCClass("prefetch", 0, "PREFETCH");
+        prefetch.setMaxConcurrent(2);
+        scheduler.setClasses(Arrays.asList(new RPCClass("interactive", 30), polling, background, prefetch));
+        return scheduler;
+    }
+    
+    private RPCScheduler createScheduler() {
+        RPCClass background = new RPCClass("background", 1, "WAIT", "BULK");
+        background.setMaxQueued(2);
+        RPCScheduler scheduler = new RPCScheduler();
+        scheduler.setMaxConcurrent(1);
+        scheduler.setClasses(Arrays.asList(new RPCClass("interactive", 10), background));
+        return scheduler;
+    }
+    
+    private StandInServer createServer() throws Exception {
+        StandInServer server = new StandInServer();
+        StandInServer.IHandler handler = new StandInServer.IHandler() {
+            
+            @Override
+            public String handle(Map<String, String> control, Map<String, Map<String, String>> params)
+                    throws Exception {
+                String name = control.get("RPC");
+                String arg = params.isEmpty() ? null : params.get("1").get("");
+                performed.add(arg == null ? name : name + " " + arg);
+                
+                if ("WAIT".equals(name)) {
+                    release.await(10, TimeUnit.SECONDS);
+                    return "done";
+                }
+                
+                return arg;
+            }
+            
+        };
+        
+        for (String name : new String[] { "WAIT", "BULK", "ECHO", "PREFETCH" }) {
+            server.register(name, handler);
+        }
+        
+        return server;
+    }
+    
+    private Future<String> submit(ExecutorService executor, final BrokerSession session, final String name,
+                                  final Object... args) {
+        return executor.submit(new Callable<String>() {
+            
+            @Override
+            public String call() {
+                return session.callRPC(name, args);
+            }
+            
+        });
+    }
+    
+    private void awaitCount(RPCScheduler scheduler, String className, int running, int queued) throws Exception {
+        long expiration = System.currentTimeMillis() + 10000;
+        
+        while (scheduler.getRunning(className) != running || scheduler.getQueued(className) != queued) {
+            if (System.currentTimeMillis() > expiration) {
+                fail("Timed out waiting for " + className + " calls.");
+            }
+            
+            Thread.sleep(10);
+        }
+    }
+    
+}
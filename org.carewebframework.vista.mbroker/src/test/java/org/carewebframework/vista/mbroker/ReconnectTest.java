@@ -0,0 +1,146 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.carewebframework.vista.mbroker.PollingThread.IHostEventHandler;
+import org.carewebframework.vista.mbroker.testsupport.StandInServer;
+
+import org.junit.Test;
+
+public class ReconnectTest implements IHostEventHandler {
+    
+    private final LinkedBlockingQueue<String> received = new LinkedBlockingQueue<>();
+    
+    @Test
+    public void testResume() throws Exception {
+        testReconnect(false, "RESUME");
+    }
+    
+    @Test
+    public void testResumePipeline() throws Exception {
+        testReconnect(false, "RESUME", "PIPELINE");
+    }
+    
+    @Test
+    public void testResumeNonBlocking() throws Exception {
+        testReconnect(true, "RESUME", "FRAMED");
+    }
+    
+    @Test
+    public void testFallback() throws Exception {
+        testReconnect(false);
+    }
+    
+    private void testReconnect(boolean nonBlocking, String... capabilities) throws Exception {
+        try (StandInServer server = new StandInServer()) {
+            final CountDownLatch release = new CountDownLatch(1);
+            server.setCapabilities(capabilities);
+            server.register("ECHO", new StandInServer.IHandler() {
+                
+                @Override
+                public String handle(Map<String, String> control, Map<String, Map<String, String>> params) {
+                    return params.get("1").get("");
+                }
+                
+            });
+            server.register("WAIT", new StandInServer.IHandler() {
+                
+                @Override
+                public String handle(Map<String, String> control, Map<String, Map<String, String>> params)
+                        throws Exception {
+                    release.await(10, TimeUnit.SECONDS);
+                    return "done";
+                }
+                
+            });
+            
+            ConnectionParams params = new ConnectionParams(server.getConnectionString());
+            params.setProtocolExtensions(true);
+            params.setNonBlocking(nonBlocking);
+            params.setReconnectAttempts(3);
+            BrokerSession session = new BrokerSession(params);
+            session.connect();
+            
+            try {
+                session.authenticate("", "", null);
+                session.addHostEventHandler(this);
+                assertTrue(session.eventSubscribe("test", true));
+                int id = session.getId();
+                RPCFuture<String> future = session.callRPCFuture("WAIT");
+                server.dropConnections();
+                server.fireEvent("test.child", "missed event");
+                release.countDown();
+                
+                // The loss of a connection is noticed by the transport or, at the latest, by the next request.
+                try {
+                    assertEquals("probe", session.callRPC("ECHO", "probe"));
+                } catch (RuntimeException e) {
+                    assertFalse(session.isConnected());
+                }
+                
+                assertEquals("after", session.callRPC("ECHO", "after"));
+                
+                if (capabilities.length > 0) {
+                    assertEquals(id, session.getId());
+                    assertTrue(session.isAuthenticated());
+                    assertEquals("done", future.get(10, TimeUnit.SECONDS));
+                    assertEquals("test.child:missed event", received.poll(10, TimeUnit.SECONDS));
+                    server.fireEvent("test.child", "later event");
+                    assertEquals("test.child:later event", received.poll(10, TimeUnit.SECONDS));
+                } else {
+                    assertTrue(id != session.getId());
+                    assertFalse(session.isAuthenticated());
+                    
+                    try {
+                        future.get(10, TimeUnit.SECONDS);
+                        fail("Expected the asynchronous call to fail.");
+                    } catch (ExecutionException e) {
+                        assertTrue(e.getCause() instanceof RPCException);
+                    }
+                }
+            } finally {
+                session.disconnect();
+            }
+        }
+    }
+    
+    @Override
+    public void onHostEvent(String name, Object data) {
+        received.add(name + ":" + data);
+    }
+    
+}
@@ -0,0 +1,133 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.carewebframework.vista.mbroker.Request.Action;
+
+import org.junit.Test;
+
+public class RequestTest {
+    
+    @Test
+    public void testLengthDescriptor() {
+        testLengthDescriptor(0, 0x00);
+        testLengthDescriptor(15, 0x0F);
+        testLengthDescriptor(16, 0x10, 0x01);
+        testLengthDescriptor(4095, 0x1F, 0xFF);
+        testLengthDescriptor(4096, 0x20, 0x01, 0x00);
+        testLengthDescriptor(70000, 0x20, 0x11, 0x17);
+    }
+    
+    @Test
+    public void testEncodedParameters() {
+        Request request = new Request(Action.RPC);
+        request.addParameter("UID", 12);
+        request.addParameter("RPC", "TEST");
+        byte[] encoded = request.getEncodedParameters();
+        Request copy = new Request(Action.RPC);
+        copy.addEncodedParameters(encoded);
+        assertArrayEquals(encoded, copy.getEncodedParameters());
+        assertEquals((1 + 3) + 1 + (1 + 2) + (1 + 3) + 1 + (1 + 4), encoded.length);
+    }
+    
+    @Test
+    public void testFramed() throws IOException {
+        Request request = new Request(Action.RPC);
+        request.addParameter("RPC", "TEST");
+        byte[] encoded = request.getEncodedParameters();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        request.writeFramed(new DataOutputStream(out), 0x01020304, 0);
+        byte[] frame = out.toByteArray();
+        ByteBuffer expected = ByteBuffer.allocate(9 + encoded.length);
+        expected.putInt(5 + encoded.length).putInt(0x01020304).put((byte) 'R').put(encoded);
+        assertArrayEquals(expected.array(), frame);
+        assertEquals(frame.length, request.getSize());
+        ByteBuffer buffers = ByteBuffer.allocate(frame.length);
+        
+        for (ByteBuffer buffer : request.toFramedByteBuffers(0x01020304, 0)) {
+            buffers.put(buffer);
+        }
+        
+        assertArrayEquals(frame, buffers.array());
+    }
+    
+    @Test
+    public void testCompressed() throws IOException {
+        Request request = new Request(Action.RPC);
+        StringBuilder sb = new StringBuilder();
+        
+        for (int i = 0; i < 500; i++) {
+            sb.append("Line ").append(i).append(Constants.LINE_SEPARATOR);
+        }
+        
+        request.addParameter("TEXT", sb.toString());
+        byte[] encoded = request.getEncodedParameters();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        request.writeFramed(new DataOutputStream(out), 1, encoded.length + 1);
+        assertEquals(0, request.getUncompressedSize());
+        assertEquals(9 + encoded.length, out.size());
+        out.reset();
+        request.writeFramed(new DataOutputStream(out), 1, encoded.length);
+        ByteBuffer frame = ByteBuffer.wrap(out.toByteArray());
+        assertEquals(encoded.length, request.getUncompressedSize());
+        assertEquals(frame.capacity(), request.getSize());
+        assertEquals(frame.capacity() - 4, frame.getInt());
+        assertEquals(1, frame.getInt());
+        assertEquals((byte) ('R' | FrameCompression.FLAG), frame.get());
+        byte[] payload = new byte[frame.remaining()];
+        frame.get(payload);
+        assertTrue(payload.length < encoded.length / 4);
+        assertArrayEquals(encoded, FrameCompression.decompress(payload));
+        ByteBuffer buffers = ByteBuffer.allocate(out.size());
+        
+        for (ByteBuffer buffer : request.toFramedByteBuffers(1, encoded.length)) {
+            buffers.put(buffer);
+        }
+        
+        assertArrayEquals(out.toByteArray(), buffers.array());
+    }
+    
+    private void testLengthDescriptor(int length, int... expected) {
+        Request request = new Request(Action.RPC);
+        request.addParameter(new String(new char[length]).replace('\0', 'x'), "", "");
+        byte[] encoded = request.getEncodedParameters();
+        
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("Length " + length + ", byte " + i, (byte) expected[i], encoded[i]);
+        }
+        
+        assertEquals(expected.length + length + 2, encoded.length);
+    }
+}
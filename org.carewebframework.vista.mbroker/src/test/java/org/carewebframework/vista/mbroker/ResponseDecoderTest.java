@@ -0,0 +1,310 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.carewebframework.vista.mbroker.Response.ResponseType;
+import org.carewebframework.vista.mbroker.ResponseDecoder.IPendingLookup;
+
+import org.junit.Test;
+
+public class ResponseDecoderTest {
+    
+    private final Random random = new Random(1234);
+    
+    @Test
+    public void testNarrowFrames() throws IOException {
+        testFrames(false);
+    }
+    
+    @Test
+    public void testWideFrames() throws IOException {
+        testFrames(true);
+    }
+    
+    @Test
+    public void testLengthPrefixedFrames() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<String> expected = new ArrayList<>();
+        
+        for (int i = 0; i < 40; i++) {
+            String data = createData(i % 10 == 9 ? BufferPool.IO_BUFFERS.getBufferSize() * 3 + i : random.nextInt(200));
+            writeFramedFrame(out, 0xFF + i * 0x1000000, i % 4, i % 7 == 0 ? "" : data);
+            expected.add(i % 7 == 0 ? "" : data);
+        }
+        
+        InputStream stream = new ChoppyInputStream(out.toByteArray());
+        ResponseDecoder decoder = new ResponseDecoder();
+        int count = 0;
+        
+        while (decoder.read(stream) >= 0) {
+            Response response;
+            
+            while ((response = decoder.nextFramed()) != null) {
+                assertEquals(0xFF + count * 0x1000000, response.getSequenceId());
+                assertEquals(ResponseType.values()[count % 4], response.getResponseType());
+                assertEquals(expected.get(count++), response.getData());
+            }
+        }
+        
+        assertEquals(expected.size(), count);
+        assertNull(decoder.nextFramed());
+    }
+    
+    @Test
+    public void testStreamedLengthPrefixedFrames() throws Exception {
+        final List<String> lines = new ArrayList<>();
+        final Map<Integer, PendingResponse> pending = new HashMap<>();
+        ILineConsumer consumer = new ILineConsumer() {
+            
+            @Override
+            public void onLine(String line) {
+                lines.add(line);
+            }
+            
+        };
+        StringBuilder sb = new StringBuilder();
+        
+        for (int i = 0; i < 2000; i++) {
+            sb.append(createData(random.nextInt(20))).append("caf\u00e9").append(Constants.LINE_SEPARATOR);
+        }
+        
+        String data = sb.append("last").toString();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeFramedFrame(out, 1, 0, data);
+        writeFramedFrame(out, 2, 0, "not streamed");
+        pending.put(1, new StreamingResponse(consumer, true));
+        ResponseDecoder decoder = new ResponseDecoder(new IPendingLookup() {
+            
+            @Override
+            public PendingResponse getPending(int sequenceId) {
+                return pending.get(sequenceId);
+            }
+            
+        });
+        InputStream stream = new ChoppyInputStream(out.toByteArray());
+        List<Response> responses = new ArrayList<>();
+        
+        while (decoder.read(stream) >= 0) {
+            Response response;
+            
+            while ((response = decoder.nextFramed()) != null) {
+                responses.add(response);
+            }
+        }
+        
+        assertEquals(2, responses.size());
+        assertEquals("", responses.get(0).getData());
+        assertEquals("not streamed", responses.get(1).getData());
+        PendingResponse streamed = pending.get(1);
+        streamed.complete(responses.get(0), null);
+        streamed.await(0);
+        assertEquals(Arrays.asList(data.split(Constants.LINE_SEPARATOR)), lines);
+    }
+    
+    @Test
+    public void testStreamConstructor() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeFrame(out, 255, 0, "first", true);
+        writeFrame(out, 7, 2, "second", true);
+        DataInputStream stream = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        Response response = new Response(stream, true);
+        assertEquals(255, response.getSequenceId());
+        assertEquals("first", response.getData());
+        response = new Response(stream, true);
+        assertEquals(7, response.getSequenceId());
+        assertEquals(ResponseType.ASYNC, response.getResponseType());
+        assertEquals("second", response.getData());
+    }
+    
+    @Test
+    public void testCharSequence() throws IOException {
+        Response response = new Response(1, 0, "abc^def".getBytes(Constants.UTF8));
+        CharSequence cs = response.getCharSequence();
+        assertTrue(cs instanceof AsciiCharSequence);
+        assertEquals("def", cs.subSequence(4, 7).toString());
+        assertEquals('^', cs.charAt(3));
+        response = new Response(1, 0, "caf\u00e9".getBytes(Constants.UTF8));
+        cs = response.getCharSequence();
+        assertFalse(cs instanceof AsciiCharSequence);
+        assertEquals("caf\u00e9", cs.toString());
+    }
+    
+    @Test
+    public void testStreamedFrames() throws Exception {
+        final List<String> lines = new ArrayList<>();
+        final Map<Integer, PendingResponse> pending = new HashMap<>();
+        ILineConsumer consumer = new ILineConsumer() {
+            
+            @Override
+            public void onLine(String line) {
+                lines.add(line);
+            }
+            
+        };
+        StringBuilder sb = new StringBuilder();
+        
+        for (int i = 0; i < 2000; i++) {
+            sb.append(i % 10 == 0 ? "" : createData(random.nextInt(20)) + "caf\u00e9").append(Constants.LINE_SEPARATOR);
+        }
+        
+        String data = sb.append("last").toString();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeFrame(out, 1, 0, data, true);
+        writeFrame(out, 2, 0, "not streamed", true);
+        writeFrame(out, 3, 1, "error", true);
+        pending.put(1, new StreamingResponse(consumer, true));
+        pending.put(3, new StreamingResponse(consumer, true));
+        ResponseDecoder decoder = new ResponseDecoder(new IPendingLookup() {
+            
+            @Override
+            public PendingResponse getPending(int sequenceId) {
+                return pending.get(sequenceId);
+            }
+            
+        });
+        InputStream stream = new ChoppyInputStream(out.toByteArray());
+        List<Response> responses = new ArrayList<>();
+        
+        while (decoder.read(stream) >= 0) {
+            Response response;
+            
+            while ((response = decoder.next(true)) != null) {
+                responses.add(response);
+            }
+        }
+        
+        assertEquals(3, responses.size());
+        assertEquals("", responses.get(0).getData());
+        assertEquals("not streamed", responses.get(1).getData());
+        assertEquals(ResponseType.ERROR, responses.get(2).getResponseType());
+        assertEquals("error", responses.get(2).getData());
+        PendingResponse streamed = pending.get(1);
+        streamed.complete(responses.get(0), null);
+        streamed.await(0);
+        assertEquals(Arrays.asList(data.split(Constants.LINE_SEPARATOR)), lines);
+    }
+    
+    /**
+     * Writes frames of assorted sizes, including ones spanning several pooled buffers, then reads
+     * them back in randomly sized pieces.
+     *
+     * @param wide If true, use 32-bit sequence ids.
+     * @throws IOException An IO exception.
+     */
+    private void testFrames(boolean wide) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<String> expected = new ArrayList<>();
+        
+        for (int i = 0; i < 40; i++) {
+            String data = createData(i % 10 == 9 ? BufferPool.IO_BUFFERS.getBufferSize() * 3 + i : random.nextInt(200));
+            writeFrame(out, wide ? 0xFF + i * 0x1000000 : i % 100, i % 4, data, wide);
+            expected.add(data);
+        }
+        
+        InputStream stream = new ChoppyInputStream(out.toByteArray());
+        ResponseDecoder decoder = new ResponseDecoder();
+        int count = 0;
+        
+        while (decoder.read(stream) >= 0) {
+            Response response;
+            
+            while ((response = decoder.next(wide)) != null) {
+                assertEquals(wide ? 0xFF + count * 0x1000000 : count % 100, response.getSequenceId());
+                assertEquals(ResponseType.values()[count % 4], response.getResponseType());
+                assertEquals(expected.get(count++), response.getData());
+            }
+        }
+        
+        assertEquals(expected.size(), count);
+        assertNull(decoder.next(wide));
+    }
+    
+    private String createData(int length) {
+        StringBuilder sb = new StringBuilder(length);
+        
+        while (sb.length() < length) {
+            sb.append((char) ('0' + random.nextInt(75)));
+        }
+        
+        return sb.toString();
+    }
+    
+    private void writeFrame(ByteArrayOutputStream out, int seq, int code, String data, boolean wide) throws IOException {
+        DataOutputStream stream = new DataOutputStream(out);
+        
+        if (wide) {
+            stream.writeInt(seq);
+        } else {
+            stream.write(seq);
+        }
+        
+        stream.write(code);
+        stream.write(data.getBytes(Constants.UTF8));
+        stream.write(Constants.EOD);
+    }
+    
+    private void writeFramedFrame(ByteArrayOutputStream out, int seq, int code, String data) throws IOException {
+        DataOutputStream stream = new DataOutputStream(out);
+        byte[] bytes = data.getBytes(Constants.UTF8);
+        stream.writeInt(5 + bytes.length);
+        stream.writeInt(seq);
+        stream.write(code);
+        stream.write(bytes);
+    }
+    
+    /**
+     * Input stream that returns data in randomly sized pieces.
+     */
+    private class ChoppyInputStream extends ByteArrayInputStream {
+        
+        ChoppyInputStream(byte[] data) {
+            super(data);
+        }
+        
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 1 + random.nextInt(5000)));
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+
+import org.junit.Test;
+
+public class SerializationMethodTest {
+    
+    @Test
+    public void testJavaSerialization() {
+        for (int size : new int[] { 0, 1, 2, 3, 1000, 100000 }) {
+            Map<String, Object> data = new HashMap<>();
+            data.put("text", StringUtils.repeat("x", size));
+            data.put("size", size);
+            String serialized = SerializationMethod.JAVA.serialize(data);
+            assertEquals(SerializationMethod.JAVA, SerializationMethod.detect(serialized));
+            assertEquals(data, SerializationMethod.deserialize(serialized));
+        }
+    }
+    
+    @Test
+    public void testOtherMethods() {
+        assertNull(SerializationMethod.deserialize(SerializationMethod.JAVA.serialize(null)));
+        assertEquals("text", SerializationMethod.deserialize(SerializationMethod.RAW.serialize("text")));
+        assertEquals("text", SerializationMethod.deserialize("text"));
+    }
+    
+}
@@ -0,0 +1,130 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.carewebframework.vista.mbroker.BrokerSession.IAsyncRPCEvent;
+import org.carewebframework.vista.mbroker.PollingThread.IHostEventHandler;
+import org.carewebframework.vista.mbroker.Security.AuthResult;
+import org.carewebframework.vista.mbroker.Security.AuthStatus;
+import org.carewebframework.vista.mbroker.testsupport.StandInServer;
+
+import org.junit.Test;
+
+/**
+ * Performs the same exercises as {@link BrokerTest}, but against the stand-in broker server rather
+ * than a live VistA server.
+ */
+public class StandInServerTest implements IHostEventHandler, IAsyncRPCEvent {
+    
+    private final LinkedBlockingQueue<String> received = new LinkedBlockingQueue<>();
+    
+    @Test
+    public void testConnection() throws Exception {
+        try (StandInServer server = new StandInServer()) {
+            server.loadFixtures(StandInServerTest.class.getResourceAsStream("/standin.fixtures"));
+            server.register("XWB EGCHO MEMO", new StandInServer.IHandler() {
+                
+                @Override
+                public String handle(Map<String, String> control, Map<String, Map<String, String>> params) {
+                    StringBuilder sb = new StringBuilder("DHCP RECEIVED:");
+                    
+                    for (String line : params.get("1").values()) {
+                        sb.append(Constants.LINE_SEPARATOR).append(line);
+                    }
+                    
+                    return sb.toString();
+                }
+                
+            });
+            
+            CipherRegistry.registerCiphers(StandInServerTest.class.getResourceAsStream("/mbroker.ciphers"));
+            ConnectionParams params = new ConnectionParams(server.getConnectionString());
+            params.setUsername("user");
+            params.setPassword("password");
+            BrokerSession session = new BrokerSession(params);
+            AuthResult authResult = session.connect();
+            
+            try {
+                assertEquals(AuthStatus.SUCCESS, authResult.status);
+                assertTrue(session.isAuthenticated());
+                session.addHostEventHandler(this);
+                List<String> results = new ArrayList<>();
+                session.callRPCList("XWB EGCHO LIST", results);
+                assertList(results);
+                session.callRPCList("XWB EGCHO MEMO", results, results);
+                assertEquals("DHCP RECEIVED:", results.get(0));
+                results.remove(0);
+                assertList(results);
+                session.eventSubscribe("test", true);
+                session.fireRemoteEvent("test", "event data", (String) null);
+                server.fireEvent("test.child", "server event");
+                server.fireEvent("other", "not subscribed");
+                int asyncHandle = session.callRPCAsync("XWB EGCHO LIST", this);
+                assertTrue(asyncHandle > 0);
+                assertEquals("test:event data", received.poll(10, TimeUnit.SECONDS));
+                assertEquals("test.child:server event", received.poll(10, TimeUnit.SECONDS));
+                assertEquals("async:28", received.poll(10, TimeUnit.SECONDS));
+                session.callRPCAsync("XWB EGCHO NONE", this);
+                assertEquals("error:3", received.poll(10, TimeUnit.SECONDS));
+            } finally {
+                session.disconnect();
+            }
+        }
+    }
+    
+    private void assertList(List<String> list) {
+        assertEquals(28, list.size());
+        
+        for (int i = 0; i < 28; i++) {
+            assertEquals("List Item #" + (i + 1), list.get(i));
+        }
+    }
+    
+    @Override
+    public void onRPCComplete(int handle, String data) {
+        received.add("async:" + data.split(Constants.LINE_SEPARATOR).length);
+    }
+    
+    @Override
+    public void onRPCError(int handle, int code, String text) {
+        received.add("error:" + code);
+    }
+    
+    @Override
+    public void onHostEvent(String name, Object data) {
+        received.add(name + ":" + data);
+    }
+    
+}
@@ -0,0 +1,214 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.carewebframework.vista.mbroker.Request.Action;
+import org.carewebframework.vista.mbroker.Response.ResponseType;
+import org.carewebframework.vista.mbroker.TrafficReplayer.RecordedCall;
+import org.carewebframework.vista.mbroker.TrafficReplayer.Result;
+import org.carewebframework.vista.mbroker.testsupport.StandInServer;
+
+import org.junit.Test;
+
+public class TrafficRecorderTest {
+    
+    private static final StandInServer.IHandler ECHO = new StandInServer.IHandler() {
+        
+        @Override
+        public String handle(Map<String, String> control, Map<String, Map<String, String>> params) {
+            Map<String, String> list = params.get("2");
+            return params.get("1").get("") + "^" + (list == null ? "" : list.values());
+        }
+        
+    };
+    
+    private static final StandInServer.IHandler FAIL = new StandInServer.IHandler() {
+        
+        @Override
+        public String handle(Map<String, String> control, Map<String, Map<String, String>> params) throws Exception {
+            throw new StandInServer.HostError(5, "Failed");
+        }
+        
+    };
+    
+    private static final TrafficRecorder.IFieldMask MASK = new TrafficRecorder.IFieldMask() {
+        
+        @Override
+        public String maskParameter(String rpcName, int position, String subscript, String value) {
+            return position == 1 && value.startsWith("SSN") ? "SSN-XXX" : value;
+        }
+        
+        @Override
+        public String maskResponse(String rpcName, String data) {
+            return data.replace("SSN-123", "SSN-XXX");
+        }
+        
+    };
+    
+    @Test
+    public void testDecodeParameters() {
+        String longValue = StringUtils.repeat("x", 5000);
+        Request request = new Request(Action.RPC);
+        request.addParameter("RPC", "TEST");
+        request.addParameter("1", "", longValue);
+        request.addParameter("2", "\"A\",1", "\u00e9");
+        List<String[]> params = Request.decodeParameters(request.getEncodedParameters());
+        assertEquals(3, params.size());
+        assertEquals(Arrays.asList("RPC", "", "TEST"), Arrays.asList(params.get(0)));
+        assertEquals(Arrays.asList("1", "", longValue), Arrays.asList(params.get(1)));
+        assertEquals(Arrays.asList("2", "\"A\",1", "\u00e9"), Arrays.asList(params.get(2)));
+    }
+    
+    /**
+     * Calls serviced by the members of a session pool are recorded, including the data of streamed
+     * calls, whether the recorder is set before or after the members are opened.
+     */
+    @Test
+    public void testPooled() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        
+        try (StandInServer server = new StandInServer()) {
+            server.register("ECHO", ECHO);
+            ConnectionParams params = new ConnectionParams(server.getConnectionString());
+            BrokerSessionPool pool = new BrokerSessionPool(params);
+            pool.setMinSize(1);
+            pool.setMaxSize(2);
+            TrafficRecorder recorder = new TrafficRecorder(log);
+            
+            try {
+                pool.connect();
+                pool.authenticate("", "", null);
+                assertEquals(1, pool.getSize());
+                pool.setTrafficRecorder(recorder);
+                assertEquals("a^", pool.callRPC("ECHO", "a"));
+                final StringBuilder lines = new StringBuilder();
+                pool.callRPCStream("ECHO", new ILineConsumer() {
+                    
+                    @Override
+                    public void onLine(String line) {
+                        lines.append(line).append('|');
+                    }
+                    
+                }, "b", Arrays.asList("1", "2"));
+                assertEquals("b^[1, 2]|", lines.toString());
+            } finally {
+                pool.disconnect();
+            }
+            
+            assertEquals(2, recorder.getCount());
+            recorder.close();
+        }
+        
+        List<RecordedCall> calls = new TrafficReplayer(new ByteArrayInputStream(log.toByteArray())).getCalls();
+        assertEquals(2, calls.size());
+        assertEquals("a^", calls.get(0).getData());
+        assertEquals("b^[1, 2]", calls.get(1).getData());
+    }
+    
+    @Test
+    public void testRecordAndReplay() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        
+        try (StandInServer server = new StandInServer()) {
+            server.register("ECHO", ECHO);
+            server.register("FAIL", FAIL);
+            BrokerSession session = new BrokerSession(new ConnectionParams(server.getConnectionString()));
+            TrafficRecorder recorder = new TrafficRecorder(log);
+            recorder.setFieldMask(MASK);
+            session.setTrafficRecorder(recorder);
+            session.connect();
+            
+            try {
+                assertEquals("SSN-123^", session.callRPC("ECHO:2:OTHER CONTEXT", "SSN-123"));
+                assertEquals("b^[1, 2]", session.callRPC("ECHO", "b", Arrays.asList("1", "2")));
+                
+                try {
+                    session.callRPC("FAIL");
+                    fail("Expected exception.");
+                } catch (RPCException e) {
+                    // Expected
+                }
+                
+                session.setTrafficRecorder(null);
+                session.callRPC("ECHO", "not recorded");
+            } finally {
+                session.disconnect();
+            }
+            
+            assertEquals(3, recorder.getCount());
+            recorder.close();
+        }
+        
+        TrafficReplayer replayer = new TrafficReplayer(new ByteArrayInputStream(log.toByteArray()));
+        List<RecordedCall> calls = replayer.getCalls();
+        assertEquals(3, calls.size());
+        RecordedCall call = calls.get(0);
+        assertEquals("ECHO", call.getRPCName());
+        assertEquals("2", call.getVersion());
+        assertEquals("OTHER CONTEXT", call.getContext());
+        assertEquals("SSN-XXX", call.getParameters().get(0).getValue());
+        assertEquals(ResponseType.ACK, call.getResponseType());
+        assertEquals("SSN-XXX^", call.getData());
+        assertTrue(call.getDuration() > 0);
+        call = calls.get(1);
+        assertEquals("b", call.getParameters().get(0).getValue());
+        assertEquals("2", call.getParameters().get(1).get("2"));
+        assertTrue(call.getOffset() > calls.get(0).getOffset());
+        call = calls.get(2);
+        assertEquals(ResponseType.ERROR, call.getResponseType());
+        assertEquals(0, call.getParameters().getCount());
+        
+        try (StandInServer server = new StandInServer()) {
+            server.loadRecording(new ByteArrayInputStream(log.toByteArray()), 0);
+            BrokerSession session = new BrokerSession(new ConnectionParams(server.getConnectionString()));
+            session.connect();
+            
+            try {
+                assertEquals("b^[1, 2]", session.callRPC("ECHO", "b", Arrays.asList("1", "2")));
+                assertEquals("SSN-XXX^", session.callRPC("ECHO", "SSN-XXX"));
+                replayer.setSpeed(10);
+                Result result = replayer.replay(session);
+                assertEquals(3, result.getCount());
+                assertEquals(1, result.getErrorCount());
+                assertEquals(0, result.getMismatchCount());
+            } finally {
+                session.disconnect();
+            }
+        }
+    }
+    
+}
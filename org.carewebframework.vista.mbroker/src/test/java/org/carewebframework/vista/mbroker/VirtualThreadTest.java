@@ -0,0 +1,237 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.carewebframework.vista.mbroker.testsupport.StandInServer;
+
+import org.junit.Test;
+
+/**
+ * Many desktops, each with its own non-blocking broker session, making blocking calls against a
+ * {@link StandInServer} that simulates server latency. The number of live platform threads on the
+ * client side is sampled throughout each run. Virtual threads require Java 21 or later; on earlier
+ * runtimes, only the platform thread and fallback behavior is verified.
+ */
+public class VirtualThreadTest {
+    
+    private static final int DESKTOPS = 200;
+    
+    private static final int CALLS = 5;
+    
+    /**
+     * Idle non-blocking sessions hold no thread of their own.
+     */
+    @Test
+    public void testIdleSessions() throws Exception {
+        try (StandInServer server = createServer()) {
+            List<BrokerSession> sessions = createSessions(server, 1);
+            int baseline = countClientThreads();
+            
+            try {
+                sessions.addAll(createSessions(server, DESKTOPS));
+                int threads = countClientThreads() - baseline;
+                assertTrue(threads + " threads for " + DESKTOPS + " sessions.", threads < 10);
+            } finally {
+                disconnect(sessions);
+            }
+        }
+    }
+    
+    /**
+     * Every desktop's calls complete, whether made from platform threads or from virtual threads.
+     * Desktops on virtual threads consume only a small number of carrier threads.
+     */
+    @Test
+    public void testDesktops() throws Exception {
+        try (StandInServer server = createServer()) {
+            List<BrokerSession> sessions = createSessions(server, DESKTOPS);
+            
+            try {
+                int baseline = countClientThreads();
+                int peak = run(Executors.newCachedThreadPool(), sessions) - baseline;
+                assertTrue("Peak of " + peak + " platform threads.", peak > DESKTOPS / 2);
+                
+                if (VirtualThreads.isSupported()) {
+                    peak = run(VirtualThreads.newExecutor(), sessions) - baseline;
+                    assertTrue("Peak of " + peak + " platform threads.", peak < DESKTOPS / 4);
+                }
+            } finally {
+                disconnect(sessions);
+            }
+        }
+    }
+    
+    /**
+     * A session configured for virtual threads runs submitted calls on them, or on the calling
+     * thread if the runtime does not support them.
+     */
+    @Test
+    public void testFallback() throws Exception {
+        try (StandInServer server = createServer()) {
+            ConnectionParams params = new ConnectionParams(server.getConnectionString());
+            params.setVirtualThreads(true);
+            BrokerSession session = new BrokerSession(params);
+            session.connect();
+            session.authenticate("", "", null);
+            
+            try {
+                assertEquals(VirtualThreads.isSupported(), session.getExecutorService() != null);
+                assertEquals("x", session.submitRPC("ECHO", "x").get(5, TimeUnit.SECONDS));
+                assertEquals("y", session.callRPCFuture("ECHO", "y").get(5, TimeUnit.SECONDS));
+            } finally {
+                session.disconnect();
+            }
+        }
+    }
+    
+    /**
+     * Runs every desktop concurrently on the given executor, verifying the result of every call.
+     *
+     * @return The peak number of client-side platform threads.
+     */
+    private int run(ExecutorService executor, List<BrokerSession> sessions) throws Exception {
+        final CountDownLatch done = new CountDownLatch(sessions.size());
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicInteger peak = new AtomicInteger();
+        Thread sampler = new Thread(new Runnable() {
+            
+            @Override
+            public void run() {
+                while (running.get()) {
+                    peak.set(Math.max(peak.get(), countClientThreads()));
+                    
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            
+        }, "TestSampler");
+        
+        sampler.start();
+        
+        for (int i = 0; i < sessions.size(); i++) {
+            final BrokerSession session = sessions.get(i);
+            final String data = "desktop " + i;
+            executor.execute(new Runnable() {
+                
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < CALLS; j++) {
+                            if (!data.equals(session.callRPC("ECHO", data))) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+                
+            });
+        }
+        
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        running.set(false);
+        sampler.join();
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        assertEquals(0, failures.get());
+        return peak.get();
+    }
+    
+    private List<BrokerSession> createSessions(StandInServer server, int count) {
+        List<BrokerSession> sessions = new ArrayList<>();
+        
+        for (int i = 0; i < count; i++) {
+            ConnectionParams params = new ConnectionParams(server.getConnectionString());
+            params.setNonBlocking(true);
+            BrokerSession session = new BrokerSession(params);
+            session.connect();
+            sessions.add(session);
+        }
+        
+        return sessions;
+    }
+    
+    private void disconnect(List<BrokerSession> sessions) {
+        for (BrokerSession session : sessions) {
+            session.disconnect();
+        }
+    }
+    
+    private StandInServer createServer() throws Exception {
+        StandInServer server = new StandInServer();
+        server.setLatency(20);
+        server.register("ECHO", new StandInServer.IHandler() {
+            
+            @Override
+            public String handle(Map<String, String> control, Map<String, Map<String, String>> params) {
+                return params.get("1").get("");
+            }
+            
+        });
+        
+        return server;
+    }
+    
+    /**
+     * Returns the number of live platform threads, excluding those of the loopback server and the
+     * sampler. Virtual threads are not included.
+     */
+    private static int countClientThreads() {
+        int count = 0;
+        
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            String name = thread.getName();
+            
+            if (!name.startsWith("StandInServer") && !name.equals("TestSampler")) {
+                count++;
+            }
+        }
+        
+        return count;
+    }
+    
+}
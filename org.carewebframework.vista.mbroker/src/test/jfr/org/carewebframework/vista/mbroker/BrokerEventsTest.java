@@ -0,0 +1,105 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.mbroker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Map;
+
+import org.carewebframework.vista.mbroker.testsupport.StandInServer;
+
+import org.junit.Test;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class BrokerEventsTest {
+    
+    @Test
+    public void testEvents() throws Exception {
+        assertTrue(BrokerEvents.isSupported());
+        File file = File.createTempFile("mbroker", ".jfr");
+        
+        try (StandInServer server = new StandInServer(); Recording recording = new Recording()) {
+            server.setLatency(10);
+            server.register("ECHO", new StandInServer.IHandler() {
+                
+                @Override
+                public String handle(Map<String, String> control, Map<String, Map<String, String>> params) {
+                    return params.get("1").get("");
+                }
+                
+            });
+            
+            recording.enable("org.carewebframework.vista.mbroker.Request");
+            recording.enable("org.carewebframework.vista.mbroker.Poll");
+            recording.start();
+            BrokerSession session = new BrokerSession(new ConnectionParams(server.getConnectionString()));
+            session.connect();
+            
+            try {
+                assertEquals("12345", session.callRPC("ECHO:1:TEST CONTEXT", "12345"));
+                
+                for (int i = 0; i < 100 && server.getPollCount() == 0; i++) {
+                    Thread.sleep(50);
+                }
+            } finally {
+                session.disconnect();
+            }
+            
+            recording.stop();
+            recording.dump(file.toPath());
+            RecordedEvent rpc = null;
+            RecordedEvent poll = null;
+            
+            for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+                String name = event.getEventType().getName();
+                
+                if (name.endsWith(".Request") && "ECHO".equals(event.getString("rpcName"))) {
+                    rpc = event;
+                } else if (name.endsWith(".Poll")) {
+                    poll = event;
+                }
+            }
+            
+            assertNotNull(rpc);
+            assertEquals("TEST CONTEXT", rpc.getString("context"));
+            assertEquals(5, rpc.getLong("responseSize"));
+            assertTrue(rpc.getLong("requestSize") > 5);
+            assertTrue(rpc.getDuration().toMillis() >= 10);
+            assertNotNull(poll);
+            assertEquals("Ping", poll.getString("action"));
+            assertEquals("ACK", poll.getString("responseType"));
+        } finally {
+            file.delete();
+        }
+    }
+    
+}
@@ -35,6 +35,7 @@ import java.util.List;
 import org.carewebframework.ui.sharedforms.ListViewForm;
 import org.carewebframework.ui.zk.ReportBox;
 import org.carewebframework.vista.mbroker.BrokerSession;
+import org.carewebframework.vista.mbroker.PreparedRPC;
 import org.carewebframework.vista.ui.mbroker.AsyncRPCCompleteEvent;
 import org.carewebframework.vista.ui.mbroker.AsyncRPCErrorEvent;
 import org.carewebframework.vista.ui.mbroker.AsyncRPCEventDispatcher;
@@ -66,6 +67,8 @@ public abstract class CoverSheetBase<T> extends ListViewForm<T> implements Patie
 
     private BrokerSession broker;
 
+    private transient PreparedRPC detailCall;
+
     private AsyncRPCEventDispatcher asyncDispatcher;
 
     private Component target;
@@ -158,7 +161,21 @@ public abstract class CoverSheetBase<T> extends ListViewForm<T> implements Patie
     protected String getDetail(T data) {
         String ien = getLogicalId(data);
         return detailRPC == null || ien == null || ien.isEmpty() ? null
-                : fromList(getBroker().callRPCList(detailRPC, null, patient.getIdElement().getIdPart(), ien));
+                : fromList(getBroker().callRPCList(getDetailCall(), null, patient.getIdElement().getIdPart(), ien));
+    }
+
+    /**
+     * Returns the prepared call for retrieving detail information, preparing it once for this
+     * instance, or again if the detail RPC or broker session has changed.
+     *
+     * @return The prepared detail call.
+     */
+    private PreparedRPC getDetailCall() {
+        if (detailCall == null || !detailRPC.equals(detailCall.getRequestedName())) {
+            detailCall = getBroker().prepare(detailRPC);
+        }
+
+        return detailCall;
     }
 
     protected String getError(List<String> list) {
@@ -228,6 +245,7 @@ public abstract class CoverSheetBase<T> extends ListViewForm<T> implements Patie
 
     public void setBroker(BrokerSession broker) {
         this.broker = broker;
+        this.detailCall = null;
     }
 
 }
@@ -0,0 +1,61 @@
+/*
+ * #%L
+ * carewebframework
+ * %%
+ * Copyright (C) 2008 - 2017 Regenstrief Institute, Inc.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.carewebframework.org/licensing/disclaimer.
+ *
+ * #L%
+ */
+package org.carewebframework.vista.ui.mbroker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import org.springframework.beans.factory.config.RuntimeBeanReference;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.beans.factory.xml.XmlBeanDefinitionReader;
+import org.springframework.core.env.StandardEnvironment;
+
+/**
+ * Checks that the broker sessions of all users share the RPC scheduler of the shipped Spring
+ * configuration, so that its limits apply to the node as a whole.
+ */
+public class SchedulerConfigTest {
+    
+    @Test
+    public void testSharedScheduler() {
+        DefaultListableBeanFactory factory = new DefaultListableBeanFactory();
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.setActiveProfiles("root");
+        XmlBeanDefinitionReader reader = new XmlBeanDefinitionReader(factory);
+        reader.setEnvironment(environment);
+        reader.loadBeanDefinitions("classpath:/META-INF/VistAExtensions-api-spring.xml",
+            "classpath:/META-INF/VistAExtensions-ui-spring.xml");
+        // The user's broker session is the target of a scoped proxy.
+        Object value = factory.getBeanDefinition("scopedTarget.brokerSession").getPropertyValues()
+                .getPropertyValue("scheduler").getValue();
+        assertTrue(value instanceof RuntimeBeanReference);
+        assertEquals("brokerRPCScheduler", ((RuntimeBeanReference) value).getBeanName());
+        assertTrue(factory.isSingleton("brokerRPCScheduler"));
+    }
+    
+}